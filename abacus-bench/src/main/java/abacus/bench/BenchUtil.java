@@ -0,0 +1,27 @@
+package abacus.bench;
+
+import java.io.IOException;
+
+import org.apache.lucene.facet.FacetsCollector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+
+final class BenchUtil {
+
+  // every suite builds the same synthetic docs for the same parameters
+  static final long SEED = 0x5eed;
+
+  private BenchUtil() {
+  }
+
+  /**
+   * Returns the matching docs of every doc of reader, collected once so that suites only
+   * measure counting.
+   */
+  static FacetsCollector collectAll(IndexReader reader) throws IOException {
+    FacetsCollector facetsCollector = new FacetsCollector();
+    new IndexSearcher(reader).search(new MatchAllDocsQuery(), facetsCollector);
+    return facetsCollector;
+  }
+}
@@ -0,0 +1,314 @@
+package abacus.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+
+import abacus.api.AbacusFieldType;
+import abacus.config.FacetIndexedType;
+import abacus.config.FieldConfig;
+import abacus.config.FieldConfigBuilder;
+import abacus.config.IndexDirectoryFacetsConfigReader;
+import abacus.indexing.AbacusIndexer;
+
+/**
+ * Writes a synthetic car catalog with the schema of the cars test data: numeric price, year
+ * and mileage with default ranges, single valued color and category, multi valued tags, an
+ * attribute field, a contents text field and the source data of every doc. Values of the
+ * string fields are drawn out of a configurable number of values with a skew towards the
+ * first ones, like the popular colors and tags of a real catalog.
+ * <p>
+ * Docs are written by several threads sharing one {@link IndexWriter}, every thread drawing
+ * from its own seeded random, then merged down to the requested number of segments. The
+ * same settings always write the same docs, though not with the same docids when more than
+ * one thread writes.
+ */
+public class CarCatalogIndex {
+
+  public static final String[] WORDS = { "cool", "moon-roof", "leather", "hybrid",
+      "navigation", "sport", "family", "compact", "luxury", "classic", "turbo", "diesel",
+      "automatic", "manual", "convertible", "reliable" };
+
+  public static final int MIN_PRICE = 2000;
+  public static final int MAX_PRICE = 20000;
+  public static final int MIN_YEAR = 1993;
+  public static final int MAX_YEAR = 2002;
+  public static final int MAX_MILEAGE = 25000;
+
+  private static final int WORDS_PER_DOC = 6;
+  private static final int PROGRESS_INTERVAL = 1000000;
+
+  private long numDocs = 10000000;
+  private int numSegments = 1;
+  private int numColors = 16;
+  private int numCategories = 64;
+  private int numTags = 1000;
+  private int tagsPerDoc = 4;
+  private int numThreads = Runtime.getRuntime().availableProcessors();
+  private double ramBufferMB = 256;
+  private long seed = BenchUtil.SEED;
+
+  public CarCatalogIndex withNumDocs(long numDocs) {
+    this.numDocs = numDocs;
+    return this;
+  }
+
+  /**
+   * Number of segments to merge down to once all docs are written, or 0 to keep the
+   * segments the writer flushed.
+   */
+  public CarCatalogIndex withNumSegments(int numSegments) {
+    this.numSegments = numSegments;
+    return this;
+  }
+
+  public CarCatalogIndex withNumColors(int numColors) {
+    this.numColors = numColors;
+    return this;
+  }
+
+  public CarCatalogIndex withNumCategories(int numCategories) {
+    this.numCategories = numCategories;
+    return this;
+  }
+
+  public CarCatalogIndex withNumTags(int numTags) {
+    this.numTags = numTags;
+    return this;
+  }
+
+  public CarCatalogIndex withTagsPerDoc(int tagsPerDoc) {
+    this.tagsPerDoc = tagsPerDoc;
+    return this;
+  }
+
+  public CarCatalogIndex withNumThreads(int numThreads) {
+    this.numThreads = numThreads;
+    return this;
+  }
+
+  public CarCatalogIndex withRamBufferMB(double ramBufferMB) {
+    this.ramBufferMB = ramBufferMB;
+    return this;
+  }
+
+  public CarCatalogIndex withSeed(long seed) {
+    this.seed = seed;
+    return this;
+  }
+
+  public int getNumColors() {
+    return numColors;
+  }
+
+  public int getNumCategories() {
+    return numCategories;
+  }
+
+  public int getNumTags() {
+    return numTags;
+  }
+
+  public static String color(int value) {
+    return "color" + value;
+  }
+
+  public static String category(int value) {
+    return "category" + value;
+  }
+
+  public static String tag(int value) {
+    return "tag" + value;
+  }
+
+  /**
+   * Returns a value out of cardinality values, value 0 being drawn the most often and the
+   * odds of every other decreasing with its rank.
+   */
+  public static int skewed(Random random, int cardinality) {
+    return random.nextInt(random.nextInt(cardinality) + 1);
+  }
+
+  public static Map<String, FieldConfig> buildConfig() {
+    Map<String, FieldConfig> configMap = new HashMap<>();
+    {
+      FieldConfigBuilder builder = new FieldConfigBuilder();
+      builder.withFacetIndexedType(FacetIndexedType.NUMERIC);
+      builder.withFiledType(AbacusFieldType.DOUBLE);
+      builder.withFacetIndexedRangeStrings(
+          "(* TO 6700]", "[6800 TO 9900]", "[10000 TO 13100]",
+          "[13200 TO 17300]", "[17400 TO *)");
+      configMap.put("price", builder.build());
+    }
+    {
+      FieldConfigBuilder builder = new FieldConfigBuilder();
+      builder.withFacetIndexedType(FacetIndexedType.NUMERIC);
+      builder.withFiledType(AbacusFieldType.INT);
+      builder.withFacetIndexedRangeStrings(
+          "(* TO 1994]", "[1995 TO 1996]",
+          "[1997 TO 1998]", "[1999 TO 2000]", "[2001 TO 2002]");
+      configMap.put("year", builder.build());
+    }
+    {
+      FieldConfigBuilder builder = new FieldConfigBuilder();
+      builder.withFacetIndexedType(FacetIndexedType.NUMERIC);
+      builder.withFiledType(AbacusFieldType.FLOAT);
+      builder.withFacetIndexedRangeStrings(
+          "(* TO 12500]", "(12500 TO 15000]",
+          "(15000 TO 17500]", "(17500 TO *)");
+      configMap.put("mileage", builder.build());
+    }
+    {
+      FieldConfigBuilder builder = new FieldConfigBuilder();
+      builder.withFacetIndexedType(FacetIndexedType.SINGLE);
+      builder.withFiledType(AbacusFieldType.STRING);
+      configMap.put("color", builder.build());
+    }
+    {
+      FieldConfigBuilder builder = new FieldConfigBuilder();
+      builder.withFacetIndexedType(FacetIndexedType.SINGLE);
+      builder.withFiledType(AbacusFieldType.STRING);
+      configMap.put("category", builder.build());
+    }
+    {
+      FieldConfigBuilder builder = new FieldConfigBuilder();
+      builder.withFacetIndexedType(FacetIndexedType.MULTI);
+      builder.withFiledType(AbacusFieldType.STRING);
+      configMap.put("tags", builder.build());
+    }
+    {
+      FieldConfigBuilder builder = new FieldConfigBuilder();
+      builder.withFacetIndexedType(FacetIndexedType.ATTRIBUTE);
+      builder.withFiledType(AbacusFieldType.STRING);
+      configMap.put("attribute", builder.build());
+    }
+    return configMap;
+  }
+
+  /**
+   * Writes the catalog into dir, which must not hold an index yet, and commits it together
+   * with the field configs.
+   */
+  public void write(Directory dir) throws IOException {
+    if (tagsPerDoc > numTags) {
+      throw new IllegalArgumentException("tagsPerDoc " + tagsPerDoc + " exceeds numTags "
+          + numTags);
+    }
+    IndexWriterConfig writerConfig = new IndexWriterConfig(new StandardAnalyzer())
+        .setOpenMode(IndexWriterConfig.OpenMode.CREATE)
+        .setRAMBufferSizeMB(ramBufferMB);
+    final IndexWriter writer = new IndexWriter(dir, writerConfig);
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      final AtomicLong written = new AtomicLong();
+      List<Future<Void>> futures = new ArrayList<>(numThreads);
+      for (int t = 0; t < numThreads; ++t) {
+        final long first = numDocs * t / numThreads;
+        final long last = numDocs * (t + 1) / numThreads;
+        final Random random = new Random(seed + t);
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            for (long id = first; id < last; ++id) {
+              writer.addDocument(buildDoc(id, random));
+              long count = written.incrementAndGet();
+              if (count % PROGRESS_INTERVAL == 0) {
+                System.out.println(count + " docs indexed");
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+      if (numSegments > 0) {
+        System.out.println("merging down to " + numSegments + " segments");
+        writer.forceMerge(numSegments);
+      }
+      IndexDirectoryFacetsConfigReader.putFacetsConfig(writer, buildConfig());
+      writer.commit();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdown();
+      writer.close();
+    }
+  }
+
+  private Document buildDoc(long id, Random random) {
+    Document doc = new Document();
+    doc.add(new NumericDocValuesField("id", id));
+
+    StringBuilder contents = new StringBuilder();
+    for (int i = 0; i < WORDS_PER_DOC; ++i) {
+      if (i > 0) {
+        contents.append(' ');
+      }
+      contents.append(WORDS[skewed(random, WORDS.length)]);
+    }
+    doc.add(new TextField("contents", contents.toString(), Store.NO));
+
+    // whole hundreds, like the cars test data
+    double price = (MIN_PRICE + random.nextInt((MAX_PRICE - MIN_PRICE) / 100 + 1) * 100);
+    AbacusIndexer.addNumericField(doc, "price", price);
+    AbacusIndexer.addAttributeField(doc, "attribute", "price", String.valueOf(price));
+
+    int year = MIN_YEAR + random.nextInt(MAX_YEAR - MIN_YEAR + 1);
+    AbacusIndexer.addNumericField(doc, "year", year);
+    AbacusIndexer.addAttributeField(doc, "attribute", "year", String.valueOf(year));
+
+    float mileage = random.nextInt(MAX_MILEAGE + 1);
+    AbacusIndexer.addNumericField(doc, "mileage", mileage);
+    AbacusIndexer.addAttributeField(doc, "attribute", "mileage", String.valueOf(mileage));
+
+    String color = color(skewed(random, numColors));
+    AbacusIndexer.addFacetTermField(doc, "color", color, false);
+    AbacusIndexer.addAttributeField(doc, "attribute", "color", color);
+
+    String category = category(skewed(random, numCategories));
+    AbacusIndexer.addFacetTermField(doc, "category", category, false);
+    AbacusIndexer.addAttributeField(doc, "attribute", "category", category);
+
+    // consecutive tags from a skewed start, distinct within the doc
+    StringBuilder tags = new StringBuilder();
+    int firstTag = skewed(random, numTags);
+    for (int i = 0; i < tagsPerDoc; ++i) {
+      String tag = tag((firstTag + i) % numTags);
+      AbacusIndexer.addFacetTermField(doc, "tags", tag, true);
+      AbacusIndexer.addAttributeField(doc, "attribute", "tags", tag);
+      if (i > 0) {
+        tags.append(',');
+      }
+      tags.append(tag);
+    }
+
+    AbacusIndexer.addSrcDataField(doc, "{\"id\":" + id + ",\"price\":" + price
+        + ",\"year\":" + year + ",\"mileage\":" + (int) mileage + ",\"color\":\"" + color
+        + "\",\"category\":\"" + category + "\",\"tags\":\"" + tags + "\",\"contents\":\""
+        + contents + "\"}");
+    return doc;
+  }
+}
@@ -0,0 +1,116 @@
+package abacus.bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import abacus.search.facets.FastDocValuesAtomicReader.MemType;
+
+/**
+ * Random access to numeric, sorted and sorted set doc values of a single segment, per
+ * {@link MemType} the segment is loaded with. Every operation reads one doc out of a fixed
+ * random sequence.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DocValuesBenchmark {
+
+  private static final int DOCS_PER_INVOCATION = 4096;
+
+  @Param({ "1000000" })
+  public int numDocs;
+
+  @Param({ "100", "100000" })
+  public int cardinality;
+
+  @Param({ "4" })
+  public int valuesPerDoc;
+
+  @Param({ "Default", "Heap", "Direct", "Native" })
+  public MemType memType;
+
+  private SyntheticIndex index;
+  private IndexReader reader;
+  private NumericDocValues numericDocValues;
+  private SortedDocValues sortedDocValues;
+  private SortedSetDocValues sortedSetDocValues;
+  private int[] docs;
+
+  @Setup
+  public void setUp() throws IOException {
+    index = SyntheticIndex.build(numDocs, cardinality, valuesPerDoc, 1, BenchUtil.SEED);
+    reader = index.openReader(memType);
+    LeafReader leafReader = reader.leaves().get(0).reader();
+    numericDocValues = leafReader.getNumericDocValues(SyntheticIndex.NUMERIC_FIELD);
+    sortedDocValues = leafReader.getSortedDocValues(SyntheticIndex.SORTED_FIELD);
+    sortedSetDocValues = leafReader.getSortedSetDocValues(SyntheticIndex.SORTED_SET_FIELD);
+    Random random = new Random(BenchUtil.SEED);
+    docs = new int[DOCS_PER_INVOCATION];
+    for (int i = 0; i < docs.length; ++i) {
+      docs[i] = random.nextInt(numDocs);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    reader.close();
+    index.close();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(DOCS_PER_INVOCATION)
+  public long numericRandomAccess() {
+    long sum = 0;
+    for (int doc : docs) {
+      sum += numericDocValues.get(doc);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(DOCS_PER_INVOCATION)
+  public long sortedRandomAccess() {
+    long sum = 0;
+    for (int doc : docs) {
+      sum += sortedDocValues.getOrd(doc);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(DOCS_PER_INVOCATION)
+  public long sortedSetRandomAccess() {
+    long sum = 0;
+    for (int doc : docs) {
+      sortedSetDocValues.setDocument(doc);
+      long ord;
+      while ((ord = sortedSetDocValues.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+        sum += ord;
+      }
+    }
+    return sum;
+  }
+}
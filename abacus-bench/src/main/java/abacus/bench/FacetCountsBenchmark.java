@@ -0,0 +1,92 @@
+package abacus.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.facet.FacetResult;
+import org.apache.lucene.facet.FacetsCollector;
+import org.apache.lucene.facet.sortedset.DefaultSortedSetDocValuesReaderState;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesFacetCounts;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState;
+import org.apache.lucene.index.IndexReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import abacus.search.facets.FastDocValuesAtomicReader.MemType;
+import abacus.search.facets.LabelAndOrdFacetCounts;
+import abacus.search.facets.SortedSetDocValuesOrdReader;
+
+/**
+ * Top 10 values of a multi valued field over every doc, counted by
+ * {@link LabelAndOrdFacetCounts} and by Lucene's {@link SortedSetDocValuesFacetCounts} from
+ * the same matching docs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FacetCountsBenchmark {
+
+  private static final int TOP_N = 10;
+
+  @Param({ "1000000" })
+  public int numDocs;
+
+  @Param({ "100", "100000" })
+  public int cardinality;
+
+  @Param({ "4" })
+  public int valuesPerDoc;
+
+  @Param({ "1", "8" })
+  public int numSegments;
+
+  @Param({ "Default", "Heap" })
+  public MemType memType;
+
+  private SyntheticIndex index;
+  private IndexReader reader;
+  private FacetsCollector facetsCollector;
+  private SortedSetDocValuesOrdReader ordReader;
+  private SortedSetDocValuesReaderState luceneState;
+
+  @Setup
+  public void setUp() throws IOException {
+    index = SyntheticIndex.build(numDocs, cardinality, valuesPerDoc, numSegments,
+        BenchUtil.SEED);
+    reader = index.openReader(memType);
+    facetsCollector = BenchUtil.collectAll(reader);
+    ordReader = new SortedSetDocValuesOrdReader(SyntheticIndex.SORTED_SET_FIELD);
+    luceneState = new DefaultSortedSetDocValuesReaderState(reader);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    reader.close();
+    index.close();
+  }
+
+  @Benchmark
+  public FacetResult labelAndOrdFacetCounts() throws IOException {
+    return new LabelAndOrdFacetCounts(SyntheticIndex.SORTED_SET_FIELD, ordReader,
+        facetsCollector).getTopChildren(TOP_N, SyntheticIndex.SORTED_SET_FIELD);
+  }
+
+  @Benchmark
+  public FacetResult sortedSetDocValuesFacetCounts() throws IOException {
+    return new SortedSetDocValuesFacetCounts(luceneState, facetsCollector)
+        .getTopChildren(TOP_N, SyntheticIndex.SORTED_SET_FIELD);
+  }
+}
@@ -0,0 +1,148 @@
+package abacus.bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BitDocIdSet;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RoaringDocIdSet;
+import org.apache.lucene.util.packed.HybridDocIdSet;
+import org.apache.lucene.util.packed.PackedIntsDocIdSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Iteration and intersection of two sets of a random fraction of maxDoc docs, stored as a
+ * {@link FixedBitSet}, a {@link PackedIntsDocIdSet}, a {@link RoaringDocIdSet} or a
+ * {@link HybridDocIdSet}. Clustered sets put their docs in ranges, like filters on a field
+ * the index is sorted by.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HybridDocIdSetBenchmark {
+
+  @Param({ "10000000" })
+  public int maxDoc;
+
+  @Param({ "0.001", "0.05", "0.5" })
+  public double density;
+
+  @Param({ "false", "true" })
+  public boolean clustered;
+
+  @Param({ "fixed", "packed", "roaring", "hybrid" })
+  public String impl;
+
+  private DocIdSet a;
+  private DocIdSet b;
+
+  @Setup
+  public void setUp() throws IOException {
+    Random random = new Random(BenchUtil.SEED);
+    a = build(randomDocs(random));
+    b = build(randomDocs(random));
+  }
+
+  private FixedBitSet randomDocs(Random random) {
+    FixedBitSet bits = new FixedBitSet(maxDoc);
+    if (clustered) {
+      // ranges of 1000 docs on average, density of them being set
+      int doc = 0;
+      while (doc < maxDoc) {
+        int length = random.nextInt(2000);
+        if (random.nextDouble() < density) {
+          bits.set(doc, Math.min(maxDoc, doc + length));
+        }
+        doc += length + 1;
+      }
+    } else {
+      for (int doc = 0; doc < maxDoc; ++doc) {
+        if (random.nextDouble() < density) {
+          bits.set(doc);
+        }
+      }
+    }
+    return bits;
+  }
+
+  private DocIdSet build(FixedBitSet bits) throws IOException {
+    switch (impl) {
+      case "fixed":
+        return new BitDocIdSet(bits);
+      case "packed":
+        PackedIntsDocIdSet packed = new PackedIntsDocIdSet(256);
+        DocIdSetIterator it = new BitDocIdSet(bits).iterator();
+        for (int doc = it.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+          packed.addID(doc);
+        }
+        return packed;
+      case "roaring":
+        RoaringDocIdSet.Builder builder = new RoaringDocIdSet.Builder(maxDoc);
+        builder.add(new BitDocIdSet(bits).iterator());
+        return builder.build();
+      case "hybrid":
+        return HybridDocIdSet.of(new BitDocIdSet(bits).iterator());
+      default:
+        throw new IllegalArgumentException("unknown impl: " + impl);
+    }
+  }
+
+  @Benchmark
+  public int iterate() throws IOException {
+    DocIdSetIterator it = a.iterator();
+    int count = 0;
+    while (it.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Materializes the intersection with the native operation of the set when it has one,
+   * by leap-frogging the two iterators otherwise.
+   */
+  @Benchmark
+  public Object intersect() throws IOException {
+    switch (impl) {
+      case "fixed":
+        FixedBitSet bits = ((FixedBitSet) ((BitDocIdSet) a).bits()).clone();
+        bits.and((FixedBitSet) ((BitDocIdSet) b).bits());
+        return bits;
+      case "packed":
+        return PackedIntsDocIdSet.intersect((PackedIntsDocIdSet) a, (PackedIntsDocIdSet) b);
+      case "hybrid":
+        return HybridDocIdSet.intersect((HybridDocIdSet) a, (HybridDocIdSet) b);
+      default:
+        RoaringDocIdSet.Builder builder = new RoaringDocIdSet.Builder(maxDoc);
+        DocIdSetIterator itA = a.iterator();
+        DocIdSetIterator itB = b.iterator();
+        int doc = itA.nextDoc();
+        while (doc != DocIdSetIterator.NO_MORE_DOCS) {
+          int other = itB.advance(doc);
+          if (other == doc) {
+            builder.add(doc);
+            doc = itA.nextDoc();
+          } else {
+            doc = itA.advance(other);
+          }
+        }
+        return builder.build();
+    }
+  }
+}
@@ -0,0 +1,342 @@
+package abacus.bench;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import abacus.api.AbacusFieldType;
+import abacus.api.AbacusRequest;
+import abacus.config.FieldConfig;
+import abacus.search.facets.FastDocValuesAtomicReader.MemType;
+import abacus.service.AbacusQueryParser.DefaultQueryParser;
+import abacus.service.AbacusQueryService;
+import abacus.service.QueryServiceConfigBuilder;
+import abacus.service.metrics.LatencyHistogram;
+import bql.parser.BQLCompiler;
+
+/**
+ * End to end benchmark of {@link AbacusQueryService} over a {@link CarCatalogIndex}: a mixed
+ * workload of BQL statements, run by concurrent clients for a fixed time after a warmup,
+ * once per {@link MemType} the doc values are loaded with. Reports the load time, the
+ * throughput and the latency percentiles of every kind of statement and of all of them.
+ * <p>
+ * The index is written into the index directory unless it already holds one, so that large
+ * indexes are only written once. An existing index is used as is, the cardinalities given
+ * must be the ones it was written with for the workload to match its values.
+ *
+ * <pre>
+ * java -cp abacus-bench/target/benchmarks.jar abacus.bench.MacroBenchmark -index /tmp/cars \
+ *     -docs 10000000 -segments 8 -clients 16 -memTypes Default,Heap
+ * </pre>
+ */
+public class MacroBenchmark {
+
+  /**
+   * Kinds of statements of the workload, each drawn as often as the others.
+   */
+  public enum Kind {
+    FILTER, RANGE, SORT, BROWSE, PAGE, TEXT
+  }
+
+  private static final int STATEMENTS_PER_KIND = 256;
+
+  private static final Map<String, String> DEFAULTS = new HashMap<>();
+
+  static {
+    DEFAULTS.put("index", null);
+    DEFAULTS.put("docs", "10000000");
+    DEFAULTS.put("segments", "1");
+    DEFAULTS.put("colors", "16");
+    DEFAULTS.put("categories", "64");
+    DEFAULTS.put("tags", "1000");
+    DEFAULTS.put("tagsPerDoc", "4");
+    DEFAULTS.put("indexThreads", String.valueOf(Runtime.getRuntime().availableProcessors()));
+    DEFAULTS.put("clients", "8");
+    DEFAULTS.put("searchThreads", "0");
+    DEFAULTS.put("warmupSeconds", "30");
+    DEFAULTS.put("seconds", "60");
+    DEFAULTS.put("memTypes", "Default,Heap,Direct,Native");
+    DEFAULTS.put("filterCacheMB", "0");
+    DEFAULTS.put("facetCountCacheMB", "0");
+    DEFAULTS.put("resultCacheSize", "0");
+    DEFAULTS.put("seed", String.valueOf(BenchUtil.SEED));
+  }
+
+  private final Map<String, String> options;
+  private final CarCatalogIndex catalog;
+  private final Map<Kind, List<AbacusRequest>> workload = new EnumMap<>(Kind.class);
+
+  MacroBenchmark(Map<String, String> options) {
+    this.options = options;
+    catalog = new CarCatalogIndex()
+        .withNumDocs(longOption("docs"))
+        .withNumSegments(intOption("segments"))
+        .withNumColors(intOption("colors"))
+        .withNumCategories(intOption("categories"))
+        .withNumTags(intOption("tags"))
+        .withTagsPerDoc(intOption("tagsPerDoc"))
+        .withNumThreads(intOption("indexThreads"))
+        .withSeed(longOption("seed"));
+  }
+
+  private int intOption(String name) {
+    return Integer.parseInt(options.get(name));
+  }
+
+  private long longOption(String name) {
+    return Long.parseLong(options.get(name));
+  }
+
+  /**
+   * Compiles STATEMENTS_PER_KIND statements of every kind with random values, so that
+   * compiling is not part of the measured latencies.
+   */
+  void buildWorkload() {
+    Map<String, AbacusFieldType> fieldTypeMap = new HashMap<>();
+    for (Map.Entry<String, FieldConfig> entry : CarCatalogIndex.buildConfig().entrySet()) {
+      fieldTypeMap.put(entry.getKey(), entry.getValue().getFieldType());
+    }
+    BQLCompiler compiler = new BQLCompiler(fieldTypeMap);
+    Random random = new Random(longOption("seed"));
+    for (Kind kind : Kind.values()) {
+      List<AbacusRequest> requests = new ArrayList<>(STATEMENTS_PER_KIND);
+      for (int i = 0; i < STATEMENTS_PER_KIND; ++i) {
+        requests.add(compiler.compile(statement(kind, random)));
+      }
+      workload.put(kind, requests);
+    }
+  }
+
+  String statement(Kind kind, Random random) {
+    switch (kind) {
+    case FILTER:
+      return "SELECT * FROM cars WHERE color IN (" + quote(randomColor(random)) + ", "
+          + quote(randomColor(random)) + ") AND category = "
+          + quote(randomCategory(random));
+    case RANGE: {
+      int year = CarCatalogIndex.MIN_YEAR
+          + random.nextInt(CarCatalogIndex.MAX_YEAR - CarCatalogIndex.MIN_YEAR);
+      int price = CarCatalogIndex.MIN_PRICE
+          + random.nextInt(CarCatalogIndex.MAX_PRICE - CarCatalogIndex.MIN_PRICE);
+      return "SELECT * FROM cars WHERE year BETWEEN " + year + " AND " + (year + 2)
+          + " AND price < " + price + ".0";
+    }
+    case SORT:
+      return "SELECT * FROM cars WHERE tags = " + quote(randomTag(random))
+          + " ORDER BY price DESC";
+    case BROWSE:
+      return "SELECT * FROM cars WHERE color = " + quote(randomColor(random))
+          + " BROWSE BY color, category, tags(10), year, price, mileage";
+    case PAGE:
+      return "SELECT * FROM cars WHERE category IN (" + quote(randomCategory(random)) + ", "
+          + quote(randomCategory(random)) + ") ORDER BY year DESC LIMIT "
+          + (random.nextInt(10) * 20) + ", 20";
+    case TEXT:
+      return "SELECT * FROM cars WHERE QUERY IS '"
+          + CarCatalogIndex.WORDS[CarCatalogIndex.skewed(random, CarCatalogIndex.WORDS.length)]
+          + " AND "
+          + CarCatalogIndex.WORDS[CarCatalogIndex.skewed(random, CarCatalogIndex.WORDS.length)]
+          + "' BROWSE BY tags(10) FETCHING STORED true";
+    default:
+      throw new IllegalArgumentException("unknown kind " + kind);
+    }
+  }
+
+  private String randomColor(Random random) {
+    return CarCatalogIndex.color(CarCatalogIndex.skewed(random, catalog.getNumColors()));
+  }
+
+  private String randomCategory(Random random) {
+    return CarCatalogIndex.category(
+        CarCatalogIndex.skewed(random, catalog.getNumCategories()));
+  }
+
+  private String randomTag(Random random) {
+    return CarCatalogIndex.tag(CarCatalogIndex.skewed(random, catalog.getNumTags()));
+  }
+
+  private static String quote(String value) {
+    return "'" + value + "'";
+  }
+
+  /**
+   * Latencies of one run, per kind of statement and over all of them.
+   */
+  static class RunStats {
+    final Map<Kind, LatencyHistogram> histograms = new EnumMap<>(Kind.class);
+    final LatencyHistogram total = new LatencyHistogram();
+    final AtomicLong errors = new AtomicLong();
+    long elapsedNanos;
+
+    RunStats() {
+      for (Kind kind : Kind.values()) {
+        histograms.put(kind, new LatencyHistogram());
+      }
+    }
+
+    void record(Kind kind, long nanos) {
+      histograms.get(kind).record(nanos);
+      total.record(nanos);
+    }
+  }
+
+  /**
+   * Runs the workload with the given number of concurrent clients for the given time, every
+   * client drawing statements from its own seeded random.
+   */
+  RunStats run(final AbacusQueryService service, int clients, long seconds)
+      throws InterruptedException, ExecutionException {
+    final RunStats stats = new RunStats();
+    ExecutorService executor = Executors.newFixedThreadPool(clients);
+    try {
+      long start = System.nanoTime();
+      final long deadline = start + seconds * 1000000000L;
+      List<Future<Void>> futures = new ArrayList<>(clients);
+      for (int c = 0; c < clients; ++c) {
+        final Random random = new Random(longOption("seed") + c);
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() {
+            Kind[] kinds = Kind.values();
+            long now = System.nanoTime();
+            while (now < deadline) {
+              Kind kind = kinds[random.nextInt(kinds.length)];
+              List<AbacusRequest> requests = workload.get(kind);
+              AbacusRequest request = requests.get(random.nextInt(requests.size()));
+              try {
+                service.query(request);
+              } catch (Exception e) {
+                if (stats.errors.getAndIncrement() == 0) {
+                  e.printStackTrace();
+                }
+              }
+              long end = System.nanoTime();
+              stats.record(kind, end - now);
+              now = end;
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+      stats.elapsedNanos = System.nanoTime() - start;
+    } finally {
+      executor.shutdown();
+    }
+    return stats;
+  }
+
+  void benchmark(Directory dir, MemType memType) throws Exception {
+    int searchThreads = intOption("searchThreads");
+    ExecutorService searchExecutor = searchThreads > 0
+        ? Executors.newFixedThreadPool(searchThreads) : null;
+    long loadStart = System.nanoTime();
+    AbacusQueryService service = new AbacusQueryService(dir,
+        new DefaultQueryParser("contents", new StandardAnalyzer()),
+        new QueryServiceConfigBuilder()
+            .withDefaultMemType(memType)
+            .withExecutor(searchExecutor)
+            .withFilterCacheBytes(longOption("filterCacheMB") << 20)
+            .withFacetCountCacheBytes(longOption("facetCountCacheMB") << 20)
+            .withResultCacheSize(intOption("resultCacheSize"))
+            .build());
+    long loadMillis = (System.nanoTime() - loadStart) / 1000000;
+    try {
+      System.out.println(memType + ": loaded in " + loadMillis + " ms, warming up");
+      run(service, intOption("clients"), longOption("warmupSeconds"));
+      RunStats stats = run(service, intOption("clients"), longOption("seconds"));
+      report(memType, stats);
+    } finally {
+      service.close();
+      if (searchExecutor != null) {
+        searchExecutor.shutdownNow();
+      }
+    }
+  }
+
+  private static void report(MemType memType, RunStats stats) {
+    double seconds = stats.elapsedNanos / 1e9;
+    System.out.println(String.format("%-8s %-8s %10s %10s %10s %10s %10s %10s", "memType",
+        "kind", "queries", "qps", "mean(us)", "p50(us)", "p99(us)", "p999(us)"));
+    for (Map.Entry<Kind, LatencyHistogram> entry : stats.histograms.entrySet()) {
+      reportLine(memType, entry.getKey().toString(), entry.getValue(), seconds);
+    }
+    reportLine(memType, "ALL", stats.total, seconds);
+    if (stats.errors.get() > 0) {
+      System.out.println(memType + ": " + stats.errors.get() + " failed queries");
+    }
+  }
+
+  private static void reportLine(MemType memType, String kind, LatencyHistogram histogram,
+      double seconds) {
+    System.out.println(String.format("%-8s %-8s %10d %10.1f %10.1f %10.1f %10.1f %10.1f",
+        memType, kind, histogram.getCount(), histogram.getCount() / seconds,
+        histogram.getMeanMicros(), histogram.getP50Micros(), histogram.getP99Micros(),
+        histogram.getP999Micros()));
+  }
+
+  void run() throws Exception {
+    Path path = Paths.get(options.get("index"));
+    try (Directory dir = FSDirectory.open(path)) {
+      if (DirectoryReader.indexExists(dir)) {
+        System.out.println("using the index in " + path);
+      } else {
+        System.out.println("writing " + options.get("docs") + " docs into " + path);
+        long start = System.nanoTime();
+        catalog.write(dir);
+        System.out.println("index written in " + (System.nanoTime() - start) / 1000000
+            + " ms");
+      }
+      buildWorkload();
+      for (String memType : options.get("memTypes").split(",")) {
+        benchmark(dir, MemType.valueOf(memType.trim()));
+      }
+    }
+  }
+
+  static Map<String, String> parseOptions(String[] args) {
+    Map<String, String> options = new HashMap<>(DEFAULTS);
+    for (int i = 0; i < args.length; i += 2) {
+      String name = args[i].startsWith("-") ? args[i].substring(1) : args[i];
+      if (!DEFAULTS.containsKey(name) || i + 1 == args.length) {
+        throw new IllegalArgumentException("bad option " + args[i]);
+      }
+      options.put(name, args[i + 1]);
+    }
+    if (options.get("index") == null) {
+      throw new IllegalArgumentException("-index is required");
+    }
+    return options;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options;
+    try {
+      options = parseOptions(args);
+    } catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage());
+      System.out.println("usage: MacroBenchmark -index dir [-name value]..., defaults: "
+          + DEFAULTS);
+      return;
+    }
+    new MacroBenchmark(options).run();
+  }
+}
@@ -0,0 +1,119 @@
+package abacus.bench;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.facet.FacetResult;
+import org.apache.lucene.facet.FacetsCollector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import abacus.api.AbacusFieldType;
+import abacus.search.facets.FacetBucket;
+import abacus.search.facets.FacetRangeBuilder;
+import abacus.search.facets.FastDocValuesAtomicReader;
+import abacus.search.facets.FastDocValuesAtomicReader.MemType;
+import abacus.search.facets.NumericBucketFacetCounts;
+import abacus.search.facets.RangeBucketIndex;
+
+/**
+ * Range counts of a numeric field over every doc: through a compiled
+ * {@link RangeBucketIndex}, through bucket ords materialized when the segments were loaded,
+ * and through one {@link FacetBucket} per range checked for every doc.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NumericBucketFacetCountsBenchmark {
+
+  private static final int TOP_N = 10;
+
+  @Param({ "1000000" })
+  public int numDocs;
+
+  @Param({ "100000" })
+  public int cardinality;
+
+  @Param({ "5", "50" })
+  public int numRanges;
+
+  @Param({ "Heap" })
+  public MemType memType;
+
+  private SyntheticIndex index;
+  private IndexReader reader;
+  private IndexReader materializedReader;
+  private FacetsCollector facetsCollector;
+  private FacetsCollector materializedFacetsCollector;
+  private String[] rangeStrings;
+  private RangeBucketIndex rangeIndex;
+
+  @Setup
+  public void setUp() throws IOException, ParseException {
+    index = SyntheticIndex.build(numDocs, cardinality, 1, 1, BenchUtil.SEED);
+    // consecutive ranges splitting the values evenly
+    rangeStrings = new String[numRanges];
+    int width = Math.max(1, cardinality / numRanges);
+    for (int r = 0; r < numRanges; ++r) {
+      rangeStrings[r] = "[" + (r * width) + " TO " + ((r + 1) * width - 1) + "]";
+    }
+    rangeIndex = RangeBucketIndex.compile(rangeStrings, AbacusFieldType.LONG);
+
+    reader = index.openReader(memType);
+    facetsCollector = BenchUtil.collectAll(reader);
+    materializedReader = index.openReader(memType);
+    for (LeafReaderContext ctx : materializedReader.leaves()) {
+      ((FastDocValuesAtomicReader) ctx.reader()).loadRangeBuckets(
+          Collections.singletonMap(SyntheticIndex.NUMERIC_FIELD, rangeIndex));
+    }
+    materializedFacetsCollector = BenchUtil.collectAll(materializedReader);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    reader.close();
+    materializedReader.close();
+    index.close();
+  }
+
+  @Benchmark
+  public FacetResult compiledRanges() throws IOException {
+    return new NumericBucketFacetCounts(SyntheticIndex.NUMERIC_FIELD, rangeIndex,
+        facetsCollector).getTopChildren(TOP_N, SyntheticIndex.NUMERIC_FIELD);
+  }
+
+  @Benchmark
+  public FacetResult materializedRanges() throws IOException {
+    return new NumericBucketFacetCounts(SyntheticIndex.NUMERIC_FIELD, rangeIndex,
+        materializedFacetsCollector).getTopChildren(TOP_N, SyntheticIndex.NUMERIC_FIELD);
+  }
+
+  @Benchmark
+  public FacetResult bucketPerRange() throws IOException, ParseException {
+    // buckets keep their counts, so every invocation needs its own
+    FacetBucket[] buckets = new FacetBucket[rangeStrings.length];
+    for (int r = 0; r < buckets.length; ++r) {
+      buckets[r] = FacetRangeBuilder.buildFacetRangeBucket(rangeStrings[r],
+          AbacusFieldType.LONG);
+    }
+    return new NumericBucketFacetCounts(SyntheticIndex.NUMERIC_FIELD, buckets,
+        facetsCollector).getTopChildren(TOP_N, SyntheticIndex.NUMERIC_FIELD);
+  }
+}
@@ -0,0 +1,95 @@
+package abacus.bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.packed.PackedIntsDocIdSet;
+import org.apache.lucene.util.packed.PackedIntsDocIdSetIterator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full iteration of a {@link PackedIntsDocIdSet} holding a random fraction of maxDoc docs,
+ * doc by doc and in chunks, and advancing over it by a fixed docid stride.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PackedIntsDocIdSetBenchmark {
+
+  private static final int CHUNK_SIZE = 1024;
+
+  @Param({ "10000000" })
+  public int maxDoc;
+
+  @Param({ "0.001", "0.05", "0.5" })
+  public double density;
+
+  @Param({ "256" })
+  public int blockSize;
+
+  @Param({ "64", "4096" })
+  public int advanceStride;
+
+  private PackedIntsDocIdSet docIdSet;
+  private final int[] chunk = new int[CHUNK_SIZE];
+
+  @Setup
+  public void setUp() {
+    docIdSet = new PackedIntsDocIdSet(blockSize);
+    Random random = new Random(BenchUtil.SEED);
+    for (int doc = 0; doc < maxDoc; ++doc) {
+      if (random.nextDouble() < density) {
+        docIdSet.addID(doc);
+      }
+    }
+  }
+
+  @Benchmark
+  public int iterate() throws IOException {
+    DocIdSetIterator it = docIdSet.iterator();
+    int count = 0;
+    while (it.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+      count++;
+    }
+    return count;
+  }
+
+  @Benchmark
+  public int iterateChunks() {
+    PackedIntsDocIdSetIterator it = (PackedIntsDocIdSetIterator) docIdSet.iterator();
+    int count = 0;
+    int n;
+    while ((n = it.nextDocs(chunk)) > 0) {
+      count += n;
+    }
+    return count;
+  }
+
+  @Benchmark
+  public int advance() throws IOException {
+    DocIdSetIterator it = docIdSet.iterator();
+    int count = 0;
+    int target = 0;
+    int doc;
+    while ((doc = it.advance(target)) != DocIdSetIterator.NO_MORE_DOCS) {
+      count++;
+      target = doc + advanceStride;
+    }
+    return count;
+  }
+}
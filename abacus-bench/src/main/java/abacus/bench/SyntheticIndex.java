@@ -0,0 +1,153 @@
+package abacus.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.facet.FacetsConfig;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesFacetField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+
+import abacus.indexing.AbacusIndexer;
+import abacus.search.facets.FastDocValuesAtomicReader;
+import abacus.search.facets.FastDocValuesAtomicReader.MemType;
+
+/**
+ * Index of random docs in a temporary directory, deleted on close. Every doc has a numeric
+ * value, a single value and valuesPerDoc distinct multi values, each uniformly drawn out of
+ * cardinality values. The multi values are also indexed as a Lucene sorted set facet
+ * dimension of the same name, to compare with {@link SortedSetDocValuesFacetField} counting.
+ */
+public class SyntheticIndex implements Closeable {
+
+  public static final String NUMERIC_FIELD = "num";
+  public static final String SORTED_FIELD = "single";
+  public static final String SORTED_SET_FIELD = "multi";
+
+  private final Path path;
+  private final Directory dir;
+  private final int numDocs;
+  private final int cardinality;
+  // the wrapping readers do not close the segments they wrap
+  private final List<DirectoryReader> openedReaders = new ArrayList<>();
+
+  private SyntheticIndex(Path path, Directory dir, int numDocs, int cardinality) {
+    this.path = path;
+    this.dir = dir;
+    this.numDocs = numDocs;
+    this.cardinality = cardinality;
+  }
+
+  public static FacetsConfig facetsConfig() {
+    FacetsConfig config = new FacetsConfig();
+    config.setMultiValued(SORTED_SET_FIELD, true);
+    return config;
+  }
+
+  /**
+   * Builds an index of numDocs docs merged down to numSegments segments, the same seed
+   * always building the same docs.
+   */
+  public static SyntheticIndex build(int numDocs, int cardinality, int valuesPerDoc,
+      int numSegments, long seed) throws IOException {
+    if (valuesPerDoc > cardinality) {
+      throw new IllegalArgumentException("valuesPerDoc " + valuesPerDoc
+          + " exceeds cardinality " + cardinality);
+    }
+    Path path = Files.createTempDirectory("abacus-bench");
+    Directory dir = FSDirectory.open(path);
+    FacetsConfig facetsConfig = facetsConfig();
+    Random random = new Random(seed);
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(null)
+        .setRAMBufferSizeMB(256));
+    try {
+      for (int i = 0; i < numDocs; ++i) {
+        Document doc = new Document();
+        AbacusIndexer.addNumericField(doc, NUMERIC_FIELD, (long) random.nextInt(cardinality));
+        AbacusIndexer.addFacetTermField(doc, SORTED_FIELD, label(random.nextInt(cardinality)),
+            false);
+        int first = random.nextInt(cardinality);
+        for (int j = 0; j < valuesPerDoc; ++j) {
+          // consecutive values from a random start, distinct within the doc
+          String label = label((first + j) % cardinality);
+          AbacusIndexer.addFacetTermField(doc, SORTED_SET_FIELD, label, true);
+          doc.add(new SortedSetDocValuesFacetField(SORTED_SET_FIELD, label));
+        }
+        writer.addDocument(facetsConfig.build(doc));
+      }
+      writer.forceMerge(numSegments);
+      writer.commit();
+    } finally {
+      writer.close();
+    }
+    return new SyntheticIndex(path, dir, numDocs, cardinality);
+  }
+
+  private static String label(int value) {
+    return "v" + value;
+  }
+
+  public Directory getDirectory() {
+    return dir;
+  }
+
+  public int getNumDocs() {
+    return numDocs;
+  }
+
+  public int getCardinality() {
+    return cardinality;
+  }
+
+  /**
+   * Opens the index with every segment wrapped in a {@link FastDocValuesAtomicReader} loading
+   * all fields as memType. The caller closes the reader, the segments are closed together
+   * with this index.
+   */
+  public IndexReader openReader(MemType memType) throws IOException {
+    DirectoryReader reader = DirectoryReader.open(dir);
+    openedReaders.add(reader);
+    List<LeafReaderContext> leaves = reader.leaves();
+    LeafReader[] subReaders = new LeafReader[leaves.size()];
+    for (int i = 0; i < subReaders.length; ++i) {
+      subReaders[i] = new FastDocValuesAtomicReader(leaves.get(i).reader(), null, memType);
+    }
+    return new MultiReader(subReaders, true);
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOUtils.close(openedReaders);
+    dir.close();
+    Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
@@ -0,0 +1,472 @@
+package abacus.search.docsets;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.packed.MappedPackedIntsDocIdSet;
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TBinaryProtocol;
+
+import abacus.api.AbacusFilter;
+import abacus.config.FieldConfig;
+import abacus.search.filter.FilterConstructor;
+import abacus.service.AbacusQueryParser;
+
+/**
+ * Named doc id sets, saved searches or audience segments, persisted next to the index. A
+ * set is defined by a filter and stored per segment as a {@link MappedPackedIntsDocIdSet}
+ * file, <code>&lt;name&gt;.&lt;segment&gt;.pds</code>, which is mapped when the segment is
+ * first seen and read in place from then on. Segments written or merged after the set was
+ * defined get their file computed from the definition on {@link #sync}. Files of a segment
+ * are deleted once its core was closed and no other live core holds it, see
+ * {@link #deleteClosedSegmentFiles()}, never because a reader passed to sync lacks the
+ * segment since that reader may be older than the current one. A redefined
+ * set keeps being searched in every segment until sync has written and mapped its new file
+ * there.
+ * <p>
+ * Sets are referenced in filters as term filters on {@link #FIELD}, the values and excludes
+ * being set names. Definitions cannot reference other sets.
+ */
+public class DocIdSetStore implements Closeable {
+
+  /**
+   * Field of the term filters that reference named sets.
+   */
+  public static final String FIELD = "_docset";
+
+  private static final String DEFINITION_SUFFIX = ".def";
+  private static final String SET_SUFFIX = ".pds";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z0-9_\\-]+");
+  private static final int BLOCK_SIZE = 256;
+
+  private final Directory dir;
+  private final AbacusQueryParser queryParser;
+  private final ConcurrentMap<String, AbacusFilter> definitions = new ConcurrentHashMap<>();
+  // bumped on every definition, a set mapped for an older one is recomputed by sync
+  private final Map<String, Long> generations = new HashMap<>();
+  private long nextGeneration;
+  // changes whenever the set a filter on some name resolves to may change, see getVersion
+  private volatile long version;
+  // segment core cache key -> sets mapped for that segment
+  private final ConcurrentMap<Object, SegmentSets> segments = new ConcurrentHashMap<>();
+  // names of the segments whose core was closed, their files are deleted by the next sync
+  private final Set<String> closedSegmentNames =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  // the first sync also deletes the files of segments gone while the store was closed
+  private boolean synced;
+
+  private final SegmentReader.CoreClosedListener coreClosedListener =
+      new SegmentReader.CoreClosedListener() {
+        @Override
+        public void onClose(Object ownerCoreCacheKey) throws IOException {
+          SegmentSets sets = segments.remove(ownerCoreCacheKey);
+          if (sets != null) {
+            // not deleted here, the segment may still be in the index when the store and its
+            // readers are closed
+            closedSegmentNames.add(sets.segmentName);
+            sets.close();
+          }
+        }
+      };
+
+  /**
+   * Opens the store in dir, taking ownership of it, and loads the definitions saved there.
+   * Sets are mapped by the first {@link #sync}.
+   */
+  public DocIdSetStore(Directory dir, AbacusQueryParser queryParser) throws IOException {
+    this.dir = dir;
+    this.queryParser = queryParser;
+    TDeserializer deserializer = new TDeserializer(new TBinaryProtocol.Factory());
+    for (String file : dir.listAll()) {
+      if (!file.endsWith(DEFINITION_SUFFIX)) {
+        continue;
+      }
+      byte[] bytes;
+      try (IndexInput in = dir.openInput(file, IOContext.READONCE)) {
+        bytes = new byte[(int) in.length()];
+        in.readBytes(bytes, 0, bytes.length);
+      }
+      AbacusFilter definition = new AbacusFilter();
+      try {
+        deserializer.deserialize(definition, bytes);
+      } catch (TException e) {
+        throw new CorruptIndexException("cannot read doc id set definition", file, e);
+      }
+      String name = file.substring(0, file.length() - DEFINITION_SUFFIX.length());
+      definitions.put(name, definition);
+      generations.put(name, nextGeneration++);
+    }
+  }
+
+  public Set<String> getNames() {
+    return Collections.unmodifiableSet(definitions.keySet());
+  }
+
+  public AbacusFilter getDefinition(String name) {
+    return definitions.get(name);
+  }
+
+  /**
+   * Saves definition under name, replacing the set of that name if any. The set is computed
+   * for the segments of a reader on the next {@link #sync}, until then a replaced set is
+   * searched as it was.
+   */
+  public synchronized void define(String name, AbacusFilter definition) throws IOException {
+    if (name == null || !NAME_PATTERN.matcher(name).matches()) {
+      throw new IllegalArgumentException("invalid doc id set name: " + name);
+    }
+    // fails on bad definitions, references to other sets included, before anything is saved
+    if (FilterConstructor.constructFilter(definition, queryParser, null, null) == null) {
+      throw new IllegalArgumentException("empty definition for doc id set: " + name);
+    }
+    byte[] bytes;
+    try {
+      bytes = new TSerializer(new TBinaryProtocol.Factory()).serialize(definition);
+    } catch (TException e) {
+      throw new IllegalArgumentException("cannot serialize definition of doc id set: " + name,
+          e);
+    }
+    String file = name + DEFINITION_SUFFIX;
+    try (IndexOutput out = dir.createOutput(file + TEMP_SUFFIX, IOContext.DEFAULT)) {
+      out.writeBytes(bytes, 0, bytes.length);
+    }
+    replace(file + TEMP_SUFFIX, file);
+    // files of the replaced set, if any, must not be reused once reopened. Its mapped sets
+    // are still searched until sync swaps them
+    deleteSetFiles(name);
+    definitions.put(name, definition.deepCopy());
+    generations.put(name, nextGeneration++);
+    version++;
+  }
+
+  /**
+   * Deletes the set of that name, returns false if there is none. Readers still searching it
+   * keep it until their segments are closed.
+   */
+  public synchronized boolean delete(String name) throws IOException {
+    if (definitions.remove(name) == null) {
+      return false;
+    }
+    generations.remove(name);
+    retire(name);
+    version++;
+    dir.deleteFile(name + DEFINITION_SUFFIX);
+    deleteSetFiles(name);
+    return true;
+  }
+
+  /**
+   * Maps every set for every segment of reader, computing the files of the segments that
+   * have none, and deletes the files of the segments closed since the last sync. The file of
+   * a redefined set is written and mapped before it replaces the mapped set of the previous
+   * definition, which is closed with its segment.
+   *
+   * @param configMap field configs of the index, used to evaluate the definitions
+   */
+  public synchronized void sync(IndexReader reader, Map<String, FieldConfig> configMap)
+      throws IOException {
+    Set<String> segmentNames = new HashSet<>();
+    boolean swapped = false;
+    for (LeafReaderContext leaf : reader.leaves()) {
+      SegmentReader segmentReader = segmentReader(leaf.reader());
+      String segmentName = segmentReader.getSegmentName();
+      segmentNames.add(segmentName);
+      byte[] segmentId = segmentReader.getSegmentInfo().info.getId();
+      Object coreKey = segmentReader.getCoreCacheKey();
+      SegmentSets sets = segments.get(coreKey);
+      if (sets == null) {
+        sets = new SegmentSets(segmentName);
+        segments.put(coreKey, sets);
+        segmentReader.addCoreClosedListener(coreClosedListener);
+      }
+      for (Entry<String, AbacusFilter> entry : definitions.entrySet()) {
+        String name = entry.getKey();
+        Long generation = generations.get(name);
+        MappedPackedIntsDocIdSet current = sets.mapped.get(name);
+        if (current != null && generation.equals(sets.generations.get(name))) {
+          continue;
+        }
+        String file = name + "." + segmentName + SET_SUFFIX;
+        // the file of a stale set was deleted by define, a file left there is not reused
+        MappedPackedIntsDocIdSet docIdSet = current == null ? open(file, segmentId) : null;
+        if (docIdSet == null) {
+          write(entry.getValue(), configMap, leaf, segmentId, file);
+          docIdSet = open(file, segmentId);
+        }
+        sets.generations.put(name, generation);
+        MappedPackedIntsDocIdSet replaced = sets.mapped.put(name, docIdSet);
+        if (replaced != null) {
+          // queries may still be searching it
+          sets.retired.add(replaced);
+          swapped = true;
+        }
+      }
+    }
+    if (swapped) {
+      // bumped once every segment is swapped, results of the new version never see an old set
+      version++;
+    }
+    deleteClosedSegmentFiles();
+    // no older reader can be synced before the first one
+    deleteStaleFiles(synced ? null : segmentNames);
+    synced = true;
+  }
+
+  /**
+   * Returns the version of the sets, which changes when a set is defined or deleted and when
+   * sync replaces mapped sets by the ones of a new definition. Anything computed from the sets
+   * and cached must be keyed by the version read before the sets were, so that it is not
+   * served once they change.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Returns the named set for the segment of reader, or null if it was not synced.
+   */
+  public DocIdSet get(String name, LeafReader reader) {
+    SegmentSets sets = segments.get(reader.getCoreCacheKey());
+    return sets == null ? null : sets.mapped.get(name);
+  }
+
+  /**
+   * Returns a filter on the docs of the named set.
+   */
+  public Filter newFilter(String name) {
+    return new NamedDocIdSetFilter(name);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    List<Closeable> closeables = new ArrayList<>();
+    closeables.addAll(segments.values());
+    segments.clear();
+    closeables.add(dir);
+    IOUtils.close(closeables);
+  }
+
+  private static SegmentReader segmentReader(LeafReader reader) {
+    LeafReader unwrapped = FilterLeafReader.unwrap(reader);
+    if (!(unwrapped instanceof SegmentReader)) {
+      throw new IllegalArgumentException("doc id sets need segment readers, got: " + unwrapped);
+    }
+    return (SegmentReader) unwrapped;
+  }
+
+  // null if the file is missing or was written for another segment of that name
+  private MappedPackedIntsDocIdSet open(String file, byte[] segmentId) throws IOException {
+    if (!fileExists(file)) {
+      return null;
+    }
+    try {
+      return MappedPackedIntsDocIdSet.open(dir.openInput(file, IOContext.READ), segmentId);
+    } catch (CorruptIndexException e) {
+      return null;
+    }
+  }
+
+  private void write(AbacusFilter definition, Map<String, FieldConfig> configMap,
+      LeafReaderContext leaf, byte[] segmentId, String file) throws IOException {
+    Filter filter = FilterConstructor.constructFilter(definition, queryParser, configMap, null);
+    DocIdSet docIdSet = filter.getDocIdSet(leaf, leaf.reader().getLiveDocs());
+    DocIdSetIterator it = docIdSet == null ? null : docIdSet.iterator();
+    if (it == null) {
+      it = DocIdSetIterator.empty();
+    }
+    try (IndexOutput out = dir.createOutput(file + TEMP_SUFFIX, IOContext.DEFAULT)) {
+      MappedPackedIntsDocIdSet.write(it, BLOCK_SIZE, segmentId, out);
+    }
+    replace(file + TEMP_SUFFIX, file);
+  }
+
+  private void replace(String source, String dest) throws IOException {
+    dir.sync(Collections.singleton(source));
+    if (fileExists(dest)) {
+      dir.deleteFile(dest);
+    }
+    dir.renameFile(source, dest);
+  }
+
+  private boolean fileExists(String file) throws IOException {
+    for (String existing : dir.listAll()) {
+      if (existing.equals(file)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // mapped sets of name are closed with their segments, readers may still be searching them
+  private void retire(String name) {
+    for (SegmentSets sets : segments.values()) {
+      MappedPackedIntsDocIdSet docIdSet = sets.mapped.remove(name);
+      sets.generations.remove(name);
+      if (docIdSet != null) {
+        sets.retired.add(docIdSet);
+      }
+    }
+  }
+
+  /**
+   * Deletes the set files of sets that are not defined anymore and, unless segmentNames is
+   * null, of segments not in segmentNames. Deletes that fail, a file still mapped on some
+   * platforms, are retried on the next call.
+   */
+  private void deleteStaleFiles(Set<String> segmentNames) throws IOException {
+    for (String file : dir.listAll()) {
+      if (!file.endsWith(SET_SUFFIX)) {
+        continue;
+      }
+      // neither set names nor segment names hold dots
+      int dot = file.indexOf('.');
+      String name = file.substring(0, dot);
+      String segmentName = file.substring(dot + 1, file.length() - SET_SUFFIX.length());
+      if (!definitions.containsKey(name)
+          || (segmentNames != null && !segmentNames.contains(segmentName))) {
+        deleteQuietly(file);
+      }
+    }
+  }
+
+  /**
+   * Deletes the files of the segments whose core was closed and that no live core holds, done
+   * by every {@link #sync} too. Files of segments still in the index are only deleted if all
+   * their readers were closed while the store was open, they are then recomputed.
+   */
+  public synchronized void deleteClosedSegmentFiles() throws IOException {
+    Set<String> liveSegmentNames = new HashSet<>();
+    for (SegmentSets sets : segments.values()) {
+      liveSegmentNames.add(sets.segmentName);
+    }
+    for (String segmentName : closedSegmentNames) {
+      boolean deleted = true;
+      if (!liveSegmentNames.contains(segmentName)) {
+        for (String file : dir.listAll()) {
+          if (file.endsWith("." + segmentName + SET_SUFFIX)) {
+            deleted &= deleteQuietly(file);
+          }
+        }
+      }
+      if (deleted) {
+        closedSegmentNames.remove(segmentName);
+      }
+    }
+  }
+
+  private void deleteSetFiles(String name) throws IOException {
+    for (String file : dir.listAll()) {
+      if (file.startsWith(name + ".") && file.endsWith(SET_SUFFIX)) {
+        deleteQuietly(file);
+      }
+    }
+  }
+
+  // returns false if the file is still in use, the delete is retried later
+  private boolean deleteQuietly(String file) {
+    try {
+      dir.deleteFile(file);
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static class SegmentSets implements Closeable {
+    final String segmentName;
+    final ConcurrentMap<String, MappedPackedIntsDocIdSet> mapped = new ConcurrentHashMap<>();
+    // generation of the definition every mapped set was computed for
+    final Map<String, Long> generations = new ConcurrentHashMap<>();
+    // replaced or deleted sets, closed with the segment
+    final List<Closeable> retired = Collections.synchronizedList(new ArrayList<Closeable>());
+
+    SegmentSets(String segmentName) {
+      this.segmentName = segmentName;
+    }
+
+    @Override
+    public void close() throws IOException {
+      List<Closeable> closeables = new ArrayList<>();
+      closeables.addAll(mapped.values());
+      closeables.addAll(retired);
+      mapped.clear();
+      generations.clear();
+      retired.clear();
+      IOUtils.close(closeables);
+    }
+  }
+
+  private class NamedDocIdSetFilter extends Filter {
+    private final String name;
+
+    NamedDocIdSetFilter(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(LeafReaderContext context, Bits acceptDocs) throws IOException {
+      DocIdSet docIdSet = get(name, context.reader());
+      if (docIdSet == null) {
+        if (!definitions.containsKey(name)) {
+          throw new IllegalArgumentException("unknown doc id set: " + name);
+        }
+        throw new IllegalStateException("doc id set " + name + " is not synced for segment: "
+            + context.reader());
+      }
+      return BitsFilteredDocIdSet.wrap(docIdSet, acceptDocs);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!super.equals(obj)) {
+        return false;
+      }
+      NamedDocIdSetFilter other = (NamedDocIdSetFilter) obj;
+      return name.equals(other.name) && store() == other.store();
+    }
+
+    private DocIdSetStore store() {
+      return DocIdSetStore.this;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * super.hashCode() + name.hashCode();
+    }
+
+    @Override
+    public String toString(String field) {
+      return FIELD + ":" + name;
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package abacus.search.facets;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the columns of {@link FastDocValuesAtomicReader}s loading in the background, see
+ * {@link FastDocValuesAtomicReader#loadInBackground}, on an executor. The order is decided
+ * when a thread is free rather than when a column is scheduled: columns of the fields that
+ * were asked for most while not loaded go first, then fields of higher priority, then the
+ * columns scheduled first.
+ */
+public class ColumnLoadScheduler {
+
+  private final Executor executor;
+  private final Map<String, Integer> priorities;
+  // times every field was asked for while some of its columns were loading
+  private final ConcurrentMap<String, AtomicLong> touches =
+      new ConcurrentHashMap<String, AtomicLong>();
+  // in scheduling order, guarded by this
+  private final List<Pending> pending = new ArrayList<Pending>();
+
+  /**
+   * @param priorities priority of fields, higher first, 0 for fields left out. May be null.
+   */
+  public ColumnLoadScheduler(Executor executor, Map<String, Integer> priorities) {
+    this.executor = executor;
+    this.priorities = priorities;
+  }
+
+  /**
+   * Schedules the load of a column of field, run by the executor, or by the calling thread if
+   * it rejects it.
+   */
+  void schedule(String field, Runnable load) {
+    Integer priority = priorities != null ? priorities.get(field) : null;
+    synchronized (this) {
+      pending.add(new Pending(field, priority != null ? priority : 0, load));
+    }
+    // every run loads the best pending column, not necessarily this one
+    Runnable next = new Runnable() {
+      @Override
+      public void run() {
+        Pending column = next();
+        if (column != null) {
+          column.load.run();
+        }
+      }
+    };
+    try {
+      executor.execute(next);
+    } catch (RejectedExecutionException e) {
+      next.run();
+    }
+  }
+
+  /**
+   * Records that field was asked for while some of its columns were loading.
+   */
+  void touch(String field) {
+    AtomicLong count = touches.get(field);
+    if (count == null) {
+      AtomicLong existing = touches.putIfAbsent(field, count = new AtomicLong());
+      count = existing != null ? existing : count;
+    }
+    count.incrementAndGet();
+  }
+
+  /**
+   * Returns the number of columns not started yet.
+   */
+  public synchronized int getPendingCount() {
+    return pending.size();
+  }
+
+  private long touchCount(String field) {
+    AtomicLong count = touches.get(field);
+    return count != null ? count.get() : 0;
+  }
+
+  private synchronized Pending next() {
+    int best = -1;
+    long bestTouches = 0;
+    for (int i = 0; i < pending.size(); ++i) {
+      Pending column = pending.get(i);
+      long columnTouches = touchCount(column.field);
+      if (best < 0 || columnTouches > bestTouches || (columnTouches == bestTouches
+          && column.priority > pending.get(best).priority)) {
+        best = i;
+        bestTouches = columnTouches;
+      }
+    }
+    return best < 0 ? null : pending.remove(best);
+  }
+
+  private static class Pending {
+    final String field;
+    final int priority;
+    final Runnable load;
+
+    Pending(String field, int priority, Runnable load) {
+      this.field = field;
+      this.priority = priority;
+      this.load = load;
+    }
+  }
+}
@@ -0,0 +1,261 @@
+package abacus.search.facets;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.facet.FacetsCollector;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.packed.BatchDocIdSetIterator;
+import org.apache.lucene.util.packed.HybridDocIdSet;
+
+/**
+ * A {@link FacetsCollector} keeping the hits of every segment in a structure sized to the
+ * number of hits rather than a bitset of maxDoc bits. Hits go to a sorted int[] while they
+ * take less than half the bits of a bitset, then to a {@link HybridDocIdSet}, which keeps
+ * every chunk of 2^16 docs as the smallest of an array, a bitmap or runs. Segments smaller
+ * than a chunk go from the array to a bitset, no larger than the bitmap of a chunk.
+ * <p>
+ * The iterators of the matching docs are {@link BatchDocIdSetIterator}s.
+ */
+public class CompactFacetsCollector extends FacetsCollector {
+
+  // docs read at once when moving hits to a bitset
+  private static final int BATCH_SIZE = 256;
+  // smallest segment whose hits go to a hybrid set, a chunk of it
+  static final int MIN_HYBRID_MAX_DOC = 1 << 16;
+  private static final int INITIAL_ARRAY_SIZE = 64;
+
+  public CompactFacetsCollector() {
+    this(false);
+  }
+
+  public CompactFacetsCollector(boolean keepScores) {
+    super(keepScores);
+  }
+
+  @Override
+  protected Docs createDocs(int maxDoc) {
+    return new AdaptiveDocs(maxDoc);
+  }
+
+  static class AdaptiveDocs extends Docs {
+    private final int maxDoc;
+    // an int of the array being 32 bits, it takes half a bitset at maxDoc / 64 hits
+    private final int arrayLimit;
+    private int[] array = new int[0];
+    private HybridDocIdSet.Builder hybrid;
+    // built from hybrid once the hits are asked for
+    private HybridDocIdSet hybridSet;
+    private FixedBitSet bits;
+    private int count;
+
+    AdaptiveDocs(int maxDoc) {
+      this.maxDoc = maxDoc;
+      arrayLimit = maxDoc >>> 6;
+    }
+
+    @Override
+    public void addDoc(int doc) throws IOException {
+      if (bits != null) {
+        bits.set(doc);
+      } else if (hybrid != null) {
+        hybrid.add(doc);
+      } else if (count < arrayLimit) {
+        if (count == array.length) {
+          array = Arrays.copyOf(array,
+              Math.min(arrayLimit, Math.max(INITIAL_ARRAY_SIZE, count * 2)));
+        }
+        array[count] = doc;
+      } else {
+        if (maxDoc >= MIN_HYBRID_MAX_DOC) {
+          hybrid = new HybridDocIdSet.Builder();
+          for (int i = 0; i < count; ++i) {
+            hybrid.add(array[i]);
+          }
+          hybrid.add(doc);
+        } else {
+          toBits(new IntArrayDocIdSet(array, count).iterator());
+          bits.set(doc);
+        }
+        array = null;
+      }
+      count++;
+    }
+
+    private void toBits(BatchDocIdSetIterator it) throws IOException {
+      bits = new FixedBitSet(maxDoc);
+      int[] buffer = new int[BATCH_SIZE];
+      int n;
+      while ((n = it.nextDocs(buffer)) > 0) {
+        for (int i = 0; i < n; ++i) {
+          bits.set(buffer[i]);
+        }
+      }
+    }
+
+    @Override
+    public DocIdSet getDocIdSet() {
+      if (bits != null) {
+        return new BitSetDocIdSet(bits, count);
+      } else if (hybrid != null) {
+        if (hybridSet == null) {
+          hybridSet = hybrid.build();
+        }
+        return hybridSet;
+      } else {
+        return new IntArrayDocIdSet(array, count);
+      }
+    }
+  }
+
+  /**
+   * Hits of a segment as a sorted array.
+   */
+  static final class IntArrayDocIdSet extends DocIdSet {
+    private final int[] docs;
+    private final int count;
+
+    IntArrayDocIdSet(int[] docs, int count) {
+      this.docs = docs;
+      this.count = count;
+    }
+
+    @Override
+    public BatchDocIdSetIterator iterator() {
+      return new BatchDocIdSetIterator() {
+        private int idx = -1;
+        private int doc = -1;
+
+        @Override
+        public int docID() {
+          return doc;
+        }
+
+        @Override
+        public int nextDoc() {
+          return doc = ++idx < count ? docs[idx] : NO_MORE_DOCS;
+        }
+
+        @Override
+        public int advance(int target) {
+          int found = Arrays.binarySearch(docs, Math.min(idx + 1, count), count, target);
+          idx = found >= 0 ? found : -found - 1;
+          return doc = idx < count ? docs[idx] : NO_MORE_DOCS;
+        }
+
+        @Override
+        public int nextDocs(int[] out) {
+          int n = Math.max(0, Math.min(out.length, count - idx - 1));
+          System.arraycopy(docs, idx + 1, out, 0, n);
+          idx += n;
+          doc = n > 0 ? out[n - 1] : NO_MORE_DOCS;
+          return n;
+        }
+
+        @Override
+        public long cost() {
+          return count;
+        }
+      };
+    }
+
+    @Override
+    public long ramBytesUsed() {
+      return RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+          + RamUsageEstimator.NUM_BYTES_OBJECT_REF + RamUsageEstimator.NUM_BYTES_INT)
+          + RamUsageEstimator.sizeOf(docs);
+    }
+  }
+
+  /**
+   * Hits of a segment as a bitset, iterated a word at a time.
+   */
+  static final class BitSetDocIdSet extends DocIdSet {
+    private final FixedBitSet bits;
+    private final int count;
+
+    BitSetDocIdSet(FixedBitSet bits, int count) {
+      this.bits = bits;
+      this.count = count;
+    }
+
+    @Override
+    public BatchDocIdSetIterator iterator() {
+      final long[] words = bits.getBits();
+      final int numWords = words.length;
+      return new BatchDocIdSetIterator() {
+        // remaining docs of word i
+        private int i = 0;
+        private long word = numWords > 0 ? words[0] : 0L;
+        private int doc = -1;
+
+        @Override
+        public int docID() {
+          return doc;
+        }
+
+        @Override
+        public int nextDoc() {
+          while (word == 0) {
+            if (i >= numWords - 1) {
+              i = numWords;
+              return doc = NO_MORE_DOCS;
+            }
+            word = words[++i];
+          }
+          doc = (i << 6) + Long.numberOfTrailingZeros(word);
+          word &= word - 1;
+          return doc;
+        }
+
+        @Override
+        public int advance(int target) {
+          if (target >= bits.length()) {
+            i = numWords;
+            word = 0L;
+            return doc = NO_MORE_DOCS;
+          }
+          if (target >>> 6 != i) {
+            i = target >>> 6;
+            word = words[i];
+          }
+          word &= -1L << target;
+          return nextDoc();
+        }
+
+        @Override
+        public int nextDocs(int[] out) {
+          int n = 0;
+          while (n < out.length) {
+            while (word == 0) {
+              if (i >= numWords - 1) {
+                i = numWords;
+                doc = n > 0 ? out[n - 1] : NO_MORE_DOCS;
+                return n;
+              }
+              word = words[++i];
+            }
+            out[n++] = (i << 6) + Long.numberOfTrailingZeros(word);
+            word &= word - 1;
+          }
+          doc = out[n - 1];
+          return n;
+        }
+
+        @Override
+        public long cost() {
+          return count;
+        }
+      };
+    }
+
+    @Override
+    public long ramBytesUsed() {
+      return RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+          + RamUsageEstimator.NUM_BYTES_OBJECT_REF + RamUsageEstimator.NUM_BYTES_INT)
+          + bits.ramBytesUsed();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package abacus.search.facets;
+
+import java.io.IOException;
+
+import org.apache.lucene.facet.FacetsCollector;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * A {@link FacetsCollector} for a docid-range partition of a segment: only docs in
+ * [minDoc, maxDoc) are collected, so the hit bits are sized to the partition instead of to the
+ * whole segment.
+ */
+public class DocRangeFacetsCollector extends FacetsCollector {
+
+  private final int minDoc;
+  private final int maxDoc;
+
+  public DocRangeFacetsCollector(int minDoc, int maxDoc, boolean keepScores) {
+    super(keepScores);
+    this.minDoc = minDoc;
+    this.maxDoc = maxDoc;
+  }
+
+  @Override
+  protected Docs createDocs(int segmentMaxDoc) {
+    final int numDocs = Math.max(0, Math.min(maxDoc, segmentMaxDoc) - minDoc);
+    return new Docs() {
+      private final FixedBitSet bits = new FixedBitSet(numDocs);
+
+      @Override
+      public void addDoc(int docId) throws IOException {
+        bits.set(docId - minDoc);
+      }
+
+      @Override
+      public DocIdSet getDocIdSet() {
+        return new OffsetDocIdSet(bits, minDoc);
+      }
+    };
+  }
+
+  private static class OffsetDocIdSet extends DocIdSet {
+    private final FixedBitSet bits;
+    private final int offset;
+
+    OffsetDocIdSet(FixedBitSet bits, int offset) {
+      this.bits = bits;
+      this.offset = offset;
+    }
+
+    @Override
+    public DocIdSetIterator iterator() throws IOException {
+      final int length = bits.length();
+      return new DocIdSetIterator() {
+        int doc = -1;
+
+        @Override
+        public int docID() {
+          return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+          if (doc == NO_MORE_DOCS) {
+            return doc;
+          }
+          return advance(doc + 1);
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+          int index = Math.max(0, target - offset);
+          if (index >= length) {
+            return doc = NO_MORE_DOCS;
+          }
+          int next = bits.nextSetBit(index);
+          return doc = (next == NO_MORE_DOCS ? NO_MORE_DOCS : next + offset);
+        }
+
+        @Override
+        public long cost() {
+          return length;
+        }
+      };
+    }
+
+    @Override
+    public long ramBytesUsed() {
+      return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + RamUsageEstimator.NUM_BYTES_OBJECT_REF
+          + RamUsageEstimator.NUM_BYTES_INT + bits.ramBytesUsed();
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package abacus.search.facets;
+
+import java.io.IOException;
+
+import org.apache.lucene.facet.Facets;
+import org.apache.lucene.facet.FacetsCollector.MatchingDocs;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.packed.BatchDocIdSetIterator;
+
+/**
+ * Facet counts that can be accumulated doc by doc while hits are collected, see
+ * {@link FacetAccumulatorCollector}, instead of from the matching docs recorded by a
+ * {@link org.apache.lucene.facet.FacetsCollector}.
+ */
+public abstract class FacetAccumulator extends Facets {
+
+  public static interface LeafAccumulator {
+    void accumulate(int docId) throws IOException;
+  }
+
+  /**
+   * Returns the accumulator for the docs of ctx, or null if there is nothing to count in this
+   * segment. Segments are visited in docid order, a segment split into docid-range partitions
+   * is visited once per partition.
+   */
+  public abstract LeafAccumulator getLeafAccumulator(LeafReaderContext ctx) throws IOException;
+
+  /**
+   * Folds in the counts of other, an accumulator of the same field and type that was
+   * accumulated over docs following the ones of this accumulator.
+   */
+  public abstract void merge(FacetAccumulator other);
+
+  /**
+   * Returns a snapshot of the counts accumulated for ctx by the last leaf accumulator returned
+   * for it, or null if this accumulator does not support snapshots. Only meaningful once that
+   * leaf accumulator saw every hit of the segment.
+   */
+  public SegmentCounts getSegmentCounts(LeafReaderContext ctx) {
+    return null;
+  }
+
+  /**
+   * Adds counts of ctx snapshot by an accumulator of the same field and type, in place of
+   * accumulating the hits of ctx.
+   */
+  public void addSegmentCounts(LeafReaderContext ctx, SegmentCounts counts) throws IOException {
+    throw new UnsupportedOperationException(getClass().getSimpleName()
+        + " does not support segment counts");
+  }
+
+  // docs read from the hits at once
+  static final int HITS_BATCH_SIZE = 256;
+
+  protected static void accumulate(MatchingDocs hits, LeafAccumulator leafAccumulator)
+      throws IOException {
+    DocIdSet hitSet = hits.bits;
+    if (hitSet == null) {
+      return;
+    }
+    DocIdSetIterator hitsIter = hitSet.iterator();
+    if (hitsIter == null) {
+      return;
+    }
+    int[] docs = new int[HITS_BATCH_SIZE];
+    int n;
+    while ((n = BatchDocIdSetIterator.nextDocs(hitsIter, docs)) > 0) {
+      for (int i = 0; i < n; ++i) {
+        leafAccumulator.accumulate(docs[i]);
+      }
+    }
+  }
+}
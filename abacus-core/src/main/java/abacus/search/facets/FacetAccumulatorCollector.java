@@ -0,0 +1,65 @@
+package abacus.search.facets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Scorer;
+
+import abacus.search.facets.FacetAccumulator.LeafAccumulator;
+
+/**
+ * Counts every requested facet field in the collect callback, a single pass over the hits
+ * that needs neither a hit bitset per segment nor one iteration of it per field.
+ */
+public class FacetAccumulatorCollector implements Collector {
+
+  private final Map<String, FacetAccumulator> accumulators;
+
+  public FacetAccumulatorCollector(Map<String, FacetAccumulator> accumulators) {
+    this.accumulators = accumulators;
+  }
+
+  public Map<String, FacetAccumulator> getAccumulators() {
+    return Collections.unmodifiableMap(accumulators);
+  }
+
+  @Override
+  public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+    List<LeafAccumulator> leafAccumulatorList = new ArrayList<>(accumulators.size());
+    for (FacetAccumulator accumulator : accumulators.values()) {
+      LeafAccumulator leafAccumulator = accumulator.getLeafAccumulator(context);
+      if (leafAccumulator != null) {
+        leafAccumulatorList.add(leafAccumulator);
+      }
+    }
+    if (leafAccumulatorList.isEmpty()) {
+      throw new CollectionTerminatedException();
+    }
+    final LeafAccumulator[] leafAccumulators =
+        leafAccumulatorList.toArray(new LeafAccumulator[leafAccumulatorList.size()]);
+    return new LeafCollector() {
+      @Override
+      public void setScorer(Scorer scorer) throws IOException {
+      }
+
+      @Override
+      public void collect(int doc) throws IOException {
+        for (LeafAccumulator leafAccumulator : leafAccumulators) {
+          leafAccumulator.accumulate(doc);
+        }
+      }
+    };
+  }
+
+  @Override
+  public boolean needsScores() {
+    return false;
+  }
+}
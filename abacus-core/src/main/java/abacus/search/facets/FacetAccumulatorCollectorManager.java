@@ -0,0 +1,47 @@
+package abacus.search.facets;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.lucene.search.CollectorManager;
+
+/**
+ * Creates a {@link FacetAccumulatorCollector} with fresh accumulators for every search slice
+ * and merges the accumulators of all slices, in slice order, on reduce.
+ */
+public class FacetAccumulatorCollectorManager implements
+    CollectorManager<FacetAccumulatorCollector, Map<String, FacetAccumulator>> {
+
+  private final Map<String, FacetAccumulatorFactory> factories;
+
+  public FacetAccumulatorCollectorManager(Map<String, FacetAccumulatorFactory> factories) {
+    this.factories = factories;
+  }
+
+  @Override
+  public FacetAccumulatorCollector newCollector() throws IOException {
+    Map<String, FacetAccumulator> accumulators = new LinkedHashMap<>();
+    for (Entry<String, FacetAccumulatorFactory> entry : factories.entrySet()) {
+      accumulators.put(entry.getKey(), entry.getValue().createAccumulator());
+    }
+    return new FacetAccumulatorCollector(accumulators);
+  }
+
+  @Override
+  public Map<String, FacetAccumulator> reduce(Collection<FacetAccumulatorCollector> collectors)
+      throws IOException {
+    Iterator<FacetAccumulatorCollector> iter = collectors.iterator();
+    Map<String, FacetAccumulator> merged = iter.next().getAccumulators();
+    while (iter.hasNext()) {
+      Map<String, FacetAccumulator> accumulators = iter.next().getAccumulators();
+      for (Entry<String, FacetAccumulator> entry : merged.entrySet()) {
+        entry.getValue().merge(accumulators.get(entry.getKey()));
+      }
+    }
+    return merged;
+  }
+}
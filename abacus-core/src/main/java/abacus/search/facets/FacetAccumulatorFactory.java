@@ -0,0 +1,7 @@
+package abacus.search.facets;
+
+import java.io.IOException;
+
+public interface FacetAccumulatorFactory {
+  FacetAccumulator createAccumulator() throws IOException;
+}
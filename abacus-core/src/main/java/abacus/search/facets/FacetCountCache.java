@@ -0,0 +1,263 @@
+package abacus.search.facets;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.facet.FacetResult;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReader.CoreClosedListener;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * Caches the facet counts of a field over the hits of a segment, so that a field counted
+ * again for the same hits only merges the counts of every segment instead of visiting its
+ * hits. Entries are keyed by the field, a key identifying the hits, such as the normalized
+ * filter of a match-all query, and the combined core and deletes key of the segment, since
+ * deleted docs are not counted.
+ * <p>
+ * Counts are snapshot through {@link FacetAccumulator#getSegmentCounts(LeafReaderContext)},
+ * accumulators that do not support it are never cached. Entries are evicted in least
+ * recently used order when their counts exceed the byte budget, and when the core of their
+ * segment is closed.
+ */
+public class FacetCountCache {
+
+  // bytes accounted for every entry besides its counts
+  private static final long ENTRY_OVERHEAD = 8 * RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+
+  private final long maxBytes;
+
+  // all guarded by this
+  private final Map<CacheKey, SegmentCounts> cache = new LinkedHashMap<>(16, 0.75f, true);
+  private final Set<Object> registeredCores = new HashSet<>();
+  private long ramBytesUsed = 0;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  private final CoreClosedListener coreClosedListener = new CoreClosedListener() {
+    @Override
+    public void onClose(Object ownerCoreCacheKey) {
+      clearCore(ownerCoreCacheKey);
+    }
+  };
+
+  /**
+   * @param maxBytes budget of the cached counts
+   */
+  public FacetCountCache(long maxBytes) {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+    }
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns accumulator wrapped so that the counts of field over the hits identified by
+   * hitsKey are read from and put into this cache. Every segment must be accumulated by a
+   * single leaf accumulator over all of its hits, so the wrapped accumulator cannot be used
+   * with docid-range partitions or with collectors that terminate early.
+   */
+  public FacetAccumulator wrap(FacetAccumulator accumulator, String field, Object hitsKey) {
+    return new CachingAccumulator(accumulator, field, hitsKey);
+  }
+
+  private synchronized SegmentCounts get(CacheKey key) {
+    SegmentCounts counts = cache.get(key);
+    if (counts != null) {
+      hitCount.incrementAndGet();
+    } else {
+      missCount.incrementAndGet();
+    }
+    return counts;
+  }
+
+  private void put(CacheKey key, SegmentCounts counts, LeafReader reader) {
+    long bytes = counts.ramBytesUsed() + ENTRY_OVERHEAD;
+    if (bytes > maxBytes) {
+      return;
+    }
+    boolean register;
+    synchronized (this) {
+      SegmentCounts previous = cache.put(key, counts);
+      if (previous != null) {
+        ramBytesUsed -= previous.ramBytesUsed() + ENTRY_OVERHEAD;
+      }
+      ramBytesUsed += bytes;
+      Iterator<Entry<CacheKey, SegmentCounts>> it = cache.entrySet().iterator();
+      while (ramBytesUsed > maxBytes && it.hasNext()) {
+        Entry<CacheKey, SegmentCounts> eldest = it.next();
+        ramBytesUsed -= eldest.getValue().ramBytesUsed() + ENTRY_OVERHEAD;
+        it.remove();
+        evictionCount.incrementAndGet();
+      }
+      register = registeredCores.add(key.coreKey);
+    }
+    if (register) {
+      reader.addCoreClosedListener(coreClosedListener);
+    }
+  }
+
+  private synchronized void clearCore(Object coreKey) {
+    registeredCores.remove(coreKey);
+    Iterator<Entry<CacheKey, SegmentCounts>> it = cache.entrySet().iterator();
+    while (it.hasNext()) {
+      Entry<CacheKey, SegmentCounts> entry = it.next();
+      if (entry.getKey().coreKey == coreKey) {
+        ramBytesUsed -= entry.getValue().ramBytesUsed() + ENTRY_OVERHEAD;
+        it.remove();
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    cache.clear();
+    ramBytesUsed = 0;
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Returns the number of counts evicted to stay in the byte budget, counts of closed
+   * segments are not counted.
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  public synchronized int getCacheSize() {
+    return cache.size();
+  }
+
+  public synchronized long ramBytesUsed() {
+    return ramBytesUsed;
+  }
+
+  @Override
+  public String toString() {
+    return "FacetCountCache(hits:" + getHitCount() + " misses:" + getMissCount()
+        + " evictions:" + getEvictionCount() + " size:" + getCacheSize() + " bytes:"
+        + ramBytesUsed() + ")";
+  }
+
+  private static class CacheKey {
+    final Object readerKey;
+    final Object coreKey;
+    final String field;
+    final Object hitsKey;
+    private final int hash;
+
+    CacheKey(LeafReader reader, String field, Object hitsKey) {
+      this.readerKey = reader.getCombinedCoreAndDeletesKey();
+      this.coreKey = reader.getCoreCacheKey();
+      this.field = field;
+      this.hitsKey = hitsKey;
+      int h = 31 * System.identityHashCode(readerKey) + field.hashCode();
+      this.hash = 31 * h + hitsKey.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof CacheKey)) {
+        return false;
+      }
+      CacheKey other = (CacheKey) obj;
+      return readerKey == other.readerKey && hash == other.hash && field.equals(other.field)
+          && hitsKey.equals(other.hitsKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  /**
+   * Skips the segments whose counts are cached and snapshots the others once their leaf
+   * accumulator is done, that is when the next segment starts, when merged, or when read.
+   */
+  private class CachingAccumulator extends FacetAccumulator {
+    private final FacetAccumulator in;
+    private final String field;
+    private final Object hitsKey;
+    // segment being accumulated by in, to be cached once done
+    private LeafReaderContext pendingContext;
+    private CacheKey pendingKey;
+
+    CachingAccumulator(FacetAccumulator in, String field, Object hitsKey) {
+      this.in = in;
+      this.field = field;
+      this.hitsKey = hitsKey;
+    }
+
+    @Override
+    public LeafAccumulator getLeafAccumulator(LeafReaderContext ctx) throws IOException {
+      flush();
+      CacheKey key = new CacheKey(ctx.reader(), field, hitsKey);
+      SegmentCounts counts = get(key);
+      if (counts != null) {
+        in.addSegmentCounts(ctx, counts);
+        return null;
+      }
+      LeafAccumulator leafAccumulator = in.getLeafAccumulator(ctx);
+      if (leafAccumulator != null) {
+        pendingContext = ctx;
+        pendingKey = key;
+      }
+      return leafAccumulator;
+    }
+
+    private void flush() {
+      if (pendingContext == null) {
+        return;
+      }
+      SegmentCounts counts = in.getSegmentCounts(pendingContext);
+      if (counts != null) {
+        put(pendingKey, counts, pendingContext.reader());
+      }
+      pendingContext = null;
+      pendingKey = null;
+    }
+
+    @Override
+    public void merge(FacetAccumulator other) {
+      CachingAccumulator otherAccumulator = (CachingAccumulator) other;
+      flush();
+      otherAccumulator.flush();
+      in.merge(otherAccumulator.in);
+    }
+
+    @Override
+    public FacetResult getTopChildren(int topN, String dim, String... path) throws IOException {
+      flush();
+      return in.getTopChildren(topN, dim, path);
+    }
+
+    @Override
+    public Number getSpecificValue(String dim, String... path) throws IOException {
+      flush();
+      return in.getSpecificValue(dim, path);
+    }
+
+    @Override
+    public List<FacetResult> getAllDims(int topN) throws IOException {
+      flush();
+      return in.getAllDims(topN);
+    }
+  }
+}
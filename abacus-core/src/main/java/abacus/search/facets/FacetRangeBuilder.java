@@ -4,6 +4,7 @@ import abacus.api.AbacusFieldType;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.NumericRangeFilter;
+import org.apache.lucene.util.NumericUtils;
 
 public class FacetRangeBuilder {
 
@@ -67,6 +68,36 @@ public class FacetRangeBuilder {
       this.incUpper = incUpper;
     }
 
+    /**
+     * Stateless form of {@link #accumulate(long)}, so the same range can be tested from
+     * several counting threads.
+     */
+    public abstract boolean contains(long val);
+
+    @Override
+    public void accumulate(long val) {
+      if (contains(val)) {
+        count++;
+      }
+    }
+
+    /**
+     * Maps a doc value of the field to a long whose signed order is the order of the field
+     * type, so ranges of any numeric type can be compared as longs, see {@link RangeBucketIndex}.
+     */
+    public abstract long toSortableLong(long val);
+
+    /**
+     * Returns the smallest value in the range in the sortable long domain. The range is empty
+     * if it is greater than {@link #getSortableUpper()}.
+     */
+    public abstract long getSortableLower();
+
+    /**
+     * Returns the largest value in the range in the sortable long domain.
+     */
+    public abstract long getSortableUpper();
+
     public Filter buildRangeFilter(String field) {
       return null;
     }
@@ -79,19 +110,42 @@ public class FacetRangeBuilder {
 
     public DoubleFacetRange(String label) throws ParseException {
       super(label);
-      lowerVal = "*".equals(lower) ? Double.MIN_VALUE : Double.parseDouble(lower);
-      upperVal = "*".equals(upper) ? Double.MAX_VALUE : Double.parseDouble(upper);
+      lowerVal = "*".equals(lower) ? Double.NEGATIVE_INFINITY : Double.parseDouble(lower);
+      upperVal = "*".equals(upper) ? Double.POSITIVE_INFINITY : Double.parseDouble(upper);
+    }
+
+    private static long sortable(double val) {
+      // -0.0 and 0.0 compare equal
+      return NumericUtils.doubleToSortableLong(val == 0 ? 0.0 : val);
+    }
+
+    @Override
+    public long toSortableLong(long longVal) {
+      return sortable(Double.longBitsToDouble(longVal));
     }
 
     @Override
-    public void accumulate(long longVal) {
+    public long getSortableLower() {
+      long sortable = sortable(lowerVal);
+      return incLower ? sortable : sortable + 1;
+    }
+
+    @Override
+    public long getSortableUpper() {
+      long sortable = sortable(upperVal);
+      return incUpper ? sortable : sortable - 1;
+    }
+
+    @Override
+    public boolean contains(long longVal) {
       double val = Double.longBitsToDouble(longVal);
       if (val <= upperVal && val >= lowerVal) {
         if ((!incLower && val == lowerVal) || (!incUpper && val == upperVal)) {
-          return;
+          return false;
         }
-        count++;
+        return true;
       }
+      return false;
     }
 
     @Override
@@ -107,19 +161,42 @@ public class FacetRangeBuilder {
 
     public FloatFacetRange(String label) throws ParseException {
       super(label);
-      lowerVal = "*".equals(lower) ? Float.MIN_VALUE : Float.parseFloat(lower);
-      upperVal = "*".equals(upper) ? Float.MAX_VALUE : Float.parseFloat(upper);
+      lowerVal = "*".equals(lower) ? Float.NEGATIVE_INFINITY : Float.parseFloat(lower);
+      upperVal = "*".equals(upper) ? Float.POSITIVE_INFINITY : Float.parseFloat(upper);
+    }
+
+    private static long sortable(float val) {
+      // -0.0f and 0.0f compare equal
+      return NumericUtils.floatToSortableInt(val == 0 ? 0.0f : val);
     }
 
     @Override
-    public void accumulate(long longVal) {
+    public long toSortableLong(long longVal) {
+      return sortable(Float.intBitsToFloat((int) longVal));
+    }
+
+    @Override
+    public long getSortableLower() {
+      long sortable = sortable(lowerVal);
+      return incLower ? sortable : sortable + 1;
+    }
+
+    @Override
+    public long getSortableUpper() {
+      long sortable = sortable(upperVal);
+      return incUpper ? sortable : sortable - 1;
+    }
+
+    @Override
+    public boolean contains(long longVal) {
       float val = Float.intBitsToFloat((int) longVal);
       if (val <= upperVal && val >= lowerVal) {
         if ((!incLower && val == lowerVal) || (!incUpper && val == upperVal)) {
-          return;
+          return false;
         }
-        count++;
+        return true;
       }
+      return false;
     }
 
     @Override
@@ -140,14 +217,30 @@ public class FacetRangeBuilder {
     }
 
     @Override
-    public void accumulate(long longVal) {
+    public long toSortableLong(long longVal) {
+      return (int) longVal;
+    }
+
+    @Override
+    public long getSortableLower() {
+      return incLower ? lowerVal : (long) lowerVal + 1;
+    }
+
+    @Override
+    public long getSortableUpper() {
+      return incUpper ? upperVal : (long) upperVal - 1;
+    }
+
+    @Override
+    public boolean contains(long longVal) {
       int val = (int) longVal;
       if (val <= upperVal && val >= lowerVal) {
         if ((!incLower && val == lowerVal) || (!incUpper && val == upperVal)) {
-          return;
+          return false;
         }
-        count++;
+        return true;
       }
+      return false;
     }
 
     @Override
@@ -163,17 +256,41 @@ public class FacetRangeBuilder {
     public LongFacetRange(String label) throws ParseException {
       super(label);
       lowerVal = "*".equals(lower) ? Long.MIN_VALUE : Long.parseLong(lower);
-      upperVal = "*".equals(upper) ? Long.MIN_VALUE : Long.parseLong(upper);
+      upperVal = "*".equals(upper) ? Long.MAX_VALUE : Long.parseLong(upper);
     }
 
     @Override
-    public void accumulate(long val) {
+    public long toSortableLong(long val) {
+      return val;
+    }
+
+    @Override
+    public long getSortableLower() {
+      if (!incLower && lowerVal == Long.MAX_VALUE) {
+        // empty
+        return Long.MAX_VALUE;
+      }
+      return incLower ? lowerVal : lowerVal + 1;
+    }
+
+    @Override
+    public long getSortableUpper() {
+      if (!incUpper && upperVal == Long.MIN_VALUE) {
+        // empty
+        return Long.MIN_VALUE;
+      }
+      return incUpper ? upperVal : upperVal - 1;
+    }
+
+    @Override
+    public boolean contains(long val) {
       if (val <= upperVal && val >= lowerVal) {
         if ((!incLower && val == lowerVal) || (!incUpper && val == upperVal)) {
-          return;
+          return false;
         }
-        count++;
+        return true;
       }
+      return false;
     }
 
     @Override
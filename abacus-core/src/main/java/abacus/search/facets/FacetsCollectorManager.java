@@ -0,0 +1,65 @@
+package abacus.search.facets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.lucene.facet.FacetsCollector;
+import org.apache.lucene.search.CollectorManager;
+
+/**
+ * Creates one {@link CompactFacetsCollector} per search slice and reduces them into a single
+ * collector whose matching docs cover every slice, in slice order.
+ */
+public class FacetsCollectorManager implements CollectorManager<FacetsCollector, FacetsCollector> {
+
+  private final boolean keepScores;
+
+  public FacetsCollectorManager() {
+    this(false);
+  }
+
+  public FacetsCollectorManager(boolean keepScores) {
+    this.keepScores = keepScores;
+  }
+
+  @Override
+  public FacetsCollector newCollector() throws IOException {
+    return new CompactFacetsCollector(keepScores);
+  }
+
+  /**
+   * Returns a collector for the docs in [minDoc, maxDoc) of a single segment, used when one
+   * segment is split into several partitions.
+   */
+  public FacetsCollector newCollector(int minDoc, int maxDoc) {
+    return new DocRangeFacetsCollector(minDoc, maxDoc, keepScores);
+  }
+
+  @Override
+  public FacetsCollector reduce(Collection<FacetsCollector> collectors) throws IOException {
+    if (collectors.size() == 1) {
+      return collectors.iterator().next();
+    }
+    return new ReducedFacetsCollector(collectors, keepScores);
+  }
+
+  private static class ReducedFacetsCollector extends FacetsCollector {
+
+    private final List<MatchingDocs> matchingDocs;
+
+    ReducedFacetsCollector(Collection<FacetsCollector> collectors, boolean keepScores) {
+      super(keepScores);
+      matchingDocs = new ArrayList<>();
+      for (FacetsCollector collector : collectors) {
+        matchingDocs.addAll(collector.getMatchingDocs());
+      }
+    }
+
+    @Override
+    public List<MatchingDocs> getMatchingDocs() {
+      return matchingDocs;
+    }
+  }
+}
@@ -3,17 +3,36 @@ package abacus.search.facets;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.lucene.index.DocValuesType;
 import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
 import org.apache.lucene.index.FilterLeafReader;
 import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SegmentReader;
 import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.ThreadInterruptedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import abacus.search.facets.docvalues.ArrayNumericDocValues;
 import abacus.search.facets.docvalues.ArraySortedDocValues;
@@ -21,23 +40,41 @@ import abacus.search.facets.docvalues.ArraySortedSetDocValues;
 import abacus.search.facets.docvalues.DirectBufferNumericDocValues;
 import abacus.search.facets.docvalues.DirectBufferSortedDocValues;
 import abacus.search.facets.docvalues.DirectBufferSortedSetDocValues;
+import abacus.search.facets.docvalues.InMemorySortedSetDocValues;
 import abacus.search.facets.docvalues.NativeNumericDocValues;
 import abacus.search.facets.docvalues.NativeSortedDocValues;
 import abacus.search.facets.docvalues.NativeSortedSetDocValues;
+import abacus.search.facets.docvalues.OrdinalNumericDocValues;
+import abacus.search.facets.unsafe.NativeArena;
 
 public class FastDocValuesAtomicReader extends FilterLeafReader {
 
-  private Map<String, NumericDocValues> cached;
-  private Map<String, SortedDocValues> sortedCached;  
-  private Map<String, SortedSetDocValues> sortedSetCached;  
+  private static final Logger log = LoggerFactory.getLogger(FastDocValuesAtomicReader.class);
+
+  private final Map<String, NumericDocValues> cached;
+  private final Map<String, SortedDocValues> sortedCached;  
+  private final Map<String, InMemorySortedSetDocValues> sortedSetCached;  
+  // mem type every loaded field was loaded with
+  private final Map<String, MemType> memTypes;
   
-  private List<Closeable> closableList = new ArrayList<Closeable>();
+  // loaded values are shared by every reader over the same segment core, see
+  // FastDocValuesAtomicReader(LeafReader, FastDocValuesAtomicReader)
+  private final LoadedValues loadedValues;
+
+  // docs of a SORTED_SET field whose ords are counted by estimateBytes
+  private static final int ORDS_SAMPLE_SIZE = 1 << 16;
   
   public static enum MemType {
     Default,
     Heap,
     Direct,
-    Native
+    Native,
+    /**
+     * Numeric fields are loaded on heap as a sorted dictionary of unique values plus a per-doc
+     * ord column, see {@link OrdinalNumericDocValues}, falling back to {@link #Heap} for
+     * segments with too many unique values. Other fields are loaded as {@link #Heap}.
+     */
+    Ordinal
   };
   
   public FastDocValuesAtomicReader(LeafReader in, Map<String, MemType> loadOptionsMap) 
@@ -47,80 +84,736 @@ public class FastDocValuesAtomicReader extends FilterLeafReader {
   
   public FastDocValuesAtomicReader(LeafReader in, Map<String, MemType> loadOptionsMap, MemType defaultMemType) 
       throws IOException {
-    super(in);
+    this(in, loadOptionsMap, defaultMemType, null);
+  }
+
+  /**
+   * Loads the doc values the way {@link #FastDocValuesAtomicReader(LeafReader, Map, MemType)}
+   * does, closing reservation, the budget reserved for them, when they are released.
+   */
+  public FastDocValuesAtomicReader(LeafReader in, Map<String, MemType> loadOptionsMap,
+      MemType defaultMemType, MemoryBudget.Reservation reservation) throws IOException {
+    this(startLoading(in, loadOptionsMap, defaultMemType, reservation, null, null));
+  }
+
+  private FastDocValuesAtomicReader(PendingLoad pending) throws IOException {
+    super(pending.in);
+    List<Column> columns = pending.await();
     cached = new HashMap<String, NumericDocValues>();
     sortedCached = new HashMap<String, SortedDocValues>();
-    sortedSetCached = new HashMap<String, SortedSetDocValues>();
+    sortedSetCached = new HashMap<String, InMemorySortedSetDocValues>();
+    memTypes = new HashMap<String, MemType>();
+    for (Column column : columns) {
+      putColumn(column);
+    }
+    loadedValues = new LoadedValues(closables(pending.reservation, pending.arena),
+        pending.arena, Collections.<String>emptySet(), null);
+  }
+
+  // starts with no column, they are put as they are loaded in the background
+  private FastDocValuesAtomicReader(LeafReader in, MemoryBudget.Reservation reservation,
+      NativeArena arena, Set<String> loadingFields, ColumnLoadScheduler scheduler) {
+    super(in);
+    cached = new ConcurrentHashMap<String, NumericDocValues>();
+    sortedCached = new ConcurrentHashMap<String, SortedDocValues>();
+    sortedSetCached = new ConcurrentHashMap<String, InMemorySortedSetDocValues>();
+    memTypes = new ConcurrentHashMap<String, MemType>();
+    loadedValues = new LoadedValues(closables(reservation, arena), arena, loadingFields,
+        scheduler);
+  }
+
+  private static List<Closeable> closables(MemoryBudget.Reservation reservation,
+      NativeArena arena) {
+    List<Closeable> closableList = new ArrayList<Closeable>();
+    if (reservation != null) {
+      closableList.add(reservation);
+    }
+    if (arena != null) {
+      closableList.add(arena);
+    }
+    return closableList;
+  }
+
+  // the values are put before the mem type, which is only informative
+  private void putColumn(Column column) {
+    switch (column.docValuesType) {
+      case NUMERIC:
+        cached.put(column.field, (NumericDocValues) column.values);
+        break;
+      case SORTED:
+        sortedCached.put(column.field, (SortedDocValues) column.values);
+        break;
+      default:
+        sortedSetCached.put(column.field, (InMemorySortedSetDocValues) column.values);
+        break;
+    }
+    memTypes.put(column.field, column.type);
+  }
+
+  /**
+   * Notified of every column loaded by {@link FastDocValuesAtomicReader#startLoading}, from the
+   * thread that loaded it.
+   */
+  public interface LoadListener {
+    void columnLoaded(LeafReader in, String field, MemType type, long nanos);
+  }
+
+  /**
+   * Starts loading the doc values of in with one task per field run by executor, or by the
+   * calling thread if executor is null, and returns them pending. Tasks never wait on other
+   * tasks, so the doc values of many segments can be loaded on the same bounded executor
+   * before getting any of them. The pending load takes ownership of reservation.
+   *
+   * @param listener notified of every loaded column, or null
+   */
+  public static PendingLoad startLoading(LeafReader in, Map<String, MemType> loadOptionsMap,
+      MemType defaultMemType, MemoryBudget.Reservation reservation, Executor executor,
+      LoadListener listener) {
+    PendingLoad pending = new PendingLoad(in, reservation);
+    List<FieldInfo> fields = new ArrayList<FieldInfo>();
+    List<MemType> types = new ArrayList<MemType>();
+    selectColumns(in, loadOptionsMap, defaultMemType, fields, types);
+    // native columns of the segment are released together
+    pending.arena = types.contains(MemType.Native) ? newArena(in) : null;
+    for (int i = 0; i < fields.size(); ++i) {
+      FutureTask<Column> task = new FutureTask<Column>(
+          pending.new ColumnTask(fields.get(i), types.get(i), listener));
+      pending.tasks.add(task);
+      if (executor == null) {
+        task.run();
+      } else {
+        try {
+          executor.execute(task);
+        } catch (RejectedExecutionException e) {
+          task.run();
+        }
+      }
+    }
+    return pending;
+  }
+
+  /**
+   * Returns a reader over in that serves the doc values of the codec right away, while the
+   * columns {@link #startLoading} would load are loaded in the background by scheduler. Each
+   * field switches to its loaded column as a whole once it is complete, doc values already
+   * handed out stay the codec's. A column that fails to load is logged and its field stays
+   * {@link MemType#Default}. Asking for a field that is still loading moves it ahead, see
+   * {@link ColumnLoadScheduler}. The reader takes ownership of reservation and keeps in open
+   * until its columns are loaded or skipped, columns not started when the loaded values are
+   * released are skipped.
+   *
+   * @param listener notified of every loaded column, or null
+   */
+  public static FastDocValuesAtomicReader loadInBackground(LeafReader in,
+      Map<String, MemType> loadOptionsMap, MemType defaultMemType,
+      MemoryBudget.Reservation reservation, ColumnLoadScheduler scheduler,
+      LoadListener listener) {
+    List<FieldInfo> fields = new ArrayList<FieldInfo>();
+    List<MemType> types = new ArrayList<MemType>();
+    selectColumns(in, loadOptionsMap, defaultMemType, fields, types);
+    NativeArena arena = types.contains(MemType.Native) ? newArena(in) : null;
+    Set<String> loadingFields =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    for (FieldInfo finfo : fields) {
+      loadingFields.add(finfo.name);
+    }
+    FastDocValuesAtomicReader reader = new FastDocValuesAtomicReader(in, reservation, arena,
+        loadingFields, scheduler);
+    if (!fields.isEmpty()) {
+      // released by the last column, see BackgroundColumn
+      in.incRef();
+    }
+    for (int i = 0; i < fields.size(); ++i) {
+      scheduler.schedule(fields.get(i).name,
+          reader.new BackgroundColumn(fields.get(i), types.get(i), listener));
+    }
+    return reader;
+  }
+
+  /**
+   * Returns true while some columns of this reader, range bucket columns included, are loading
+   * in the background.
+   */
+  public boolean isLoading() {
+    return !loadedValues.loadingFields.isEmpty() || loadedValues.isBuildingRangeBuckets();
+  }
+
+  private static void selectColumns(LeafReader in, Map<String, MemType> loadOptionsMap,
+      MemType defaultMemType, List<FieldInfo> fields, List<MemType> types) {
     for (FieldInfo finfo : in.getFieldInfos()) {
       MemType type = loadOptionsMap != null ? loadOptionsMap.get(finfo.name) : null;
       if (type == null) {
         type = defaultMemType;
       }
-        switch(finfo.getDocValuesType()) {
-        case NUMERIC: {
-          NumericDocValues val = super.getNumericDocValues(finfo.name);
-          if (type == MemType.Heap) {
-            val = new ArrayNumericDocValues(val, maxDoc());
-          } else if (type == MemType.Direct) {
-            val = new DirectBufferNumericDocValues(val, maxDoc());
-          } else if (type == MemType.Native){
-            NativeNumericDocValues nativeVals =
-                new NativeNumericDocValues(val, maxDoc());
-            closableList.add(nativeVals);
-            val = nativeVals;
+      // the wrapped reader hands out per-thread instances, sharing the one loaded here
+      // would break concurrent searches
+      DocValuesType docValuesType = finfo.getDocValuesType();
+      if (type != MemType.Default && (docValuesType == DocValuesType.NUMERIC
+          || docValuesType == DocValuesType.SORTED
+          || docValuesType == DocValuesType.SORTED_SET)) {
+        fields.add(finfo);
+        types.add(type);
+      }
+    }
+  }
+
+  // ordinal numeric columns fall back to heap arrays, other fields load as heap
+  private static MemType loadedType(MemType type, Object values) {
+    return type == MemType.Ordinal && !(values instanceof OrdinalNumericDocValues)
+        ? MemType.Heap : type;
+  }
+
+  /**
+   * A column of this reader loading in the background, see {@link #loadInBackground}.
+   */
+  private class BackgroundColumn implements Runnable {
+    private final FieldInfo finfo;
+    private final MemType type;
+    private final LoadListener listener;
+
+    BackgroundColumn(FieldInfo finfo, MemType type, LoadListener listener) {
+      this.finfo = finfo;
+      this.type = type;
+      this.listener = listener;
+    }
+
+    @Override
+    public void run() {
+      LoadedValues values = loadedValues;
+      try {
+        if (values.startColumn()) {
+          try {
+            long start = System.nanoTime();
+            Object column = loadColumn(in, finfo, type, values.arena);
+            MemType loadedType = loadedType(type, column);
+            putColumn(new Column(finfo.name, finfo.getDocValuesType(), loadedType, column));
+            if (listener != null) {
+              listener.columnLoaded(in, finfo.name, loadedType, System.nanoTime() - start);
+            }
+          } catch (Throwable t) {
+            log.warn("failed to load doc values of " + finfo.name + " in " + in
+                + ", the field stays " + MemType.Default, t);
+          } finally {
+            values.endColumn();
           }
-          cached.put(finfo.name, val);
-          break;
-        }
-        case SORTED : {
-          SortedDocValues val = super.getSortedDocValues(finfo.name);
-          if (type == MemType.Heap) {
-            val = new ArraySortedDocValues(val, maxDoc());
-          } else if (type == MemType.Direct) {
-            val = new DirectBufferSortedDocValues(val, maxDoc());
-          } else if (type == MemType.Native){
-            NativeSortedDocValues nativeVals =
-                new NativeSortedDocValues(val, maxDoc());
-            closableList.add(nativeVals);
-            val = nativeVals;
+        }
+      } catch (IOException e) {
+        log.warn("failed to release doc values of " + in, e);
+      } finally {
+        values.loadingFields.remove(finfo.name);
+        if (values.remainingColumns.decrementAndGet() == 0) {
+          try {
+            in.decRef();
+          } catch (IOException e) {
+            log.warn("failed to close " + in, e);
           }
-          sortedCached.put(finfo.name, val);
-          break;
-        }
-        case SORTED_SET : {
-          SortedSetDocValues val = super.getSortedSetDocValues(finfo.name);
-          if (type == MemType.Heap) {
-            val = new ArraySortedSetDocValues(val, maxDoc());
-          } else if (type == MemType.Direct) {
-            val = new DirectBufferSortedSetDocValues(val, maxDoc());
-          } else if (type == MemType.Native){
-            NativeSortedSetDocValues nativeVals =
-                new NativeSortedSetDocValues(val, maxDoc());
-            closableList.add(nativeVals);
-            val = nativeVals;
+        }
+      }
+    }
+  }
+
+  private static Object loadColumn(LeafReader in, FieldInfo finfo, MemType type,
+      NativeArena arena) throws IOException {
+    int maxDoc = in.maxDoc();
+    switch (finfo.getDocValuesType()) {
+      case NUMERIC: {
+        NumericDocValues val = in.getNumericDocValues(finfo.name);
+        if (type == MemType.Heap) {
+          return new ArrayNumericDocValues(val, maxDoc);
+        } else if (type == MemType.Ordinal) {
+          NumericDocValues ordVals = OrdinalNumericDocValues.build(val, maxDoc,
+              OrdinalNumericDocValues.DEFAULT_MAX_VALUE_COUNT);
+          return ordVals != null ? ordVals : new ArrayNumericDocValues(val, maxDoc);
+        } else if (type == MemType.Direct) {
+          return new DirectBufferNumericDocValues(val, maxDoc);
+        } else {
+          return new NativeNumericDocValues(val, maxDoc, arena, finfo.name);
+        }
+      }
+      case SORTED: {
+        SortedDocValues val = in.getSortedDocValues(finfo.name);
+        if (type == MemType.Heap || type == MemType.Ordinal) {
+          return new ArraySortedDocValues(val, maxDoc);
+        } else if (type == MemType.Direct) {
+          return new DirectBufferSortedDocValues(val, maxDoc);
+        } else {
+          return new NativeSortedDocValues(val, maxDoc, arena, finfo.name);
+        }
+      }
+      default: {
+        SortedSetDocValues inner = in.getSortedSetDocValues(finfo.name);
+        if (type == MemType.Heap || type == MemType.Ordinal) {
+          return new ArraySortedSetDocValues(inner, maxDoc);
+        } else if (type == MemType.Direct) {
+          return new DirectBufferSortedSetDocValues(inner, maxDoc);
+        } else {
+          return new NativeSortedSetDocValues(inner, maxDoc, arena, finfo.name);
+        }
+      }
+    }
+  }
+
+  /**
+   * Doc values of a segment being loaded, see {@link FastDocValuesAtomicReader#startLoading}.
+   */
+  public static final class PendingLoad {
+    private final LeafReader in;
+    private final MemoryBudget.Reservation reservation;
+    private NativeArena arena;
+    private final List<FutureTask<Column>> tasks = new ArrayList<FutureTask<Column>>();
+    // set by the first failed column, the columns not started yet are skipped
+    private volatile boolean failed;
+
+    private PendingLoad(LeafReader in, MemoryBudget.Reservation reservation) {
+      this.in = in;
+      this.reservation = reservation;
+    }
+
+    /**
+     * Waits for every column and returns the reader over them. If a column fails, whatever
+     * was loaded is released once the running columns are done and the failure is thrown.
+     */
+    public FastDocValuesAtomicReader get() throws IOException {
+      return new FastDocValuesAtomicReader(this);
+    }
+
+    private List<Column> await() throws IOException {
+      List<Column> columns = new ArrayList<Column>(tasks.size());
+      Throwable failure = null;
+      for (FutureTask<Column> task : tasks) {
+        try {
+          columns.add(task.get());
+        } catch (ExecutionException e) {
+          failure = failure == null ? e.getCause() : failure;
+        } catch (InterruptedException e) {
+          // running columns may still write to the arena, it is reclaimed once collected
+          failed = true;
+          IOUtils.closeWhileHandlingException(reservation);
+          Thread.currentThread().interrupt();
+          throw new ThreadInterruptedException(e);
+        }
+      }
+      if (failure != null) {
+        IOUtils.closeWhileHandlingException(reservation, arena);
+        IOUtils.reThrow(failure);
+      }
+      return columns;
+    }
+
+    private class ColumnTask implements Callable<Column> {
+      private final FieldInfo finfo;
+      private final MemType type;
+      private final LoadListener listener;
+
+      ColumnTask(FieldInfo finfo, MemType type, LoadListener listener) {
+        this.finfo = finfo;
+        this.type = type;
+        this.listener = listener;
+      }
+
+      @Override
+      public Column call() throws Exception {
+        if (failed) {
+          throw new IllegalStateException("another column of " + in + " failed to load");
+        }
+        try {
+          long start = System.nanoTime();
+          Object values = loadColumn(in, finfo, type, arena);
+          MemType loadedType = loadedType(type, values);
+          if (listener != null) {
+            listener.columnLoaded(in, finfo.name, loadedType, System.nanoTime() - start);
           }
-          sortedSetCached.put(finfo.name, val);
-          break;
+          return new Column(finfo.name, finfo.getDocValuesType(), loadedType, values);
+        } catch (Throwable t) {
+          failed = true;
+          throw t;
         }
-        default : {
-          break;
+      }
+    }
+  }
+
+  /**
+   * The loaded doc values of one field.
+   */
+  private static class Column {
+    final String field;
+    final DocValuesType docValuesType;
+    final MemType type;
+    final Object values;
+
+    Column(String field, DocValuesType docValuesType, MemType type, Object values) {
+      this.field = field;
+      this.docValuesType = docValuesType;
+      this.type = type;
+      this.values = values;
+    }
+  }
+
+  /**
+   * Returns an estimate of the bytes the doc values of finfo take once loaded in by
+   * {@link #FastDocValuesAtomicReader(LeafReader, Map, MemType)} with type, 0 for
+   * {@link MemType#Default} and fields without doc values to load. The terms of SORTED and
+   * SORTED_SET fields are read for their lengths and the ords of SORTED_SET fields are
+   * counted on a sample of the docs.
+   */
+  public static long estimateBytes(LeafReader in, FieldInfo finfo, MemType type)
+      throws IOException {
+    if (type == MemType.Default) {
+      return 0;
+    }
+    long maxDoc = in.maxDoc();
+    // on heap a term is a BytesRef, off heap an offset and a length
+    long termOverhead = type == MemType.Heap || type == MemType.Ordinal
+        ? RamUsageEstimator.shallowSizeOfInstance(BytesRef.class)
+            + RamUsageEstimator.NUM_BYTES_OBJECT_REF
+        : 8;
+    switch (finfo.getDocValuesType()) {
+      case NUMERIC:
+        // ordinal columns are smaller unless they fall back to a heap array
+        return maxDoc * 8;
+      case SORTED: {
+        SortedDocValues values = in.getSortedDocValues(finfo.name);
+        return maxDoc * 4 + termBytes(values.termsEnum(), termOverhead);
+      }
+      case SORTED_SET: {
+        SortedSetDocValues values = in.getSortedSetDocValues(finfo.name);
+        long bytes = maxDoc * 4 + termBytes(values.termsEnum(), termOverhead);
+        // docs with more than one ord keep all of them in the ords pool
+        int step = Math.max(1, in.maxDoc() / ORDS_SAMPLE_SIZE);
+        long pooled = 0;
+        for (int doc = 0; doc < in.maxDoc(); doc += step) {
+          values.setDocument(doc);
+          int count = 0;
+          while (values.nextOrd() != SortedSetDocValues.NO_MORE_ORDS) {
+            count++;
+          }
+          if (count > 1) {
+            pooled += count;
+          }
         }
+        return bytes + pooled * step * 4;
       }
+      default:
+        return 0;
+    }
+  }
+
+  private static long termBytes(TermsEnum terms, long termOverhead) throws IOException {
+    long bytes = 0;
+    BytesRef term;
+    while ((term = terms.next()) != null) {
+      bytes += term.length + termOverhead;
     }
+    return bytes;
+  }
+
+  private static NativeArena newArena(LeafReader in) {
+    LeafReader segment = FilterLeafReader.unwrap(in);
+    return new NativeArena(segment instanceof SegmentReader
+        ? ((SegmentReader) segment).getSegmentName() : segment.toString());
+  }
+
+  /**
+   * Wraps in, a newer reader over the same segment core as loadedReader, e.g. one with more
+   * deletions after a reopen, without loading the doc values again.
+   *
+   * @see #sharesValuesWith(LeafReader)
+   */
+  public FastDocValuesAtomicReader(LeafReader in, FastDocValuesAtomicReader loadedReader) {
+    super(in);
+    if (!loadedReader.sharesValuesWith(in)) {
+      throw new IllegalArgumentException("doc values of " + loadedReader + " cannot be used for "
+          + in);
+    }
+    loadedReader.loadedValues.incRef();
+    cached = loadedReader.cached;
+    sortedCached = loadedReader.sortedCached;
+    sortedSetCached = loadedReader.sortedSetCached;
+    memTypes = loadedReader.memTypes;
+    loadedValues = loadedReader.loadedValues;
+  }
+
+  /**
+   * Returns true if the doc values loaded by this reader are the ones of other: both share the
+   * segment core and no doc values of other were updated since.
+   */
+  public boolean sharesValuesWith(LeafReader other) {
+    if (in.getCoreCacheKey() != other.getCoreCacheKey()) {
+      return false;
+    }
+    FieldInfos fieldInfos = in.getFieldInfos();
+    for (FieldInfo finfo : other.getFieldInfos()) {
+      FieldInfo loaded = fieldInfos.fieldInfo(finfo.name);
+      if (loaded == null || loaded.getDocValuesGen() != finfo.getDocValuesGen()) {
+        return false;
+      }
+    }
+    return true;
   }
 
   @Override
   public NumericDocValues getNumericDocValues(String field) throws IOException {
-    return cached.get(field);
+    NumericDocValues val = cached.get(field);
+    if (val != null) {
+      return val;
+    }
+    loadedValues.touch(field);
+    return super.getNumericDocValues(field);
   }
 
   @Override
   public SortedDocValues getSortedDocValues(String field) throws IOException {
-    return sortedCached.get(field);
+    SortedDocValues val = sortedCached.get(field);
+    if (val != null) {
+      return val;
+    }
+    loadedValues.touch(field);
+    return super.getSortedDocValues(field);
+  }
+
+  @Override
+  public SortedSetDocValues getSortedSetDocValues(String field) throws IOException {
+    InMemorySortedSetDocValues val = sortedSetCached.get(field);
+    if (val != null) {
+      // the loaded ords are shared, the iteration state is not
+      return val.duplicate();
+    }
+    loadedValues.touch(field);
+    return super.getSortedSetDocValues(field);
+  }
+
+  /**
+   * Returns the mem type the doc values of field were loaded with, {@link MemType#Default} if
+   * they were not loaded.
+   */
+  public MemType getMemType(String field) {
+    MemType type = memTypes.get(field);
+    return type != null ? type : MemType.Default;
+  }
+
+  /**
+   * Returns the native bytes of the {@link MemType#Native} fields, keyed by field.
+   */
+  public Map<String, Long> getNativeBytesPerField() {
+    NativeArena arena = loadedValues.arena;
+    return arena != null ? arena.getBytesPerField() : Collections.<String, Long>emptyMap();
+  }
+
+  /**
+   * Materializes the bucket ords of every NUMERIC field of rangeIndexes, keyed by field, see
+   * {@link RangeBucketColumn}. Columns already built for the same buckets are kept, others
+   * are rebuilt and columns of fields missing from rangeIndexes are dropped. Readers sharing
+   * the loaded doc values share the columns. On a reader loading in the background, see
+   * {@link #loadInBackground}, the columns to build are scheduled like the doc values columns
+   * and each is swapped in once complete, ranges are evaluated per doc until then.
+   */
+  public void loadRangeBuckets(Map<String, RangeBucketIndex> rangeIndexes) throws IOException {
+    List<RangeBucketTask> tasks = new ArrayList<RangeBucketTask>();
+    synchronized (loadedValues) {
+      Map<String, RangeBucketIndex> wanted = new HashMap<String, RangeBucketIndex>();
+      Map<String, RangeBucketColumn> columns = new HashMap<String, RangeBucketColumn>();
+      for (Entry<String, RangeBucketIndex> entry : rangeIndexes.entrySet()) {
+        String field = entry.getKey();
+        RangeBucketIndex rangeIndex = entry.getValue();
+        FieldInfo finfo = getFieldInfos().fieldInfo(field);
+        if (finfo == null || finfo.getDocValuesType() != DocValuesType.NUMERIC) {
+          continue;
+        }
+        wanted.put(field, rangeIndex);
+        RangeBucketColumn column = loadedValues.rangeBucketColumns.get(field);
+        if (column != null && column.getRangeIndex().sameBuckets(rangeIndex)) {
+          columns.put(field, column);
+        } else if (loadedValues.scheduler == null) {
+          column = RangeBucketColumn.build(rangeIndex, loadedNumericDocValues(field), maxDoc());
+          if (column != null) {
+            columns.put(field, column);
+          }
+        } else {
+          RangeBucketIndex building = loadedValues.buildingRangeIndexes.get(field);
+          if (building == null || !building.sameBuckets(rangeIndex)) {
+            loadedValues.buildingRangeIndexes.put(field, rangeIndex);
+            tasks.add(new RangeBucketTask(field, rangeIndex));
+          }
+        }
+      }
+      loadedValues.rangeIndexes = wanted;
+      loadedValues.rangeBucketColumns = Collections.unmodifiableMap(columns);
+    }
+    // scheduled once the wanted buckets are set, a rejected task runs inline
+    for (RangeBucketTask task : tasks) {
+      // released once the column is built or skipped, see RangeBucketTask
+      in.incRef();
+      loadedValues.scheduler.schedule(task.field, task);
+    }
+  }
+
+  /**
+   * Returns the doc values of field to build columns from, without recording a touch: the
+   * loaded column if there is one, the codec's otherwise.
+   */
+  private NumericDocValues loadedNumericDocValues(String field) throws IOException {
+    NumericDocValues val = cached.get(field);
+    return val != null ? val : in.getNumericDocValues(field);
+  }
+
+  /**
+   * A {@link RangeBucketColumn} of this reader building in the background, see
+   * {@link #loadRangeBuckets(Map)}.
+   */
+  private class RangeBucketTask implements Runnable {
+    private final String field;
+    private final RangeBucketIndex rangeIndex;
+
+    RangeBucketTask(String field, RangeBucketIndex rangeIndex) {
+      this.field = field;
+      this.rangeIndex = rangeIndex;
+    }
+
+    @Override
+    public void run() {
+      LoadedValues values = loadedValues;
+      try {
+        if (values.startColumn()) {
+          try {
+            RangeBucketColumn column = RangeBucketColumn.build(rangeIndex,
+                loadedNumericDocValues(field), maxDoc());
+            if (column != null) {
+              values.putRangeBucketColumn(field, column);
+            }
+          } catch (Throwable t) {
+            log.warn("failed to build range buckets of " + field + " in " + in
+                + ", ranges are evaluated per doc", t);
+          } finally {
+            values.endColumn();
+          }
+        }
+      } catch (IOException e) {
+        log.warn("failed to release doc values of " + in, e);
+      } finally {
+        synchronized (values) {
+          if (values.buildingRangeIndexes.get(field) == rangeIndex) {
+            values.buildingRangeIndexes.remove(field);
+          }
+        }
+        try {
+          in.decRef();
+        } catch (IOException e) {
+          log.warn("failed to close " + in, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the bucket ords of field loaded by {@link #loadRangeBuckets(Map)}, or null.
+   */
+  public RangeBucketColumn getRangeBucketColumn(String field) {
+    return loadedValues.rangeBucketColumns.get(field);
+  }
+
+  // the wrapped reader is not modified, caches on it can be shared with this reader
+
+  @Override
+  public Object getCoreCacheKey() {
+    return in.getCoreCacheKey();
+  }
+
+  @Override
+  public Object getCombinedCoreAndDeletesKey() {
+    return in.getCombinedCoreAndDeletesKey();
   }
 
   @Override
   protected void doClose() throws IOException {    
-    IOUtils.close(closableList);
+    loadedValues.decRef();
+  }
+
+  private static class LoadedValues {
+    private final List<Closeable> closableList;
+    private final NativeArena arena;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    // replaced as a whole when the field configs change
+    private volatile Map<String, RangeBucketColumn> rangeBucketColumns =
+        Collections.emptyMap();
+    // guarded by this: buckets of the columns wanted and of the ones building in the
+    // background, see loadRangeBuckets
+    private Map<String, RangeBucketIndex> rangeIndexes = Collections.emptyMap();
+    private final Map<String, RangeBucketIndex> buildingRangeIndexes =
+        new HashMap<String, RangeBucketIndex>();
+    // fields of the columns loading in the background, see loadInBackground
+    private final Set<String> loadingFields;
+    private final AtomicInteger remainingColumns;
+    private final ColumnLoadScheduler scheduler;
+    // guarded by this: the closables are closed once released with no column running
+    private int runningColumns;
+    private boolean released;
+
+    LoadedValues(List<Closeable> closableList, NativeArena arena, Set<String> loadingFields,
+        ColumnLoadScheduler scheduler) {
+      this.closableList = closableList;
+      this.arena = arena;
+      this.loadingFields = loadingFields;
+      this.remainingColumns = new AtomicInteger(loadingFields.size());
+      this.scheduler = scheduler;
+    }
+
+    void touch(String field) {
+      if (!loadingFields.isEmpty() && loadingFields.contains(field)) {
+        scheduler.touch(field);
+      }
+    }
+
+    // swaps column in unless its buckets are no longer wanted
+    synchronized void putRangeBucketColumn(String field, RangeBucketColumn column) {
+      RangeBucketIndex wanted = rangeIndexes.get(field);
+      if (wanted != null && wanted.sameBuckets(column.getRangeIndex())) {
+        Map<String, RangeBucketColumn> columns =
+            new HashMap<String, RangeBucketColumn>(rangeBucketColumns);
+        columns.put(field, column);
+        rangeBucketColumns = Collections.unmodifiableMap(columns);
+      }
+    }
+
+    synchronized boolean isBuildingRangeBuckets() {
+      return !buildingRangeIndexes.isEmpty();
+    }
+
+    // returns false if the values are released, the column is then skipped
+    synchronized boolean startColumn() {
+      if (released) {
+        return false;
+      }
+      runningColumns++;
+      return true;
+    }
+
+    void endColumn() throws IOException {
+      synchronized (this) {
+        if (--runningColumns > 0 || !released) {
+          return;
+        }
+      }
+      IOUtils.close(closableList);
+    }
+
+    void incRef() {
+      if (refCount.getAndIncrement() <= 0) {
+        refCount.decrementAndGet();
+        throw new IllegalStateException("loaded doc values are already released");
+      }
+    }
+
+    void decRef() throws IOException {
+      if (refCount.decrementAndGet() == 0) {
+        synchronized (this) {
+          released = true;
+          if (runningColumns > 0) {
+            // closed by the last running column
+            return;
+          }
+        }
+        IOUtils.close(closableList);
+      }
+    }
   }
 }
@@ -0,0 +1,80 @@
+package abacus.search.facets;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues.OrdinalMap;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.util.LongValues;
+import org.apache.lucene.util.packed.PackedInts;
+
+/**
+ * Maps the ords of a SINGLE or MULTI facet field in every segment of a reader to one global
+ * ord space, so that per-segment counts can be merged with integer increments instead of by
+ * label. It is built for a given reader and is only valid for searches on that reader.
+ */
+public class GlobalOrdinalMap {
+
+  private final OrdinalMap ordinalMap;
+  private final List<LeafReaderContext> leaves;
+
+  private GlobalOrdinalMap(OrdinalMap ordinalMap, List<LeafReaderContext> leaves) {
+    this.ordinalMap = ordinalMap;
+    this.leaves = leaves;
+  }
+
+  public static GlobalOrdinalMap buildSorted(IndexReader reader, String field)
+      throws IOException {
+    List<LeafReaderContext> leaves = reader.leaves();
+    SortedDocValues[] values = new SortedDocValues[leaves.size()];
+    for (int i = 0; i < values.length; ++i) {
+      SortedDocValues docVals = leaves.get(i).reader().getSortedDocValues(field);
+      values[i] = docVals == null ? DocValues.emptySorted() : docVals;
+    }
+    return new GlobalOrdinalMap(
+        OrdinalMap.build(reader.getCoreCacheKey(), values, PackedInts.DEFAULT), leaves);
+  }
+
+  public static GlobalOrdinalMap buildSortedSet(IndexReader reader, String field)
+      throws IOException {
+    List<LeafReaderContext> leaves = reader.leaves();
+    SortedSetDocValues[] values = new SortedSetDocValues[leaves.size()];
+    for (int i = 0; i < values.length; ++i) {
+      SortedSetDocValues docVals = leaves.get(i).reader().getSortedSetDocValues(field);
+      values[i] = docVals == null ? DocValues.emptySortedSet() : docVals;
+    }
+    return new GlobalOrdinalMap(
+        OrdinalMap.build(reader.getCoreCacheKey(), values, PackedInts.DEFAULT), leaves);
+  }
+
+  public int getValueCount() {
+    return (int) ordinalMap.getValueCount();
+  }
+
+  /**
+   * Returns the segment to global ord mapping of the segment at leaf index segmentIndex.
+   */
+  public LongValues getGlobalOrds(int segmentIndex) {
+    return ordinalMap.getGlobalOrds(segmentIndex);
+  }
+
+  /**
+   * Returns the leaf of the first segment containing globalOrd, whose ord for it is
+   * {@link #getFirstSegmentOrd(int)}.
+   */
+  public LeafReaderContext getFirstSegment(int globalOrd) {
+    return leaves.get(ordinalMap.getFirstSegmentNumber(globalOrd));
+  }
+
+  public int getFirstSegmentOrd(int globalOrd) {
+    return (int) ordinalMap.getFirstSegmentOrd(globalOrd);
+  }
+
+  public long ramBytesUsed() {
+    return ordinalMap.ramBytesUsed();
+  }
+}
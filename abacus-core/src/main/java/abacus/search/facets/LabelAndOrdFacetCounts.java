@@ -7,37 +7,77 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.lucene.facet.FacetResult;
-import org.apache.lucene.facet.Facets;
 import org.apache.lucene.facet.FacetsCollector;
 import org.apache.lucene.facet.FacetsCollector.MatchingDocs;
 import org.apache.lucene.facet.LabelAndValue;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.SortedSetDocValues;
-import org.apache.lucene.search.DocIdSet;
-import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.LongValues;
 import org.apache.lucene.util.PriorityQueue;
 
+import abacus.search.util.ConcurrentUtil;
 import abacus.search.util.LabelAndValueUtil;
 
-public class LabelAndOrdFacetCounts extends Facets {
+public class LabelAndOrdFacetCounts extends FacetAccumulator {
 
   private final String field;
   private final FacetOrdReader ordReader;
+  private final GlobalOrdinalMap globalOrds;
   private final List<PerSegmentFacetCount> segmentCountList;
+  // context of each entry of segmentCountList
+  private final List<LeafReaderContext> segmentContextList;
+
+  /**
+   * Creates empty counts to be filled through {@link #getLeafAccumulator(LeafReaderContext)}.
+   */
+  public LabelAndOrdFacetCounts(String field, FacetOrdReader ordReader) {
+    this(field, ordReader, (GlobalOrdinalMap) null);
+  }
+
+  /**
+   * Creates empty counts to be filled through {@link #getLeafAccumulator(LeafReaderContext)}.
+   * Counts of different segments are merged through globalOrds, which must have been built
+   * for the reader being searched. A null globalOrds merges by label.
+   */
+  public LabelAndOrdFacetCounts(String field, FacetOrdReader ordReader,
+      GlobalOrdinalMap globalOrds) {
+    this.field = field;
+    this.ordReader = ordReader;
+    this.globalOrds = globalOrds;
+    segmentCountList = new ArrayList<PerSegmentFacetCount>();
+    segmentContextList = new ArrayList<LeafReaderContext>();
+  }
 
   public LabelAndOrdFacetCounts(String field, FacetOrdReader ordReader,
       FacetsCollector facetCollector)
       throws IOException {
+    this(field, ordReader, facetCollector, null);
+  }
+
+  /**
+   * When an executor is given, each segment is counted on its own task and the per-segment
+   * counts are merged in {@link #getTopChildren(int, String, String...)}.
+   */
+  public LabelAndOrdFacetCounts(String field, FacetOrdReader ordReader,
+      FacetsCollector facetCollector, ExecutorService executor)
+      throws IOException {
     this.field = field;
     this.ordReader = ordReader;
+    this.globalOrds = null;
     List<MatchingDocs> matchingDocs = facetCollector.getMatchingDocs();
     segmentCountList = new ArrayList<PerSegmentFacetCount>(matchingDocs.size());
-    long start = System.currentTimeMillis();
-    count(matchingDocs);
-    System.out.println(field + " counting took: " + (System.currentTimeMillis() - start));
+    segmentContextList = new ArrayList<LeafReaderContext>(matchingDocs.size());
+    if (executor == null || matchingDocs.size() < 2) {
+      count(matchingDocs);
+    } else {
+      count(matchingDocs, executor);
+    }
   }
 
   protected int[] newCountArray(int numVals) {
@@ -47,42 +87,137 @@ public class LabelAndOrdFacetCounts extends Facets {
   /** Does all the "real work" of tallying up the counts. */
   private final void count(List<MatchingDocs> matchingDocs) throws IOException {
     for (MatchingDocs hits : matchingDocs) {
-      final FacetOrdSegmentReader ordSegmentReader = ordReader.getSegmentOrdReader(hits.context);
-
-      if (ordSegmentReader == null) {
-        continue;
+      LeafAccumulator leafAccumulator = getLeafAccumulator(hits.context);
+      if (leafAccumulator != null) {
+        accumulate(hits, leafAccumulator);
       }
+    }
+  }
 
-      int[] counts = newCountArray(ordSegmentReader.getValueCount());
-
-      PerSegmentFacetCount segmentCount = new PerSegmentFacetCount(counts) {
-
+  private final void count(List<MatchingDocs> matchingDocs, ExecutorService executor)
+      throws IOException {
+    List<Callable<PerSegmentFacetCount>> tasks = new ArrayList<>(matchingDocs.size());
+    for (final MatchingDocs hits : matchingDocs) {
+      tasks.add(new Callable<PerSegmentFacetCount>() {
         @Override
-        public BytesRef lookupLabel(int ord) {
-          return ordSegmentReader.lookupLabel(ord);
+        public PerSegmentFacetCount call() throws Exception {
+          return countSegment(hits);
         }
+      });
+    }
+    List<PerSegmentFacetCount> segmentCounts = ConcurrentUtil.invokeAll(executor, tasks);
+    for (int i = 0; i < segmentCounts.size(); ++i) {
+      addSegmentCount(matchingDocs.get(i).context, segmentCounts.get(i));
+    }
+  }
 
-        @Override
-        public int getOrd(BytesRef label) {
-          return ordSegmentReader.lookupOrd(label);
-        }
-      };
+  /**
+   * Consecutive matching docs of the same segment are docid-range partitions, their counts
+   * share one ordinal space and are summed instead of being merged by label.
+   */
+  private void addSegmentCount(LeafReaderContext context, PerSegmentFacetCount segmentCount) {
+    if (segmentCount == null) {
+      return;
+    }
+    if (context == lastContext()) {
+      segmentCountList.get(segmentCountList.size() - 1).add(segmentCount);
+    } else {
+      segmentCountList.add(segmentCount);
+      segmentContextList.add(context);
+    }
+  }
+
+  private LeafReaderContext lastContext() {
+    int size = segmentContextList.size();
+    return size == 0 ? null : segmentContextList.get(size - 1);
+  }
 
+  @Override
+  public LeafAccumulator getLeafAccumulator(LeafReaderContext ctx) throws IOException {
+    FacetOrdSegmentReader ordSegmentReader = ordReader.getSegmentOrdReader(ctx);
+    if (ordSegmentReader == null) {
+      return null;
+    }
+    PerSegmentFacetCount segmentCount;
+    if (ctx == lastContext()) {
+      // next partition of the same segment, keep counting into the same ordinal space
+      segmentCount = segmentCountList.get(segmentCountList.size() - 1);
+    } else {
+      segmentCount = newSegmentCount(ordSegmentReader);
       segmentCountList.add(segmentCount);
+      segmentContextList.add(ctx);
+    }
+    return newLeafAccumulator(ordSegmentReader, segmentCount);
+  }
 
-      DocIdSet hitSet = hits.bits;
-      if (hitSet != null) {
-        DocIdSetIterator hitsIter = hitSet.iterator();
-        int docId;
-        while ((docId = hitsIter.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
-          ordSegmentReader.setDocument(docId);
-          long ord;
-          while ((ord = ordSegmentReader.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
-            segmentCount.accumulate((int) ord);
-          }
+  @Override
+  public void merge(FacetAccumulator other) {
+    LabelAndOrdFacetCounts otherCounts = (LabelAndOrdFacetCounts) other;
+    for (int i = 0; i < otherCounts.segmentCountList.size(); ++i) {
+      addSegmentCount(otherCounts.segmentContextList.get(i), otherCounts.segmentCountList.get(i));
+    }
+  }
+
+  @Override
+  public SegmentCounts getSegmentCounts(LeafReaderContext ctx) {
+    if (ctx != lastContext()) {
+      return null;
+    }
+    return segmentCountList.get(segmentCountList.size() - 1).toSegmentCounts();
+  }
+
+  @Override
+  public void addSegmentCounts(LeafReaderContext ctx, SegmentCounts counts) throws IOException {
+    FacetOrdSegmentReader ordSegmentReader = ordReader.getSegmentOrdReader(ctx);
+    if (ordSegmentReader == null) {
+      return;
+    }
+    PerSegmentFacetCount segmentCount = newSegmentCount(ordSegmentReader);
+    segmentCount.add(counts);
+    addSegmentCount(ctx, segmentCount);
+  }
+
+  private PerSegmentFacetCount countSegment(MatchingDocs hits) throws IOException {
+    final FacetOrdSegmentReader ordSegmentReader = ordReader.getSegmentOrdReader(hits.context);
+
+    if (ordSegmentReader == null) {
+      return null;
+    }
+
+    PerSegmentFacetCount segmentCount = newSegmentCount(ordSegmentReader);
+    accumulate(hits, newLeafAccumulator(ordSegmentReader, segmentCount));
+    return segmentCount;
+  }
+
+  private PerSegmentFacetCount newSegmentCount(final FacetOrdSegmentReader ordSegmentReader) {
+    int[] counts = newCountArray(ordSegmentReader.getValueCount());
+
+    return new PerSegmentFacetCount(counts) {
+
+      @Override
+      public BytesRef lookupLabel(int ord) {
+        return ordSegmentReader.lookupLabel(ord);
+      }
+
+      @Override
+      public int getOrd(BytesRef label) {
+        return ordSegmentReader.lookupOrd(label);
+      }
+    };
+  }
+
+  private static LeafAccumulator newLeafAccumulator(
+      final FacetOrdSegmentReader ordSegmentReader, final PerSegmentFacetCount segmentCount) {
+    return new LeafAccumulator() {
+      @Override
+      public void accumulate(int docId) {
+        ordSegmentReader.setDocument(docId);
+        long ord;
+        while ((ord = ordSegmentReader.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+          segmentCount.accumulate((int) ord);
         }
       }
-    }
+    };
   }
 
   @Override
@@ -92,6 +227,8 @@ public class LabelAndOrdFacetCounts extends Facets {
     if (segmentCountList.size() == 0) {
       // empty result
       return new FacetResult(field, new String[0], 0, new LabelAndValue[0], 0);
+    } else if (segmentCountList.size() > 1 && globalOrds != null) {
+      return getTopChildrenFromGlobalOrds(topN, dim);
     } else {
       PriorityQueue<LabelAndValue> pq = LabelAndValueUtil.getPriorityQueue(topN);
       FacetEntryIterator facetIterator;
@@ -162,6 +299,50 @@ public class LabelAndOrdFacetCounts extends Facets {
     }
   }
 
+  private FacetResult getTopChildrenFromGlobalOrds(int topN, String dim) throws IOException {
+    int[] globalCounts = new int[globalOrds.getValueCount()];
+    ValCountPair pair = new ValCountPair();
+    for (int i = 0; i < segmentCountList.size(); ++i) {
+      LongValues segmentToGlobal = globalOrds.getGlobalOrds(segmentContextList.get(i).ord);
+      FacetEntryIterator perSegIterator = segmentCountList.get(i).getFacetEntryIterator();
+      while (perSegIterator.next(pair)) {
+        globalCounts[(int) segmentToGlobal.get(pair.val)] += pair.count;
+      }
+    }
+
+    // global ords are in label order, ties are broken on the ord as they would be on the label
+    PriorityQueue<ValCountPair> pq = ValCountPair.getPriorityQueue(topN);
+    int sum = 0;
+    int childCount = 0;
+    pair = null;
+    for (int ord = 0; ord < globalCounts.length; ++ord) {
+      int count = globalCounts[ord];
+      if (count > 0) {
+        if (pair == null) {
+          pair = new ValCountPair();
+        }
+        pair.val = ord;
+        pair.count = count;
+        sum += count;
+        childCount++;
+        pair = pq.insertWithOverflow(pair);
+      }
+    }
+
+    // labels are only looked up for the top values
+    int numVals = pq.size();
+    LabelAndValue[] labelValues = new LabelAndValue[numVals];
+    for (int i = 0; i < numVals; ++i) {
+      ValCountPair node = pq.pop();
+      int globalOrd = (int) node.val;
+      FacetOrdSegmentReader ordSegmentReader =
+          ordReader.getSegmentOrdReader(globalOrds.getFirstSegment(globalOrd));
+      BytesRef label = ordSegmentReader.lookupLabel(globalOrds.getFirstSegmentOrd(globalOrd));
+      labelValues[numVals - i - 1] = new LabelAndValue(label.utf8ToString(), node.count);
+    }
+    return new FacetResult(dim, new String[0], sum, labelValues, childCount);
+  }
+
   @Override
   public Number getSpecificValue(String dim, String... path) throws IOException {
     if (path.length != 1) {
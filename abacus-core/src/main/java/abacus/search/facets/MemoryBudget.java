@@ -0,0 +1,141 @@
+package abacus.search.facets;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import abacus.search.facets.FastDocValuesAtomicReader.MemType;
+
+/**
+ * Bytes that doc values loaded by {@link FastDocValuesAtomicReader}s may take in each memory
+ * tier: the Java heap for {@link MemType#Heap} and {@link MemType#Ordinal}, direct buffers for
+ * {@link MemType#Direct} and native memory for {@link MemType#Native}. Columns are admitted
+ * against their estimated size before being loaded, see
+ * {@link FastDocValuesAtomicReader#estimateBytes}, and their bytes are given back when the
+ * loaded values are released. Sharing one budget between services makes it process-wide.
+ */
+public class MemoryBudget {
+
+  public static final long UNLIMITED = Long.MAX_VALUE;
+
+  private final long[] limits;
+  private final AtomicLong[] used;
+
+  public MemoryBudget(long heapBytes, long directBytes, long nativeBytes) {
+    limits = new long[] { heapBytes, directBytes, nativeBytes };
+    used = new AtomicLong[limits.length];
+    for (int i = 0; i < limits.length; ++i) {
+      if (limits[i] < 0) {
+        throw new IllegalArgumentException("budget must not be negative: " + limits[i]);
+      }
+      used[i] = new AtomicLong();
+    }
+  }
+
+  // tier of a mem type, -1 for Default which loads nothing
+  private static int tier(MemType type) {
+    switch (type) {
+      case Heap:
+      case Ordinal:
+        return 0;
+      case Direct:
+        return 1;
+      case Native:
+        return 2;
+      default:
+        return -1;
+    }
+  }
+
+  /**
+   * Returns the bytes the tier of type may take, 0 for {@link MemType#Default}.
+   */
+  public long getLimit(MemType type) {
+    int tier = tier(type);
+    return tier < 0 ? 0 : limits[tier];
+  }
+
+  /**
+   * Returns the bytes reserved in the tier of type.
+   */
+  public long getUsed(MemType type) {
+    int tier = tier(type);
+    return tier < 0 ? 0 : used[tier].get();
+  }
+
+  /**
+   * Returns true if the tier of type is limited, columns of unlimited tiers need no estimate.
+   */
+  public boolean isLimited(MemType type) {
+    return getLimit(type) != UNLIMITED;
+  }
+
+  private boolean tryReserve(int tier, long bytes) {
+    AtomicLong tierUsed = used[tier];
+    while (true) {
+      long current = tierUsed.get();
+      if (bytes > limits[tier] - current) {
+        return false;
+      }
+      if (tierUsed.compareAndSet(current, current + bytes)) {
+        return true;
+      }
+    }
+  }
+
+  public Reservation newReservation() {
+    return new Reservation();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder buf = new StringBuilder();
+    MemType[] types = { MemType.Heap, MemType.Direct, MemType.Native };
+    for (MemType type : types) {
+      if (buf.length() > 0) {
+        buf.append(' ');
+      }
+      buf.append(type).append(':').append(getUsed(type)).append('/');
+      buf.append(isLimited(type) ? String.valueOf(getLimit(type)) : "unlimited");
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Bytes reserved by the columns of one segment, given back at once by {@link #close()}.
+   */
+  public class Reservation implements Closeable {
+    private final long[] bytes = new long[limits.length];
+    private boolean closed;
+
+    /**
+     * Reserves bytes in the tier of type and returns true, or returns false and reserves
+     * nothing if they do not fit. Reserving for {@link MemType#Default} always succeeds.
+     */
+    public synchronized boolean tryAdd(MemType type, long bytes) {
+      if (closed) {
+        throw new IllegalStateException("reservation is closed");
+      }
+      int tier = tier(type);
+      if (tier < 0) {
+        return true;
+      }
+      if (!tryReserve(tier, bytes)) {
+        return false;
+      }
+      this.bytes[tier] += bytes;
+      return true;
+    }
+
+    @Override
+    public synchronized void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      for (int i = 0; i < bytes.length; ++i) {
+        used[i].addAndGet(-bytes[i]);
+        bytes[i] = 0;
+      }
+    }
+  }
+}
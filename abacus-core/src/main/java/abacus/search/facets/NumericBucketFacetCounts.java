@@ -1,64 +1,225 @@
 package abacus.search.facets;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.lucene.facet.FacetResult;
-import org.apache.lucene.facet.Facets;
 import org.apache.lucene.facet.FacetsCollector;
 import org.apache.lucene.facet.FacetsCollector.MatchingDocs;
 import org.apache.lucene.facet.LabelAndValue;
-import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.NumericDocValues;
-import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.util.PriorityQueue;
+import org.apache.lucene.util.packed.BatchDocIdSetIterator;
 
+import abacus.search.facets.FacetRangeBuilder.FacetRange;
+import abacus.search.util.ConcurrentUtil;
 import abacus.search.util.LabelAndValueUtil;
 
-public class NumericBucketFacetCounts extends Facets {
+public class NumericBucketFacetCounts extends FacetAccumulator {
 
   private final String field;
+  // either buckets keeping their own counts, or a compiled range index and counts per
+  // bucket ord of the index
   private final SortedMap<String, FacetBucket> bucketMap;
+  private final RangeBucketIndex rangeIndex;
+  private final int[] ordCounts;
+
+  /**
+   * Creates empty counts to be filled through {@link #getLeafAccumulator(LeafReaderContext)}.
+   * The buckets keep the counts and must not be shared with other instances.
+   */
+  public NumericBucketFacetCounts(String field, FacetBucket[] buckets) {
+    this.field = field;
+    this.bucketMap = new TreeMap<>();
+    for (FacetBucket bucket : buckets) {
+      this.bucketMap.put(bucket.getLabel(), bucket);
+    }
+    this.rangeIndex = null;
+    this.ordCounts = null;
+  }
+
+  /**
+   * Creates empty counts of the ranges of rangeIndex, to be filled through
+   * {@link #getLeafAccumulator(LeafReaderContext)}. The index can be shared.
+   */
+  public NumericBucketFacetCounts(String field, RangeBucketIndex rangeIndex) {
+    this.field = field;
+    this.bucketMap = null;
+    this.rangeIndex = rangeIndex;
+    this.ordCounts = new int[rangeIndex.getOrdCount()];
+  }
+
+  public NumericBucketFacetCounts(String field, RangeBucketIndex rangeIndex,
+      FacetsCollector facetCollector) throws IOException {
+    this(field, rangeIndex);
+    count(facetCollector.getMatchingDocs());
+  }
 
   public NumericBucketFacetCounts(String field, FacetBucket[] buckets,
       FacetsCollector facetCollector)
       throws IOException {
+    this(field, buckets, facetCollector, null);
+  }
+
+  /**
+   * When an executor is given and every bucket is a {@link FacetRange}, each segment is
+   * counted into its own count array on a separate task. Other buckets keep their counts
+   * internally and are always counted on the calling thread.
+   */
+  public NumericBucketFacetCounts(String field, FacetBucket[] buckets,
+      FacetsCollector facetCollector, ExecutorService executor)
+      throws IOException {
     this.field = field;
     this.bucketMap = new TreeMap<>();
     for (FacetBucket bucket : buckets) {
       this.bucketMap.put(bucket.getLabel(), bucket);
     }
-    long start = System.currentTimeMillis();
-    count(facetCollector.getMatchingDocs());
-    System.out.println(field + " counting took: " + (System.currentTimeMillis() - start));
+    this.rangeIndex = null;
+    this.ordCounts = null;
+    List<MatchingDocs> matchingDocs = facetCollector.getMatchingDocs();
+    if (executor == null || matchingDocs.size() < 2 || !allRanges(buckets)) {
+      count(matchingDocs);
+    } else {
+      count(matchingDocs, executor);
+    }
+  }
+
+  private static boolean allRanges(FacetBucket[] buckets) {
+    for (FacetBucket bucket : buckets) {
+      if (!(bucket instanceof FacetRange)) {
+        return false;
+      }
+    }
+    return true;
   }
 
   /** Does all the "real work" of tallying up the counts. */
   private final void count(List<MatchingDocs> matchingDocs) throws IOException {
-    FacetBucket[] buckets = bucketMap.values().toArray(new FacetBucket[bucketMap.size()]);
     for (MatchingDocs hits : matchingDocs) {
-      LeafReader reader = hits.context.reader();
-      NumericDocValues docValues = reader.getNumericDocValues(field);
-      if (docValues == null) {
-        continue;
+      LeafAccumulator leafAccumulator = getLeafAccumulator(hits.context);
+      if (leafAccumulator != null) {
+        accumulate(hits, leafAccumulator);
       }
+    }
+  }
 
-      DocIdSet hitSet = hits.bits;
-      if (hitSet != null) {
-        DocIdSetIterator hitsIter = hitSet.iterator();
-        int docId;
-        while ((docId = hitsIter.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
-          long val = docValues.get(docId);
-          for (FacetBucket bucket : buckets) {
-            bucket.accumulate(val);
+  @Override
+  public LeafAccumulator getLeafAccumulator(LeafReaderContext ctx) throws IOException {
+    final NumericDocValues docValues = ctx.reader().getNumericDocValues(field);
+    if (docValues == null) {
+      return null;
+    }
+    if (rangeIndex != null) {
+      final RangeBucketColumn column = getRangeBucketColumn(ctx);
+      if (column != null) {
+        return new LeafAccumulator() {
+          @Override
+          public void accumulate(int docId) {
+            ordCounts[column.getOrd(docId)]++;
           }
+        };
+      }
+      return new LeafAccumulator() {
+        @Override
+        public void accumulate(int docId) {
+          ordCounts[rangeIndex.getOrd(docValues.get(docId))]++;
+        }
+      };
+    }
+    final FacetBucket[] buckets = bucketMap.values().toArray(new FacetBucket[bucketMap.size()]);
+    return new LeafAccumulator() {
+      @Override
+      public void accumulate(int docId) {
+        long val = docValues.get(docId);
+        for (FacetBucket bucket : buckets) {
+          bucket.accumulate(val);
         }
       }
+    };
+  }
+
+  /**
+   * Returns the bucket ords materialized at load time if the segment has them for the same
+   * buckets as the range index.
+   */
+  private RangeBucketColumn getRangeBucketColumn(LeafReaderContext ctx) {
+    if (!(ctx.reader() instanceof FastDocValuesAtomicReader)) {
+      return null;
     }
+    RangeBucketColumn column =
+        ((FastDocValuesAtomicReader) ctx.reader()).getRangeBucketColumn(field);
+    return column != null && column.getRangeIndex().sameBuckets(rangeIndex) ? column : null;
+  }
+
+  @Override
+  public void merge(FacetAccumulator other) {
+    NumericBucketFacetCounts otherCounts = (NumericBucketFacetCounts) other;
+    if (rangeIndex != null) {
+      for (int i = 0; i < ordCounts.length; ++i) {
+        ordCounts[i] += otherCounts.ordCounts[i];
+      }
+      return;
+    }
+    for (FacetBucket otherBucket : otherCounts.bucketMap.values()) {
+      FacetBucket bucket = bucketMap.get(otherBucket.getLabel());
+      if (bucket != null) {
+        bucket.count += otherBucket.count;
+      }
+    }
+  }
+
+  private final void count(List<MatchingDocs> matchingDocs, ExecutorService executor)
+      throws IOException {
+    final FacetRange[] ranges = bucketMap.values().toArray(new FacetRange[bucketMap.size()]);
+    final RangeBucketIndex index = new RangeBucketIndex(ranges);
+    List<Callable<int[]>> tasks = new ArrayList<>(matchingDocs.size());
+    for (final MatchingDocs hits : matchingDocs) {
+      tasks.add(new Callable<int[]>() {
+        @Override
+        public int[] call() throws Exception {
+          return countSegment(hits, index);
+        }
+      });
+    }
+    int[] totalCounts = new int[index.getOrdCount()];
+    for (int[] segmentCounts : ConcurrentUtil.invokeAll(executor, tasks)) {
+      for (int i = 0; i < totalCounts.length; ++i) {
+        totalCounts[i] += segmentCounts[i];
+      }
+    }
+    // labels are unique in the bucket map, so the index keeps the ranges in the same order
+    int[] rangeCounts = index.getRangeCounts(totalCounts);
+    for (int i = 0; i < ranges.length; ++i) {
+      ranges[i].count += rangeCounts[i];
+    }
+  }
+
+  private int[] countSegment(MatchingDocs hits, RangeBucketIndex index) throws IOException {
+    int[] counts = new int[index.getOrdCount()];
+    NumericDocValues docValues = hits.context.reader().getNumericDocValues(field);
+    if (docValues == null || hits.bits == null) {
+      return counts;
+    }
+    DocIdSetIterator hitsIter = hits.bits.iterator();
+    if (hitsIter == null) {
+      return counts;
+    }
+    int[] docs = new int[HITS_BATCH_SIZE];
+    int n;
+    while ((n = BatchDocIdSetIterator.nextDocs(hitsIter, docs)) > 0) {
+      for (int i = 0; i < n; ++i) {
+        counts[index.getOrd(docValues.get(docs[i]))]++;
+      }
+    }
+    return counts;
   }
 
   @Override
@@ -73,6 +234,10 @@ public class NumericBucketFacetCounts extends Facets {
       throw new IllegalArgumentException("paths should have length = 1");
     }
 
+    if (rangeIndex != null) {
+      int range = rangeIndex.getRange(paths[0]);
+      return range < 0 ? null : rangeIndex.getRangeCounts(ordCounts)[range];
+    }
     FacetBucket bucket = bucketMap.get(paths[0]);
     return bucket == null ? null : bucket.getCount();
   }
@@ -87,12 +252,24 @@ public class NumericBucketFacetCounts extends Facets {
     int sum = 0;
     int childCount = 0;
     PriorityQueue<LabelAndValue> pq = LabelAndValueUtil.getPriorityQueue(topN);
-    for (FacetBucket bucket : bucketMap.values()) {
-      int count = bucket.getCount();
-      if (count > 0) {
-        sum += count;
-        childCount++;
-        pq.insertWithOverflow(new LabelAndValue(bucket.getLabel(), count));
+    if (rangeIndex != null) {
+      int[] rangeCounts = rangeIndex.getRangeCounts(ordCounts);
+      for (int r = 0; r < rangeCounts.length; ++r) {
+        int count = rangeCounts[r];
+        if (count > 0) {
+          sum += count;
+          childCount++;
+          pq.insertWithOverflow(new LabelAndValue(rangeIndex.getLabel(r), count));
+        }
+      }
+    } else {
+      for (FacetBucket bucket : bucketMap.values()) {
+        int count = bucket.getCount();
+        if (count > 0) {
+          sum += count;
+          childCount++;
+          pq.insertWithOverflow(new LabelAndValue(bucket.getLabel(), count));
+        }
       }
     }
 
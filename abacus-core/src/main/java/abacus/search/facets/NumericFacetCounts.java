@@ -1,58 +1,271 @@
 package abacus.search.facets;
 
-import it.unimi.dsi.fastutil.longs.Long2IntMap;
 import it.unimi.dsi.fastutil.longs.Long2IntMap.Entry;
 import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectIterator;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.lucene.facet.FacetResult;
-import org.apache.lucene.facet.Facets;
 import org.apache.lucene.facet.FacetsCollector;
 import org.apache.lucene.facet.FacetsCollector.MatchingDocs;
 import org.apache.lucene.facet.LabelAndValue;
-import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.NumericDocValues;
-import org.apache.lucene.search.DocIdSet;
-import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.util.PriorityQueue;
 
-public class NumericFacetCounts extends Facets {
+import abacus.search.facets.docvalues.OrdinalNumericDocValues;
+import abacus.search.util.ConcurrentUtil;
+
+public class NumericFacetCounts extends FacetAccumulator {
 
   private final String field;
-  private Long2IntMap countMap = new Long2IntOpenHashMap();
+  private final Long2IntOpenHashMap countMap = new Long2IntOpenHashMap();
+  // dense counts of segments loaded with ordinal doc values, read through their dictionaries
+  // and only folded into countMap when other counts have to be merged with them
+  private final List<OrdinalCounts> ordinalCountList = new ArrayList<>();
+  // counts of the other segments, kept per segment until read so they can be snapshot
+  private final List<Long2IntOpenHashMap> segmentMapList = new ArrayList<>();
+  // segment of the last leaf accumulator and the counts it fills, one of them being null
+  private LeafReaderContext lastContext;
+  private OrdinalCounts lastOrdinalCounts;
+  private Long2IntOpenHashMap lastSegmentMap;
+
+  /**
+   * Creates empty counts to be filled through {@link #getLeafAccumulator(LeafReaderContext)}.
+   */
+  public NumericFacetCounts(String field) {
+    this.field = field;
+    countMap.defaultReturnValue(0);
+  }
 
   public NumericFacetCounts(String field, FacetsCollector hits) throws IOException {
+    this(field, hits, null);
+  }
+
+  /**
+   * When an executor is given, each segment is counted into its own map on a separate task
+   * and the maps are merged once all segments are done.
+   */
+  public NumericFacetCounts(String field, FacetsCollector hits, ExecutorService executor)
+      throws IOException {
     this.field = field;
     countMap.defaultReturnValue(0);
-    long start = System.currentTimeMillis();
-    count(hits.getMatchingDocs());
-    System.out.println(field + " counting took: " + (System.currentTimeMillis() - start));
+    List<MatchingDocs> matchingDocs = hits.getMatchingDocs();
+    if (executor == null || matchingDocs.size() < 2) {
+      count(matchingDocs);
+    } else {
+      count(matchingDocs, executor);
+    }
   }
 
   /** Does all the "real work" of tallying up the counts. */
   private final void count(List<MatchingDocs> matchingDocs) throws IOException {
     for (MatchingDocs hits : matchingDocs) {
+      LeafAccumulator leafAccumulator = getLeafAccumulator(hits.context);
+      if (leafAccumulator != null) {
+        accumulate(hits, leafAccumulator);
+      }
+    }
+  }
+
+  private final void count(List<MatchingDocs> matchingDocs, ExecutorService executor)
+      throws IOException {
+    List<Callable<NumericFacetCounts>> tasks = new ArrayList<>(matchingDocs.size());
+    for (final MatchingDocs hits : matchingDocs) {
+      tasks.add(new Callable<NumericFacetCounts>() {
+        @Override
+        public NumericFacetCounts call() throws Exception {
+          NumericFacetCounts segmentCounts = new NumericFacetCounts(field);
+          segmentCounts.count(Collections.singletonList(hits));
+          return segmentCounts;
+        }
+      });
+    }
+    for (NumericFacetCounts segmentCounts : ConcurrentUtil.invokeAll(executor, tasks)) {
+      merge(segmentCounts);
+    }
+  }
 
-      LeafReader reader = hits.context.reader();
-      NumericDocValues docValues = reader.getNumericDocValues(field);
-      if (docValues == null) {
-        continue;
+  @Override
+  public LeafAccumulator getLeafAccumulator(LeafReaderContext ctx) throws IOException {
+    final NumericDocValues docValues = ctx.reader().getNumericDocValues(field);
+    if (docValues == null) {
+      return null;
+    }
+    lastContext = ctx;
+    if (docValues instanceof OrdinalNumericDocValues) {
+      final OrdinalNumericDocValues ordDocValues = (OrdinalNumericDocValues) docValues;
+      final int[] counts = new int[ordDocValues.getValueCount()];
+      lastOrdinalCounts = new OrdinalCounts(ordDocValues, counts);
+      lastSegmentMap = null;
+      ordinalCountList.add(lastOrdinalCounts);
+      return new LeafAccumulator() {
+        @Override
+        public void accumulate(int docId) {
+          counts[ordDocValues.getOrd(docId)]++;
+        }
+      };
+    }
+    final Long2IntOpenHashMap segmentMap = new Long2IntOpenHashMap();
+    lastOrdinalCounts = null;
+    lastSegmentMap = segmentMap;
+    segmentMapList.add(segmentMap);
+    return new LeafAccumulator() {
+      @Override
+      public void accumulate(int docId) {
+        segmentMap.add(docValues.get(docId), 1);
       }
+    };
+  }
 
-      DocIdSet hitSet = hits.bits;
-      if (hitSet != null) {
-        DocIdSetIterator hitsIter = hitSet.iterator();
-        int docId;
-        while ((docId = hitsIter.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
-          long val = docValues.get(docId);
-          int count = countMap.get(val) + 1;
-          countMap.put(val, count);
+  @Override
+  public SegmentCounts getSegmentCounts(LeafReaderContext ctx) {
+    if (ctx != lastContext) {
+      return null;
+    }
+    if (lastOrdinalCounts != null) {
+      int[] counts = lastOrdinalCounts.counts;
+      int size = 0;
+      for (int count : counts) {
+        if (count > 0) {
+          size++;
+        }
+      }
+      long[] values = new long[size];
+      int[] valueCounts = new int[size];
+      int i = 0;
+      for (int ord = 0; ord < counts.length; ++ord) {
+        if (counts[ord] > 0) {
+          values[i] = lastOrdinalCounts.docValues.lookupOrd(ord);
+          valueCounts[i++] = counts[ord];
         }
       }
+      return new SegmentCounts(values, valueCounts);
+    }
+    long[] values = new long[lastSegmentMap.size()];
+    int[] valueCounts = new int[values.length];
+    int i = 0;
+    ObjectIterator<Entry> entryIter = lastSegmentMap.long2IntEntrySet().iterator();
+    while (entryIter.hasNext()) {
+      Entry entry = entryIter.next();
+      values[i] = entry.getLongKey();
+      valueCounts[i++] = entry.getIntValue();
+    }
+    return new SegmentCounts(values, valueCounts);
+  }
+
+  @Override
+  public void addSegmentCounts(LeafReaderContext ctx, SegmentCounts counts) {
+    for (int i = 0; i < counts.size(); ++i) {
+      countMap.add(counts.getKey(i), counts.getCount(i));
+    }
+  }
+
+  @Override
+  public void merge(FacetAccumulator other) {
+    NumericFacetCounts otherCounts = (NumericFacetCounts) other;
+    ordinalCountList.addAll(otherCounts.ordinalCountList);
+    segmentMapList.addAll(otherCounts.segmentMapList);
+    ObjectIterator<Entry> entryIter = otherCounts.countMap.long2IntEntrySet().iterator();
+    while (entryIter.hasNext()) {
+      Entry entry = entryIter.next();
+      countMap.add(entry.getLongKey(), entry.getIntValue());
+    }
+  }
+
+  /**
+   * Moves the dense ordinal counts and the per-segment maps into countMap, one hash update per
+   * distinct value of a segment instead of one per hit.
+   */
+  private void foldSegmentCounts() {
+    for (Long2IntOpenHashMap segmentMap : segmentMapList) {
+      ObjectIterator<Entry> entryIter = segmentMap.long2IntEntrySet().iterator();
+      while (entryIter.hasNext()) {
+        Entry entry = entryIter.next();
+        countMap.add(entry.getLongKey(), entry.getIntValue());
+      }
+    }
+    segmentMapList.clear();
+    for (OrdinalCounts ordinalCounts : ordinalCountList) {
+      int[] counts = ordinalCounts.counts;
+      for (int ord = 0; ord < counts.length; ++ord) {
+        if (counts[ord] > 0) {
+          countMap.add(ordinalCounts.docValues.lookupOrd(ord), counts[ord]);
+        }
+      }
+    }
+    ordinalCountList.clear();
+  }
+
+  /**
+   * True when all counts are still dense per-segment ordinal counts, which can then be read
+   * straight from the sorted dictionaries of the segments without going through countMap.
+   */
+  private boolean isDictionaryCounts() {
+    return !ordinalCountList.isEmpty() && segmentMapList.isEmpty() && countMap.isEmpty();
+  }
+
+  /**
+   * Passes every value with a count to collector, in ascending value order when counts are read
+   * from the dictionaries: a single segment is walked by ord, several segments are merged on
+   * their sorted dictionaries. Otherwise counts are folded into countMap, the fallback for high
+   * cardinality fields, and passed in hash order.
+   */
+  private void collect(ValueCollector collector) {
+    if (!isDictionaryCounts()) {
+      foldSegmentCounts();
+      ObjectIterator<Entry> entryIter = countMap.long2IntEntrySet().iterator();
+      while (entryIter.hasNext()) {
+        Entry entry = entryIter.next();
+        if (entry.getIntValue() > 0) {
+          collector.add(entry.getLongKey(), entry.getIntValue());
+        }
+      }
+      return;
+    }
+    if (ordinalCountList.size() == 1) {
+      OrdinalCounts ordinalCounts = ordinalCountList.get(0);
+      int[] counts = ordinalCounts.counts;
+      for (int ord = 0; ord < counts.length; ++ord) {
+        if (counts[ord] > 0) {
+          collector.add(ordinalCounts.docValues.lookupOrd(ord), counts[ord]);
+        }
+      }
+      return;
+    }
+    PriorityQueue<OrdinalCursor> queue = new PriorityQueue<OrdinalCursor>(
+        ordinalCountList.size()) {
+      @Override
+      protected boolean lessThan(OrdinalCursor a, OrdinalCursor b) {
+        return a.value < b.value;
+      }
+    };
+    for (OrdinalCounts ordinalCounts : ordinalCountList) {
+      OrdinalCursor cursor = new OrdinalCursor(ordinalCounts);
+      if (cursor.next()) {
+        queue.add(cursor);
+      }
+    }
+    while (queue.size() > 0) {
+      OrdinalCursor top = queue.top();
+      long value = top.value;
+      int count = 0;
+      do {
+        count += top.count();
+        if (top.next()) {
+          queue.updateTop();
+        } else {
+          queue.pop();
+        }
+        top = queue.size() > 0 ? queue.top() : null;
+      } while (top != null && top.value == value);
+      collector.add(value, count);
     }
   }
 
@@ -70,37 +283,90 @@ public class NumericFacetCounts extends Facets {
 
     long val = Long.parseLong(paths[0]);
 
+    if (isDictionaryCounts()) {
+      int count = 0;
+      for (OrdinalCounts ordinalCounts : ordinalCountList) {
+        int ord = ordinalCounts.docValues.lookupValue(val);
+        if (ord >= 0) {
+          count += ordinalCounts.counts[ord];
+        }
+      }
+      return count;
+    }
+    foldSegmentCounts();
     return countMap.get(val);
   }
 
+  /**
+   * Returns the number of hits with a value in [from, to]. On dictionary counts this sums the
+   * ords between the two bounds of every segment.
+   */
+  public int getRangeCount(long from, long to) {
+    int count = 0;
+    if (isDictionaryCounts()) {
+      for (OrdinalCounts ordinalCounts : ordinalCountList) {
+        int fromOrd = ordinalCounts.docValues.lookupValue(from);
+        if (fromOrd < 0) {
+          fromOrd = -fromOrd - 1;
+        }
+        int toOrd = ordinalCounts.docValues.lookupValue(to);
+        if (toOrd < 0) {
+          toOrd = -toOrd - 2;
+        }
+        for (int ord = fromOrd; ord <= toOrd; ++ord) {
+          count += ordinalCounts.counts[ord];
+        }
+      }
+      return count;
+    }
+    foldSegmentCounts();
+    ObjectIterator<Entry> entryIter = countMap.long2IntEntrySet().iterator();
+    while (entryIter.hasNext()) {
+      Entry entry = entryIter.next();
+      if (entry.getLongKey() >= from && entry.getLongKey() <= to) {
+        count += entry.getIntValue();
+      }
+    }
+    return count;
+  }
+
   @Override
   public FacetResult getTopChildren(int topN, String dim, String... paths)
       throws IOException {
     if (paths.length != 0) {
       throw new IllegalArgumentException("paths should have length = 0");
     }
-    PriorityQueue<ValCountPair> pq = ValCountPair.getPriorityQueue(topN);
+    return toFacetResult(ValCountPair.getPriorityQueue(topN));
+  }
 
-    final ObjectIterator<Entry> entryIter = countMap.long2IntEntrySet().iterator();
+  /**
+   * Returns the topN smallest values with a count, in ascending value order.
+   */
+  public FacetResult getChildrenSortedByValue(int topN) {
+    // the root is the largest value kept so far, the first to be dropped
+    return toFacetResult(new PriorityQueue<ValCountPair>(topN, false) {
+      @Override
+      protected boolean lessThan(ValCountPair a, ValCountPair b) {
+        return a.val > b.val;
+      }
+    });
+  }
 
-    int sum = 0;
-    int childCount = 0;
-    ValCountPair pair = null;
-    while (entryIter.hasNext()) {
-      Entry entry = entryIter.next();
-      int count = entry.getIntValue();
-      if (count > 0) {
+  private FacetResult toFacetResult(final PriorityQueue<ValCountPair> pq) {
+    ValueCollector collector = new ValueCollector() {
+      private ValCountPair pair;
+
+      @Override
+      void collect(long value, int count) {
         if (pair == null) {
           pair = new ValCountPair();
         }
-        pair.val = entry.getLongKey();
+        pair.val = value;
         pair.count = count;
-
-        sum += count;
-        childCount++;
         pair = pq.insertWithOverflow(pair);
       }
-    }
+    };
+    collect(collector);
 
     int numVals = pq.size();
     LabelAndValue[] labelValues = new LabelAndValue[numVals];
@@ -114,6 +380,58 @@ public class NumericFacetCounts extends Facets {
       labelValues[numVals - i - 1] = new LabelAndValue(label, node.count);
     }
 
-    return new FacetResult(field, new String[0], sum, labelValues, childCount);
+    return new FacetResult(field, new String[0], collector.sum, labelValues,
+        collector.childCount);
+  }
+
+  private abstract static class ValueCollector {
+    int sum;
+    int childCount;
+
+    final void add(long value, int count) {
+      sum += count;
+      childCount++;
+      collect(value, count);
+    }
+
+    abstract void collect(long value, int count);
+  }
+
+  /**
+   * Walks the ords with a count of a segment, in value order.
+   */
+  private static class OrdinalCursor {
+    final OrdinalCounts ordinalCounts;
+    int ord = -1;
+    long value;
+
+    OrdinalCursor(OrdinalCounts ordinalCounts) {
+      this.ordinalCounts = ordinalCounts;
+    }
+
+    boolean next() {
+      int[] counts = ordinalCounts.counts;
+      while (++ord < counts.length) {
+        if (counts[ord] > 0) {
+          value = ordinalCounts.docValues.lookupOrd(ord);
+          return true;
+        }
+      }
+      return false;
+    }
+
+    int count() {
+      return ordinalCounts.counts[ord];
+    }
+  }
+
+  private static class OrdinalCounts {
+    final OrdinalNumericDocValues docValues;
+    final int[] counts;
+
+    OrdinalCounts(OrdinalNumericDocValues docValues, int[] counts) {
+      this.docValues = docValues;
+      this.counts = counts;
+    }
   }
 }
@@ -23,6 +23,49 @@ public abstract class PerSegmentFacetCount {
     bits.set(ord);
   }
 
+  /**
+   * Folds in the counts of another docid-range partition of the same segment.
+   */
+  public void add(PerSegmentFacetCount other) {
+    FixedBitSet otherBits = other.bits;
+    int length = otherBits.length();
+    int ord = length == 0 ? DocIdSetIterator.NO_MORE_DOCS : otherBits.nextSetBit(0);
+    while (ord != DocIdSetIterator.NO_MORE_DOCS) {
+      counts[ord] += other.counts[ord];
+      bits.set(ord);
+      ord = ord + 1 < length ? otherBits.nextSetBit(ord + 1) : DocIdSetIterator.NO_MORE_DOCS;
+    }
+  }
+
+  /**
+   * Folds in a snapshot of counts keyed by ords of the same segment.
+   */
+  public void add(SegmentCounts other) {
+    for (int i = 0; i < other.size(); ++i) {
+      int ord = (int) other.getKey(i);
+      counts[ord] += other.getCount(i);
+      bits.set(ord);
+    }
+  }
+
+  /**
+   * Returns a snapshot of the positive counts, keyed by ord.
+   */
+  public SegmentCounts toSegmentCounts() {
+    int size = bits.cardinality();
+    long[] ords = new long[size];
+    int[] ordCounts = new int[size];
+    int i = 0;
+    int length = bits.length();
+    int ord = length == 0 ? DocIdSetIterator.NO_MORE_DOCS : bits.nextSetBit(0);
+    while (ord != DocIdSetIterator.NO_MORE_DOCS) {
+      ords[i] = ord;
+      ordCounts[i++] = counts[ord];
+      ord = ord + 1 < length ? bits.nextSetBit(ord + 1) : DocIdSetIterator.NO_MORE_DOCS;
+    }
+    return new SegmentCounts(ords, ordCounts);
+  }
+
   public int getCountForLabel(String label) {
     int ord = getOrd(new BytesRef(label));
     if (ord < 0) {
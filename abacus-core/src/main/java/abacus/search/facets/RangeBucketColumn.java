@@ -0,0 +1,88 @@
+package abacus.search.facets;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.NumericDocValues;
+
+/**
+ * The bucket ord of every doc of a segment for a {@link RangeBucketIndex}, computed once when
+ * the segment is loaded so that counting the ranges is a plain array increment per doc. Ords
+ * are kept in a byte per doc when the index has at most 256 ords, a short per doc otherwise.
+ */
+public abstract class RangeBucketColumn {
+
+  private final RangeBucketIndex rangeIndex;
+
+  private RangeBucketColumn(RangeBucketIndex rangeIndex) {
+    this.rangeIndex = rangeIndex;
+  }
+
+  /**
+   * Returns the column of docvals for rangeIndex, or null if its ords do not fit in a short.
+   */
+  public static RangeBucketColumn build(RangeBucketIndex rangeIndex, NumericDocValues docvals,
+      int maxdoc) throws IOException {
+    int ordCount = rangeIndex.getOrdCount();
+    if (ordCount <= 1 << 8) {
+      byte[] ords = new byte[maxdoc];
+      for (int i = 0; i < maxdoc; ++i) {
+        ords[i] = (byte) rangeIndex.getOrd(docvals.get(i));
+      }
+      return new ByteColumn(rangeIndex, ords);
+    } else if (ordCount <= 1 << 16) {
+      short[] ords = new short[maxdoc];
+      for (int i = 0; i < maxdoc; ++i) {
+        ords[i] = (short) rangeIndex.getOrd(docvals.get(i));
+      }
+      return new ShortColumn(rangeIndex, ords);
+    } else {
+      return null;
+    }
+  }
+
+  public RangeBucketIndex getRangeIndex() {
+    return rangeIndex;
+  }
+
+  public abstract int getOrd(int docID);
+
+  public abstract long ramBytesUsed();
+
+  private static class ByteColumn extends RangeBucketColumn {
+    private final byte[] ords;
+
+    ByteColumn(RangeBucketIndex rangeIndex, byte[] ords) {
+      super(rangeIndex);
+      this.ords = ords;
+    }
+
+    @Override
+    public int getOrd(int docID) {
+      return ords[docID] & 0xFF;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+      return ords.length;
+    }
+  }
+
+  private static class ShortColumn extends RangeBucketColumn {
+    private final short[] ords;
+
+    ShortColumn(RangeBucketIndex rangeIndex, short[] ords) {
+      super(rangeIndex);
+      this.ords = ords;
+    }
+
+    @Override
+    public int getOrd(int docID) {
+      return ords[docID] & 0xFFFF;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+      return 2L * ords.length;
+    }
+  }
+}
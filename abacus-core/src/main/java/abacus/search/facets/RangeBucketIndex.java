@@ -0,0 +1,172 @@
+package abacus.search.facets;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.lucene.queryparser.classic.ParseException;
+
+import abacus.api.AbacusFieldType;
+import abacus.search.facets.FacetRangeBuilder.FacetRange;
+
+/**
+ * Range buckets of a numeric field compiled for counting: the range bounds are turned into
+ * sorted starts of elementary intervals in the sortable long domain, so a doc value is placed
+ * with one binary search however many buckets there are. Overlapping ranges share
+ * elementary intervals, whose counts are added to every range covering them once counting
+ * is done.
+ * <p>
+ * A value is counted by its bucket ord: 0 for values in no interval, interval + 1 otherwise,
+ * so counts can be kept in an array of {@link #getOrdCount()} slots without any test.
+ * <p>
+ * An index is immutable and can be shared by any number of concurrent counts.
+ */
+public class RangeBucketIndex {
+
+  private final FacetRange[] ranges;
+  // sorted sortable-long starts of the elementary intervals, the last one is unbounded
+  private final long[] starts;
+  // ranges covering each elementary interval
+  private final int[][] intervalRanges;
+
+  public RangeBucketIndex(FacetRange[] ranges) {
+    // same semantics as buckets keyed by label, the last range of a label wins
+    Map<String, FacetRange> rangeMap = new LinkedHashMap<>();
+    for (FacetRange range : ranges) {
+      rangeMap.remove(range.getLabel());
+      rangeMap.put(range.getLabel(), range);
+    }
+    this.ranges = rangeMap.values().toArray(new FacetRange[rangeMap.size()]);
+
+    LongArrayList points = new LongArrayList();
+    for (FacetRange range : this.ranges) {
+      long lower = range.getSortableLower();
+      long upper = range.getSortableUpper();
+      if (lower > upper) {
+        continue;
+      }
+      points.add(lower);
+      if (upper != Long.MAX_VALUE) {
+        points.add(upper + 1);
+      }
+    }
+    long[] sortedPoints = points.toLongArray();
+    Arrays.sort(sortedPoints);
+    int numStarts = 0;
+    for (int i = 0; i < sortedPoints.length; ++i) {
+      if (i == 0 || sortedPoints[i] != sortedPoints[i - 1]) {
+        sortedPoints[numStarts++] = sortedPoints[i];
+      }
+    }
+    starts = Arrays.copyOf(sortedPoints, numStarts);
+
+    IntArrayList[] coveringRanges = new IntArrayList[numStarts];
+    for (int i = 0; i < numStarts; ++i) {
+      coveringRanges[i] = new IntArrayList();
+    }
+    for (int r = 0; r < this.ranges.length; ++r) {
+      long lower = this.ranges[r].getSortableLower();
+      long upper = this.ranges[r].getSortableUpper();
+      if (lower > upper) {
+        continue;
+      }
+      for (int i = Arrays.binarySearch(starts, lower); i < numStarts && starts[i] <= upper; ++i) {
+        coveringRanges[i].add(r);
+      }
+    }
+    intervalRanges = new int[numStarts][];
+    for (int i = 0; i < numStarts; ++i) {
+      intervalRanges[i] = coveringRanges[i].toIntArray();
+    }
+  }
+
+  public static RangeBucketIndex compile(String[] rangeStrings, AbacusFieldType fieldType)
+      throws ParseException {
+    FacetRange[] ranges = new FacetRange[rangeStrings.length];
+    for (int i = 0; i < rangeStrings.length; ++i) {
+      ranges[i] = FacetRangeBuilder.buildFacetRangeBucket(rangeStrings[i], fieldType);
+      if (ranges[i] == null) {
+        throw new ParseException("not a numeric field type: " + fieldType);
+      }
+    }
+    return new RangeBucketIndex(ranges);
+  }
+
+  public int getRangeCount() {
+    return ranges.length;
+  }
+
+  public String getLabel(int range) {
+    return ranges[range].getLabel();
+  }
+
+  /**
+   * Returns the index of the label, or -1.
+   */
+  public int getRange(String label) {
+    for (int r = 0; r < ranges.length; ++r) {
+      if (ranges[r].getLabel().equals(label)) {
+        return r;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the number of bucket ords, the no-interval ord 0 included.
+   */
+  public int getOrdCount() {
+    return starts.length + 1;
+  }
+
+  /**
+   * Returns the bucket ord of a doc value, 0 if it is below every range.
+   */
+  public int getOrd(long val) {
+    if (starts.length == 0) {
+      return 0;
+    }
+    long sortable = ranges[0].toSortableLong(val);
+    int idx = Arrays.binarySearch(starts, sortable);
+    return idx >= 0 ? idx + 1 : -idx - 1;
+  }
+
+  /**
+   * Turns counts per bucket ord into counts per range.
+   */
+  public int[] getRangeCounts(int[] ordCounts) {
+    int[] rangeCounts = new int[ranges.length];
+    for (int i = 1; i < ordCounts.length; ++i) {
+      int count = ordCounts[i];
+      if (count > 0) {
+        for (int r : intervalRanges[i - 1]) {
+          rangeCounts[r] += count;
+        }
+      }
+    }
+    return rangeCounts;
+  }
+
+  /**
+   * Returns true if other gives every value the same bucket ord and has the same ranges in
+   * the same order, so that counts by ord can be used with either index.
+   */
+  public boolean sameBuckets(RangeBucketIndex other) {
+    if (this == other) {
+      return true;
+    }
+    if (ranges.length != other.ranges.length || !Arrays.equals(starts, other.starts)
+        || ranges.length > 0 && ranges[0].getClass() != other.ranges[0].getClass()) {
+      return false;
+    }
+    for (int r = 0; r < ranges.length; ++r) {
+      if (!ranges[r].getLabel().equals(other.ranges[r].getLabel())) {
+        return false;
+      }
+    }
+    return Arrays.deepEquals(intervalRanges, other.intervalRanges);
+  }
+}
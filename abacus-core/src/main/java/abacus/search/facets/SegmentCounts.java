@@ -0,0 +1,41 @@
+package abacus.search.facets;
+
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * Immutable snapshot of the counts of one field over the hits of one segment, as the keys
+ * with a positive count and their counts. Keys are segment ords or numeric values, depending
+ * on the accumulator that took the snapshot, see
+ * {@link FacetAccumulator#getSegmentCounts(org.apache.lucene.index.LeafReaderContext)}.
+ */
+public final class SegmentCounts {
+
+  private static final long BASE_RAM_BYTES_USED =
+      RamUsageEstimator.shallowSizeOfInstance(SegmentCounts.class);
+
+  private final long[] keys;
+  private final int[] counts;
+
+  SegmentCounts(long[] keys, int[] counts) {
+    assert keys.length == counts.length;
+    this.keys = keys;
+    this.counts = counts;
+  }
+
+  public int size() {
+    return keys.length;
+  }
+
+  public long getKey(int i) {
+    return keys[i];
+  }
+
+  public int getCount(int i) {
+    return counts[i];
+  }
+
+  public long ramBytesUsed() {
+    return BASE_RAM_BYTES_USED + RamUsageEstimator.sizeOf(keys)
+        + RamUsageEstimator.sizeOf(counts);
+  }
+}
@@ -8,19 +8,28 @@ import java.util.Arrays;
 import org.apache.lucene.index.SortedSetDocValues;
 import org.apache.lucene.util.BytesRef;
 
-public class ArraySortedSetDocValues extends SortedSetDocValues {
+public class ArraySortedSetDocValues extends InMemorySortedSetDocValues {
   
   private final int[] ords;
   private final BytesRef[] byteRefs;
   private final byte[] buffer;
-  private final IntList ordIndexList = new IntArrayList();  
+  private final IntList ordIndexList;
   private final int numValues;
   
   private int currentVal = SortedSetDocValuesUtil.UNASSIGNED;
   private int offset = 0;
   private boolean hasMoreOrds = false;  
   
+  private ArraySortedSetDocValues(ArraySortedSetDocValues other) {
+    this.ords = other.ords;
+    this.byteRefs = other.byteRefs;
+    this.buffer = other.buffer;
+    this.ordIndexList = other.ordIndexList;
+    this.numValues = other.numValues;
+  }
+
   public ArraySortedSetDocValues(SortedSetDocValues inner, int maxDoc) {
+    ordIndexList = new IntArrayList();
     
     long valCount = inner.getValueCount();
     if (valCount > Integer.MAX_VALUE) {
@@ -73,6 +82,11 @@ public class ArraySortedSetDocValues extends SortedSetDocValues {
     }
   }
   
+  @Override
+  public ArraySortedSetDocValues duplicate() {
+    return new ArraySortedSetDocValues(this);
+  }
+
   @Override
   public long nextOrd() {
     if (currentVal == SortedSetDocValuesUtil.UNASSIGNED || !hasMoreOrds) {
@@ -1,6 +1,7 @@
 package abacus.search.facets.docvalues;
 
 import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
 
 import org.apache.lucene.index.NumericDocValues;
 
@@ -10,8 +11,10 @@ public class DirectBufferNumericDocValues extends NumericDocValues {
   
   public DirectBufferNumericDocValues(NumericDocValues docvals, int maxdoc) {    
     buffer = ByteBuffer.allocateDirect(maxdoc * 8);
-    for (int i =0;i< maxdoc;++i) {      
-      buffer.putLong(docvals.get(i));
+    LongBuffer longs = buffer.asLongBuffer();
+    long[] chunk = new long[DocValuesChunks.CHUNK_SIZE];
+    for (int start = 0; start < maxdoc; start += chunk.length) {
+      longs.put(chunk, 0, DocValuesChunks.values(docvals, start, maxdoc, chunk));
     }
   }
   
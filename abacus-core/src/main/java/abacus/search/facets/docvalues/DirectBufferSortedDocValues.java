@@ -1,6 +1,7 @@
 package abacus.search.facets.docvalues;
 
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 
 import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.util.BytesRef;
@@ -14,8 +15,10 @@ public class DirectBufferSortedDocValues extends SortedDocValues {
   
   public DirectBufferSortedDocValues(SortedDocValues inner, int maxDoc) {    
     this.ords = ByteBuffer.allocateDirect(maxDoc * 4);
-    for (int i =0;i< maxDoc; ++i) {      
-      this.ords.putInt(inner.getOrd(i));
+    IntBuffer ordInts = ords.asIntBuffer();
+    int[] chunk = new int[DocValuesChunks.CHUNK_SIZE];
+    for (int start = 0; start < maxDoc; start += chunk.length) {
+      ordInts.put(chunk, 0, DocValuesChunks.ords(inner, start, maxDoc, chunk));
     }
     
     numTerms = inner.getValueCount();
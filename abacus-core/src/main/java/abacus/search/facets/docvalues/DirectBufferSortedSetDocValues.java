@@ -1,14 +1,14 @@
 package abacus.search.facets.docvalues;
 
 import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.fastutil.ints.IntListIterator;
 
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 
 import org.apache.lucene.index.SortedSetDocValues;
 import org.apache.lucene.util.BytesRef;
 
-public class DirectBufferSortedSetDocValues extends SortedSetDocValues {
+public class DirectBufferSortedSetDocValues extends InMemorySortedSetDocValues {
 
   private final ByteBuffer ords;
   private final ByteBuffer buffer;  
@@ -20,6 +20,15 @@ public class DirectBufferSortedSetDocValues extends SortedSetDocValues {
   private int offset = 0;
   private boolean hasMoreOrds = false;
   
+  private DirectBufferSortedSetDocValues(DirectBufferSortedSetDocValues other) {
+    // absolute gets only, the buffers can be shared as they are
+    this.ords = other.ords;
+    this.buffer = other.buffer;
+    this.byteRefs = other.byteRefs;
+    this.ordsPool = other.ordsPool;
+    this.numValues = other.numValues;
+  }
+
   public DirectBufferSortedSetDocValues(SortedSetDocValues inner, int maxDoc) {
     long valCount = inner.getValueCount();
     if (valCount > Integer.MAX_VALUE) {
@@ -47,42 +56,23 @@ public class DirectBufferSortedSetDocValues extends SortedSetDocValues {
     }
     
     ords = ByteBuffer.allocateDirect(maxDoc * 4);
-    for (int i = 0; i < maxDoc; ++i) {
-      ords.putInt(SortedSetDocValuesUtil.UNASSIGNED);
-    }
-    
+    IntBuffer ordInts = ords.asIntBuffer();
     IntArrayList ordIndexList = new IntArrayList();
-    
-    for (int i = 0; i < maxDoc; ++ i) {
-      inner.setDocument(i);
-      int tmpOrd;
-      while ((tmpOrd = (int) inner.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
-        int existingOrd = ords.getInt(i * 4);
-        if (existingOrd == SortedSetDocValuesUtil.UNASSIGNED) {                    
-          ords.putInt(i * 4, tmpOrd);
-        } else {
-          if (!SortedSetDocValuesUtil.isSetHighestBit(existingOrd)) {
-            int pointer = ordIndexList.size();
-            ords.putInt(i * 4, SortedSetDocValuesUtil.setHighestBit(pointer));
-            ordIndexList.add(SortedSetDocValuesUtil.setHighestBit(existingOrd));
-          } else {
-            int lastIdx = ordIndexList.size() - 1;
-            ordIndexList.set(lastIdx, SortedSetDocValuesUtil.setHighestBit(ordIndexList.getInt(lastIdx)));
-          }
-          ordIndexList.add(tmpOrd);
-        }
-      }
+    int[] chunk = new int[DocValuesChunks.CHUNK_SIZE];
+    for (int start = 0; start < maxDoc; start += chunk.length) {
+      ordInts.put(chunk, 0, DocValuesChunks.setOrds(inner, start, maxDoc, chunk, ordIndexList));
     }
     
     int numOrds = ordIndexList.size();
     ordsPool = ByteBuffer.allocateDirect(numOrds * 4);
-    
-    IntListIterator intIter = ordIndexList.iterator();
-    while (intIter.hasNext()) {
-      ordsPool.putInt(intIter.nextInt());
-    }
+    ordsPool.asIntBuffer().put(ordIndexList.elements(), 0, numOrds);
   }
   
+  @Override
+  public DirectBufferSortedSetDocValues duplicate() {
+    return new DirectBufferSortedSetDocValues(this);
+  }
+
   @Override
   public long nextOrd() {
     if (currentVal == SortedSetDocValuesUtil.UNASSIGNED || !hasMoreOrds) {
@@ -0,0 +1,75 @@
+package abacus.search.facets.docvalues;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+
+/**
+ * Reads doc values a chunk of docs at a time, so that the in-memory columns are filled with
+ * one bulk copy per chunk instead of one buffer or native write per doc.
+ */
+public final class DocValuesChunks {
+
+  public static final int CHUNK_SIZE = 4096;
+
+  private DocValuesChunks() {
+  }
+
+  /**
+   * Reads the values of the docs from start into chunk and returns how many were read.
+   */
+  public static int values(NumericDocValues docvals, int start, int maxDoc, long[] chunk) {
+    int count = Math.min(chunk.length, maxDoc - start);
+    for (int i = 0; i < count; ++i) {
+      chunk[i] = docvals.get(start + i);
+    }
+    return count;
+  }
+
+  /**
+   * Reads the ords of the docs from start into chunk and returns how many were read.
+   */
+  public static int ords(SortedDocValues docvals, int start, int maxDoc, int[] chunk) {
+    int count = Math.min(chunk.length, maxDoc - start);
+    for (int i = 0; i < count; ++i) {
+      chunk[i] = docvals.getOrd(start + i);
+    }
+    return count;
+  }
+
+  /**
+   * Reads the ords of the docs from start into chunk the way the sorted set columns keep
+   * them, see {@link SortedSetDocValuesUtil}: the ord of a doc with a single one, a pointer
+   * into ordsPool for a doc with more, where they are appended, and
+   * {@link SortedSetDocValuesUtil#UNASSIGNED} for a doc without any. Returns how many docs
+   * were read.
+   */
+  public static int setOrds(SortedSetDocValues docvals, int start, int maxDoc, int[] chunk,
+      IntArrayList ordsPool) {
+    int count = Math.min(chunk.length, maxDoc - start);
+    for (int i = 0; i < count; ++i) {
+      docvals.setDocument(start + i);
+      int docOrd = SortedSetDocValuesUtil.UNASSIGNED;
+      int tmpOrd;
+      while ((tmpOrd = (int) docvals.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+        if (docOrd == SortedSetDocValuesUtil.UNASSIGNED) {
+          docOrd = tmpOrd;
+        } else {
+          if (!SortedSetDocValuesUtil.isSetHighestBit(docOrd)) {
+            int pointer = ordsPool.size();
+            ordsPool.add(SortedSetDocValuesUtil.setHighestBit(docOrd));
+            docOrd = SortedSetDocValuesUtil.setHighestBit(pointer);
+          } else {
+            int lastIdx = ordsPool.size() - 1;
+            ordsPool.set(lastIdx, SortedSetDocValuesUtil.setHighestBit(ordsPool.getInt(lastIdx)));
+          }
+          ordsPool.add(tmpOrd);
+        }
+      }
+      chunk[i] = docOrd;
+    }
+    return count;
+  }
+}
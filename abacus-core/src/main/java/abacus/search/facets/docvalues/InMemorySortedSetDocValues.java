@@ -0,0 +1,16 @@
+package abacus.search.facets.docvalues;
+
+import org.apache.lucene.index.SortedSetDocValues;
+
+/**
+ * Sorted set doc values copied into memory. The loaded ords are never modified after loading
+ * and can be shared, but the setDocument/nextOrd cursor cannot, so every thread has to work
+ * on its own {@link #duplicate()}.
+ */
+public abstract class InMemorySortedSetDocValues extends SortedSetDocValues {
+
+  /**
+   * Returns an instance over the same loaded values with its own iteration state.
+   */
+  public abstract InMemorySortedSetDocValues duplicate();
+}
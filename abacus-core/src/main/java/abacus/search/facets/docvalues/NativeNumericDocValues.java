@@ -6,16 +6,36 @@ import java.io.IOException;
 import org.apache.lucene.index.NumericDocValues;
 
 import abacus.search.facets.unsafe.HS;
+import abacus.search.facets.unsafe.NativeArena;
 
 public class NativeNumericDocValues extends NumericDocValues 
     implements Closeable {
 
-  private long bufferPtr;
+  private final NativeArena arena;
+  private final boolean ownsArena;
+  private final long bufferPtr;
   
   public NativeNumericDocValues(NumericDocValues docvals, int maxdoc) {
-    bufferPtr = HS.allocArray(maxdoc, 8, false);
-    for (int i =0;i< maxdoc;++i) {
-      HS.setLong(bufferPtr, i, docvals.get(i));
+    this(docvals, maxdoc, new NativeArena(NativeArena.UNKNOWN), NativeArena.UNKNOWN, true);
+  }
+
+  /**
+   * Loads the values of field into arena, closing the arena frees them.
+   */
+  public NativeNumericDocValues(NumericDocValues docvals, int maxdoc, NativeArena arena,
+      String field) {
+    this(docvals, maxdoc, arena, field, false);
+  }
+
+  private NativeNumericDocValues(NumericDocValues docvals, int maxdoc, NativeArena arena,
+      String field, boolean ownsArena) {
+    this.arena = arena;
+    this.ownsArena = ownsArena;
+    bufferPtr = arena.allocArray(field, maxdoc, 8, false);
+    long[] chunk = new long[DocValuesChunks.CHUNK_SIZE];
+    for (int start = 0; start < maxdoc; start += chunk.length) {
+      int count = DocValuesChunks.values(docvals, start, maxdoc, chunk);
+      HS.copyLongs(chunk, 0, bufferPtr, start, count);
     }
   }
   
@@ -26,7 +46,9 @@ public class NativeNumericDocValues extends NumericDocValues
 
   @Override
   public void close() throws IOException {
-    HS.freeArray(bufferPtr);
+    if (ownsArena) {
+      arena.close();
+    }
   }
 
 }
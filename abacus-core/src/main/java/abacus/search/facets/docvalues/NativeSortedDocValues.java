@@ -7,6 +7,7 @@ import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.util.BytesRef;
 
 import abacus.search.facets.unsafe.HS;
+import abacus.search.facets.unsafe.NativeArena;
 
 public class NativeSortedDocValues extends SortedDocValues 
     implements Closeable {
@@ -15,11 +16,30 @@ public class NativeSortedDocValues extends SortedDocValues
   private final long bufferPtr;
   private final long bytesRefPtr;
   private final int numTerms;
+  private final NativeArena arena;
+  private final boolean ownsArena;
   
-  public NativeSortedDocValues(SortedDocValues inner, int maxDoc) {    
-    this.ordsPtr = HS.allocArray(maxDoc, 4, false);
-    for (int i =0; i< maxDoc; ++i) {     
-      HS.setInt(this.ordsPtr, i, inner.getOrd(i));
+  public NativeSortedDocValues(SortedDocValues inner, int maxDoc) {
+    this(inner, maxDoc, new NativeArena(NativeArena.UNKNOWN), NativeArena.UNKNOWN, true);
+  }
+
+  /**
+   * Loads the values of field into arena, closing the arena frees them.
+   */
+  public NativeSortedDocValues(SortedDocValues inner, int maxDoc, NativeArena arena,
+      String field) {
+    this(inner, maxDoc, arena, field, false);
+  }
+
+  private NativeSortedDocValues(SortedDocValues inner, int maxDoc, NativeArena arena,
+      String field, boolean ownsArena) {
+    this.arena = arena;
+    this.ownsArena = ownsArena;
+    this.ordsPtr = arena.allocArray(field, maxDoc, 4, false);
+    int[] chunk = new int[DocValuesChunks.CHUNK_SIZE];
+    for (int start = 0; start < maxDoc; start += chunk.length) {
+      int count = DocValuesChunks.ords(inner, start, maxDoc, chunk);
+      HS.copyInts(chunk, 0, ordsPtr, start, count);
     }
     numTerms = inner.getValueCount();
     // temp buffer to hold the bytesrefs
@@ -32,16 +52,14 @@ public class NativeSortedDocValues extends SortedDocValues
       byteRefs[i] = tempRef;
     }
     
-    bytesRefPtr= HS.allocArray(numTerms, 8, false);
-    bufferPtr = HS.allocArray(numBytes, 1, false);
+    bytesRefPtr= arena.allocArray(field, numTerms, 8, false);
+    bufferPtr = arena.allocArray(field, numBytes, 1, false);
     
     int byteCount = 0;
     for (int i=0;i < numTerms; ++i) {
       int offset = byteRefs[i].offset;
       int length = byteRefs[i].length;
-      for (int k = 0; k < length; ++k) {
-        HS.unsafe.putByte(bufferPtr + byteCount + k, byteRefs[i].bytes[offset + k]);        
-      }      
+      HS.copyBytes(byteRefs[i].bytes, offset, bufferPtr, byteCount, length);
       byteRefs[i].bytes = null;
       HS.setInt(bytesRefPtr, i*2, byteCount);
       HS.setInt(bytesRefPtr, i*2 + 1, length);
@@ -76,8 +94,8 @@ public class NativeSortedDocValues extends SortedDocValues
 
   @Override
   public void close() throws IOException {
-    HS.freeArray(bufferPtr);
-    HS.freeArray(ordsPtr);
-    HS.freeArray(bytesRefPtr);
+    if (ownsArena) {
+      arena.close();
+    }
   }  
 }
@@ -1,7 +1,6 @@
 package abacus.search.facets.docvalues;
 
 import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.fastutil.ints.IntListIterator;
 
 import java.io.Closeable;
 import java.io.IOException;
@@ -10,8 +9,9 @@ import org.apache.lucene.index.SortedSetDocValues;
 import org.apache.lucene.util.BytesRef;
 
 import abacus.search.facets.unsafe.HS;
+import abacus.search.facets.unsafe.NativeArena;
 
-public class NativeSortedSetDocValues extends SortedSetDocValues implements Closeable {
+public class NativeSortedSetDocValues extends InMemorySortedSetDocValues implements Closeable {
 
   private final long ordsPtr;
   private final long bufferPtr;
@@ -19,11 +19,40 @@ public class NativeSortedSetDocValues extends SortedSetDocValues implements Clos
   private final long ordsPoolPtr;
   private final int numTerms;
   
+  private final NativeArena arena;
+  private final boolean ownsArena;
+  
   private int currentVal = SortedSetDocValuesUtil.UNASSIGNED;
   private int offset = 0;
   private boolean hasMoreOrds = false;
   
-  public NativeSortedSetDocValues(SortedSetDocValues inner, int maxDoc) {    
+  private NativeSortedSetDocValues(NativeSortedSetDocValues other) {
+    this.ordsPtr = other.ordsPtr;
+    this.bufferPtr = other.bufferPtr;
+    this.bytesRefPtr = other.bytesRefPtr;
+    this.ordsPoolPtr = other.ordsPoolPtr;
+    this.numTerms = other.numTerms;
+    this.arena = other.arena;
+    // the memory is freed by the instance that allocated it
+    this.ownsArena = false;
+  }
+  
+  public NativeSortedSetDocValues(SortedSetDocValues inner, int maxDoc) {
+    this(inner, maxDoc, new NativeArena(NativeArena.UNKNOWN), NativeArena.UNKNOWN, true);
+  }
+
+  /**
+   * Loads the values of field into arena, closing the arena frees them.
+   */
+  public NativeSortedSetDocValues(SortedSetDocValues inner, int maxDoc, NativeArena arena,
+      String field) {
+    this(inner, maxDoc, arena, field, false);
+  }
+
+  private NativeSortedSetDocValues(SortedSetDocValues inner, int maxDoc, NativeArena arena,
+      String field, boolean ownsArena) {
+    this.arena = arena;
+    this.ownsArena = ownsArena;
     long valCount = inner.getValueCount();
     if (valCount > Integer.MAX_VALUE) {
       throw new IllegalStateException("too many values: " + valCount);      
@@ -41,61 +70,38 @@ public class NativeSortedSetDocValues extends SortedSetDocValues implements Clos
       byteRefs[i] = tempRef;
     }
     
-    bytesRefPtr= HS.allocArray(numTerms, 8, false);
-    bufferPtr = HS.allocArray(numBytes, 1, false);
+    bytesRefPtr= arena.allocArray(field, numTerms, 8, false);
+    bufferPtr = arena.allocArray(field, numBytes, 1, false);
     
     int byteCount = 0;
     for (int i=0;i < numTerms; ++i) {
       int offset = byteRefs[i].offset;
       int length = byteRefs[i].length;
-      for (int k = 0; k < length; ++k) {
-        HS.unsafe.putByte(bufferPtr + byteCount + k, byteRefs[i].bytes[offset + k]);        
-      }      
+      HS.copyBytes(byteRefs[i].bytes, offset, bufferPtr, byteCount, length);
       byteRefs[i].bytes = null;
       HS.setInt(bytesRefPtr, i*2, byteCount);
       HS.setInt(bytesRefPtr, i*2 + 1, length);
       byteCount += length;
     }
     
-    ordsPtr = HS.allocArray(maxDoc, 4, false);
-    for (int i = 0; i < maxDoc; ++i) {
-      HS.unsafe.putInt(ordsPtr + (i * 4), SortedSetDocValuesUtil.UNASSIGNED);
-    }
-    
+    ordsPtr = arena.allocArray(field, maxDoc, 4, false);
     IntArrayList ordIndexList = new IntArrayList();
-    
-    for (int i = 0; i < maxDoc; ++ i) {
-      inner.setDocument(i);
-      int tmpOrd;
-      while ((tmpOrd = (int) inner.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
-        int existingOrd = HS.unsafe.getInt(ordsPtr + i * 4);
-        if (existingOrd == SortedSetDocValuesUtil.UNASSIGNED) {                              
-          HS.unsafe.putInt(ordsPtr + (i * 4), tmpOrd);
-        } else {
-          if (!SortedSetDocValuesUtil.isSetHighestBit(existingOrd)) {
-            int pointer = ordIndexList.size();            
-            HS.unsafe.putInt(ordsPtr + (i * 4), SortedSetDocValuesUtil.setHighestBit(pointer));
-            ordIndexList.add(SortedSetDocValuesUtil.setHighestBit(existingOrd));
-          } else {
-            int lastIdx = ordIndexList.size() - 1;
-            ordIndexList.set(lastIdx, SortedSetDocValuesUtil.setHighestBit(ordIndexList.getInt(lastIdx)));
-          }
-          ordIndexList.add(tmpOrd);
-        }
-      }
+    int[] chunk = new int[DocValuesChunks.CHUNK_SIZE];
+    for (int start = 0; start < maxDoc; start += chunk.length) {
+      int count = DocValuesChunks.setOrds(inner, start, maxDoc, chunk, ordIndexList);
+      HS.copyInts(chunk, 0, ordsPtr, start, count);
     }
     
     int numOrds = ordIndexList.size();
-    ordsPoolPtr =  HS.allocArray(numOrds, 4, false);
-    
-    IntListIterator intIter = ordIndexList.iterator();
-    int idx = 0;
-    while (intIter.hasNext()) {
-      HS.unsafe.putInt(ordsPoolPtr + (idx * 4), intIter.nextInt());
-      idx++;
-    }
+    ordsPoolPtr =  arena.allocArray(field, numOrds, 4, false);
+    HS.copyInts(ordIndexList.elements(), 0, ordsPoolPtr, 0, numOrds);
   }
   
+  @Override
+  public NativeSortedSetDocValues duplicate() {
+    return new NativeSortedSetDocValues(this);
+  }
+
   @Override
   public long nextOrd() {
     if (currentVal == SortedSetDocValuesUtil.UNASSIGNED || !hasMoreOrds) {
@@ -148,9 +154,8 @@ public class NativeSortedSetDocValues extends SortedSetDocValues implements Clos
 
   @Override
   public void close() throws IOException {
-    HS.freeArray(bufferPtr);
-    HS.freeArray(ordsPtr);
-    HS.freeArray(bytesRefPtr);
-    HS.freeArray(ordsPoolPtr);
+    if (ownsArena) {
+      arena.close();
+    }
   }
 }
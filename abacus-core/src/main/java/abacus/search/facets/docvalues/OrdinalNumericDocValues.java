@@ -0,0 +1,79 @@
+package abacus.search.facets.docvalues;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+import java.util.Arrays;
+
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.util.packed.PackedInts;
+
+/**
+ * Numeric doc values loaded as a sorted dictionary of the unique values of the segment plus a
+ * packed column of per-doc ords into it. Low cardinality fields take less memory than a
+ * long per doc, and facets on them can be counted into a dense array indexed by ord.
+ */
+public class OrdinalNumericDocValues extends NumericDocValues {
+
+  /**
+   * Fields with more unique values in a segment are not worth a dictionary.
+   */
+  public static final int DEFAULT_MAX_VALUE_COUNT = 1 << 16;
+
+  private final long[] values;
+  private final PackedInts.Reader ords;
+
+  private OrdinalNumericDocValues(long[] values, PackedInts.Reader ords) {
+    this.values = values;
+    this.ords = ords;
+  }
+
+  /**
+   * Returns the ordinal doc values of docvals, or null if the segment has more than
+   * maxValueCount unique values.
+   */
+  public static OrdinalNumericDocValues build(NumericDocValues docvals, int maxdoc,
+      int maxValueCount) {
+    LongOpenHashSet valueSet = new LongOpenHashSet();
+    for (int i = 0; i < maxdoc; ++i) {
+      if (valueSet.add(docvals.get(i)) && valueSet.size() > maxValueCount) {
+        return null;
+      }
+    }
+    long[] values = valueSet.toLongArray();
+    Arrays.sort(values);
+
+    int bitsPerOrd = PackedInts.bitsRequired(Math.max(0, values.length - 1));
+    PackedInts.Mutable ords = PackedInts.getMutable(maxdoc, bitsPerOrd, PackedInts.FAST);
+    for (int i = 0; i < maxdoc; ++i) {
+      ords.set(i, Arrays.binarySearch(values, docvals.get(i)));
+    }
+    return new OrdinalNumericDocValues(values, ords);
+  }
+
+  @Override
+  public long get(int docID) {
+    return values[(int) ords.get(docID)];
+  }
+
+  public int getOrd(int docID) {
+    return (int) ords.get(docID);
+  }
+
+  public int getValueCount() {
+    return values.length;
+  }
+
+  /**
+   * Returns the value of ord, values are sorted so ords are in value order.
+   */
+  public long lookupOrd(int ord) {
+    return values[ord];
+  }
+
+  /**
+   * Returns the ord of value, or (-insertionPoint - 1) if the segment does not have it.
+   */
+  public int lookupValue(long value) {
+    return Arrays.binarySearch(values, value);
+  }
+}
@@ -1,8 +1,8 @@
 package abacus.search.facets.unsafe;
 
 import java.lang.reflect.Field;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
@@ -41,6 +41,7 @@ public class HS
       long addr = unsafe.allocateMemory(sz + HEADER_SIZE);
 
       numAlloc.incrementAndGet();
+      liveBytes.addAndGet(sz);
 
       if (zero) {
         // zero all the memory, including the header
@@ -56,6 +57,7 @@ public class HS
 
     public void freeArray(long ptr) {
       numFree.incrementAndGet();
+      liveBytes.addAndGet(-arraySizeBytes(ptr));
       unsafe.putLong(ptr - SIZE_OFFSET, -123456789L);  // put negative length to trip asserts
       unsafe.freeMemory(ptr - HEADER_SIZE);
     }
@@ -69,75 +71,83 @@ public class HS
     }
   }
 
-  // An allocator for debugging that tracks every allocation
-  public static class TrackingAllocator extends Allocator {
+  /**
+   * An allocator for debugging that records where one in sampleRate allocations was made,
+   * reporting the sampled allocations still live on {@link #debug()}. A rate of 1 tracks
+   * every allocation and also catches double frees. Allocations that are not sampled only
+   * pay for a counter increment.
+   */
+  public static class SamplingAllocator extends Allocator {
     private static class Info {
-      long ptr;
+      long size;
       StackTraceElement[] stack;
     }
 
-    Map<Long, Info> map = new LinkedHashMap<Long, Info>();
+    private final int sampleRate;
+    private final AtomicLong counter = new AtomicLong();
+    private final ConcurrentHashMap<Long, Info> sampled = new ConcurrentHashMap<Long, Info>();
+
+    public SamplingAllocator(int sampleRate) {
+      if (sampleRate < 1) {
+        throw new IllegalArgumentException("sample rate must be positive: " + sampleRate);
+      }
+      this.sampleRate = sampleRate;
+    }
 
     @Override
     public long allocArray(long numElements, int elementSize, boolean zero) throws OutOfMemoryError {
-      Info info = new Info();
-      Thread thread = Thread.currentThread();
-      info.stack = thread.getStackTrace();
-      // TODO: would storing String take up less space?
-      // ManagementFactory.getThreadMXBean().getThreadInfo(Thread.currentThread().getId());
-
-      synchronized (this) {
-        long ptr = super.allocArray(numElements, elementSize, zero);
-
-        info.ptr = ptr;
-        Info prev = map.put(ptr, info);
-
-        if (prev != null) {
+      long ptr = super.allocArray(numElements, elementSize, zero);
+      if (counter.getAndIncrement() % sampleRate == 0) {
+        Info info = new Info();
+        info.size = numElements * elementSize;
+        info.stack = Thread.currentThread().getStackTrace();
+        if (sampled.put(ptr, info) != null) {
           throw new RuntimeException("HS Allocator ERROR : should be impossible!!!");
         }
-
-        return ptr;
       }
+      return ptr;
     }
 
     @Override
     public void freeArray(long ptr) {
-      synchronized (this) {
-        Info curr = map.remove(ptr);
-
-        if (curr == null) {
-          // TODO: if we provide a way to clear, it's not an error.
-          // TODO: will it be possible to dynamically switch to a debugging allocator?  would be good for debugging live customer site...
-          // perhaps detect if we have been switched on and not consider this an error...
-          throw new RuntimeException("HS Allocator ERROR: no record of " + ptr + " , bad pointer or double free.");
-        }
-
-        super.freeArray(ptr);
+      if (sampled.remove(ptr) == null && sampleRate == 1) {
+        throw new RuntimeException("HS Allocator ERROR: no record of " + ptr + " , bad pointer or double free.");
       }
+      super.freeArray(ptr);
     }
 
     @Override
     public void debug() {
-      synchronized (this) {
-        int n = map.size();
-        int show = Math.min(n, 20);
-        if (n > 0) {
-          log.error("CURRENT ALLOCATIONS=" + n + (n==show ? "" : " Showing first " + show));
+      int n = sampled.size();
+      int show = Math.min(n, 20);
+      if (n > 0) {
+        log.error("SAMPLED ALLOCATIONS=" + n + " (1 in " + sampleRate + ")"
+            + (n==show ? "" : " Showing first " + show));
+      }
+      for (Entry<Long, Info> entry : sampled.entrySet()) {
+        if (show-- == 0) {
+          break;
         }
-        for (Info info : map.values()) {
-          //log.error("PTR: " + info.ptr + " SIZE=" + arraySizeBytes(info.ptr) + " ALLOCATED AT " + Diagnostics.toString(info.stack, HS.class.getSimpleName()));
-        	log.error("PTR: " + info.ptr + " SIZE=" + arraySizeBytes(info.ptr));
+        Info info = entry.getValue();
+        StringBuilder stack = new StringBuilder();
+        // skip getStackTrace and the allocator frames
+        for (int i = 3; i < Math.min(info.stack.length, 13); ++i) {
+          stack.append("\n\tat ").append(info.stack[i]);
         }
-
+        log.error("PTR: " + entry.getKey() + " SIZE=" + info.size + " ALLOCATED AT" + stack);
       }
     }
   }
 
-  public static Allocator allocator = new Allocator();
-  // public static Allocator allocator = new TrackingAllocator();
+  // -Dabacus.hs.sampleRate=N samples one in N allocations, see SamplingAllocator
+  private static final int SAMPLE_RATE = Integer.getInteger("abacus.hs.sampleRate", 0);
+
+  public static Allocator allocator =
+      SAMPLE_RATE > 0 ? new SamplingAllocator(SAMPLE_RATE) : new Allocator();
 
   private static final AtomicLong numAlloc = new AtomicLong();
   private static final AtomicLong numFree = new AtomicLong();
+  private static final AtomicLong liveBytes = new AtomicLong();
 
   public static final int HEADER_SIZE = 16;
   public static final int SIZE_OFFSET = 8;
@@ -150,6 +160,14 @@ public class HS
     return numFree.get();
   }
 
+  /**
+   * Returns the bytes of the arrays allocated and not freed yet, see {@link NativeArena} for
+   * a break down per segment and field.
+   */
+  public static long getLiveBytes() {
+    return liveBytes.get();
+  }
+
   public static long allocArray(long numElements, int elementSize, boolean zero) throws OutOfMemoryError {
     return allocator.allocArray(numElements, elementSize, zero);
   }
@@ -184,6 +202,11 @@ public class HS
     unsafe.putLong(ptr + (((long) index) << 3), val);
   }
 
+  public static void copyBytes(byte[] srcArray, int srcOff, long targetPointer, long targetOff, int numBytes) {
+    assert srcOff>=0 && targetOff>=0 && (targetOff + numBytes) <= arraySizeBytes(targetPointer);
+    unsafe.copyMemory(srcArray, Unsafe.ARRAY_BYTE_BASE_OFFSET + srcOff, null, targetPointer+targetOff, numBytes);
+  }
+
   public static void copyInts(int[] srcArray, int srcOff, long targetPointer, long targetOff,  int numElements) {
     long targetOffBytes = targetOff<<2;
     long nbytes = ((long)numElements) << 2;
@@ -227,10 +250,4 @@ public class HS
     assert(srcOff>=0 && destOff>=0 && srcOffBytes+nBytes <= arraySizeBytes(src) && destOffBytes+nBytes <= arraySizeBytes(dest));
     unsafe.copyMemory(src+srcOffBytes, dest+destOffBytes, nBytes);
   }
-
-
-
-  // TODO: introduce the concept of a reference list to ease deallocation?  (just an auto-expanding long[])
-
-  // TODO: YCS: a finalizer to clean up native memory?
 }
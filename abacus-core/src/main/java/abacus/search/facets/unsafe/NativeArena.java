@@ -0,0 +1,272 @@
+package abacus.search.facets.unsafe;
+
+import java.io.Closeable;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Native memory of one segment, e.g. all the native columns of a
+ * {@link abacus.search.facets.FastDocValuesAtomicReader}, released at once by {@link #close()}.
+ * <p>
+ * Arrays are carved out of slabs, keeping the header of {@link HS} arrays so that
+ * {@link HS#arraySizeBytes(long)} and the accessors of HS work on them. Slabs start at a 64th
+ * of the slab size, {@link #DEFAULT_SLAB_SIZE} by default, and double up to it so that small
+ * segments hold little memory. Arrays of more than a quarter of the slab size get a block of
+ * their own. Arrays are never freed one by one.
+ * <p>
+ * Arenas that become unreachable without being closed are released once garbage collected
+ * by a daemon reaper thread, and by {@link #reclaimLeaked()}, which is also run whenever an
+ * arena is created or closed.
+ */
+public class NativeArena implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(NativeArena.class);
+
+  public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+  // segment and field of the arrays of doc values that own their arena
+  public static final String UNKNOWN = "unknown";
+
+  private static final ReferenceQueue<NativeArena> leaked = new ReferenceQueue<NativeArena>();
+  // keeps the references themselves reachable until their arena is released
+  private static final Set<Slabs> live =
+      Collections.newSetFromMap(new ConcurrentHashMap<Slabs, Boolean>());
+
+  static {
+    Thread reaper = new Thread("abacus-native-arena-reaper") {
+      @Override
+      public void run() {
+        while (true) {
+          try {
+            release((Slabs) leaked.remove());
+          } catch (InterruptedException e) {
+            return;
+          } catch (RuntimeException e) {
+            log.error("failed to release leaked native arena", e);
+          }
+        }
+      }
+    };
+    reaper.setDaemon(true);
+    reaper.start();
+  }
+
+  private final Slabs slabs;
+
+  public NativeArena(String segment) {
+    this(segment, DEFAULT_SLAB_SIZE);
+  }
+
+  public NativeArena(String segment, int slabSize) {
+    if (slabSize < 4 * HS.HEADER_SIZE) {
+      throw new IllegalArgumentException("slab size too small: " + slabSize);
+    }
+    reclaimLeaked();
+    slabs = new Slabs(this, segment, slabSize);
+    live.add(slabs);
+  }
+
+  /**
+   * Allocates an array of field the way {@link HS#allocArray(long, int, boolean)} does.
+   */
+  public long allocArray(String field, long numElements, int elementSize, boolean zero) {
+    return slabs.alloc(field, numElements * elementSize, zero);
+  }
+
+  public String getSegment() {
+    return slabs.segment;
+  }
+
+  /**
+   * Returns the bytes of the arrays allocated so far, keyed by field.
+   */
+  public Map<String, Long> getBytesPerField() {
+    return slabs.bytesPerField();
+  }
+
+  /**
+   * Returns the native bytes held, including the unused ends of slabs.
+   */
+  public long getBytesReserved() {
+    return slabs.reserved();
+  }
+
+  /**
+   * Frees every array of this arena, later calls are no-ops.
+   */
+  @Override
+  public void close() {
+    if (live.remove(slabs)) {
+      slabs.clear();
+      slabs.free();
+    }
+    reclaimLeaked();
+  }
+
+  /**
+   * Releases the arenas that were garbage collected without being closed and returns how
+   * many there were.
+   */
+  public static int reclaimLeaked() {
+    int count = 0;
+    Slabs slabs;
+    while ((slabs = (Slabs) leaked.poll()) != null) {
+      if (release(slabs)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  // false if the arena was closed or released already, by the reaper or another poll
+  private static boolean release(Slabs slabs) {
+    if (!live.remove(slabs)) {
+      return false;
+    }
+    log.warn("releasing " + slabs.reserved() + " native bytes of segment " + slabs.segment
+        + " that were never closed");
+    slabs.free();
+    return true;
+  }
+
+  /**
+   * Returns the bytes of the arrays of all live arenas, keyed by segment.
+   */
+  public static Map<String, Long> liveBytesPerSegment() {
+    Map<String, Long> bytes = new HashMap<String, Long>();
+    for (Slabs slabs : live) {
+      long total = 0;
+      for (Long fieldBytes : slabs.bytesPerField().values()) {
+        total += fieldBytes;
+      }
+      add(bytes, slabs.segment, total);
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns the bytes of the arrays of all live arenas, keyed by field.
+   */
+  public static Map<String, Long> liveBytesPerField() {
+    Map<String, Long> bytes = new HashMap<String, Long>();
+    for (Slabs slabs : live) {
+      for (Entry<String, Long> entry : slabs.bytesPerField().entrySet()) {
+        add(bytes, entry.getKey(), entry.getValue());
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns the native bytes held by all live arenas.
+   */
+  public static long liveBytesReserved() {
+    long total = 0;
+    for (Slabs slabs : live) {
+      total += slabs.reserved();
+    }
+    return total;
+  }
+
+  private static void add(Map<String, Long> map, String key, long value) {
+    Long prev = map.get(key);
+    map.put(key, prev == null ? value : prev + value);
+  }
+
+  /**
+   * The native state of an arena, reachable from the live set and not from the arena's
+   * users, so that it can be freed once the arena is collected.
+   */
+  private static class Slabs extends PhantomReference<NativeArena> {
+    final String segment;
+    private final int slabSize;
+    // pointers of the slabs and the blocks of large arrays, as returned by HS.allocArray
+    private long[] blocks = new long[8];
+    private int numBlocks;
+    private long reserved;
+    private long slab;
+    private long slabCapacity;
+    private long slabUsed;
+    private long nextSlabSize;
+    private final Map<String, Long> bytesPerField = new HashMap<String, Long>();
+    private boolean freed;
+
+    Slabs(NativeArena arena, String segment, int slabSize) {
+      super(arena, leaked);
+      this.segment = segment;
+      this.slabSize = slabSize;
+      nextSlabSize = Math.max(4 * HS.HEADER_SIZE, slabSize >>> 6);
+    }
+
+    synchronized long alloc(String field, long size, boolean zero) {
+      if (freed) {
+        throw new IllegalStateException("arena of " + segment + " is closed");
+      }
+      long ptr;
+      if (size > slabSize >>> 2) {
+        ptr = HS.allocArray(size, 1, zero);
+        addBlock(ptr, size);
+      } else {
+        // headers and arrays stay 8 byte aligned
+        long needed = HS.HEADER_SIZE + ((size + 7) & ~7L);
+        if (slab == 0 || slabUsed + needed > slabCapacity) {
+          slabCapacity = Math.min(slabSize, Math.max(nextSlabSize, needed));
+          nextSlabSize = Math.min(slabSize, nextSlabSize * 2);
+          slab = HS.allocArray(slabCapacity, 1, false);
+          slabUsed = 0;
+          addBlock(slab, slabCapacity);
+        }
+        ptr = slab + slabUsed + HS.HEADER_SIZE;
+        slabUsed += needed;
+        if (zero) {
+          HS.unsafe.setMemory(ptr, size, (byte) 0);
+        }
+        HS.unsafe.putLong(ptr - HS.SIZE_OFFSET, size);
+      }
+      Long prev = bytesPerField.get(field);
+      bytesPerField.put(field, prev == null ? size : prev + size);
+      return ptr;
+    }
+
+    private void addBlock(long ptr, long size) {
+      if (numBlocks == blocks.length) {
+        long[] grown = new long[blocks.length * 2];
+        System.arraycopy(blocks, 0, grown, 0, numBlocks);
+        blocks = grown;
+      }
+      blocks[numBlocks++] = ptr;
+      reserved += size;
+    }
+
+    synchronized Map<String, Long> bytesPerField() {
+      return new HashMap<String, Long>(bytesPerField);
+    }
+
+    synchronized long reserved() {
+      return reserved;
+    }
+
+    synchronized void free() {
+      if (freed) {
+        return;
+      }
+      freed = true;
+      for (int i = 0; i < numBlocks; ++i) {
+        HS.freeArray(blocks[i]);
+      }
+      blocks = null;
+      numBlocks = 0;
+      reserved = 0;
+      slab = 0;
+      bytesPerField.clear();
+    }
+  }
+}
@@ -5,6 +5,7 @@ import abacus.api.AbacusBooleanFilter;
 import abacus.api.AbacusBooleanSubFilter;
 import abacus.api.AbacusFilter;
 import abacus.config.FieldConfig;
+import abacus.search.docsets.DocIdSetStore;
 import abacus.service.AbacusQueryParser;
 import org.apache.lucene.queries.BooleanFilter;
 import org.apache.lucene.search.BooleanClause;
@@ -15,8 +16,8 @@ import java.util.Map;
 
 public class BooleanFilterConstructor extends FilterConstructor {
   @Override
-  protected Filter construct(AbacusFilter abacusFilter, AbacusQueryParser queryParser)
-      throws IOException {
+  protected Filter construct(AbacusFilter abacusFilter, AbacusQueryParser queryParser,
+      Map<String, FieldConfig> configMap, DocIdSetStore docIdSets) throws IOException {
     if (!abacusFilter.isSetBooleanFilter()) {
       return null;
     }
@@ -33,7 +34,8 @@ public class BooleanFilterConstructor extends FilterConstructor {
       } else if (subFilter.getOccur() == AbacusBooleanClauseOccur.MUST_NOT) {
         occur = BooleanClause.Occur.MUST_NOT;
       }
-      filter.add(FilterConstructor.constructFilter(subFilter.getFilter(), queryParser), occur);
+      filter.add(FilterConstructor.constructFilter(subFilter.getFilter(), queryParser,
+          configMap, docIdSets), occur);
     }
     return filter;
   }
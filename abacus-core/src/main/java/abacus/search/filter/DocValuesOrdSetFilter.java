@@ -0,0 +1,177 @@
+package abacus.search.filter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeSet;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocValuesDocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.LongBitSet;
+
+/**
+ * Term filter on a SINGLE or MULTI facet field that reads the ords of each candidate doc from
+ * the field's doc values instead of walking the postings of every term. The values are
+ * resolved once per segment to a set of accepted ords, and the returned set supports random
+ * access, so {@link org.apache.lucene.search.FilteredQuery} only checks the docs the query
+ * matches, as the second phase of a two-phase iteration.
+ * <p>
+ * Matches the docs with any of the values, or all of them if matchAll is set, and none of the
+ * excludes. With no values, every doc without any of the excludes matches.
+ */
+public class DocValuesOrdSetFilter extends Filter {
+
+  private final String field;
+  private final boolean multi;
+  private final BytesRef[] values;
+  private final boolean matchAll;
+  private final BytesRef[] excludes;
+
+  public DocValuesOrdSetFilter(String field, boolean multi, Collection<String> values,
+      boolean matchAll, Collection<String> excludes) {
+    this.field = field;
+    this.multi = multi;
+    this.values = toSortedBytes(values);
+    this.matchAll = matchAll;
+    this.excludes = toSortedBytes(excludes);
+  }
+
+  private static BytesRef[] toSortedBytes(Collection<String> strings) {
+    if (strings == null) {
+      return new BytesRef[0];
+    }
+    TreeSet<BytesRef> sorted = new TreeSet<>();
+    for (String s : strings) {
+      sorted.add(new BytesRef(s));
+    }
+    return sorted.toArray(new BytesRef[sorted.size()]);
+  }
+
+  @Override
+  public DocIdSet getDocIdSet(LeafReaderContext context, Bits acceptDocs) throws IOException {
+    LeafReader reader = context.reader();
+    if (multi) {
+      return getSortedSetDocIdSet(reader, acceptDocs);
+    } else {
+      return getSortedDocIdSet(reader, acceptDocs);
+    }
+  }
+
+  private DocIdSet getSortedDocIdSet(LeafReader reader, Bits acceptDocs) throws IOException {
+    final SortedDocValues docVals = DocValues.getSorted(reader, field);
+    final FixedBitSet acceptedOrds = new FixedBitSet(docVals.getValueCount());
+    final boolean acceptMissing = values.length == 0;
+    if (acceptMissing) {
+      acceptedOrds.set(0, acceptedOrds.length());
+    } else {
+      if (matchAll && values.length > 1) {
+        // a single valued doc cannot have them all
+        return null;
+      }
+      for (BytesRef value : values) {
+        int ord = docVals.lookupTerm(value);
+        if (ord >= 0) {
+          acceptedOrds.set(ord);
+        }
+      }
+    }
+    for (BytesRef exclude : excludes) {
+      int ord = docVals.lookupTerm(exclude);
+      if (ord >= 0) {
+        acceptedOrds.clear(ord);
+      }
+    }
+    if (!acceptMissing && acceptedOrds.cardinality() == 0) {
+      return null;
+    }
+    return new DocValuesDocIdSet(reader.maxDoc(), acceptDocs) {
+      @Override
+      protected boolean matchDoc(int doc) {
+        int ord = docVals.getOrd(doc);
+        return ord < 0 ? acceptMissing : acceptedOrds.get(ord);
+      }
+    };
+  }
+
+  private DocIdSet getSortedSetDocIdSet(LeafReader reader, Bits acceptDocs) throws IOException {
+    final SortedSetDocValues docVals = DocValues.getSortedSet(reader, field);
+    final LongBitSet valueOrds = new LongBitSet(docVals.getValueCount());
+    final LongBitSet excludeOrds = new LongBitSet(docVals.getValueCount());
+    int numValueOrds = 0;
+    for (BytesRef value : values) {
+      long ord = docVals.lookupTerm(value);
+      if (ord >= 0) {
+        valueOrds.set(ord);
+        numValueOrds++;
+      } else if (matchAll) {
+        return null;
+      }
+    }
+    if (values.length > 0 && numValueOrds == 0) {
+      return null;
+    }
+    for (BytesRef exclude : excludes) {
+      long ord = docVals.lookupTerm(exclude);
+      if (ord >= 0) {
+        excludeOrds.set(ord);
+      }
+    }
+    final int numRequired = values.length == 0 ? 0 : matchAll ? numValueOrds : 1;
+    final boolean hasExcludes = excludeOrds.cardinality() > 0;
+    return new DocValuesDocIdSet(reader.maxDoc(), acceptDocs) {
+      @Override
+      protected boolean matchDoc(int doc) {
+        docVals.setDocument(doc);
+        int found = 0;
+        long ord;
+        while ((ord = docVals.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+          if (hasExcludes && excludeOrds.get(ord)) {
+            return false;
+          }
+          if (valueOrds.get(ord) && ++found == numRequired && !hasExcludes) {
+            return true;
+          }
+        }
+        return found >= numRequired;
+      }
+    };
+  }
+
+  @Override
+  public String toString(String defaultField) {
+    StringBuilder buf = new StringBuilder("DocValuesOrdSetFilter(").append(field);
+    buf.append(matchAll ? " all:" : " any:").append(Arrays.toString(values));
+    if (excludes.length > 0) {
+      buf.append(" excludes:").append(Arrays.toString(excludes));
+    }
+    return buf.append(')').toString();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!super.equals(obj)) {
+      return false;
+    }
+    DocValuesOrdSetFilter other = (DocValuesOrdSetFilter) obj;
+    return field.equals(other.field) && multi == other.multi && matchAll == other.matchAll
+        && Arrays.equals(values, other.values) && Arrays.equals(excludes, other.excludes);
+  }
+
+  @Override
+  public int hashCode() {
+    int h = 31 * super.hashCode() + field.hashCode();
+    h = 31 * h + (multi ? 1 : 0);
+    h = 31 * h + (matchAll ? 1 : 0);
+    h = 31 * h + Arrays.hashCode(values);
+    return 31 * h + Arrays.hashCode(excludes);
+  }
+}
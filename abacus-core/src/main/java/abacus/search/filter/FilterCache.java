@@ -0,0 +1,326 @@
+package abacus.search.filter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReader.CoreClosedListener;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.packed.HybridDocIdSet;
+
+import abacus.api.AbacusBooleanFilter;
+import abacus.api.AbacusBooleanSubFilter;
+import abacus.api.AbacusFilter;
+import abacus.api.AbacusTermFilter;
+
+/**
+ * Caches the doc id sets of filters per segment, keyed by the normalized {@link AbacusFilter},
+ * the version of the named doc id sets it may reference and the core cache key of the
+ * segment, so a filter repeated across requests is executed once per segment. Sets are stored compressed as {@link HybridDocIdSet}s without deletions,
+ * which are applied on every use, so a set stays valid for as long as its segment core lives.
+ * <p>
+ * A filter is only cached once it has been seen minFrequency times among the recently
+ * constructed filters, so that one-off filters do not evict the popular ones. Entries are
+ * evicted in least recently used order when the cache exceeds its byte budget, and when the
+ * core of their segment is closed.
+ */
+public class FilterCache {
+
+  // bytes accounted for every entry besides its doc id set
+  private static final long ENTRY_OVERHEAD = 8 * RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+  // number of recently constructed filters whose frequency is tracked
+  private static final int FREQUENCY_HISTORY_SIZE = 1024;
+
+  private final long maxBytes;
+  private final int minFrequency;
+
+  // all guarded by this
+  private final Map<CacheKey, DocIdSet> cache = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<AbacusFilter, int[]> frequencies =
+      new LinkedHashMap<AbacusFilter, int[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<AbacusFilter, int[]> eldest) {
+          return size() > FREQUENCY_HISTORY_SIZE;
+        }
+      };
+  private final Set<Object> registeredCores = new HashSet<>();
+  private long ramBytesUsed = 0;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  private final CoreClosedListener coreClosedListener = new CoreClosedListener() {
+    @Override
+    public void onClose(Object ownerCoreCacheKey) {
+      clearCore(ownerCoreCacheKey);
+    }
+  };
+
+  /**
+   * @param maxBytes budget of the cached doc id sets
+   * @param minFrequency number of times a filter must be seen before its sets are cached
+   */
+  public FilterCache(long maxBytes, int minFrequency) {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+    }
+    if (minFrequency < 1) {
+      throw new IllegalArgumentException("minFrequency must be at least 1: " + minFrequency);
+    }
+    this.maxBytes = maxBytes;
+    this.minFrequency = minFrequency;
+  }
+
+  /**
+   * Returns filter, constructed from abacusFilter, wrapped so that its sets are read from and
+   * put into this cache when abacusFilter is frequent enough.
+   */
+  public Filter wrap(AbacusFilter abacusFilter, Filter filter) {
+    return wrap(abacusFilter, filter, 0);
+  }
+
+  /**
+   * Same as {@link #wrap(AbacusFilter, Filter)} for a filter that may reference named doc id
+   * sets, cached per version of the sets, see
+   * {@link abacus.search.docsets.DocIdSetStore#getVersion()}.
+   */
+  public Filter wrap(AbacusFilter abacusFilter, Filter filter, long setsVersion) {
+    AbacusFilter key = normalize(abacusFilter);
+    boolean admitted;
+    synchronized (this) {
+      int[] frequency = frequencies.get(key);
+      if (frequency == null) {
+        frequency = new int[1];
+        frequencies.put(key, frequency);
+      }
+      admitted = ++frequency[0] >= minFrequency;
+    }
+    return new CachingFilter(key, setsVersion, filter, admitted);
+  }
+
+  /**
+   * Returns a copy of abacusFilter where term values and boolean clauses are sorted, so that
+   * filters matching the same docs by construction have equal keys.
+   */
+  public static AbacusFilter normalize(AbacusFilter abacusFilter) {
+    AbacusFilter normalized = abacusFilter.deepCopy();
+    if (normalized.isSetTermFilter()) {
+      AbacusTermFilter termFilter = normalized.getTermFilter();
+      if (termFilter.isSetValues()) {
+        termFilter.setValues(new ArrayList<>(new TreeSet<>(termFilter.getValues())));
+      }
+      if (termFilter.isSetExcludes()) {
+        termFilter.setExcludes(new ArrayList<>(new TreeSet<>(termFilter.getExcludes())));
+      }
+    } else if (normalized.isSetBooleanFilter()) {
+      AbacusBooleanFilter booleanFilter = normalized.getBooleanFilter();
+      List<AbacusBooleanSubFilter> subFilters = new ArrayList<>(booleanFilter.getFiltersSize());
+      for (AbacusBooleanSubFilter subFilter : booleanFilter.getFilters()) {
+        if (subFilter.isSetFilter()) {
+          subFilter.setFilter(normalize(subFilter.getFilter()));
+        }
+        subFilters.add(subFilter);
+      }
+      Collections.sort(subFilters, new Comparator<AbacusBooleanSubFilter>() {
+        @Override
+        public int compare(AbacusBooleanSubFilter f1, AbacusBooleanSubFilter f2) {
+          return f1.toString().compareTo(f2.toString());
+        }
+      });
+      booleanFilter.setFilters(subFilters);
+    }
+    return normalized;
+  }
+
+  private synchronized DocIdSet get(CacheKey key) {
+    DocIdSet docIdSet = cache.get(key);
+    if (docIdSet != null) {
+      hitCount.incrementAndGet();
+    } else {
+      missCount.incrementAndGet();
+    }
+    return docIdSet;
+  }
+
+  private void put(CacheKey key, DocIdSet docIdSet, LeafReader reader) {
+    long bytes = docIdSet.ramBytesUsed() + ENTRY_OVERHEAD;
+    if (bytes > maxBytes) {
+      return;
+    }
+    boolean register;
+    synchronized (this) {
+      DocIdSet previous = cache.put(key, docIdSet);
+      if (previous != null) {
+        ramBytesUsed -= previous.ramBytesUsed() + ENTRY_OVERHEAD;
+      }
+      ramBytesUsed += bytes;
+      Iterator<Entry<CacheKey, DocIdSet>> it = cache.entrySet().iterator();
+      while (ramBytesUsed > maxBytes && it.hasNext()) {
+        Entry<CacheKey, DocIdSet> eldest = it.next();
+        ramBytesUsed -= eldest.getValue().ramBytesUsed() + ENTRY_OVERHEAD;
+        it.remove();
+        evictionCount.incrementAndGet();
+      }
+      register = registeredCores.add(key.coreKey);
+    }
+    if (register) {
+      reader.addCoreClosedListener(coreClosedListener);
+    }
+  }
+
+  private synchronized void clearCore(Object coreKey) {
+    registeredCores.remove(coreKey);
+    Iterator<Entry<CacheKey, DocIdSet>> it = cache.entrySet().iterator();
+    while (it.hasNext()) {
+      Entry<CacheKey, DocIdSet> entry = it.next();
+      if (entry.getKey().coreKey == coreKey) {
+        ramBytesUsed -= entry.getValue().ramBytesUsed() + ENTRY_OVERHEAD;
+        it.remove();
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    cache.clear();
+    frequencies.clear();
+    ramBytesUsed = 0;
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Returns the number of sets evicted to stay in the byte budget, sets of closed segments
+   * are not counted.
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  public synchronized int getCacheSize() {
+    return cache.size();
+  }
+
+  public synchronized long ramBytesUsed() {
+    return ramBytesUsed;
+  }
+
+  @Override
+  public String toString() {
+    return "FilterCache(hits:" + getHitCount() + " misses:" + getMissCount() + " evictions:"
+        + getEvictionCount() + " size:" + getCacheSize() + " bytes:" + ramBytesUsed() + ")";
+  }
+
+  private static class CacheKey {
+    final AbacusFilter filter;
+    final long setsVersion;
+    final Object coreKey;
+    private final int hash;
+
+    CacheKey(AbacusFilter filter, long setsVersion, Object coreKey) {
+      this.filter = filter;
+      this.setsVersion = setsVersion;
+      this.coreKey = coreKey;
+      int h = 31 * System.identityHashCode(coreKey) + filter.hashCode();
+      this.hash = 31 * h + (int) (setsVersion ^ (setsVersion >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof CacheKey)) {
+        return false;
+      }
+      CacheKey other = (CacheKey) obj;
+      return coreKey == other.coreKey && hash == other.hash && setsVersion == other.setsVersion
+          && filter.equals(other.filter);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private class CachingFilter extends Filter {
+    private final AbacusFilter key;
+    private final long setsVersion;
+    private final Filter filter;
+    private final boolean admitted;
+
+    CachingFilter(AbacusFilter key, long setsVersion, Filter filter, boolean admitted) {
+      this.key = key;
+      this.setsVersion = setsVersion;
+      this.filter = filter;
+      this.admitted = admitted;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(LeafReaderContext context, Bits acceptDocs) throws IOException {
+      if (!admitted) {
+        return filter.getDocIdSet(context, acceptDocs);
+      }
+      LeafReader reader = context.reader();
+      CacheKey cacheKey = new CacheKey(key, setsVersion, reader.getCoreCacheKey());
+      DocIdSet docIdSet = get(cacheKey);
+      if (docIdSet == null) {
+        docIdSet = load(context);
+        put(cacheKey, docIdSet, reader);
+      }
+      return docIdSet == DocIdSet.EMPTY ? null : BitsFilteredDocIdSet.wrap(docIdSet, acceptDocs);
+    }
+
+    private DocIdSet load(LeafReaderContext context) throws IOException {
+      DocIdSet docIdSet = filter.getDocIdSet(context, null);
+      DocIdSetIterator it = docIdSet == null ? null : docIdSet.iterator();
+      if (it == null) {
+        return DocIdSet.EMPTY;
+      }
+      return HybridDocIdSet.of(it);
+    }
+
+    @Override
+    public String toString(String field) {
+      return "cached(" + filter.toString(field) + ")";
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!super.equals(obj)) {
+        return false;
+      }
+      CachingFilter other = (CachingFilter) obj;
+      return key.equals(other.key) && setsVersion == other.setsVersion
+          && filter.equals(other.filter);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * super.hashCode() + key.hashCode()) + filter.hashCode();
+    }
+  }
+}
@@ -2,6 +2,7 @@ package abacus.search.filter;
 
 import abacus.api.AbacusFilter;
 import abacus.config.FieldConfig;
+import abacus.search.docsets.DocIdSetStore;
 import abacus.service.AbacusQueryParser;
 import org.apache.lucene.search.Filter;
 
@@ -15,25 +16,38 @@ public abstract class FilterConstructor {
   private static final FilterConstructor RANGE_FILTER_CONSTRUCTOR = new RangeFilterConstructor();
   private static final FilterConstructor TERM_FILTER_CONSTRUCTOR = new TermFilterConstructor();
 
-  public static Filter constructFilter(AbacusFilter abacusFilter, AbacusQueryParser queryParser)
-      throws IOException {
+  /**
+   * @param configMap field configs of the index, term filters on SINGLE and MULTI facet
+   *     fields are evaluated on doc values when given
+   */
+  public static Filter constructFilter(AbacusFilter abacusFilter, AbacusQueryParser queryParser,
+      Map<String, FieldConfig> configMap) throws IOException {
+    return constructFilter(abacusFilter, queryParser, configMap, null);
+  }
+
+  /**
+   * @param docIdSets store of the named doc id sets that term filters on
+   *     {@link DocIdSetStore#FIELD} reference, null if there is none
+   */
+  public static Filter constructFilter(AbacusFilter abacusFilter, AbacusQueryParser queryParser,
+      Map<String, FieldConfig> configMap, DocIdSetStore docIdSets) throws IOException {
     if (abacusFilter == null) {
       return null;
     }
     if (abacusFilter.isSetBooleanFilter()) {
-      return BOOLEAN_FILTER_CONSTRUCTOR.construct(abacusFilter, queryParser);
+      return BOOLEAN_FILTER_CONSTRUCTOR.construct(abacusFilter, queryParser, configMap, docIdSets);
     } else if (abacusFilter.isSetNullFilter()) {
-      return NULL_FILTER_CONSTRUCTOR.construct(abacusFilter, queryParser);
+      return NULL_FILTER_CONSTRUCTOR.construct(abacusFilter, queryParser, configMap, docIdSets);
     } else if (abacusFilter.isSetQueryFilter()) {
-      return QUERY_FILTER_CONSTRUCTOR.construct(abacusFilter, queryParser);
+      return QUERY_FILTER_CONSTRUCTOR.construct(abacusFilter, queryParser, configMap, docIdSets);
     } else if (abacusFilter.isSetRangeFilter()) {
-      return RANGE_FILTER_CONSTRUCTOR.construct(abacusFilter, queryParser);
+      return RANGE_FILTER_CONSTRUCTOR.construct(abacusFilter, queryParser, configMap, docIdSets);
     } else if (abacusFilter.isSetTermFilter()) {
-      return TERM_FILTER_CONSTRUCTOR.construct(abacusFilter, queryParser);
+      return TERM_FILTER_CONSTRUCTOR.construct(abacusFilter, queryParser, configMap, docIdSets);
     }
     return null;
   }
 
-  abstract protected Filter construct(AbacusFilter abacusFilter, AbacusQueryParser queryParser)
-      throws IOException;
+  abstract protected Filter construct(AbacusFilter abacusFilter, AbacusQueryParser queryParser,
+      Map<String, FieldConfig> configMap, DocIdSetStore docIdSets) throws IOException;
 }
@@ -3,6 +3,8 @@ package abacus.search.filter;
 import abacus.api.AbacusFieldType;
 import abacus.api.AbacusFilter;
 import abacus.api.AbacusNullFilter;
+import abacus.config.FieldConfig;
+import abacus.search.docsets.DocIdSetStore;
 import abacus.service.AbacusQueryParser;
 import org.apache.lucene.queries.BooleanFilter;
 import org.apache.lucene.search.BooleanClause;
@@ -10,9 +12,12 @@ import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.NumericRangeFilter;
 import org.apache.lucene.search.TermRangeFilter;
 
+import java.util.Map;
+
 public class NullFilterConstructor extends FilterConstructor {
   @Override
-  protected Filter construct(AbacusFilter abacusFilter, AbacusQueryParser queryParser) {
+  protected Filter construct(AbacusFilter abacusFilter, AbacusQueryParser queryParser,
+      Map<String, FieldConfig> configMap, DocIdSetStore docIdSets) {
     if (!abacusFilter.isSetNullFilter()) {
       return null;
     }
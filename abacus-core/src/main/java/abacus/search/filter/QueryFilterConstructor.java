@@ -1,17 +1,20 @@
 package abacus.search.filter;
 
 import abacus.api.AbacusFilter;
+import abacus.config.FieldConfig;
+import abacus.search.docsets.DocIdSetStore;
 import abacus.search.query.QueryConstructor;
 import abacus.service.AbacusQueryParser;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.QueryWrapperFilter;
 
 import java.io.IOException;
+import java.util.Map;
 
 public class QueryFilterConstructor extends FilterConstructor {
   @Override
-  protected Filter construct(AbacusFilter abacusFilter, AbacusQueryParser queryParser)
-      throws IOException {
+  protected Filter construct(AbacusFilter abacusFilter, AbacusQueryParser queryParser,
+      Map<String, FieldConfig> configMap, DocIdSetStore docIdSets) throws IOException {
     if (!abacusFilter.isSetQueryFilter()) {
       return null;
     }
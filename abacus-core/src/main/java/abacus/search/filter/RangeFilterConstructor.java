@@ -4,15 +4,20 @@ import abacus.api.AbacusFieldType;
 import abacus.api.AbacusFilter;
 import abacus.api.AbacusRange;
 import abacus.api.AbacusRangeFilter;
+import abacus.config.FieldConfig;
+import abacus.search.docsets.DocIdSetStore;
 import abacus.service.AbacusQueryParser;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.NumericRangeFilter;
 import org.apache.lucene.search.TermRangeFilter;
 import org.apache.lucene.util.BytesRef;
 
+import java.util.Map;
+
 public class RangeFilterConstructor extends FilterConstructor {
   @Override
-  protected Filter construct(AbacusFilter abacusFilter, AbacusQueryParser queryParser) {
+  protected Filter construct(AbacusFilter abacusFilter, AbacusQueryParser queryParser,
+      Map<String, FieldConfig> configMap, DocIdSetStore docIdSets) {
     if (!abacusFilter.isSetRangeFilter()) {
       return null;
     }
@@ -3,6 +3,9 @@ package abacus.search.filter;
 import abacus.api.AbacusBooleanClauseOccur;
 import abacus.api.AbacusFilter;
 import abacus.api.AbacusTermFilter;
+import abacus.config.FacetIndexedType;
+import abacus.config.FieldConfig;
+import abacus.search.docsets.DocIdSetStore;
 import abacus.service.AbacusQueryParser;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queries.BooleanFilter;
@@ -10,9 +13,12 @@ import org.apache.lucene.queries.TermFilter;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.Filter;
 
+import java.util.Map;
+
 public class TermFilterConstructor extends FilterConstructor {
   @Override
-  protected Filter construct(AbacusFilter abacusFilter, AbacusQueryParser queryParser) {
+  protected Filter construct(AbacusFilter abacusFilter, AbacusQueryParser queryParser,
+      Map<String, FieldConfig> configMap, DocIdSetStore docIdSets) {
     if (!abacusFilter.isSetTermFilter()) {
       return null;
     }
@@ -20,9 +26,23 @@ public class TermFilterConstructor extends FilterConstructor {
     if (!termFilter.isSetValues() && !termFilter.isSetExcludes()) {
       return null;
     }
+    if (DocIdSetStore.FIELD.equals(termFilter.getField())) {
+      return constructDocIdSetFilter(termFilter, docIdSets);
+    }
     if (!termFilter.isSetExcludes() && termFilter.getValuesSize() == 1) {
       return new TermFilter(new Term(termFilter.getField(), termFilter.getValues().get(0)));
     }
+    FieldConfig config = configMap == null ? null : configMap.get(termFilter.getField());
+    // with no values and no excludes the boolean filter has no clauses and matches nothing,
+    // while an ord set filter without values would match every doc
+    boolean hasClauses = termFilter.getValuesSize() > 0 || termFilter.getExcludesSize() > 0;
+    if (config != null && hasClauses && (FacetIndexedType.SINGLE == config.getFacetType()
+        || FacetIndexedType.MULTI == config.getFacetType())) {
+      // one ord lookup per value and segment instead of a bitset per term
+      return new DocValuesOrdSetFilter(termFilter.getField(),
+          FacetIndexedType.MULTI == config.getFacetType(), termFilter.getValues(),
+          termFilter.getOccur() == AbacusBooleanClauseOccur.MUST, termFilter.getExcludes());
+    }
     BooleanFilter filter = new BooleanFilter();
     if (termFilter.isSetValues()) {
       BooleanClause.Occur occur = BooleanClause.Occur.SHOULD;
@@ -42,4 +62,30 @@ public class TermFilterConstructor extends FilterConstructor {
     }
     return filter;
   }
+
+  private static Filter constructDocIdSetFilter(AbacusTermFilter termFilter,
+      DocIdSetStore docIdSets) {
+    if (docIdSets == null) {
+      throw new IllegalArgumentException("no doc id sets to filter on: " + termFilter);
+    }
+    if (!termFilter.isSetExcludes() && termFilter.getValuesSize() == 1) {
+      return docIdSets.newFilter(termFilter.getValues().get(0));
+    }
+    BooleanFilter filter = new BooleanFilter();
+    if (termFilter.isSetValues()) {
+      BooleanClause.Occur occur = BooleanClause.Occur.SHOULD;
+      if (termFilter.getOccur() == AbacusBooleanClauseOccur.MUST) {
+        occur = BooleanClause.Occur.MUST;
+      }
+      for (String name : termFilter.getValues()) {
+        filter.add(docIdSets.newFilter(name), occur);
+      }
+    }
+    if (termFilter.isSetExcludes()) {
+      for (String name : termFilter.getExcludes()) {
+        filter.add(docIdSets.newFilter(name), BooleanClause.Occur.MUST_NOT);
+      }
+    }
+    return filter;
+  }
 }
@@ -0,0 +1,65 @@
+package abacus.search.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.util.ThreadInterruptedException;
+
+public class ConcurrentUtil {
+
+  private ConcurrentUtil() {}
+
+  /**
+   * Runs the tasks on the executor and waits for all of them, returning the results in task
+   * order. The last task is run on the calling thread so a request never waits on the pool
+   * for work it could be doing itself.
+   */
+  public static <T> List<T> invokeAll(ExecutorService executor, List<? extends Callable<T>> tasks)
+      throws IOException {
+    int numTasks = tasks.size();
+    List<Future<T>> futures = new ArrayList<>(numTasks);
+    for (int i = 0; i < numTasks - 1; ++i) {
+      futures.add(executor.submit(tasks.get(i)));
+    }
+    List<T> results = new ArrayList<>(numTasks);
+    T last = null;
+    Throwable failure = null;
+    if (numTasks > 0) {
+      try {
+        last = tasks.get(numTasks - 1).call();
+      } catch (Throwable t) {
+        failure = t;
+      }
+    }
+    for (Future<T> future : futures) {
+      try {
+        results.add(future.get());
+      } catch (InterruptedException e) {
+        throw new ThreadInterruptedException(e);
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause();
+        }
+      }
+    }
+    if (failure != null) {
+      if (failure instanceof IOException) {
+        throw (IOException) failure;
+      } else if (failure instanceof RuntimeException) {
+        throw (RuntimeException) failure;
+      } else if (failure instanceof Error) {
+        throw (Error) failure;
+      }
+      throw new IOException(failure.getMessage(), failure);
+    }
+    if (numTasks > 0) {
+      results.add(last);
+    }
+    return results;
+  }
+}
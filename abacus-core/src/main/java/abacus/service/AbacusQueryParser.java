@@ -8,16 +8,19 @@ public interface AbacusQueryParser {
   Query parse(String rawQuery) throws ParseException;
 
   public static class DefaultQueryParser implements AbacusQueryParser {
-    private final org.apache.lucene.queryparser.classic.QueryParser parser;
+    private final String defaultField;
+    private final Analyzer analyzer;
 
     public DefaultQueryParser(String defaultField, Analyzer analyzer) {
-      parser = new org.apache.lucene.queryparser.classic.QueryParser(
-          defaultField, analyzer);
+      this.defaultField = defaultField;
+      this.analyzer = analyzer;
     }
 
     @Override
     public Query parse(String rawQuery) throws ParseException {
-      return parser.parse(rawQuery);
+      // a lucene query parser keeps its parse state, it cannot be shared by concurrent queries
+      return new org.apache.lucene.queryparser.classic.QueryParser(
+          defaultField, analyzer).parse(rawQuery);
     }
   }
 }
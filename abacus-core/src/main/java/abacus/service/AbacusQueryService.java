@@ -3,38 +3,36 @@ package abacus.service;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.lucene.facet.FacetResult;
 import org.apache.lucene.facet.Facets;
 import org.apache.lucene.facet.FacetsCollector;
 import org.apache.lucene.facet.LabelAndValue;
 import org.apache.lucene.facet.sortedset.AbacusAttributeFacetCounts;
-import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.LeafReader;
-import org.apache.lucene.index.LeafReaderContext;
-import org.apache.lucene.index.MultiReader;
 import org.apache.lucene.queryparser.classic.ParseException;
-import org.apache.lucene.search.Collector;
 import org.apache.lucene.search.Explanation;
 import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
-import org.apache.lucene.search.MultiCollector;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.TopDocsCollector;
-import org.apache.lucene.search.TopFieldCollector;
-import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.IOUtils;
 
 import abacus.api.AbacusFilter;
 import abacus.api.AbacusHit;
@@ -47,28 +45,51 @@ import abacus.api.Facet;
 import abacus.api.FacetParam;
 import abacus.config.FacetIndexedType;
 import abacus.config.FieldConfig;
-import abacus.config.IndexDirectoryFacetsConfigReader;
 import abacus.indexing.AbacusIndexer;
-import abacus.search.facets.AttributeSortedSetDocValuesReaderState;
-import abacus.search.facets.FacetBucket;
-import abacus.search.facets.FacetRangeBuilder;
-import abacus.search.facets.FastDocValuesAtomicReader;
+import abacus.search.docsets.DocIdSetStore;
+import abacus.search.facets.FacetAccumulator;
+import abacus.search.facets.FacetAccumulatorFactory;
+import abacus.search.facets.FacetCountCache;
 import abacus.search.facets.FastDocValuesAtomicReader.MemType;
+import abacus.search.facets.GlobalOrdinalMap;
 import abacus.search.facets.LabelAndOrdFacetCounts;
 import abacus.search.facets.NumericBucketFacetCounts;
 import abacus.search.facets.NumericFacetCounts;
+import abacus.search.facets.RangeBucketIndex;
 import abacus.search.facets.SortedDocValuesOrdReader;
 import abacus.search.facets.SortedSetDocValuesOrdReader;
+import abacus.search.filter.FilterCache;
 import abacus.search.filter.FilterConstructor;
 import abacus.search.query.QueryConstructor;
+import abacus.service.metrics.QueryMetrics;
+import abacus.service.metrics.QueryMetrics.Phase;
 
 public class AbacusQueryService implements Closeable {
 
-  private final Map<String, FieldConfig> configMap;
-  private final Map<String, AttributeSortedSetDocValuesReaderState> attrReaderState;
-  private final IndexReader reader;
+  private final ReaderStateManager readerManager;
   private final AbacusQueryParser queryParser;
-  private final DirectoryReader dirReader;
+  private final ExecutorService executor;
+  private final PartitionedSearcher partitionedSearcher;
+  private final FilterCache filterCache;
+  private final ResultCache resultCache;
+  private final FacetCountCache facetCountCache;
+  private final DocIdSetStore docIdSets;
+  private final DocValuesLoader docValuesLoader;
+  private final QueryMetrics metrics;
+
+  private static final int MAX_REQUEST_RANGE_INDEXES = 1024;
+  // hits key of requests without query nor filter for the facet count cache
+  private static final Object MATCH_ALL_HITS = "*:*";
+  // ranges given in requests, compiled once per field type and range list
+  private final Map<String, RangeBucketIndex> requestRangeIndexes =
+      new LinkedHashMap<String, RangeBucketIndex>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RangeBucketIndex> eldest) {
+          return size() > MAX_REQUEST_RANGE_INDEXES;
+        }
+      };
 
   public AbacusQueryService(Directory idxDir, AbacusQueryParser queryParser) throws IOException {
     this(idxDir, queryParser, null, MemType.Default);
@@ -76,33 +97,200 @@ public class AbacusQueryService implements Closeable {
 
   public AbacusQueryService(Directory idxDir, AbacusQueryParser queryParser,
       Map<String, MemType> loadOptions, MemType defaultMemType) throws IOException {
-    dirReader = DirectoryReader.open(idxDir);
-    configMap = IndexDirectoryFacetsConfigReader.readerFacetsConfig(dirReader);
-    attrReaderState = new HashMap<>();
-    List<LeafReaderContext> leaves = dirReader.leaves();
-    LeafReader[] subReaders = new LeafReader[leaves.size()];
-    int i = 0;
-    for (LeafReaderContext leaf : leaves) {
-      LeafReader atomicReader = leaf.reader();
-      subReaders[i++] = new FastDocValuesAtomicReader(atomicReader, loadOptions, defaultMemType);
-    }
-
-    reader = new MultiReader(subReaders, true);
-
-    for (Entry<String, FieldConfig> entry : configMap.entrySet()) {
-      String name = entry.getKey();
-      FieldConfig config = entry.getValue();
-      if (FacetIndexedType.ATTRIBUTE.equals(config.getFacetType())) {
-        AttributeSortedSetDocValuesReaderState readerState = new AttributeSortedSetDocValuesReaderState(
-            reader, name);
-        attrReaderState.put(name, readerState);
+    this(idxDir, queryParser, loadOptions, defaultMemType, null);
+  }
+
+  public AbacusQueryService(Directory idxDir, AbacusQueryParser queryParser,
+      Map<String, MemType> loadOptions, MemType defaultMemType, ExecutorService executor)
+      throws IOException {
+    this(idxDir, queryParser, new QueryServiceConfigBuilder().withLoadOptions(loadOptions)
+        .withDefaultMemType(defaultMemType).withExecutor(executor).build());
+  }
+
+  /**
+   * With an executor in the config, every segment is collected on its own task, or every
+   * docid-range partition when docsPerPartition is set, and facets are counted per segment
+   * on the executor before being merged. The executor is owned by the caller and is not shut
+   * down by {@link #close()}.
+   */
+  public AbacusQueryService(Directory idxDir, AbacusQueryParser queryParser,
+      QueryServiceConfig serviceConfig) throws IOException {
+    this.executor = serviceConfig.getExecutor();
+    if (executor != null && serviceConfig.getDocsPerPartition() > 0) {
+      partitionedSearcher = new PartitionedSearcher(executor,
+          serviceConfig.getDocsPerPartition());
+    } else {
+      partitionedSearcher = null;
+    }
+    if (serviceConfig.getFilterCacheBytes() > 0) {
+      filterCache = new FilterCache(serviceConfig.getFilterCacheBytes(),
+          serviceConfig.getFilterCacheMinFrequency());
+    } else {
+      filterCache = null;
+    }
+    if (serviceConfig.getResultCacheSize() > 0) {
+      resultCache = new ResultCache(serviceConfig.getResultCacheSize(),
+          serviceConfig.getResultCacheTtlMillis());
+    } else {
+      resultCache = null;
+    }
+    // partitions of a segment are counted apart, so their counts cannot be cached per segment
+    if (serviceConfig.getFacetCountCacheBytes() > 0 && partitionedSearcher == null) {
+      facetCountCache = new FacetCountCache(serviceConfig.getFacetCountCacheBytes());
+    } else {
+      facetCountCache = null;
+    }
+    metrics = serviceConfig.isMetricsEnabled() ? new QueryMetrics() : QueryMetrics.disabled();
+    if (serviceConfig.getDocIdSetStorePath() != null) {
+      docIdSets = new DocIdSetStore(new MMapDirectory(serviceConfig.getDocIdSetStorePath()),
+          queryParser);
+    } else {
+      docIdSets = null;
+    }
+    docValuesLoader = new DocValuesLoader(serviceConfig.getLoadOptions(),
+        serviceConfig.getDefaultMemType(), serviceConfig.getMemoryBudget(),
+        serviceConfig.getLoadPriorities(), serviceConfig.getLoadThreads(),
+        serviceConfig.isBackgroundLoading());
+    boolean success = false;
+    try {
+      readerManager = new ReaderStateManager(idxDir, docValuesLoader, docIdSets);
+      success = true;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(docIdSets, docValuesLoader);
       }
     }
     this.queryParser = queryParser;
   }
 
-  public AbacusResult query(AbacusRequest req) throws ParseException, IOException {
+  /**
+   * Makes changes committed to the index since the last refresh visible to new queries.
+   * Segments that did not change keep their loaded doc values, only new or merged segments
+   * are loaded. Queries running during the refresh finish on the reader they started with.
+   */
+  public void refresh() throws IOException {
+    readerManager.maybeRefreshBlocking();
+  }
+
+  /**
+   * Saves the docs matching definition as the named doc id set, replacing the set of that
+   * name if any. The set is computed for every segment now and for every new or merged
+   * segment on refresh, and is referenced in filters as a term filter on
+   * {@link DocIdSetStore#FIELD}.
+   */
+  public void saveDocIdSet(String name, AbacusFilter definition) throws IOException {
+    requireDocIdSets().define(name, definition);
+    syncDocIdSets();
+  }
+
+  /**
+   * Deletes the named doc id set, returns false if there is none.
+   */
+  public boolean deleteDocIdSet(String name) throws IOException {
+    if (!requireDocIdSets().delete(name)) {
+      return false;
+    }
+    syncDocIdSets();
+    return true;
+  }
+
+  /**
+   * Returns the store of the named doc id sets, or null if none is configured.
+   */
+  public DocIdSetStore getDocIdSetStore() {
+    return docIdSets;
+  }
+
+  private DocIdSetStore requireDocIdSets() {
+    if (docIdSets == null) {
+      throw new IllegalStateException("no doc id set store path configured");
+    }
+    return docIdSets;
+  }
+
+  // maps the sets for the current state, cached filters and results of older sets are
+  // never served again, dropped here to free their memory
+  private void syncDocIdSets() throws IOException {
+    ReaderState state = readerManager.acquire();
+    try {
+      docIdSets.sync(state.reader, state.configMap);
+    } finally {
+      readerManager.release(state);
+    }
+    if (filterCache != null) {
+      filterCache.clear();
+    }
+    if (facetCountCache != null) {
+      facetCountCache.clear();
+    }
+    if (resultCache != null) {
+      resultCache.clear();
+    }
+  }
+
+  /**
+   * Returns the per-segment filter cache with its hit, miss and eviction counts, or null if
+   * filter caching is disabled.
+   */
+  public FilterCache getFilterCache() {
+    return filterCache;
+  }
+
+  /**
+   * Returns the cache of whole results by request, or null if result caching is disabled.
+   */
+  public ResultCache getResultCache() {
+    return resultCache;
+  }
+
+  /**
+   * Returns the per-segment facet count cache, or null if facet count caching is disabled.
+   */
+  public FacetCountCache getFacetCountCache() {
+    return facetCountCache;
+  }
+
+  /**
+   * Returns the latency and request metrics of the service, which record nothing unless
+   * enabled in the config.
+   */
+  public QueryMetrics getMetrics() {
+    return metrics;
+  }
+
+  public AbacusResult query(final AbacusRequest req) throws ParseException, IOException {
+    long start = metrics.start();
+    boolean failed = true;
+    final ReaderState state = readerManager.acquire();
+    try {
+      // read before any set is, cached filters, counts and results are keyed by it
+      final long setsVersion = docIdSets != null ? docIdSets.getVersion() : 0;
+      AbacusResult result;
+      if (resultCache != null) {
+        result = resultCache.get(req, state.dirReader.getVersion(), setsVersion,
+            new Callable<AbacusResult>() {
+              @Override
+              public AbacusResult call() throws Exception {
+                return query(req, state, setsVersion);
+              }
+            });
+      } else {
+        result = query(req, state, setsVersion);
+      }
+      failed = false;
+      return result;
+    } finally {
+      readerManager.release(state);
+      metrics.record(Phase.TOTAL, start);
+      metrics.countRequest(failed);
+    }
+  }
+
+  private AbacusResult query(AbacusRequest req, ReaderState state, long setsVersion)
+      throws ParseException, IOException {
+    IndexReader reader = state.reader;
     long start = System.currentTimeMillis();
+    long phaseStart = metrics.start();
     Query query;
     if (req.isSetQuery()) {
       AbacusQuery abacusQuery = req.getQuery();
@@ -110,12 +298,18 @@ public class AbacusQueryService implements Closeable {
     } else {
       query = new MatchAllDocsQuery();
     }
+    phaseStart = metrics.record(Phase.QUERY_CONSTRUCTION, phaseStart);
 
     Filter filter = null;
     if (req.isSetFilter()) {
       AbacusFilter abacusFilter = req.getFilter();
-      filter = FilterConstructor.constructFilter(abacusFilter, queryParser);
+      filter = FilterConstructor.constructFilter(abacusFilter, queryParser, state.configMap,
+          docIdSets);
+      if (filter != null && filterCache != null) {
+        filter = filterCache.wrap(abacusFilter, filter, setsVersion);
+      }
     }
+    phaseStart = metrics.record(Phase.FILTER_CONSTRUCTION, phaseStart);
 
     Sort sort = null;
     if (req.isSetSortFields()) {
@@ -140,9 +334,31 @@ public class AbacusQueryService implements Closeable {
       sort = new Sort(sortFields);
     }
 
-    FacetsCollector facetsCollector = null;
-    if (req.isSetFacetParams() && req.getFacetParams().size() > 0) {
-      facetsCollector = new FacetsCollector();
+    // without a query the hits only depend on the filter and the version of the sets it may
+    // reference, so counts per segment are reusable
+    Object hitsKey = null;
+    if (facetCountCache != null && !req.isSetQuery()) {
+      hitsKey = req.isSetFilter() ? Arrays.<Object>asList(FilterCache.normalize(req.getFilter()),
+          setsVersion) : MATCH_ALL_HITS;
+    }
+
+    // facets are accumulated during collection, only attribute facets need the matching docs
+    Map<String, FacetAccumulatorFactory> accumulatorFactories = new LinkedHashMap<>();
+    boolean collectMatchingDocs = false;
+    if (req.isSetFacetParams()) {
+      for (Entry<String, FacetParam> entry : req.getFacetParams().entrySet()) {
+        FieldConfig config = state.configMap.get(entry.getKey());
+        if (config == null) {
+          continue;
+        }
+        FacetAccumulatorFactory factory = newFacetAccumulatorFactory(state, entry.getKey(),
+            config, entry.getValue(), hitsKey);
+        if (factory != null) {
+          accumulatorFactories.put(entry.getKey(), factory);
+        } else {
+          collectMatchingDocs = true;
+        }
+      }
     }
 
     int offset, count;
@@ -154,35 +370,37 @@ public class AbacusQueryService implements Closeable {
       count = 10;
     }
 
-    TopDocsCollector topDocsCollector;
-    if (sort == null) {
-      topDocsCollector = TopScoreDocCollector.create(offset + count);
+    RequestCollectorManager collectorManager = new RequestCollectorManager(sort, offset + count,
+        accumulatorFactories, collectMatchingDocs);
+
+    Query searchQuery = filter == null ? query : new FilteredQuery(query, filter);
+    IndexSearcher searcher;
+    RequestCollectorManager.Collected collected;
+    if (partitionedSearcher != null) {
+      searcher = new IndexSearcher(reader);
+      collected = partitionedSearcher.search(searcher, searchQuery, collectorManager);
     } else {
-      topDocsCollector = TopFieldCollector.create(sort, offset + count, false, true, false);
+      searcher = new IndexSearcher(reader, executor);
+      collected = searcher.search(searchQuery, collectorManager);
     }
-    Collector collector = facetsCollector == null ?
-        topDocsCollector :
-        MultiCollector.wrap(topDocsCollector, facetsCollector);
-
-    IndexSearcher searcher = new IndexSearcher(reader);
-    searcher.search(query, filter, collector);
-    System.out.println("search latency: " + (System.currentTimeMillis() - start));
+    metrics.record(Phase.COLLECTION, phaseStart);
 
     Map<String, List<Facet>> facetMap = null;
-    if (facetsCollector != null) {
-      facetMap = buildFacetResults(configMap, req, facetsCollector);
+    if (collected.facetAccumulators != null || collected.facetsCollector != null) {
+      facetMap = buildFacetResults(state, req, collected.facetAccumulators,
+          collected.facetsCollector);
     }
 
-    System.out.println("total latency: " + (System.currentTimeMillis() - start));
-
-    TopDocs topDocs = topDocsCollector.topDocs();
+    TopDocs topDocs = collected.topDocs;
 
     AbacusResult result = new AbacusResult();
 
-    result.setNumHits(topDocsCollector.getTotalHits());
+    result.setNumHits(topDocs.totalHits);
     result.setTotoalDocs(reader.maxDoc());
 
-    List<AbacusHit> hitList = buildHitResultList(searcher, query, req, topDocs, offset);
+    phaseStart = metrics.start();
+    List<AbacusHit> hitList = buildHitResultList(searcher, query, req, topDocs, offset, metrics);
+    metrics.record(Phase.HIT_BUILDING, phaseStart);
     result.setHits(hitList);
 
     if (facetMap != null) {
@@ -195,10 +413,11 @@ public class AbacusQueryService implements Closeable {
 
   static List<AbacusHit> buildHitResultList(IndexSearcher searcher, Query query,
       AbacusRequest request,
-      TopDocs topDocs, int offset) throws IOException {
+      TopDocs topDocs, int offset, QueryMetrics metrics) throws IOException {
     if (offset >= topDocs.scoreDocs.length) {
       return new ArrayList<>();
     }
+    long fetchNanos = 0;
     int count = topDocs.scoreDocs.length - offset;
     List<AbacusHit> hitResult = new ArrayList<>(count);
     for (int i = offset; i < topDocs.scoreDocs.length; ++i) {
@@ -211,63 +430,108 @@ public class AbacusQueryService implements Closeable {
         hit.setExplanation(String.valueOf(expl));
       }
       if (request.isFetchSrcData()) {
+        long fetchStart = metrics.start();
         String srcData = searcher.doc(sd.doc).get(AbacusIndexer.srcDataFieldName);
+        fetchNanos += metrics.elapsedNanos(fetchStart);
         hit.setSrcData(srcData);
       }
       hitResult.add(hit);
     }
+    if (request.isFetchSrcData()) {
+      metrics.recordNanos(Phase.STORED_FIELD_FETCH, fetchNanos);
+    }
     return hitResult;
   }
 
-  private List<Facet> buildFacetList(Entry<String, FieldConfig> configEntry,
-      FacetParam facetParam, FacetsCollector collector) throws IOException {
-    String field = configEntry.getKey();
-    FieldConfig config = configEntry.getValue();
-    FacetIndexedType type = config.getFacetType();
-    Facets facetCounts;
-    List<FacetBucket> buckets = null;
-    if (facetParam.isSetRanges() && facetParam.getRangesSize() > 0) {
-      buckets = new ArrayList<>(facetParam.getRangesSize());
-      for (String range : facetParam.getRanges()) {
-        try {
-          buckets.add(FacetRangeBuilder.buildFacetRangeBucket(range, config.getFieldType()));
-        } catch (ParseException pe) {
-          throw new IOException(pe.getMessage(), pe);
-        }
-      }
-    } else {
-      String[] defaultRanges = config.getRangeStrings();
-      if (defaultRanges != null && defaultRanges.length > 0) {
-        buckets = new ArrayList<>(defaultRanges.length);
-        for (String range : defaultRanges) {
-          try {
-            buckets.add(FacetRangeBuilder.buildFacetRangeBucket(range, config.getFieldType()));
-          } catch (ParseException pe) {
-            throw new IOException(pe.getMessage(), pe);
-          }
-        }
+  /**
+   * Returns the compiled ranges to count a NUMERIC facet into: the ranges of the request if
+   * any, else the default ranges of the field config, or null if there are none.
+   */
+  private RangeBucketIndex getRangeBucketIndex(ReaderState state, String field,
+      FieldConfig config, FacetParam facetParam) throws IOException {
+    if (!facetParam.isSetRanges() || facetParam.getRangesSize() == 0) {
+      return state.getRangeBucketIndex(field);
+    }
+    String key = config.getFieldType() + ":" + facetParam.getRanges();
+    synchronized (requestRangeIndexes) {
+      RangeBucketIndex rangeIndex = requestRangeIndexes.get(key);
+      if (rangeIndex != null) {
+        return rangeIndex;
       }
     }
+    RangeBucketIndex rangeIndex;
+    try {
+      rangeIndex = RangeBucketIndex.compile(
+          facetParam.getRanges().toArray(new String[facetParam.getRangesSize()]),
+          config.getFieldType());
+    } catch (ParseException pe) {
+      throw new IOException(pe.getMessage(), pe);
+    }
+    synchronized (requestRangeIndexes) {
+      requestRangeIndexes.put(key, rangeIndex);
+    }
+    return rangeIndex;
+  }
 
+  /**
+   * Returns the factory of the accumulator counting field while hits are collected, or null
+   * if the facet type can only be counted from the matching docs. Accumulators supporting
+   * segment counts go through the facet count cache when hitsKey is set.
+   */
+  private FacetAccumulatorFactory newFacetAccumulatorFactory(ReaderState state,
+      final String field, final FieldConfig config, final FacetParam facetParam,
+      final Object hitsKey) throws IOException {
+    FacetIndexedType type = config.getFacetType();
     if (FacetIndexedType.NUMERIC == type) {  // numeric
-      if (buckets != null) {
-        facetCounts = new NumericBucketFacetCounts(configEntry.getKey(), buckets.toArray(
-            new FacetBucket[buckets.size()]), collector);
+      final RangeBucketIndex rangeIndex = getRangeBucketIndex(state, field, config, facetParam);
+      if (rangeIndex != null) {
+        return new FacetAccumulatorFactory() {
+          @Override
+          public FacetAccumulator createAccumulator() {
+            return new NumericBucketFacetCounts(field, rangeIndex);
+          }
+        };
       } else {
-        facetCounts = new NumericFacetCounts(configEntry.getKey(), collector);
+        return new FacetAccumulatorFactory() {
+          @Override
+          public FacetAccumulator createAccumulator() {
+            return cached(new NumericFacetCounts(field), field, hitsKey);
+          }
+        };
       }
     } else if (FacetIndexedType.SINGLE == type) {
-      SortedDocValuesOrdReader ordReader = new SortedDocValuesOrdReader(field);
-      facetCounts = new LabelAndOrdFacetCounts(field, ordReader, collector);
+      final SortedDocValuesOrdReader ordReader = new SortedDocValuesOrdReader(field);
+      final GlobalOrdinalMap globalOrds = state.getGlobalOrdinalMap(field, type);
+      return new FacetAccumulatorFactory() {
+        @Override
+        public FacetAccumulator createAccumulator() {
+          return cached(new LabelAndOrdFacetCounts(field, ordReader, globalOrds), field,
+              hitsKey);
+        }
+      };
     } else if (FacetIndexedType.MULTI == type) {
-      SortedSetDocValuesOrdReader ordReader = new SortedSetDocValuesOrdReader(field);
-      facetCounts = new LabelAndOrdFacetCounts(field, ordReader, collector);
+      final SortedSetDocValuesOrdReader ordReader = new SortedSetDocValuesOrdReader(field);
+      final GlobalOrdinalMap globalOrds = state.getGlobalOrdinalMap(field, type);
+      return new FacetAccumulatorFactory() {
+        @Override
+        public FacetAccumulator createAccumulator() {
+          return cached(new LabelAndOrdFacetCounts(field, ordReader, globalOrds), field,
+              hitsKey);
+        }
+      };
     } else if (FacetIndexedType.ATTRIBUTE == type) {
-      facetCounts = new AbacusAttributeFacetCounts(attrReaderState.get(field), collector);
+      return null;
     } else {
       throw new IllegalStateException("invalid facet type: " + type);
     }
+  }
+
+  private FacetAccumulator cached(FacetAccumulator accumulator, String field, Object hitsKey) {
+    return hitsKey == null ? accumulator : facetCountCache.wrap(accumulator, field, hitsKey);
+  }
 
+  private static List<Facet> buildFacetList(Facets facetCounts, FacetParam facetParam)
+      throws IOException {
     if (facetCounts != null) {
       FacetResult facetResult = facetCounts
           .getTopChildren(facetParam.getMaxNumValues(), null, new String[0]);
@@ -284,28 +548,79 @@ public class AbacusQueryService implements Closeable {
     }
   }
 
-  Map<String, List<Facet>> buildFacetResults(Map<String, FieldConfig> configMap,
-      AbacusRequest req,
+  Map<String, List<Facet>> buildFacetResults(ReaderState state,
+      AbacusRequest req, Map<String, FacetAccumulator> accumulators,
       FacetsCollector collector) throws IOException {
     Map<String, FacetParam> facetParams = req.getFacetParams();
     Map<String, List<Facet>> facetsResult = new HashMap<>();
-    for (Entry<String, FieldConfig> entry : configMap.entrySet()) {
+    for (Entry<String, FieldConfig> entry : state.configMap.entrySet()) {
       String field = entry.getKey();
       FacetParam fp = facetParams.get(field);
       if (fp != null) {
-        facetsResult.put(field, buildFacetList(entry, facetParams.get(field), collector));
+        long start = metrics.start();
+        Facets facetCounts = accumulators == null ? null : accumulators.get(field);
+        if (facetCounts == null) {
+          // attribute facets are counted from the matching docs
+          facetCounts = new AbacusAttributeFacetCounts(state.attrReaderState.get(field),
+              collector);
+        }
+        facetsResult.put(field, buildFacetList(facetCounts, fp));
+        metrics.recordFacetCounting(field, start);
       }
     }
     return facetsResult;
   }
 
   public Map<String, FieldConfig> getConfigMap() {
-    return configMap;
+    return readerManager.getConfigMap();
+  }
+
+  /**
+   * Returns the time spent loading the doc values of every field, over all the segments
+   * loaded since the service was opened.
+   */
+  public Map<String, Long> getDocValuesLoadNanos() {
+    return docValuesLoader.getLoadNanos();
   }
 
+  /**
+   * Returns, for every doc values field, how many segments of the current reader loaded it
+   * with each mem type. Segments that did not fit the memory budget count as
+   * {@link MemType#Default}.
+   */
+  public Map<String, Map<MemType, Integer>> getDocValuesPlacement() throws IOException {
+    ReaderState state = readerManager.acquire();
+    try {
+      return state.getPlacement();
+    } finally {
+      readerManager.release(state);
+    }
+  }
+
+  /**
+   * Returns true while doc values of the current reader are loading in the background, see
+   * {@link QueryServiceConfig#isBackgroundLoading()}.
+   */
+  public boolean isDocValuesLoading() throws IOException {
+    ReaderState state = readerManager.acquire();
+    try {
+      return state.isLoading();
+    } finally {
+      readerManager.release(state);
+    }
+  }
+
+  /**
+   * Closes the service. Loaded doc values are released once queries still running on them
+   * are done.
+   */
   @Override
   public void close() throws IOException {
-    reader.close();
-    dirReader.close();
+    metrics.unregisterMBeans();
+    try {
+      readerManager.close();
+    } finally {
+      IOUtils.close(docIdSets, docValuesLoader);
+    }
   }
 }
@@ -0,0 +1,343 @@
+package abacus.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import abacus.search.facets.ColumnLoadScheduler;
+import abacus.search.facets.FastDocValuesAtomicReader;
+import abacus.search.facets.FastDocValuesAtomicReader.LoadListener;
+import abacus.search.facets.FastDocValuesAtomicReader.MemType;
+import abacus.search.facets.FastDocValuesAtomicReader.PendingLoad;
+import abacus.search.facets.MemoryBudget;
+
+/**
+ * Loads the doc values of new segments into {@link FastDocValuesAtomicReader}s with the mem
+ * types of the config. With a {@link MemoryBudget}, the columns of limited tiers are
+ * estimated before anything is loaded and admitted across all the new segments by field
+ * priority, highest first; columns that do not fit stay on {@link MemType#Default}.
+ * <p>
+ * The columns of all the new segments are loaded in parallel on a pool of loadThreads
+ * threads, with the progress logged every {@link #PROGRESS_INTERVAL_NANOS} and the time
+ * spent on every field logged once done. In background mode the readers are returned right
+ * away, serving the doc values of the codec until their columns are loaded, see
+ * {@link FastDocValuesAtomicReader#loadInBackground}.
+ */
+class DocValuesLoader implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(DocValuesLoader.class);
+
+  static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  private final Map<String, MemType> loadOptions;
+  private final MemType defaultMemType;
+  private final MemoryBudget budget;
+  private final Map<String, Integer> priorities;
+  private final int loadThreads;
+  // null when loading on the calling thread
+  private final ThreadPoolExecutor pool;
+  // null unless loading in the background
+  private final ColumnLoadScheduler scheduler;
+  // time spent loading every field, over all the segments loaded so far
+  private final ConcurrentMap<String, AtomicLong> loadNanos = new ConcurrentHashMap<>();
+
+  DocValuesLoader(Map<String, MemType> loadOptions, MemType defaultMemType, MemoryBudget budget,
+      Map<String, Integer> priorities, int loadThreads, boolean background) {
+    this.loadOptions = loadOptions;
+    this.defaultMemType = defaultMemType;
+    this.budget = budget;
+    this.priorities = priorities;
+    this.loadThreads = loadThreads;
+    if (loadThreads > 1 || background) {
+      final AtomicInteger threadCount = new AtomicInteger();
+      pool = new ThreadPoolExecutor(loadThreads, loadThreads, 30, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "abacus-docvalues-loader-"
+                  + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      // loading only happens at startup and refresh, idle threads go away
+      pool.allowCoreThreadTimeOut(true);
+    } else {
+      pool = null;
+    }
+    scheduler = background ? new ColumnLoadScheduler(pool, priorities) : null;
+  }
+
+  MemoryBudget getBudget() {
+    return budget;
+  }
+
+  boolean isBackground() {
+    return scheduler != null;
+  }
+
+  private MemType memType(String field) {
+    MemType type = loadOptions != null ? loadOptions.get(field) : null;
+    return type != null ? type : defaultMemType;
+  }
+
+  private int priority(String field) {
+    Integer priority = priorities != null ? priorities.get(field) : null;
+    return priority != null ? priority : 0;
+  }
+
+  private static boolean loadable(FieldInfo finfo) {
+    DocValuesType type = finfo.getDocValuesType();
+    return type == DocValuesType.NUMERIC || type == DocValuesType.SORTED
+        || type == DocValuesType.SORTED_SET;
+  }
+
+  /**
+   * Returns a reader loading the doc values of every segment, in the order of segments. In
+   * background mode the readers are returned before their doc values are loaded.
+   */
+  List<FastDocValuesAtomicReader> load(List<LeafReader> segments) throws IOException {
+    List<Map<String, MemType>> placements = new ArrayList<>(segments.size());
+    List<MemoryBudget.Reservation> reservations = new ArrayList<>(segments.size());
+    List<FastDocValuesAtomicReader> readers = new ArrayList<>(segments.size());
+    boolean success = false;
+    try {
+      List<Column> columns = new ArrayList<>();
+      for (int i = 0; i < segments.size(); ++i) {
+        LeafReader segment = segments.get(i);
+        Map<String, MemType> placement = new HashMap<>();
+        for (FieldInfo finfo : segment.getFieldInfos()) {
+          MemType type = memType(finfo.name);
+          if (type == MemType.Default || !loadable(finfo)) {
+            continue;
+          }
+          placement.put(finfo.name, type);
+          if (budget != null && budget.isLimited(type)) {
+            columns.add(new Column(i, finfo.name, type, priority(finfo.name),
+                FastDocValuesAtomicReader.estimateBytes(segment, finfo, type)));
+          }
+        }
+        placements.add(placement);
+        reservations.add(budget != null ? budget.newReservation() : null);
+      }
+
+      Collections.sort(columns, ADMISSION_ORDER);
+      TreeSet<String> overBudget = new TreeSet<>();
+      for (Column column : columns) {
+        if (!reservations.get(column.segment).tryAdd(column.type, column.bytes)) {
+          placements.get(column.segment).put(column.field, MemType.Default);
+          overBudget.add(column.field);
+        }
+      }
+      if (!overBudget.isEmpty()) {
+        log.warn("doc values of " + overBudget + " do not fit the memory budget (" + budget
+            + ") in some segments and are not loaded there");
+      }
+
+      int numColumns = 0;
+      for (Map<String, MemType> placement : placements) {
+        for (MemType type : placement.values()) {
+          numColumns += type != MemType.Default ? 1 : 0;
+        }
+      }
+      Progress progress = new Progress(numColumns, segments.size());
+      if (scheduler != null) {
+        for (int i = 0; i < segments.size(); ++i) {
+          readers.add(FastDocValuesAtomicReader.loadInBackground(segments.get(i),
+              placements.get(i), MemType.Default, reservations.get(i), scheduler, progress));
+          reservations.set(i, null);
+        }
+        success = true;
+        return readers;
+      }
+      List<PendingLoad> pendings = new ArrayList<>(segments.size());
+      for (int i = 0; i < segments.size(); ++i) {
+        pendings.add(FastDocValuesAtomicReader.startLoading(segments.get(i), placements.get(i),
+            MemType.Default, reservations.get(i), pool, progress));
+        // the pending load releases the reservation, with its doc values or on failure
+        reservations.set(i, null);
+      }
+      Throwable failure = null;
+      for (PendingLoad pending : pendings) {
+        try {
+          readers.add(pending.get());
+        } catch (IOException | RuntimeException e) {
+          // the others are still waited for, their columns may be running
+          failure = failure == null ? e : failure;
+        }
+      }
+      if (failure != null) {
+        IOUtils.reThrow(failure);
+      }
+      success = true;
+      return readers;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(readers);
+        IOUtils.closeWhileHandlingException(reservations);
+      }
+    }
+  }
+
+  /**
+   * Returns the time spent loading every field so far, over all segments.
+   */
+  Map<String, Long> getLoadNanos() {
+    Map<String, Long> nanos = new TreeMap<>();
+    for (Map.Entry<String, AtomicLong> entry : loadNanos.entrySet()) {
+      nanos.put(entry.getKey(), entry.getValue().get());
+    }
+    return nanos;
+  }
+
+  @Override
+  public void close() {
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Progress of one load, also adding the time of every column to loadNanos.
+   */
+  private class Progress implements LoadListener {
+    private final int numColumns;
+    private final int numSegments;
+    private final long start = System.nanoTime();
+    private final AtomicInteger loaded = new AtomicInteger();
+    private final AtomicLong lastReport = new AtomicLong(start);
+    // time spent on every field by this load
+    private final ConcurrentMap<String, AtomicLong> fieldNanos = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, MemType> fieldTypes = new ConcurrentHashMap<>();
+
+    Progress(int numColumns, int numSegments) {
+      this.numColumns = numColumns;
+      this.numSegments = numSegments;
+    }
+
+    private void add(ConcurrentMap<String, AtomicLong> nanos, String field, long value) {
+      AtomicLong total = nanos.get(field);
+      if (total == null) {
+        AtomicLong existing = nanos.putIfAbsent(field, total = new AtomicLong());
+        total = existing != null ? existing : total;
+      }
+      total.addAndGet(value);
+    }
+
+    @Override
+    public void columnLoaded(LeafReader in, String field, MemType type, long nanos) {
+      add(fieldNanos, field, nanos);
+      add(loadNanos, field, nanos);
+      fieldTypes.put(field, type);
+      int count = loaded.incrementAndGet();
+      long now = System.nanoTime();
+      long last = lastReport.get();
+      if (now - last >= PROGRESS_INTERVAL_NANOS && lastReport.compareAndSet(last, now)) {
+        log.info("loaded " + count + "/" + numColumns + " doc values columns in "
+            + TimeUnit.NANOSECONDS.toMillis(now - start) + "ms");
+      }
+      if (count == numColumns) {
+        done();
+      }
+    }
+
+    private void done() {
+      List<Map.Entry<String, AtomicLong>> fields = new ArrayList<>(fieldNanos.entrySet());
+      Collections.sort(fields, new Comparator<Map.Entry<String, AtomicLong>>() {
+        @Override
+        public int compare(Map.Entry<String, AtomicLong> e1, Map.Entry<String, AtomicLong> e2) {
+          return Long.compare(e2.getValue().get(), e1.getValue().get());
+        }
+      });
+      StringBuilder buf = new StringBuilder();
+      buf.append("loaded ").append(numColumns).append(" doc values columns of ");
+      buf.append(numSegments).append(" segments in ");
+      buf.append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).append("ms on ");
+      buf.append(pool != null ? loadThreads : 1).append(" threads, per field:");
+      for (Map.Entry<String, AtomicLong> entry : fields) {
+        buf.append(' ').append(entry.getKey()).append('=');
+        buf.append(TimeUnit.NANOSECONDS.toMillis(entry.getValue().get())).append("ms");
+        buf.append('(').append(fieldTypes.get(entry.getKey())).append(')');
+      }
+      log.info(buf.toString());
+    }
+  }
+
+  /**
+   * Returns how many segments of readers loaded every doc values field with each mem type,
+   * {@link MemType#Default} counting the segments that did not load it.
+   */
+  static Map<String, Map<MemType, Integer>> placement(
+      Iterable<FastDocValuesAtomicReader> readers) {
+    Map<String, Map<MemType, Integer>> placement = new TreeMap<>();
+    for (FastDocValuesAtomicReader reader : readers) {
+      for (FieldInfo finfo : reader.getFieldInfos()) {
+        if (!loadable(finfo)) {
+          continue;
+        }
+        Map<MemType, Integer> counts = placement.get(finfo.name);
+        if (counts == null) {
+          counts = new EnumMap<>(MemType.class);
+          placement.put(finfo.name, counts);
+        }
+        MemType type = reader.getMemType(finfo.name);
+        Integer count = counts.get(type);
+        counts.put(type, count == null ? 1 : count + 1);
+      }
+    }
+    return placement;
+  }
+
+  private static final Comparator<Column> ADMISSION_ORDER = new Comparator<Column>() {
+    @Override
+    public int compare(Column c1, Column c2) {
+      if (c1.priority != c2.priority) {
+        return c1.priority > c2.priority ? -1 : 1;
+      }
+      int cmp = c1.field.compareTo(c2.field);
+      return cmp != 0 ? cmp : Integer.compare(c1.segment, c2.segment);
+    }
+  };
+
+  /**
+   * A column to admit: the doc values of a field in one segment.
+   */
+  private static class Column {
+    final int segment;
+    final String field;
+    final MemType type;
+    final int priority;
+    final long bytes;
+
+    Column(int segment, String field, MemType type, int priority, long bytes) {
+      this.segment = segment;
+      this.field = field;
+      this.type = type;
+      this.priority = priority;
+      this.bytes = bytes;
+    }
+  }
+}
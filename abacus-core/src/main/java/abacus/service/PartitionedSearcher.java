@@ -0,0 +1,96 @@
+package abacus.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Weight;
+
+import abacus.search.util.ConcurrentUtil;
+
+/**
+ * Splits every leaf into docid-range partitions of at most docsPerPartition docs and collects
+ * each partition on its own task, so a force-merged index with a single large segment is still
+ * spread over all threads of the executor, e.g. a {@link java.util.concurrent.ForkJoinPool}.
+ */
+class PartitionedSearcher {
+
+  private final ExecutorService executor;
+  private final int docsPerPartition;
+
+  PartitionedSearcher(ExecutorService executor, int docsPerPartition) {
+    if (docsPerPartition <= 0) {
+      throw new IllegalArgumentException("docsPerPartition must be positive: " + docsPerPartition);
+    }
+    this.executor = executor;
+    this.docsPerPartition = docsPerPartition;
+  }
+
+  RequestCollectorManager.Collected search(IndexSearcher searcher, Query query,
+      RequestCollectorManager collectorManager) throws IOException {
+    List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+    List<RequestCollectorManager.RequestCollector> collectors = new ArrayList<>();
+    List<LeafReaderContext> contexts = new ArrayList<>();
+    List<int[]> ranges = new ArrayList<>();
+    for (LeafReaderContext ctx : leaves) {
+      int maxDoc = ctx.reader().maxDoc();
+      int numPartitions = Math.max(1, (maxDoc + docsPerPartition - 1) / docsPerPartition);
+      for (int i = 0; i < numPartitions; ++i) {
+        int min = (int) ((long) maxDoc * i / numPartitions);
+        int max = (int) ((long) maxDoc * (i + 1) / numPartitions);
+        collectors.add(collectorManager.newCollector(min, max));
+        contexts.add(ctx);
+        ranges.add(new int[] { min, max });
+      }
+    }
+
+    boolean needsScores = false;
+    for (RequestCollectorManager.RequestCollector collector : collectors) {
+      needsScores |= collector.needsScores();
+    }
+    final Weight weight = searcher.createNormalizedWeight(query, needsScores);
+
+    List<Callable<Void>> tasks = new ArrayList<>(collectors.size());
+    for (int i = 0; i < collectors.size(); ++i) {
+      final RequestCollectorManager.RequestCollector collector = collectors.get(i);
+      final LeafReaderContext ctx = contexts.get(i);
+      final int[] range = ranges.get(i);
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          searchPartition(weight, ctx, range[0], range[1], collector);
+          return null;
+        }
+      });
+    }
+    ConcurrentUtil.invokeAll(executor, tasks);
+    return collectorManager.reduce(collectors);
+  }
+
+  private static void searchPartition(Weight weight, LeafReaderContext ctx, int minDoc,
+      int maxDoc, RequestCollectorManager.RequestCollector collector) throws IOException {
+    final LeafCollector leafCollector;
+    try {
+      leafCollector = collector.getLeafCollector(ctx);
+    } catch (CollectionTerminatedException e) {
+      return;
+    }
+    // every partition needs its own scorer, they are not thread-safe
+    BulkScorer scorer = weight.bulkScorer(ctx);
+    if (scorer != null && minDoc < maxDoc) {
+      try {
+        scorer.score(leafCollector, ctx.reader().getLiveDocs(), minDoc, maxDoc);
+      } catch (CollectionTerminatedException e) {
+        // collection of this partition was terminated prematurely
+      }
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package abacus.service;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import abacus.search.facets.FastDocValuesAtomicReader.MemType;
+import abacus.search.facets.MemoryBudget;
+
+public class QueryServiceConfig {
+  private final Map<String, MemType> loadOptions;
+  private final MemType defaultMemType;
+  private final ExecutorService executor;
+  private final int docsPerPartition;
+  private final long filterCacheBytes;
+  private final int filterCacheMinFrequency;
+  private final int resultCacheSize;
+  private final long resultCacheTtlMillis;
+  private final long facetCountCacheBytes;
+  private final boolean metricsEnabled;
+  private final Path docIdSetStorePath;
+  private final MemoryBudget memoryBudget;
+  private final Map<String, Integer> loadPriorities;
+  private final int loadThreads;
+  private final boolean backgroundLoading;
+
+  QueryServiceConfig(Map<String, MemType> loadOptions, MemType defaultMemType,
+      ExecutorService executor, int docsPerPartition, long filterCacheBytes,
+      int filterCacheMinFrequency, int resultCacheSize, long resultCacheTtlMillis,
+      long facetCountCacheBytes, boolean metricsEnabled, Path docIdSetStorePath,
+      MemoryBudget memoryBudget, Map<String, Integer> loadPriorities, int loadThreads,
+      boolean backgroundLoading) {
+    this.loadOptions = loadOptions;
+    this.defaultMemType = defaultMemType;
+    this.executor = executor;
+    this.docsPerPartition = docsPerPartition;
+    this.filterCacheBytes = filterCacheBytes;
+    this.filterCacheMinFrequency = filterCacheMinFrequency;
+    this.resultCacheSize = resultCacheSize;
+    this.resultCacheTtlMillis = resultCacheTtlMillis;
+    this.facetCountCacheBytes = facetCountCacheBytes;
+    this.metricsEnabled = metricsEnabled;
+    this.docIdSetStorePath = docIdSetStorePath;
+    this.memoryBudget = memoryBudget;
+    this.loadPriorities = loadPriorities;
+    this.loadThreads = loadThreads;
+    this.backgroundLoading = backgroundLoading;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder buf = new StringBuilder();
+    buf.append("loadOptions:" + loadOptions);
+    buf.append("\tdefaultMemType:" + defaultMemType);
+    buf.append("\texecutor:" + (executor != null));
+    buf.append("\tdocsPerPartition:" + docsPerPartition);
+    buf.append("\tfilterCacheBytes:" + filterCacheBytes);
+    buf.append("\tfilterCacheMinFrequency:" + filterCacheMinFrequency);
+    buf.append("\tresultCacheSize:" + resultCacheSize);
+    buf.append("\tresultCacheTtlMillis:" + resultCacheTtlMillis);
+    buf.append("\tfacetCountCacheBytes:" + facetCountCacheBytes);
+    buf.append("\tmetricsEnabled:" + metricsEnabled);
+    buf.append("\tdocIdSetStorePath:" + docIdSetStorePath);
+    buf.append("\tmemoryBudget:" + memoryBudget);
+    buf.append("\tloadPriorities:" + loadPriorities);
+    buf.append("\tloadThreads:" + loadThreads);
+    buf.append("\tbackgroundLoading:" + backgroundLoading);
+    return buf.toString();
+  }
+
+  public Map<String, MemType> getLoadOptions() {
+    return loadOptions;
+  }
+
+  public MemType getDefaultMemType() {
+    return defaultMemType;
+  }
+
+  /**
+   * Executor used for concurrent collection and facet counting, null to run every request on
+   * the calling thread.
+   */
+  public ExecutorService getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Maximum number of docs of one segment collected by a single task, 0 to collect every
+   * segment as a whole. Only used together with an executor.
+   */
+  public int getDocsPerPartition() {
+    return docsPerPartition;
+  }
+
+  /**
+   * Byte budget of the per-segment filter cache, 0 to disable filter caching.
+   */
+  public long getFilterCacheBytes() {
+    return filterCacheBytes;
+  }
+
+  /**
+   * Number of times a filter must be seen among recent requests before it is cached.
+   */
+  public int getFilterCacheMinFrequency() {
+    return filterCacheMinFrequency;
+  }
+
+  /**
+   * Maximum number of whole results cached by request, 0 to disable result caching.
+   */
+  public int getResultCacheSize() {
+    return resultCacheSize;
+  }
+
+  public long getResultCacheTtlMillis() {
+    return resultCacheTtlMillis;
+  }
+
+  /**
+   * Byte budget of the per-segment facet count cache, used by requests without a query, 0 to
+   * disable facet count caching. Not used when segments are collected in partitions.
+   */
+  public long getFacetCountCacheBytes() {
+    return facetCountCacheBytes;
+  }
+
+  /**
+   * Whether query phases are timed into the metrics of the service, off by default.
+   */
+  public boolean isMetricsEnabled() {
+    return metricsEnabled;
+  }
+
+  /**
+   * Directory the named doc id sets are persisted and memory-mapped from, null to disable
+   * named doc id sets.
+   */
+  public Path getDocIdSetStorePath() {
+    return docIdSetStorePath;
+  }
+
+  /**
+   * Bytes the loaded doc values may take per memory tier, null for no limit. Doc values of
+   * segments that do not fit are not loaded, as with {@link MemType#Default}.
+   */
+  public MemoryBudget getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  /**
+   * Priority of fields for the memory budget, higher first, 0 for fields left out. May be
+   * null.
+   */
+  public Map<String, Integer> getLoadPriorities() {
+    return loadPriorities;
+  }
+
+  /**
+   * Number of threads loading doc values columns in parallel, across fields and segments,
+   * when the reader is opened or refreshed. 1 loads them on the calling thread, unless they
+   * load in the background.
+   */
+  public int getLoadThreads() {
+    return loadThreads;
+  }
+
+  /**
+   * Whether the service answers queries on the doc values of the codec while the columns of
+   * new segments load in the background, on loadThreads threads, instead of waiting for
+   * them, off by default. Fields queries ask for are loaded first, and each field switches
+   * to its loaded column once complete.
+   */
+  public boolean isBackgroundLoading() {
+    return backgroundLoading;
+  }
+}
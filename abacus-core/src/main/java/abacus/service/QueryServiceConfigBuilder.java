@@ -0,0 +1,135 @@
+package abacus.service;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import abacus.search.facets.FastDocValuesAtomicReader.MemType;
+import abacus.search.facets.MemoryBudget;
+
+public class QueryServiceConfigBuilder {
+  private Map<String, MemType> loadOptions = null;
+  private MemType defaultMemType = MemType.Default;
+  private ExecutorService executor = null;
+  private int docsPerPartition = 0;
+  private long filterCacheBytes = 0;
+  private int filterCacheMinFrequency = 2;
+  private int resultCacheSize = 0;
+  private long resultCacheTtlMillis = 60000;
+  private long facetCountCacheBytes = 0;
+  private boolean metricsEnabled = false;
+  private Path docIdSetStorePath = null;
+  private MemoryBudget memoryBudget = null;
+  private Map<String, Integer> loadPriorities = null;
+  private int loadThreads = Runtime.getRuntime().availableProcessors();
+  private boolean backgroundLoading = false;
+
+  public QueryServiceConfigBuilder withLoadOptions(Map<String, MemType> loadOptions) {
+    this.loadOptions = loadOptions;
+    return this;
+  }
+
+  public QueryServiceConfigBuilder withDefaultMemType(MemType defaultMemType) {
+    this.defaultMemType = defaultMemType;
+    return this;
+  }
+
+  public QueryServiceConfigBuilder withExecutor(ExecutorService executor) {
+    this.executor = executor;
+    return this;
+  }
+
+  public QueryServiceConfigBuilder withDocsPerPartition(int docsPerPartition) {
+    this.docsPerPartition = docsPerPartition;
+    return this;
+  }
+
+  public QueryServiceConfigBuilder withFilterCacheBytes(long filterCacheBytes) {
+    this.filterCacheBytes = filterCacheBytes;
+    return this;
+  }
+
+  public QueryServiceConfigBuilder withFilterCacheMinFrequency(int filterCacheMinFrequency) {
+    this.filterCacheMinFrequency = filterCacheMinFrequency;
+    return this;
+  }
+
+  public QueryServiceConfigBuilder withResultCacheSize(int resultCacheSize) {
+    this.resultCacheSize = resultCacheSize;
+    return this;
+  }
+
+  public QueryServiceConfigBuilder withResultCacheTtlMillis(long resultCacheTtlMillis) {
+    this.resultCacheTtlMillis = resultCacheTtlMillis;
+    return this;
+  }
+
+  public QueryServiceConfigBuilder withFacetCountCacheBytes(long facetCountCacheBytes) {
+    this.facetCountCacheBytes = facetCountCacheBytes;
+    return this;
+  }
+
+  public QueryServiceConfigBuilder withMetricsEnabled(boolean metricsEnabled) {
+    this.metricsEnabled = metricsEnabled;
+    return this;
+  }
+
+  public QueryServiceConfigBuilder withDocIdSetStorePath(Path docIdSetStorePath) {
+    this.docIdSetStorePath = docIdSetStorePath;
+    return this;
+  }
+
+  public QueryServiceConfigBuilder withMemoryBudget(MemoryBudget memoryBudget) {
+    this.memoryBudget = memoryBudget;
+    return this;
+  }
+
+  public QueryServiceConfigBuilder withLoadPriorities(Map<String, Integer> loadPriorities) {
+    this.loadPriorities = loadPriorities;
+    return this;
+  }
+
+  public QueryServiceConfigBuilder withLoadThreads(int loadThreads) {
+    this.loadThreads = loadThreads;
+    return this;
+  }
+
+  public QueryServiceConfigBuilder withBackgroundLoading(boolean backgroundLoading) {
+    this.backgroundLoading = backgroundLoading;
+    return this;
+  }
+
+  public QueryServiceConfig build() {
+    if (docsPerPartition < 0) {
+      throw new IllegalArgumentException("docsPerPartition must not be negative: "
+          + docsPerPartition);
+    }
+    if (filterCacheBytes < 0) {
+      throw new IllegalArgumentException("filterCacheBytes must not be negative: "
+          + filterCacheBytes);
+    }
+    if (filterCacheMinFrequency < 1) {
+      throw new IllegalArgumentException("filterCacheMinFrequency must be at least 1: "
+          + filterCacheMinFrequency);
+    }
+    if (resultCacheSize < 0) {
+      throw new IllegalArgumentException("resultCacheSize must not be negative: "
+          + resultCacheSize);
+    }
+    if (resultCacheTtlMillis <= 0) {
+      throw new IllegalArgumentException("resultCacheTtlMillis must be positive: "
+          + resultCacheTtlMillis);
+    }
+    if (facetCountCacheBytes < 0) {
+      throw new IllegalArgumentException("facetCountCacheBytes must not be negative: "
+          + facetCountCacheBytes);
+    }
+    if (loadThreads < 1) {
+      throw new IllegalArgumentException("loadThreads must be at least 1: " + loadThreads);
+    }
+    return new QueryServiceConfig(loadOptions, defaultMemType, executor, docsPerPartition,
+        filterCacheBytes, filterCacheMinFrequency, resultCacheSize, resultCacheTtlMillis,
+        facetCountCacheBytes, metricsEnabled, docIdSetStorePath, memoryBudget, loadPriorities,
+        loadThreads, backgroundLoading);
+  }
+}
@@ -0,0 +1,252 @@
+package abacus.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.queryparser.classic.ParseException;
+
+import abacus.config.FacetIndexedType;
+import abacus.config.FieldConfig;
+import abacus.config.IndexDirectoryFacetsConfigReader;
+import abacus.search.docsets.DocIdSetStore;
+import abacus.search.facets.AttributeSortedSetDocValuesReaderState;
+import abacus.search.facets.FastDocValuesAtomicReader;
+import abacus.search.facets.FastDocValuesAtomicReader.MemType;
+import abacus.search.facets.GlobalOrdinalMap;
+import abacus.search.facets.RangeBucketIndex;
+
+/**
+ * A point-in-time view of the index: the {@link DirectoryReader}, the
+ * {@link FastDocValuesAtomicReader}s searched over it and everything derived from them.
+ * The state is ref-counted through the searched reader; the directory reader is closed and
+ * the loaded doc values are released once the last reference is dropped.
+ */
+class ReaderState {
+
+  final DirectoryReader dirReader;
+  final IndexReader reader;
+  final Map<String, FieldConfig> configMap;
+  final Map<String, AttributeSortedSetDocValuesReaderState> attrReaderState;
+
+  // segment core cache key -> the reader wrapping that segment in this state
+  private final Map<Object, FastDocValuesAtomicReader> leafReaders;
+  // built on first use, see getGlobalOrdinalMap
+  private final ConcurrentMap<String, GlobalOrdinalMap> globalOrdinalMaps =
+      new ConcurrentHashMap<>();
+  // compiled default ranges of the field configs, see getRangeBucketIndex
+  private final ConcurrentMap<String, RangeBucketIndex> rangeIndexes;
+
+  private ReaderState(DirectoryReader dirReader, IndexReader reader,
+      Map<Object, FastDocValuesAtomicReader> leafReaders, Map<String, FieldConfig> configMap,
+      ConcurrentMap<String, RangeBucketIndex> rangeIndexes) throws IOException {
+    this.dirReader = dirReader;
+    this.reader = reader;
+    this.leafReaders = leafReaders;
+    this.configMap = configMap;
+    this.rangeIndexes = rangeIndexes;
+    Map<String, AttributeSortedSetDocValuesReaderState> attrStates = new HashMap<>();
+    for (Entry<String, FieldConfig> entry : configMap.entrySet()) {
+      String name = entry.getKey();
+      FieldConfig config = entry.getValue();
+      if (FacetIndexedType.ATTRIBUTE.equals(config.getFacetType())) {
+        attrStates.put(name, new AttributeSortedSetDocValuesReaderState(reader, name));
+      }
+    }
+    attrReaderState = Collections.unmodifiableMap(attrStates);
+  }
+
+  /**
+   * Opens the state over dirReader, taking ownership of it. Segments that were already
+   * searched in previous keep their loaded doc values, only new or merged segments are loaded.
+   * The bucket ords of the default ranges of NUMERIC fields are materialized in every
+   * segment, and rebuilt for the ranges that changed since previous.
+   *
+   * @param previous the state dirReader was reopened from, or null
+   * @param loader loads the doc values of the new segments
+   * @param docIdSets named doc id sets mapped for every segment of the state, or null
+   */
+  static ReaderState open(final DirectoryReader dirReader, ReaderState previous,
+      DocValuesLoader loader, DocIdSetStore docIdSets) throws IOException {
+    List<FastDocValuesAtomicReader> subReaders = new ArrayList<>(dirReader.leaves().size());
+    MultiReader reader = null;
+    boolean success = false;
+    try {
+      Map<String, FieldConfig> configMap =
+          IndexDirectoryFacetsConfigReader.readerFacetsConfig(dirReader);
+      ConcurrentMap<String, RangeBucketIndex> rangeIndexes = compileDefaultRanges(configMap);
+      List<LeafReader> newSegments = new ArrayList<>();
+      for (LeafReaderContext leaf : dirReader.leaves()) {
+        LeafReader segmentReader = leaf.reader();
+        FastDocValuesAtomicReader loaded = previous == null ?
+            null : previous.leafReaders.get(segmentReader.getCoreCacheKey());
+        FastDocValuesAtomicReader subReader = null;
+        if (loaded != null && loaded.getDelegate() == segmentReader) {
+          // segment is unchanged, deletes included
+          loaded.incRef();
+          subReader = loaded;
+        } else if (loaded != null && loaded.sharesValuesWith(segmentReader)) {
+          subReader = new FastDocValuesAtomicReader(segmentReader, loaded);
+        } else {
+          newSegments.add(segmentReader);
+        }
+        // new segments are loaded together, below
+        subReaders.add(subReader);
+      }
+      List<FastDocValuesAtomicReader> loadedReaders = loader.load(newSegments);
+      Map<Object, FastDocValuesAtomicReader> leafReaders = new HashMap<>();
+      int next = 0;
+      for (int i = 0; i < subReaders.size(); ++i) {
+        if (subReaders.get(i) == null) {
+          subReaders.set(i, loadedReaders.get(next++));
+        }
+        FastDocValuesAtomicReader subReader = subReaders.get(i);
+        subReader.loadRangeBuckets(rangeIndexes);
+        leafReaders.put(subReader.getCoreCacheKey(), subReader);
+      }
+
+      // the multi reader takes its own reference on every sub reader
+      reader = new MultiReader(subReaders.toArray(new IndexReader[subReaders.size()]), false);
+      reader.addReaderClosedListener(new IndexReader.ReaderClosedListener() {
+        @Override
+        public void onClose(IndexReader reader) throws IOException {
+          dirReader.close();
+        }
+      });
+      if (docIdSets != null) {
+        docIdSets.sync(reader, configMap);
+      }
+      ReaderState state = new ReaderState(dirReader, reader, leafReaders, configMap,
+          rangeIndexes);
+      success = true;
+      return state;
+    } finally {
+      // drop the references taken above, the multi reader holds its own
+      for (FastDocValuesAtomicReader subReader : subReaders) {
+        if (subReader != null) {
+          subReader.decRef();
+        }
+      }
+      if (!success) {
+        if (reader != null) {
+          reader.close();
+        } else {
+          dirReader.close();
+        }
+      }
+    }
+  }
+
+  private static ConcurrentMap<String, RangeBucketIndex> compileDefaultRanges(
+      Map<String, FieldConfig> configMap) {
+    ConcurrentMap<String, RangeBucketIndex> rangeIndexes = new ConcurrentHashMap<>();
+    for (Entry<String, FieldConfig> entry : configMap.entrySet()) {
+      FieldConfig config = entry.getValue();
+      if (FacetIndexedType.NUMERIC == config.getFacetType() && config.getRangeStrings() != null
+          && config.getRangeStrings().length > 0) {
+        try {
+          rangeIndexes.put(entry.getKey(),
+              RangeBucketIndex.compile(config.getRangeStrings(), config.getFieldType()));
+        } catch (ParseException pe) {
+          // not materialized, reported by getRangeBucketIndex when the facet is queried
+        }
+      }
+    }
+    return rangeIndexes;
+  }
+
+  /**
+   * Returns the global ordinal map of a SINGLE or MULTI facet field, built once for this
+   * state, or null if there is a single segment and no ords to map.
+   */
+  GlobalOrdinalMap getGlobalOrdinalMap(String field, FacetIndexedType type) throws IOException {
+    if (reader.leaves().size() < 2) {
+      return null;
+    }
+    GlobalOrdinalMap globalOrds = globalOrdinalMaps.get(field);
+    if (globalOrds == null) {
+      synchronized (globalOrdinalMaps) {
+        globalOrds = globalOrdinalMaps.get(field);
+        if (globalOrds == null) {
+          if (FacetIndexedType.SINGLE == type) {
+            globalOrds = GlobalOrdinalMap.buildSorted(reader, field);
+          } else if (FacetIndexedType.MULTI == type) {
+            globalOrds = GlobalOrdinalMap.buildSortedSet(reader, field);
+          } else {
+            throw new IllegalArgumentException("no ordinals for facet type: " + type);
+          }
+          globalOrdinalMaps.put(field, globalOrds);
+        }
+      }
+    }
+    return globalOrds;
+  }
+
+  /**
+   * Returns the compiled default ranges of a NUMERIC facet field, compiled once for this
+   * state, or null if its config has no ranges.
+   */
+  RangeBucketIndex getRangeBucketIndex(String field) throws IOException {
+    FieldConfig config = configMap.get(field);
+    if (config == null || config.getRangeStrings() == null
+        || config.getRangeStrings().length == 0) {
+      return null;
+    }
+    RangeBucketIndex rangeIndex = rangeIndexes.get(field);
+    if (rangeIndex == null) {
+      try {
+        rangeIndex = RangeBucketIndex.compile(config.getRangeStrings(), config.getFieldType());
+      } catch (ParseException pe) {
+        throw new IOException(pe.getMessage(), pe);
+      }
+      // compiling is cheap and deterministic, a concurrent duplicate is harmless
+      RangeBucketIndex existing = rangeIndexes.putIfAbsent(field, rangeIndex);
+      if (existing != null) {
+        rangeIndex = existing;
+      }
+    }
+    return rangeIndex;
+  }
+
+  /**
+   * Returns how many segments loaded every doc values field with each mem type.
+   */
+  Map<String, Map<MemType, Integer>> getPlacement() {
+    return DocValuesLoader.placement(leafReaders.values());
+  }
+
+  /**
+   * Returns true while some segments are loading doc values in the background.
+   */
+  boolean isLoading() {
+    for (FastDocValuesAtomicReader leafReader : leafReaders.values()) {
+      if (leafReader.isLoading()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  boolean tryIncRef() {
+    return reader.tryIncRef();
+  }
+
+  void decRef() throws IOException {
+    reader.decRef();
+  }
+
+  int getRefCount() {
+    return reader.getRefCount();
+  }
+}
@@ -0,0 +1,79 @@
+package abacus.service;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.store.Directory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import abacus.config.FieldConfig;
+import abacus.search.docsets.DocIdSetStore;
+
+/**
+ * Keeps the current {@link ReaderState} and swaps in a new one when the index changed,
+ * reopening with {@link DirectoryReader#openIfChanged(DirectoryReader)}. Queries
+ * {@link #acquire()} a state and {@link #release(Object)} it when done, so a refresh never
+ * closes a reader that is still being searched.
+ */
+class ReaderStateManager extends ReferenceManager<ReaderState> {
+
+  private static final Logger log = LoggerFactory.getLogger(ReaderStateManager.class);
+
+  private final DocValuesLoader loader;
+  private final DocIdSetStore docIdSets;
+  // field configs of the latest state, readable without acquiring it
+  private volatile Map<String, FieldConfig> configMap;
+
+  ReaderStateManager(Directory idxDir, DocValuesLoader loader, DocIdSetStore docIdSets)
+      throws IOException {
+    this.loader = loader;
+    this.docIdSets = docIdSets;
+    current = ReaderState.open(DirectoryReader.open(idxDir), null, loader, docIdSets);
+    configMap = current.configMap;
+    log.info("doc values placement, in segments per mem type: " + current.getPlacement()
+        + (loader.getBudget() != null ? ", memory budget: " + loader.getBudget() : "")
+        + (loader.isBackground() ? ", loading in the background" : ""));
+  }
+
+  Map<String, FieldConfig> getConfigMap() {
+    return configMap;
+  }
+
+  @Override
+  protected void decRef(ReaderState reference) throws IOException {
+    reference.decRef();
+  }
+
+  @Override
+  protected ReaderState refreshIfNeeded(ReaderState referenceToRefresh) throws IOException {
+    DirectoryReader newReader = DirectoryReader.openIfChanged(referenceToRefresh.dirReader);
+    if (newReader == null) {
+      return null;
+    }
+    ReaderState state = ReaderState.open(newReader, referenceToRefresh, loader, docIdSets);
+    configMap = state.configMap;
+    return state;
+  }
+
+  @Override
+  protected void afterMaybeRefresh() throws IOException {
+    // the cores of segments gone from the index close with the last state holding them
+    if (docIdSets != null) {
+      docIdSets.deleteClosedSegmentFiles();
+    }
+  }
+
+  @Override
+  protected boolean tryIncRef(ReaderState reference) throws IOException {
+    return reference.tryIncRef();
+  }
+
+  @Override
+  protected int getRefCount(ReaderState reference) {
+    return reference.getRefCount();
+  }
+}
@@ -0,0 +1,170 @@
+package abacus.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.facet.FacetsCollector;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.MultiCollector;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopDocsCollector;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+
+import abacus.search.facets.FacetAccumulator;
+import abacus.search.facets.FacetAccumulatorCollector;
+import abacus.search.facets.FacetAccumulatorCollectorManager;
+import abacus.search.facets.FacetAccumulatorFactory;
+import abacus.search.facets.FacetsCollectorManager;
+
+/**
+ * Collects the top hits of a request and accumulates its facets, recording the matching docs
+ * only for the facets that are counted from them afterwards. One
+ * {@link RequestCollector} is created per search slice; {@link #reduce(Collection)} merges
+ * the slices back together.
+ */
+class RequestCollectorManager implements
+    CollectorManager<RequestCollectorManager.RequestCollector, RequestCollectorManager.Collected> {
+
+  private final Sort sort;
+  private final int numHits;
+  private final FacetAccumulatorCollectorManager accumulatorCollectorManager;
+  private final FacetsCollectorManager facetsCollectorManager;
+
+  RequestCollectorManager(Sort sort, int numHits,
+      Map<String, FacetAccumulatorFactory> accumulatorFactories, boolean collectMatchingDocs) {
+    this.sort = sort;
+    this.numHits = numHits;
+    this.accumulatorCollectorManager = accumulatorFactories.isEmpty() ?
+        null : new FacetAccumulatorCollectorManager(accumulatorFactories);
+    this.facetsCollectorManager = collectMatchingDocs ? new FacetsCollectorManager() : null;
+  }
+
+  @Override
+  public RequestCollector newCollector() throws IOException {
+    FacetsCollector facetsCollector = facetsCollectorManager == null ?
+        null : facetsCollectorManager.newCollector();
+    return new RequestCollector(newTopDocsCollector(), newAccumulatorCollector(),
+        facetsCollector);
+  }
+
+  /**
+   * Returns a collector for the docs in [minDoc, maxDoc) of a single segment.
+   */
+  RequestCollector newCollector(int minDoc, int maxDoc) throws IOException {
+    FacetsCollector facetsCollector = facetsCollectorManager == null ?
+        null : facetsCollectorManager.newCollector(minDoc, maxDoc);
+    return new RequestCollector(newTopDocsCollector(), newAccumulatorCollector(),
+        facetsCollector);
+  }
+
+  private FacetAccumulatorCollector newAccumulatorCollector() throws IOException {
+    return accumulatorCollectorManager == null ? null : accumulatorCollectorManager.newCollector();
+  }
+
+  private TopDocsCollector<?> newTopDocsCollector() throws IOException {
+    TopDocsCollector<?> topDocsCollector;
+    if (sort == null) {
+      topDocsCollector = TopScoreDocCollector.create(numHits);
+    } else {
+      // fields are filled so that slices can be merged by sort value
+      topDocsCollector = TopFieldCollector.create(sort, numHits, true, true, false);
+    }
+    return topDocsCollector;
+  }
+
+  @Override
+  public Collected reduce(Collection<RequestCollector> collectors) throws IOException {
+    if (collectors.size() == 1) {
+      RequestCollector collector = collectors.iterator().next();
+      Map<String, FacetAccumulator> facetAccumulators = collector.accumulatorCollector == null ?
+          null : collector.accumulatorCollector.getAccumulators();
+      return new Collected(collector.topDocsCollector.topDocs(), facetAccumulators,
+          collector.facetsCollector);
+    }
+
+    TopDocs topDocs;
+    if (sort == null) {
+      TopDocs[] shardHits = new TopDocs[collectors.size()];
+      int i = 0;
+      for (RequestCollector collector : collectors) {
+        shardHits[i++] = collector.topDocsCollector.topDocs();
+      }
+      topDocs = TopDocs.merge(numHits, shardHits);
+    } else {
+      TopFieldDocs[] shardHits = new TopFieldDocs[collectors.size()];
+      int i = 0;
+      for (RequestCollector collector : collectors) {
+        shardHits[i++] = (TopFieldDocs) collector.topDocsCollector.topDocs();
+      }
+      topDocs = TopDocs.merge(sort, numHits, shardHits);
+    }
+
+    Map<String, FacetAccumulator> facetAccumulators = null;
+    if (accumulatorCollectorManager != null) {
+      List<FacetAccumulatorCollector> accumulatorCollectors = new ArrayList<>(collectors.size());
+      for (RequestCollector collector : collectors) {
+        accumulatorCollectors.add(collector.accumulatorCollector);
+      }
+      facetAccumulators = accumulatorCollectorManager.reduce(accumulatorCollectors);
+    }
+
+    FacetsCollector facetsCollector = null;
+    if (facetsCollectorManager != null) {
+      List<FacetsCollector> facetsCollectors = new ArrayList<>(collectors.size());
+      for (RequestCollector collector : collectors) {
+        facetsCollectors.add(collector.facetsCollector);
+      }
+      facetsCollector = facetsCollectorManager.reduce(facetsCollectors);
+    }
+    return new Collected(topDocs, facetAccumulators, facetsCollector);
+  }
+
+  static class RequestCollector implements Collector {
+    final TopDocsCollector<?> topDocsCollector;
+    final FacetAccumulatorCollector accumulatorCollector;
+    final FacetsCollector facetsCollector;
+    private final Collector collector;
+
+    RequestCollector(TopDocsCollector<?> topDocsCollector,
+        FacetAccumulatorCollector accumulatorCollector, FacetsCollector facetsCollector) {
+      this.topDocsCollector = topDocsCollector;
+      this.accumulatorCollector = accumulatorCollector;
+      this.facetsCollector = facetsCollector;
+      // null collectors are left out
+      this.collector = MultiCollector.wrap(topDocsCollector, accumulatorCollector,
+          facetsCollector);
+    }
+
+    @Override
+    public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+      return collector.getLeafCollector(context);
+    }
+
+    @Override
+    public boolean needsScores() {
+      return collector.needsScores();
+    }
+  }
+
+  static class Collected {
+    final TopDocs topDocs;
+    final Map<String, FacetAccumulator> facetAccumulators;
+    final FacetsCollector facetsCollector;
+
+    Collected(TopDocs topDocs, Map<String, FacetAccumulator> facetAccumulators,
+        FacetsCollector facetsCollector) {
+      this.topDocs = topDocs;
+      this.facetAccumulators = facetAccumulators;
+      this.facetsCollector = facetsCollector;
+    }
+  }
+}
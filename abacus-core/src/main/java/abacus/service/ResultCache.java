@@ -0,0 +1,182 @@
+package abacus.service;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+import abacus.api.AbacusRequest;
+import abacus.api.AbacusResult;
+import abacus.search.filter.FilterCache;
+
+/**
+ * Caches whole results by request, so that identical requests on the same index generation
+ * are executed once. Requests are keyed by a canonical copy, with their filter normalized as
+ * in {@link FilterCache#normalize(abacus.api.AbacusFilter)}, and every entry is dropped once
+ * the searched reader or the named doc id sets change. Entries expire after a time to live and the least recently
+ * used ones are evicted past the maximum number of entries.
+ * <p>
+ * Loading is single-flight: requests arriving while an identical request is executing wait
+ * for its result instead of executing it again. Failures are not cached.
+ */
+public class ResultCache {
+
+  private final int maxEntries;
+  private final long ttlMillis;
+
+  // all guarded by this
+  private final Map<AbacusRequest, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+  private long generation = -1;
+  private long setsVersion = -1;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  public ResultCache(int maxEntries, long ttlMillis) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+    }
+    if (ttlMillis <= 0) {
+      throw new IllegalArgumentException("ttlMillis must be positive: " + ttlMillis);
+    }
+    this.maxEntries = maxEntries;
+    this.ttlMillis = ttlMillis;
+  }
+
+  /**
+   * Returns the result of req on the reader of the given generation, from the cache or from
+   * an identical request in flight if possible, else from loader. Every caller gets its own
+   * copy and may modify it, with the latency of this call rather than the one the result
+   * was computed in.
+   *
+   * @param readerGeneration a version of the searched reader that increases on every change
+   * @param setsVersion the version of the named doc id sets read before executing req, see
+   *     {@link abacus.search.docsets.DocIdSetStore#getVersion()}
+   */
+  AbacusResult get(AbacusRequest req, long readerGeneration, long setsVersion,
+      Callable<AbacusResult> loader) throws ParseException, IOException {
+    long start = System.currentTimeMillis();
+    AbacusRequest key = canonicalize(req);
+    FutureTask<AbacusResult> task = null;
+    Entry entry;
+    synchronized (this) {
+      if (readerGeneration < generation || setsVersion < this.setsVersion) {
+        // a request that started before the latest refresh or set change, not worth caching
+        task = new FutureTask<>(loader);
+      } else if (readerGeneration > generation || setsVersion > this.setsVersion) {
+        // every entry was computed on an older reader or older sets
+        cache.clear();
+        generation = readerGeneration;
+        this.setsVersion = setsVersion;
+      }
+      entry = task != null ? new Entry(task) : cache.get(key);
+      if (entry != null && System.currentTimeMillis() - entry.created > ttlMillis) {
+        cache.remove(key);
+        entry = null;
+      }
+      if (entry == null) {
+        task = new FutureTask<>(loader);
+        entry = new Entry(task);
+        cache.put(key, entry);
+        Iterator<Entry> it = cache.values().iterator();
+        while (cache.size() > maxEntries) {
+          it.next();
+          it.remove();
+          evictionCount.incrementAndGet();
+        }
+      }
+    }
+    if (task != null) {
+      missCount.incrementAndGet();
+      task.run();
+    } else {
+      hitCount.incrementAndGet();
+    }
+    try {
+      // the cached result itself is never handed out
+      AbacusResult result = entry.task.get().deepCopy();
+      result.setLatencyInMs(System.currentTimeMillis() - start);
+      return result;
+    } catch (InterruptedException e) {
+      throw new ThreadInterruptedException(e);
+    } catch (ExecutionException e) {
+      if (task != null) {
+        synchronized (this) {
+          if (cache.get(key) == entry) {
+            cache.remove(key);
+          }
+        }
+      }
+      Throwable cause = e.getCause();
+      if (cause instanceof ParseException) {
+        throw (ParseException) cause;
+      } else if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause.getMessage(), cause);
+    }
+  }
+
+  private static AbacusRequest canonicalize(AbacusRequest req) {
+    AbacusRequest key = req.deepCopy();
+    if (key.isSetFilter()) {
+      key.setFilter(FilterCache.normalize(key.getFilter()));
+    }
+    return key;
+  }
+
+  public synchronized void clear() {
+    cache.clear();
+  }
+
+  /**
+   * Returns the number of requests served from the cache or from an identical request in
+   * flight.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Returns the number of entries evicted to stay within the maximum number of entries,
+   * expired entries and entries of older readers are not counted.
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  public synchronized int getCacheSize() {
+    return cache.size();
+  }
+
+  @Override
+  public String toString() {
+    return "ResultCache(hits:" + getHitCount() + " misses:" + getMissCount() + " evictions:"
+        + getEvictionCount() + " size:" + getCacheSize() + ")";
+  }
+
+  private static class Entry {
+    final FutureTask<AbacusResult> task;
+    final long created = System.currentTimeMillis();
+
+    Entry(FutureTask<AbacusResult> task) {
+      this.task = task;
+    }
+  }
+}
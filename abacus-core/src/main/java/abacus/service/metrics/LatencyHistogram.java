@@ -0,0 +1,132 @@
+package abacus.service.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds. Values below 16 have their own bucket,
+ * larger ones fall in one of 8 linear sub-buckets of their power of two, so percentiles are
+ * reported within 12.5% of the recorded values. Recording is a few atomic increments, reads
+ * are not atomic with respect to concurrent recordings.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+  private static final int LINEAR_BUCKETS = 16;
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // exponents 4 to 63, the highest bit of any positive long
+  private static final int BUCKET_COUNT = LINEAR_BUCKETS + (64 - 4) * SUB_BUCKETS;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    buckets.incrementAndGet(bucket(nanos));
+    count.incrementAndGet();
+    sum.addAndGet(nanos);
+    long currentMax;
+    while (nanos > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanos)) {
+      // retry until max is at least nanos
+    }
+  }
+
+  static int bucket(long value) {
+    if (value < LINEAR_BUCKETS) {
+      return (int) value;
+    }
+    int exp = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR_BUCKETS + (exp - 4) * SUB_BUCKETS + sub;
+  }
+
+  /** Returns the highest value falling in bucket. */
+  static long bucketUpperBound(int bucket) {
+    if (bucket < LINEAR_BUCKETS) {
+      return bucket;
+    }
+    int exp = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+    int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+    long lower = (long) (SUB_BUCKETS + sub) << (exp - SUB_BUCKET_BITS);
+    return lower + (1L << (exp - SUB_BUCKET_BITS)) - 1;
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getSumNanos() {
+    return sum.get();
+  }
+
+  public long getMaxNanos() {
+    return max.get();
+  }
+
+  /**
+   * Returns the upper bound of the bucket holding the given quantile of the recorded values,
+   * capped to the maximum, or 0 if nothing was recorded.
+   */
+  public long getQuantileNanos(double quantile) {
+    if (quantile < 0 || quantile > 1) {
+      throw new IllegalArgumentException("quantile must be in [0, 1]: " + quantile);
+    }
+    long[] snapshot = new long[BUCKET_COUNT];
+    long total = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      snapshot[i] = buckets.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(quantile * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(bucketUpperBound(i), getMaxNanos());
+      }
+    }
+    return getMaxNanos();
+  }
+
+  @Override
+  public double getMeanMicros() {
+    long n = getCount();
+    return n == 0 ? 0 : getSumNanos() / 1000.0 / n;
+  }
+
+  @Override
+  public double getMaxMicros() {
+    return getMaxNanos() / 1000.0;
+  }
+
+  @Override
+  public double getP50Micros() {
+    return getQuantileNanos(0.5) / 1000.0;
+  }
+
+  @Override
+  public double getP99Micros() {
+    return getQuantileNanos(0.99) / 1000.0;
+  }
+
+  @Override
+  public double getP999Micros() {
+    return getQuantileNanos(0.999) / 1000.0;
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      buckets.set(i, 0);
+    }
+    count.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+}
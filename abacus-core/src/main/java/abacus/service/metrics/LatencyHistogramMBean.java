@@ -0,0 +1,19 @@
+package abacus.service.metrics;
+
+/**
+ * JMX view of a {@link LatencyHistogram}, latencies in microseconds.
+ */
+public interface LatencyHistogramMBean {
+
+  long getCount();
+
+  double getMeanMicros();
+
+  double getMaxMicros();
+
+  double getP50Micros();
+
+  double getP99Micros();
+
+  double getP999Micros();
+}
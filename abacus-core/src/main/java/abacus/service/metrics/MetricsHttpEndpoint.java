@@ -0,0 +1,59 @@
+package abacus.service.metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the plain text page of {@link QueryMetrics#writeText(Appendable)} on GET /metrics,
+ * from the HTTP server of the JDK running on a single background thread.
+ */
+public class MetricsHttpEndpoint implements Closeable {
+
+  public static final String PATH = "/metrics";
+
+  private final HttpServer server;
+
+  /**
+   * Starts serving metrics on address, port 0 picks a free port.
+   */
+  public MetricsHttpEndpoint(final QueryMetrics metrics, InetSocketAddress address)
+      throws IOException {
+    server = HttpServer.create(address, 0);
+    server.createContext(PATH, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          if (!"GET".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+          }
+          byte[] body = metrics.toText().getBytes(StandardCharsets.UTF_8);
+          exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+          exchange.sendResponseHeaders(200, body.length);
+          OutputStream out = exchange.getResponseBody();
+          out.write(body);
+          out.close();
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.start();
+  }
+
+  public InetSocketAddress getAddress() {
+    return server.getAddress();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+}
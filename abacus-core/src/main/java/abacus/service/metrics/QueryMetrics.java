@@ -0,0 +1,295 @@
+package abacus.service.metrics;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency histograms of the phases of a query, facet counting per field, and request
+ * counters. Timing goes through {@link #start()} and {@link #record(Phase, long)}, which
+ * neither read the clock nor touch shared state when metrics are disabled.
+ * <p>
+ * Metrics are exposed as a plain text page, see {@link #writeText(Appendable)}, and as one
+ * MBean per histogram once {@link #registerMBeans(String)} was called.
+ */
+public class QueryMetrics {
+
+  public static enum Phase {
+    /** Parsing the query of the request. */
+    QUERY_CONSTRUCTION,
+    /** Building the filter of the request, through the filter cache if any. */
+    FILTER_CONSTRUCTION,
+    /** Searching, collecting hits and accumulating facets during collection. */
+    COLLECTION,
+    /** Building the facet results, per field. Includes counting for attribute facets. */
+    FACET_COUNTING,
+    /** Building the hits of the result, including stored field fetches. */
+    HIT_BUILDING,
+    /** Fetching the stored source data of the hits. */
+    STORED_FIELD_FETCH,
+    /** The whole request, from parsing to result. */
+    TOTAL;
+
+    String metricName() {
+      return name().toLowerCase();
+    }
+  }
+
+  private static final QueryMetrics DISABLED = new QueryMetrics(false);
+
+  private final boolean enabled;
+  private final LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+  private final ConcurrentMap<String, LatencyHistogram> fieldFacetCounting =
+      new ConcurrentHashMap<>();
+  private final AtomicLong requestCount = new AtomicLong();
+  private final AtomicLong errorCount = new AtomicLong();
+
+  // guarded by this
+  private MBeanServer mbeanServer;
+  private String jmxDomain;
+  private final List<ObjectName> registeredNames = new ArrayList<>();
+
+  private QueryMetrics(boolean enabled) {
+    this.enabled = enabled;
+    for (int i = 0; i < phases.length; ++i) {
+      phases[i] = new LatencyHistogram();
+    }
+  }
+
+  public QueryMetrics() {
+    this(true);
+  }
+
+  /**
+   * Returns metrics recording nothing, shared by every service with metrics disabled.
+   */
+  public static QueryMetrics disabled() {
+    return DISABLED;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the start time of a phase to pass to {@link #record(Phase, long)}, 0 if disabled.
+   */
+  public long start() {
+    return enabled ? System.nanoTime() : 0;
+  }
+
+  /**
+   * Records the phase as lasting from startNanos until now, and returns now so that the next
+   * phase can start from it.
+   */
+  public long record(Phase phase, long startNanos) {
+    if (!enabled) {
+      return 0;
+    }
+    long now = System.nanoTime();
+    phases[phase.ordinal()].record(now - startNanos);
+    return now;
+  }
+
+  /**
+   * Returns the nanoseconds elapsed since startNanos, 0 if disabled.
+   */
+  public long elapsedNanos(long startNanos) {
+    return enabled ? System.nanoTime() - startNanos : 0;
+  }
+
+  /**
+   * Records a phase of known duration, for phases made of several spans such as the stored
+   * field fetches of every hit.
+   */
+  public void recordNanos(Phase phase, long nanos) {
+    if (enabled) {
+      phases[phase.ordinal()].record(nanos);
+    }
+  }
+
+  /**
+   * Records the facet counting of field from startNanos until now, both in the histogram of
+   * the field and of {@link Phase#FACET_COUNTING}, and returns now.
+   */
+  public long recordFacetCounting(String field, long startNanos) {
+    if (!enabled) {
+      return 0;
+    }
+    long now = System.nanoTime();
+    long nanos = now - startNanos;
+    phases[Phase.FACET_COUNTING.ordinal()].record(nanos);
+    getFieldHistogram(field).record(nanos);
+    return now;
+  }
+
+  private LatencyHistogram getFieldHistogram(String field) {
+    LatencyHistogram histogram = fieldFacetCounting.get(field);
+    if (histogram != null) {
+      return histogram;
+    }
+    // added and registered under the lock of registerMBeans, which registers every field
+    // already added, so that no field is registered twice
+    synchronized (this) {
+      histogram = fieldFacetCounting.get(field);
+      if (histogram == null) {
+        histogram = new LatencyHistogram();
+        fieldFacetCounting.put(field, histogram);
+        if (mbeanServer != null) {
+          register(fieldObjectName(field), histogram);
+        }
+      }
+      return histogram;
+    }
+  }
+
+  public void countRequest(boolean failed) {
+    if (enabled) {
+      requestCount.incrementAndGet();
+      if (failed) {
+        errorCount.incrementAndGet();
+      }
+    }
+  }
+
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  public long getErrorCount() {
+    return errorCount.get();
+  }
+
+  public LatencyHistogram getHistogram(Phase phase) {
+    return phases[phase.ordinal()];
+  }
+
+  /**
+   * Returns the facet counting histogram of field, or null if it was never counted.
+   */
+  public LatencyHistogram getFacetCountingHistogram(String field) {
+    return fieldFacetCounting.get(field);
+  }
+
+  /**
+   * Writes every metric as one "name{labels} value" line, latencies in microseconds.
+   */
+  public void writeText(Appendable out) throws IOException {
+    out.append("abacus_requests_total ").append(String.valueOf(getRequestCount())).append('\n');
+    out.append("abacus_request_errors_total ").append(String.valueOf(getErrorCount()))
+        .append('\n');
+    for (Phase phase : Phase.values()) {
+      writeHistogram(out, "phase=\"" + phase.metricName() + "\"", getHistogram(phase));
+    }
+    Map<String, LatencyHistogram> sortedFields = new TreeMap<>(fieldFacetCounting);
+    for (Map.Entry<String, LatencyHistogram> entry : sortedFields.entrySet()) {
+      writeHistogram(out, "phase=\"" + Phase.FACET_COUNTING.metricName() + "\",field=\""
+          + entry.getKey() + "\"", entry.getValue());
+    }
+  }
+
+  private static void writeHistogram(Appendable out, String labels, LatencyHistogram histogram)
+      throws IOException {
+    out.append("abacus_phase_count{").append(labels).append("} ")
+        .append(String.valueOf(histogram.getCount())).append('\n');
+    out.append("abacus_phase_micros{").append(labels).append(",stat=\"mean\"} ")
+        .append(String.valueOf(histogram.getMeanMicros())).append('\n');
+    out.append("abacus_phase_micros{").append(labels).append(",quantile=\"0.5\"} ")
+        .append(String.valueOf(histogram.getP50Micros())).append('\n');
+    out.append("abacus_phase_micros{").append(labels).append(",quantile=\"0.99\"} ")
+        .append(String.valueOf(histogram.getP99Micros())).append('\n');
+    out.append("abacus_phase_micros{").append(labels).append(",quantile=\"0.999\"} ")
+        .append(String.valueOf(histogram.getP999Micros())).append('\n');
+    out.append("abacus_phase_micros{").append(labels).append(",stat=\"max\"} ")
+        .append(String.valueOf(histogram.getMaxMicros())).append('\n');
+  }
+
+  public String toText() {
+    StringBuilder buf = new StringBuilder();
+    try {
+      writeText(buf);
+    } catch (IOException e) {
+      // StringBuilder does not throw
+      throw new IllegalStateException(e);
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Registers one MBean per histogram in the platform MBean server, named
+   * "domain:type=QueryMetrics,phase=..." and, per field, "...,field=...". Histograms of fields
+   * counted later are registered as they appear.
+   */
+  public synchronized void registerMBeans(String domain) throws JMException {
+    if (!enabled) {
+      throw new IllegalStateException("metrics are disabled");
+    }
+    if (mbeanServer != null) {
+      throw new IllegalStateException("already registered in " + jmxDomain);
+    }
+    mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    jmxDomain = domain;
+    for (Phase phase : Phase.values()) {
+      register(new ObjectName(jmxDomain + ":type=QueryMetrics,phase=" + phase.metricName()),
+          getHistogram(phase));
+    }
+    for (Map.Entry<String, LatencyHistogram> entry : fieldFacetCounting.entrySet()) {
+      register(fieldObjectName(entry.getKey()), entry.getValue());
+    }
+  }
+
+  private ObjectName fieldObjectName(String field) {
+    try {
+      return new ObjectName(jmxDomain + ":type=QueryMetrics,phase="
+          + Phase.FACET_COUNTING.metricName() + ",field=" + ObjectName.quote(field));
+    } catch (JMException e) {
+      throw new IllegalArgumentException("invalid jmx name for field " + field, e);
+    }
+  }
+
+  private void register(ObjectName name, LatencyHistogram histogram) {
+    try {
+      mbeanServer.registerMBean(histogram, name);
+      registeredNames.add(name);
+    } catch (JMException e) {
+      throw new IllegalStateException("cannot register " + name, e);
+    }
+  }
+
+  public synchronized void unregisterMBeans() {
+    if (mbeanServer == null) {
+      return;
+    }
+    for (ObjectName name : registeredNames) {
+      try {
+        mbeanServer.unregisterMBean(name);
+      } catch (JMException e) {
+        // already unregistered
+      }
+    }
+    registeredNames.clear();
+    mbeanServer = null;
+    jmxDomain = null;
+  }
+
+  public void reset() {
+    for (LatencyHistogram histogram : phases) {
+      histogram.reset();
+    }
+    for (LatencyHistogram histogram : fieldFacetCounting.values()) {
+      histogram.reset();
+    }
+    requestCount.set(0);
+    errorCount.set(0);
+  }
+}
@@ -0,0 +1,38 @@
+package org.apache.lucene.util.packed;
+
+import java.io.IOException;
+
+import org.apache.lucene.search.DocIdSetIterator;
+
+/**
+ * A {@link DocIdSetIterator} that also returns its docs in batches, so that loops over many
+ * hits, like facet counting, make one call per batch instead of one per doc.
+ */
+public abstract class BatchDocIdSetIterator extends DocIdSetIterator {
+
+  /**
+   * Fills out with the next docs and returns how many it holds, 0 once the iterator is
+   * exhausted. {@link #docID()} is then the last doc returned.
+   */
+  public abstract int nextDocs(int[] out) throws IOException;
+
+  /**
+   * Fills out with the next docs of it, in batches if it supports them, and returns how many
+   * it holds, 0 once it is exhausted.
+   */
+  public static int nextDocs(DocIdSetIterator it, int[] out) throws IOException {
+    if (it instanceof BatchDocIdSetIterator) {
+      return ((BatchDocIdSetIterator) it).nextDocs(out);
+    }
+    int count = 0;
+    int doc = it.docID();
+    // iterators may not be called again once exhausted
+    if (doc == NO_MORE_DOCS) {
+      return 0;
+    }
+    while (count < out.length && (doc = it.nextDoc()) != NO_MORE_DOCS) {
+      out[count++] = doc;
+    }
+    return count;
+  }
+}
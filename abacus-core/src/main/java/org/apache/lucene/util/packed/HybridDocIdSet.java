@@ -0,0 +1,795 @@
+package org.apache.lucene.util.packed;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * Doc id set splitting the docid space in chunks of 2^16 docs, each chunk being stored as the
+ * smallest of a sorted array of the low 16 bits of its docs, a bitmap or a list of runs: 2
+ * bytes per doc for sparse chunks, 8KB at most for dense ones and 4 bytes per range of
+ * consecutive docs whatever its length. Empty chunks take no room.
+ * <p>
+ * Intersections, unions and differences are computed chunk by chunk, arrays being merged or
+ * probed and the other containers combined as bitmaps, and the result of every chunk is
+ * stored in its smallest form again.
+ */
+public class HybridDocIdSet extends DocIdSet {
+
+  static final int CHUNK_BITS = 16;
+  static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  // no more docs in a container
+  static final int NO_MORE = CHUNK_SIZE;
+  private static final int BITMAP_WORDS = CHUNK_SIZE >>> 6;
+  // beyond it an array takes more room than a bitmap
+  private static final int MAX_ARRAY_SIZE = 4096;
+
+  private static final HybridDocIdSet EMPTY =
+      new HybridDocIdSet(new int[0], new Container[0], 0);
+
+  // chunk of every container, ascending
+  final int[] keys;
+  final Container[] containers;
+  private final int cardinality;
+
+  private HybridDocIdSet(int[] keys, Container[] containers, int cardinality) {
+    this.keys = keys;
+    this.containers = containers;
+    this.cardinality = cardinality;
+  }
+
+  /**
+   * Returns the set of the docs of it.
+   */
+  public static HybridDocIdSet of(DocIdSetIterator it) throws IOException {
+    Builder builder = new Builder();
+    builder.add(it);
+    return builder.build();
+  }
+
+  public int cardinality() {
+    return cardinality;
+  }
+
+  public boolean contains(int doc) {
+    int idx = Arrays.binarySearch(keys, doc >>> CHUNK_BITS);
+    return idx >= 0 && containers[idx].contains(doc & CHUNK_MASK);
+  }
+
+  @Override
+  public HybridDocIdSetIterator iterator() {
+    return cardinality == 0 ? null : new HybridDocIdSetIterator(this);
+  }
+
+  @Override
+  public long ramBytesUsed() {
+    long bytes = RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+        + 2 * RamUsageEstimator.NUM_BYTES_OBJECT_REF + RamUsageEstimator.NUM_BYTES_INT)
+        + RamUsageEstimator.sizeOf(keys)
+        + RamUsageEstimator.shallowSizeOf(containers);
+    for (Container container : containers) {
+      bytes += container.ramBytesUsed();
+    }
+    return bytes;
+  }
+
+  @Override
+  public String toString() {
+    int arrays = 0;
+    int bitmaps = 0;
+    int runs = 0;
+    for (Container container : containers) {
+      if (container instanceof ArrayContainer) {
+        arrays++;
+      } else if (container instanceof BitmapContainer) {
+        bitmaps++;
+      } else {
+        runs++;
+      }
+    }
+    return "HybridDocIdSet(cardinality:" + cardinality + " arrays:" + arrays + " bitmaps:"
+        + bitmaps + " runs:" + runs + ")";
+  }
+
+  /**
+   * Returns the docs in both a and b.
+   */
+  public static HybridDocIdSet intersect(HybridDocIdSet a, HybridDocIdSet b) {
+    SetBuilder result = new SetBuilder(Math.min(a.keys.length, b.keys.length));
+    int i = 0;
+    int j = 0;
+    while (i < a.keys.length && j < b.keys.length) {
+      if (a.keys[i] < b.keys[j]) {
+        i++;
+      } else if (a.keys[i] > b.keys[j]) {
+        j++;
+      } else {
+        result.add(a.keys[i], and(a.containers[i], b.containers[j]));
+        i++;
+        j++;
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * Returns the docs in a or b.
+   */
+  public static HybridDocIdSet union(HybridDocIdSet a, HybridDocIdSet b) {
+    SetBuilder result = new SetBuilder(a.keys.length + b.keys.length);
+    int i = 0;
+    int j = 0;
+    while (i < a.keys.length || j < b.keys.length) {
+      if (j == b.keys.length || (i < a.keys.length && a.keys[i] < b.keys[j])) {
+        result.add(a.keys[i], a.containers[i]);
+        i++;
+      } else if (i == a.keys.length || a.keys[i] > b.keys[j]) {
+        result.add(b.keys[j], b.containers[j]);
+        j++;
+      } else {
+        result.add(a.keys[i], or(a.containers[i], b.containers[j]));
+        i++;
+        j++;
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * Returns the docs in a and not in b.
+   */
+  public static HybridDocIdSet andNot(HybridDocIdSet a, HybridDocIdSet b) {
+    SetBuilder result = new SetBuilder(a.keys.length);
+    int j = 0;
+    for (int i = 0; i < a.keys.length; ++i) {
+      while (j < b.keys.length && b.keys[j] < a.keys[i]) {
+        j++;
+      }
+      if (j < b.keys.length && b.keys[j] == a.keys[i]) {
+        result.add(a.keys[i], andNot(a.containers[i], b.containers[j]));
+      } else {
+        result.add(a.keys[i], a.containers[i]);
+      }
+    }
+    return result.build();
+  }
+
+  private static Container and(Container a, Container b) {
+    if (b instanceof ArrayContainer) {
+      Container tmp = a;
+      a = b;
+      b = tmp;
+    }
+    if (a instanceof ArrayContainer && b instanceof ArrayContainer) {
+      short[] va = ((ArrayContainer) a).values;
+      short[] vb = ((ArrayContainer) b).values;
+      short[] values = new short[Math.min(va.length, vb.length)];
+      int i = 0;
+      int j = 0;
+      int size = 0;
+      while (i < va.length && j < vb.length) {
+        int x = va[i] & CHUNK_MASK;
+        int y = vb[j] & CHUNK_MASK;
+        if (x < y) {
+          i++;
+        } else if (x > y) {
+          j++;
+        } else {
+          values[size++] = va[i];
+          i++;
+          j++;
+        }
+      }
+      return size == 0 ? null : new ArrayContainer(Arrays.copyOf(values, size));
+    }
+    if (a instanceof ArrayContainer) {
+      ArrayContainer array = (ArrayContainer) a;
+      short[] values = new short[array.values.length];
+      int size = 0;
+      for (short value : array.values) {
+        if (b.contains(value & CHUNK_MASK)) {
+          values[size++] = value;
+        }
+      }
+      return size == 0 ? null : new ArrayContainer(Arrays.copyOf(values, size));
+    }
+    long[] words = a.toBitmap();
+    long[] other = b.toBitmap();
+    for (int i = 0; i < BITMAP_WORDS; ++i) {
+      words[i] &= other[i];
+    }
+    return Container.optimal(words);
+  }
+
+  private static Container or(Container a, Container b) {
+    if (a.cardinality() == CHUNK_SIZE) {
+      return a;
+    }
+    if (b.cardinality() == CHUNK_SIZE) {
+      return b;
+    }
+    if (a instanceof ArrayContainer && b instanceof ArrayContainer
+        && a.cardinality() + b.cardinality() <= MAX_ARRAY_SIZE) {
+      short[] va = ((ArrayContainer) a).values;
+      short[] vb = ((ArrayContainer) b).values;
+      short[] values = new short[va.length + vb.length];
+      int i = 0;
+      int j = 0;
+      int size = 0;
+      while (i < va.length || j < vb.length) {
+        int x = i < va.length ? va[i] & CHUNK_MASK : NO_MORE;
+        int y = j < vb.length ? vb[j] & CHUNK_MASK : NO_MORE;
+        if (x <= y) {
+          i++;
+          if (x == y) {
+            j++;
+          }
+        } else {
+          j++;
+        }
+        values[size++] = (short) Math.min(x, y);
+      }
+      return new ArrayContainer(Arrays.copyOf(values, size));
+    }
+    long[] words = a.toBitmap();
+    b.orInto(words);
+    return Container.optimal(words);
+  }
+
+  private static Container andNot(Container a, Container b) {
+    if (a instanceof ArrayContainer) {
+      ArrayContainer array = (ArrayContainer) a;
+      short[] values = new short[array.values.length];
+      int size = 0;
+      for (short value : array.values) {
+        if (!b.contains(value & CHUNK_MASK)) {
+          values[size++] = value;
+        }
+      }
+      return size == 0 ? null : new ArrayContainer(Arrays.copyOf(values, size));
+    }
+    long[] words = a.toBitmap();
+    b.clearFrom(words);
+    return Container.optimal(words);
+  }
+
+  /**
+   * Builds a set from docs added in increasing order.
+   */
+  public static class Builder {
+    private final SetBuilder result = new SetBuilder(4);
+    // docs of the current chunk
+    private final long[] words = new long[BITMAP_WORDS];
+    private int key = -1;
+    private int lastDoc = -1;
+
+    public void add(int doc) {
+      if (doc <= lastDoc) {
+        throw new IllegalArgumentException("docs must be added in increasing order, got "
+            + doc + " after " + lastDoc);
+      }
+      lastDoc = doc;
+      int docKey = doc >>> CHUNK_BITS;
+      if (docKey != key) {
+        flush();
+        key = docKey;
+      }
+      int low = doc & CHUNK_MASK;
+      words[low >>> 6] |= 1L << low;
+    }
+
+    public void add(DocIdSetIterator it) throws IOException {
+      for (int doc = it.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+        add(doc);
+      }
+    }
+
+    private void flush() {
+      if (key >= 0) {
+        result.add(key, Container.optimal(words));
+        Arrays.fill(words, 0L);
+      }
+    }
+
+    public HybridDocIdSet build() {
+      flush();
+      key = -1;
+      return result.build();
+    }
+  }
+
+  // collects the non-empty containers of a set
+  private static class SetBuilder {
+    private int[] keys;
+    private Container[] containers;
+    private int size;
+    private int cardinality;
+
+    SetBuilder(int capacity) {
+      keys = new int[Math.max(1, capacity)];
+      containers = new Container[keys.length];
+    }
+
+    void add(int key, Container container) {
+      if (container == null) {
+        return;
+      }
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, size * 2);
+        containers = Arrays.copyOf(containers, size * 2);
+      }
+      keys[size] = key;
+      containers[size] = container;
+      size++;
+      cardinality += container.cardinality();
+    }
+
+    HybridDocIdSet build() {
+      if (size == 0) {
+        return EMPTY;
+      }
+      return new HybridDocIdSet(Arrays.copyOf(keys, size), Arrays.copyOf(containers, size),
+          cardinality);
+    }
+  }
+
+  /**
+   * Docs of one chunk, as their low 16 bits.
+   */
+  abstract static class Container {
+
+    abstract int cardinality();
+
+    abstract boolean contains(int low);
+
+    abstract ContainerIterator iterator();
+
+    abstract long ramBytesUsed();
+
+    // sets the bits of the docs in a bitmap of the chunk
+    abstract void orInto(long[] words);
+
+    // clears the bits of the docs from a bitmap of the chunk
+    abstract void clearFrom(long[] words);
+
+    long[] toBitmap() {
+      long[] words = new long[BITMAP_WORDS];
+      orInto(words);
+      return words;
+    }
+
+    /**
+     * Returns the smallest container of the docs of a bitmap of a chunk, null if it is empty.
+     * The bitmap is not used by the container.
+     */
+    static Container optimal(long[] words) {
+      int cardinality = 0;
+      int runs = 0;
+      long previous = 0;
+      for (long word : words) {
+        cardinality += Long.bitCount(word);
+        // a run starts on every set bit whose previous bit is clear
+        runs += Long.bitCount(word & ~((word << 1) | (previous >>> 63)));
+        previous = word;
+      }
+      if (cardinality == 0) {
+        return null;
+      }
+      long arrayBytes = 2L * cardinality;
+      long runBytes = 4L * runs;
+      long bitmapBytes = 8L * BITMAP_WORDS;
+      if (runBytes < arrayBytes && runBytes < bitmapBytes) {
+        return RunContainer.fromBitmap(words, runs, cardinality);
+      } else if (arrayBytes <= bitmapBytes) {
+        return ArrayContainer.fromBitmap(words, cardinality);
+      } else {
+        return new BitmapContainer(words.clone(), cardinality);
+      }
+    }
+  }
+
+  /**
+   * Position in the docs of a container.
+   */
+  abstract static class ContainerIterator {
+
+    /**
+     * Returns the next doc, {@link HybridDocIdSet#NO_MORE} once there is none.
+     */
+    abstract int next();
+
+    /**
+     * Returns the first doc at or after target, target being above the current doc.
+     */
+    abstract int advance(int target);
+
+    /**
+     * Puts up to len of the next docs, or'ed with base, into out from off and returns how
+     * many there were.
+     */
+    abstract int fill(int base, int[] out, int off, int len);
+  }
+
+  static final class ArrayContainer extends Container {
+    final short[] values;
+
+    ArrayContainer(short[] values) {
+      this.values = values;
+    }
+
+    static ArrayContainer fromBitmap(long[] words, int cardinality) {
+      short[] values = new short[cardinality];
+      int size = 0;
+      for (int i = 0; i < words.length; ++i) {
+        long word = words[i];
+        while (word != 0) {
+          values[size++] = (short) ((i << 6) + Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+      return new ArrayContainer(values);
+    }
+
+    @Override
+    int cardinality() {
+      return values.length;
+    }
+
+    @Override
+    boolean contains(int low) {
+      return search(values, 0, values.length, low) >= 0;
+    }
+
+    // index of low in values[from, to), -(insertion point) - 1 if it is not there
+    static int search(short[] values, int from, int to, int low) {
+      int lo = from;
+      int hi = to - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        int value = values[mid] & CHUNK_MASK;
+        if (value < low) {
+          lo = mid + 1;
+        } else if (value > low) {
+          hi = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -lo - 1;
+    }
+
+    @Override
+    ContainerIterator iterator() {
+      return new ContainerIterator() {
+        private int idx = -1;
+
+        @Override
+        int next() {
+          return ++idx < values.length ? values[idx] & CHUNK_MASK : NO_MORE;
+        }
+
+        @Override
+        int advance(int target) {
+          int found = search(values, idx + 1, values.length, target);
+          idx = found >= 0 ? found : -found - 1;
+          return idx < values.length ? values[idx] & CHUNK_MASK : NO_MORE;
+        }
+
+        @Override
+        int fill(int base, int[] out, int off, int len) {
+          int n = Math.max(0, Math.min(len, values.length - idx - 1));
+          for (int i = 0; i < n; ++i) {
+            out[off + i] = base | (values[++idx] & CHUNK_MASK);
+          }
+          return n;
+        }
+      };
+    }
+
+    @Override
+    long ramBytesUsed() {
+      return RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+          + RamUsageEstimator.NUM_BYTES_OBJECT_REF) + RamUsageEstimator.sizeOf(values);
+    }
+
+    @Override
+    void orInto(long[] words) {
+      for (short value : values) {
+        int low = value & CHUNK_MASK;
+        words[low >>> 6] |= 1L << low;
+      }
+    }
+
+    @Override
+    void clearFrom(long[] words) {
+      for (short value : values) {
+        int low = value & CHUNK_MASK;
+        words[low >>> 6] &= ~(1L << low);
+      }
+    }
+  }
+
+  static final class BitmapContainer extends Container {
+    final long[] words;
+    private final int cardinality;
+
+    BitmapContainer(long[] words, int cardinality) {
+      this.words = words;
+      this.cardinality = cardinality;
+    }
+
+    @Override
+    int cardinality() {
+      return cardinality;
+    }
+
+    @Override
+    boolean contains(int low) {
+      return (words[low >>> 6] & (1L << low)) != 0;
+    }
+
+    @Override
+    ContainerIterator iterator() {
+      return new ContainerIterator() {
+        // remaining docs of word i
+        private int i = 0;
+        private long word = words[0];
+
+        @Override
+        int next() {
+          while (word == 0) {
+            if (i >= BITMAP_WORDS - 1) {
+              i = BITMAP_WORDS;
+              return NO_MORE;
+            }
+            word = words[++i];
+          }
+          int low = (i << 6) + Long.numberOfTrailingZeros(word);
+          word &= word - 1;
+          return low;
+        }
+
+        @Override
+        int advance(int target) {
+          if (target >= CHUNK_SIZE || i >= BITMAP_WORDS) {
+            i = BITMAP_WORDS;
+            word = 0;
+            return NO_MORE;
+          }
+          if (target >>> 6 != i) {
+            i = target >>> 6;
+            word = words[i];
+          }
+          word &= -1L << target;
+          return next();
+        }
+
+        @Override
+        int fill(int base, int[] out, int off, int len) {
+          int n = 0;
+          while (n < len) {
+            while (word == 0) {
+              if (i >= BITMAP_WORDS - 1) {
+                i = BITMAP_WORDS;
+                return n;
+              }
+              word = words[++i];
+            }
+            out[off + n++] = base | ((i << 6) + Long.numberOfTrailingZeros(word));
+            word &= word - 1;
+          }
+          return n;
+        }
+      };
+    }
+
+    @Override
+    long ramBytesUsed() {
+      return RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+          + RamUsageEstimator.NUM_BYTES_OBJECT_REF + RamUsageEstimator.NUM_BYTES_INT)
+          + RamUsageEstimator.sizeOf(words);
+    }
+
+    @Override
+    void orInto(long[] other) {
+      for (int i = 0; i < BITMAP_WORDS; ++i) {
+        other[i] |= words[i];
+      }
+    }
+
+    @Override
+    void clearFrom(long[] other) {
+      for (int i = 0; i < BITMAP_WORDS; ++i) {
+        other[i] &= ~words[i];
+      }
+    }
+
+    @Override
+    long[] toBitmap() {
+      return words.clone();
+    }
+  }
+
+  static final class RunContainer extends Container {
+    // start and length - 1 of every run
+    final short[] runs;
+    private final int cardinality;
+
+    RunContainer(short[] runs, int cardinality) {
+      this.runs = runs;
+      this.cardinality = cardinality;
+    }
+
+    static RunContainer fromBitmap(long[] words, int numRuns, int cardinality) {
+      short[] runs = new short[2 * numRuns];
+      int run = 0;
+      int i = 0;
+      long word = words[0];
+      while (true) {
+        while (word == 0 && i < BITMAP_WORDS - 1) {
+          word = words[++i];
+        }
+        if (word == 0) {
+          break;
+        }
+        int start = (i << 6) + Long.numberOfTrailingZeros(word);
+        // fill the bits below the run start then look for the first clear bit
+        word |= word - 1;
+        while (word == -1L && i < BITMAP_WORDS - 1) {
+          word = words[++i];
+        }
+        int end = word == -1L ? CHUNK_SIZE : (i << 6) + Long.numberOfTrailingZeros(~word);
+        runs[run++] = (short) start;
+        runs[run++] = (short) (end - start - 1);
+        // clear the bits up to the end of the run
+        word &= word + 1;
+      }
+      return new RunContainer(runs, cardinality);
+    }
+
+    int start(int run) {
+      return runs[run << 1] & CHUNK_MASK;
+    }
+
+    // inclusive
+    int end(int run) {
+      return (runs[run << 1] & CHUNK_MASK) + (runs[(run << 1) + 1] & CHUNK_MASK);
+    }
+
+    int numRuns() {
+      return runs.length >>> 1;
+    }
+
+    @Override
+    int cardinality() {
+      return cardinality;
+    }
+
+    @Override
+    boolean contains(int low) {
+      // last run starting at or before low
+      int lo = 0;
+      int hi = numRuns() - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        if (start(mid) <= low) {
+          lo = mid + 1;
+        } else {
+          hi = mid - 1;
+        }
+      }
+      return hi >= 0 && low <= end(hi);
+    }
+
+    @Override
+    ContainerIterator iterator() {
+      return new ContainerIterator() {
+        private int run = -1;
+        private int current = -1;
+        // last doc of the current run
+        private int end = -1;
+
+        // moves to the next run, false once there is none
+        private boolean nextRun() {
+          if (++run >= numRuns()) {
+            run = numRuns();
+            current = NO_MORE;
+            return false;
+          }
+          current = start(run);
+          end = end(run);
+          return true;
+        }
+
+        @Override
+        int next() {
+          if (current < end) {
+            return ++current;
+          }
+          nextRun();
+          return current;
+        }
+
+        @Override
+        int advance(int target) {
+          if (target <= end) {
+            return current = target;
+          }
+          while (nextRun()) {
+            if (end >= target) {
+              return current = Math.max(target, current);
+            }
+          }
+          return NO_MORE;
+        }
+
+        @Override
+        int fill(int base, int[] out, int off, int len) {
+          int n = 0;
+          while (n < len) {
+            if (current >= end) {
+              if (!nextRun()) {
+                break;
+              }
+              current--;
+            }
+            int count = Math.min(len - n, end - current);
+            for (int i = 0; i < count; ++i) {
+              out[off + n++] = base | ++current;
+            }
+          }
+          return n;
+        }
+      };
+    }
+
+    @Override
+    long ramBytesUsed() {
+      return RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+          + RamUsageEstimator.NUM_BYTES_OBJECT_REF + RamUsageEstimator.NUM_BYTES_INT)
+          + RamUsageEstimator.sizeOf(runs);
+    }
+
+    @Override
+    void orInto(long[] words) {
+      for (int r = 0; r < numRuns(); ++r) {
+        setRange(words, start(r), end(r) + 1, true);
+      }
+    }
+
+    @Override
+    void clearFrom(long[] words) {
+      for (int r = 0; r < numRuns(); ++r) {
+        setRange(words, start(r), end(r) + 1, false);
+      }
+    }
+
+    private static void setRange(long[] words, int from, int to, boolean set) {
+      int first = from >>> 6;
+      int last = (to - 1) >>> 6;
+      long firstMask = -1L << from;
+      long lastMask = -1L >>> -to;
+      if (first == last) {
+        apply(words, first, firstMask & lastMask, set);
+        return;
+      }
+      apply(words, first, firstMask, set);
+      for (int i = first + 1; i < last; ++i) {
+        words[i] = set ? -1L : 0L;
+      }
+      apply(words, last, lastMask, set);
+    }
+
+    private static void apply(long[] words, int i, long mask, boolean set) {
+      if (set) {
+        words[i] |= mask;
+      } else {
+        words[i] &= ~mask;
+      }
+    }
+  }
+}
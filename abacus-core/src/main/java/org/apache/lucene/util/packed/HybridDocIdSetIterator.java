@@ -0,0 +1,108 @@
+package org.apache.lucene.util.packed;
+
+import java.util.Arrays;
+
+import org.apache.lucene.util.packed.HybridDocIdSet.ContainerIterator;
+
+/**
+ * Iterates a {@link HybridDocIdSet} container by container. Advancing binary searches the
+ * chunk of the target among the containers, then within the container.
+ */
+public class HybridDocIdSetIterator extends BatchDocIdSetIterator {
+  private final int[] keys;
+  private final HybridDocIdSet.Container[] containers;
+  private final int cost;
+
+  // current container, keys.length once exhausted
+  private int index = -1;
+  private int base;
+  private ContainerIterator it;
+  private int doc = -1;
+
+  HybridDocIdSetIterator(HybridDocIdSet docIdSet) {
+    keys = docIdSet.keys;
+    containers = docIdSet.containers;
+    cost = docIdSet.cardinality();
+  }
+
+  // makes container i the current one, no container being empty
+  private boolean moveTo(int i) {
+    if (i >= keys.length) {
+      index = keys.length;
+      it = null;
+      return false;
+    }
+    index = i;
+    base = keys[i] << HybridDocIdSet.CHUNK_BITS;
+    it = containers[i].iterator();
+    return true;
+  }
+
+  @Override
+  public int docID() {
+    return doc;
+  }
+
+  @Override
+  public int nextDoc() {
+    if (it != null) {
+      int low = it.next();
+      if (low != HybridDocIdSet.NO_MORE) {
+        return doc = base | low;
+      }
+    }
+    if (!moveTo(index + 1)) {
+      return doc = NO_MORE_DOCS;
+    }
+    return doc = base | it.next();
+  }
+
+  @Override
+  public int nextDocs(int[] out) {
+    int count = 0;
+    while (count < out.length) {
+      if (it == null && !moveTo(index + 1)) {
+        break;
+      }
+      int n = it.fill(base, out, count, out.length - count);
+      count += n;
+      if (count < out.length) {
+        // the container is exhausted
+        it = null;
+      }
+    }
+    doc = count > 0 ? out[count - 1] : NO_MORE_DOCS;
+    return count;
+  }
+
+  @Override
+  public int advance(int target) {
+    if (index >= keys.length) {
+      return doc = NO_MORE_DOCS;
+    }
+    int key = target >>> HybridDocIdSet.CHUNK_BITS;
+    int low = target & HybridDocIdSet.CHUNK_MASK;
+    if (it == null || keys[index] != key) {
+      int idx = Arrays.binarySearch(keys, index + 1, keys.length, key);
+      if (!moveTo(idx >= 0 ? idx : -idx - 1)) {
+        return doc = NO_MORE_DOCS;
+      }
+      if (keys[index] != key) {
+        return doc = base | it.next();
+      }
+    }
+    int found = it.advance(low);
+    if (found != HybridDocIdSet.NO_MORE) {
+      return doc = base | found;
+    }
+    if (!moveTo(index + 1)) {
+      return doc = NO_MORE_DOCS;
+    }
+    return doc = base | it.next();
+  }
+
+  @Override
+  public long cost() {
+    return cost;
+  }
+}
@@ -0,0 +1,302 @@
+package org.apache.lucene.util.packed;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.packed.PackedInts.Decoder;
+import org.apache.lucene.util.packed.PackedInts.Encoder;
+import org.apache.lucene.util.packed.PackedInts.Format;
+
+/**
+ * Doc id set of a file written by {@link #write}, read in place: only the minVal, maxVal and
+ * location of every block are loaded, the packed deltas are bulk decoded straight from the
+ * input, a memory-mapped one in practice, one block at a time. The blocks are the blocks of
+ * {@link PackedIntsDocIdSet}, except that every block is packed with the bits its own largest
+ * delta needs and the last one holds the remaining docs.
+ * <p>
+ * The file header records an id, the id of the segment the docs belong to, and opening
+ * checks it so that a set is never used against another segment of the same name.
+ */
+public class MappedPackedIntsDocIdSet extends DocIdSet implements Closeable {
+
+  private static final String CODEC = "AbacusPackedDocIdSet";
+  private static final int VERSION_START = 0;
+  private static final int VERSION_CURRENT = VERSION_START;
+
+  private final IndexInput in;
+  private final int size;
+  private final int maxBlockSize;
+  private final int[] minVals;
+  private final int[] maxVals;
+  private final int[] counts;
+  private final byte[] bitsPerValue;
+  private final long[] offsets;
+  // longest block once padded to whole decoder iterations, in bytes and values
+  private final int maxBlockBytes;
+  private final int maxBlockValues;
+
+  private MappedPackedIntsDocIdSet(IndexInput in, int size, int maxBlockSize, int[] minVals,
+      int[] maxVals, int[] counts, byte[] bitsPerValue, long[] offsets) {
+    this.in = in;
+    this.size = size;
+    this.maxBlockSize = maxBlockSize;
+    this.minVals = minVals;
+    this.maxVals = maxVals;
+    this.counts = counts;
+    this.bitsPerValue = bitsPerValue;
+    this.offsets = offsets;
+    int bytes = 0;
+    int values = 0;
+    for (int i = 0; i < counts.length; ++i) {
+      Decoder decoder = decoder(bitsPerValue[i]);
+      int iterations = iterations(decoder, counts[i]);
+      bytes = Math.max(bytes, iterations * decoder.byteBlockCount());
+      values = Math.max(values, iterations * decoder.byteValueCount());
+    }
+    maxBlockBytes = bytes;
+    maxBlockValues = values;
+  }
+
+  private static Decoder decoder(int bitsPerValue) {
+    return PackedInts.getDecoder(Format.PACKED, PackedInts.VERSION_CURRENT, bitsPerValue);
+  }
+
+  private static int iterations(Decoder decoder, int count) {
+    return (count + decoder.byteValueCount() - 1) / decoder.byteValueCount();
+  }
+
+  private static int iterations(Encoder encoder, int count) {
+    return (count + encoder.byteValueCount() - 1) / encoder.byteValueCount();
+  }
+
+  /**
+   * Writes the docs of it, in blocks of blockSize docs, for the segment of the given id.
+   */
+  public static void write(DocIdSetIterator it, int blockSize, byte[] segmentId,
+      IndexOutput out) throws IOException {
+    CodecUtil.writeIndexHeader(out, CODEC, VERSION_CURRENT, segmentId, "");
+    int[] block = new int[blockSize];
+    long[] deltas = new long[blockSize + 8];
+    byte[] bytes = new byte[0];
+    // blocks are written as they fill, their metadata follows the data
+    BlockMetaBuffer meta = new BlockMetaBuffer();
+    long dataStart = out.getFilePointer();
+    int size = 0;
+    int count = 0;
+    int doc;
+    do {
+      doc = it.nextDoc();
+      if (doc != DocIdSetIterator.NO_MORE_DOCS) {
+        block[count++] = doc;
+        size++;
+      }
+      if (count == blockSize || (doc == DocIdSetIterator.NO_MORE_DOCS && count > 0)) {
+        int maxDelta = 0;
+        deltas[0] = 0;
+        for (int i = 1; i < count; ++i) {
+          deltas[i] = block[i] - block[i - 1];
+          maxDelta = Math.max(maxDelta, block[i] - block[i - 1]);
+        }
+        int bits = Math.max(1, PackedIntsUtil.getNumBits(maxDelta));
+        Encoder encoder = PackedInts.getEncoder(Format.PACKED, PackedInts.VERSION_CURRENT, bits);
+        int iterations = iterations(encoder, count);
+        int padded = iterations * encoder.byteValueCount();
+        if (deltas.length < padded) {
+          deltas = Arrays.copyOf(deltas, padded);
+        }
+        Arrays.fill(deltas, count, padded, 0L);
+        int byteCount = iterations * encoder.byteBlockCount();
+        if (bytes.length < byteCount) {
+          bytes = new byte[byteCount];
+        }
+        encoder.encode(deltas, 0, bytes, 0, iterations);
+        meta.add(block[0], block[count - 1], count, bits, out.getFilePointer() - dataStart);
+        out.writeBytes(bytes, 0, byteCount);
+        count = 0;
+      }
+    } while (doc != DocIdSetIterator.NO_MORE_DOCS);
+
+    long metaStart = out.getFilePointer();
+    out.writeVInt(size);
+    out.writeVInt(blockSize);
+    meta.writeTo(out);
+    out.writeLong(metaStart - dataStart);
+    CodecUtil.writeFooter(out);
+  }
+
+  /**
+   * Opens the set written into in for the segment of the given id, taking ownership of in.
+   */
+  public static MappedPackedIntsDocIdSet open(IndexInput in, byte[] segmentId)
+      throws IOException {
+    boolean success = false;
+    try {
+      CodecUtil.checkIndexHeader(in, CODEC, VERSION_START, VERSION_CURRENT, segmentId, "");
+      long dataStart = in.getFilePointer();
+      in.seek(in.length() - CodecUtil.footerLength() - 8);
+      long metaStart = dataStart + in.readLong();
+      in.seek(metaStart);
+      int size = in.readVInt();
+      int blockSize = in.readVInt();
+      int numBlocks = in.readVInt();
+      int[] minVals = new int[numBlocks];
+      int[] maxVals = new int[numBlocks];
+      int[] counts = new int[numBlocks];
+      byte[] bitsPerValue = new byte[numBlocks];
+      long[] offsets = new long[numBlocks];
+      for (int i = 0; i < numBlocks; ++i) {
+        minVals[i] = in.readVInt();
+        maxVals[i] = minVals[i] + in.readVInt();
+        counts[i] = in.readVInt();
+        bitsPerValue[i] = in.readByte();
+        offsets[i] = dataStart + in.readVLong();
+      }
+      MappedPackedIntsDocIdSet docIdSet = new MappedPackedIntsDocIdSet(in, size, blockSize,
+          minVals, maxVals, counts, bitsPerValue, offsets);
+      success = true;
+      return docIdSet;
+    } finally {
+      if (!success) {
+        in.close();
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public long ramBytesUsed() {
+    return RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+        + 7 * RamUsageEstimator.NUM_BYTES_OBJECT_REF + 5 * RamUsageEstimator.NUM_BYTES_INT)
+        + RamUsageEstimator.sizeOf(minVals) + RamUsageEstimator.sizeOf(maxVals)
+        + RamUsageEstimator.sizeOf(counts) + RamUsageEstimator.sizeOf(bitsPerValue)
+        + RamUsageEstimator.sizeOf(offsets);
+  }
+
+  @Override
+  public DocIdSetIterator iterator() throws IOException {
+    if (size == 0) {
+      return null;
+    }
+    return new MappedIterator(in.clone());
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Metadata of the blocks, buffered until the data is written.
+   */
+  private static class BlockMetaBuffer {
+    private long[] values = new long[5 * 16];
+    private int count;
+
+    void add(int minVal, int maxVal, int docs, int bits, long offset) {
+      if (count + 5 > values.length) {
+        values = Arrays.copyOf(values, values.length * 2);
+      }
+      values[count++] = minVal;
+      values[count++] = maxVal - minVal;
+      values[count++] = docs;
+      values[count++] = bits;
+      values[count++] = offset;
+    }
+
+    void writeTo(IndexOutput out) throws IOException {
+      out.writeVInt(count / 5);
+      for (int i = 0; i < count; i += 5) {
+        out.writeVInt((int) values[i]);
+        out.writeVInt((int) values[i + 1]);
+        out.writeVInt((int) values[i + 2]);
+        out.writeByte((byte) values[i + 3]);
+        out.writeVLong(values[i + 4]);
+      }
+    }
+  }
+
+  private class MappedIterator extends DocIdSetIterator {
+    private final IndexInput input;
+    private final byte[] bytes = new byte[maxBlockBytes];
+    private final int[] docs = new int[Math.max(maxBlockValues, maxBlockSize)];
+    private int nextBlock;
+    private int upto;
+    private int limit;
+    private int doc = -1;
+
+    MappedIterator(IndexInput input) {
+      this.input = input;
+    }
+
+    private boolean refill() throws IOException {
+      if (nextBlock == counts.length) {
+        return false;
+      }
+      int block = nextBlock++;
+      Decoder decoder = decoder(bitsPerValue[block]);
+      int iterations = iterations(decoder, counts[block]);
+      input.seek(offsets[block]);
+      input.readBytes(bytes, 0, iterations * decoder.byteBlockCount());
+      decoder.decode(bytes, 0, docs, 0, iterations);
+      // the first delta of a block is always 0
+      int val = minVals[block];
+      limit = counts[block];
+      for (int i = 0; i < limit; ++i) {
+        val += docs[i];
+        docs[i] = val;
+      }
+      upto = 0;
+      return true;
+    }
+
+    @Override
+    public int docID() {
+      return doc;
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+      if (upto == limit && !refill()) {
+        return doc = NO_MORE_DOCS;
+      }
+      return doc = docs[upto++];
+    }
+
+    /**
+     * Binary searches the block maxVals for the first block that may hold target and only
+     * decodes that one.
+     */
+    @Override
+    public int advance(int target) throws IOException {
+      if (doc >= target) {
+        return doc;
+      }
+      if (upto == limit || docs[limit - 1] < target) {
+        int idx = Arrays.binarySearch(maxVals, nextBlock, maxVals.length, target);
+        nextBlock = idx >= 0 ? idx : -idx - 1;
+        upto = limit;
+        if (!refill()) {
+          return doc = NO_MORE_DOCS;
+        }
+      }
+      int idx = Arrays.binarySearch(docs, upto, limit, target);
+      upto = idx >= 0 ? idx : -idx - 1;
+      return doc = docs[upto++];
+    }
+
+    @Override
+    public long cost() {
+      return size;
+    }
+  }
+}
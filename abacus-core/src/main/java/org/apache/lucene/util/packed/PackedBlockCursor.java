@@ -0,0 +1,94 @@
+package org.apache.lucene.util.packed;
+
+import java.util.List;
+
+/**
+ * Walks the blocks of a {@link PackedIntsDocIdSet}, the uncompressed tail being the last one.
+ * A block is only decoded once its docs are asked for, so that the set operations can skip
+ * blocks on their min and max values alone.
+ */
+class PackedBlockCursor {
+  private final PackedDocSegment[] blocks;
+  private final int[] tail;
+  private final int tailCount;
+  private final int[] buffer;
+  private final long[] deltas;
+
+  // blocks.length for the tail, past it once exhausted
+  private int block = -1;
+  private int[] docs;
+  private int upto;
+  private int limit;
+  private boolean decoded;
+
+  PackedBlockCursor(int[] tail, int tailCount, List<PackedDocSegment> blocks) {
+    this.blocks = blocks.toArray(new PackedDocSegment[blocks.size()]);
+    this.tail = tail;
+    this.tailCount = tailCount;
+    buffer = new int[tail.length];
+    deltas = new long[tail.length];
+    nextBlock();
+  }
+
+  boolean exhausted() {
+    return block > blocks.length;
+  }
+
+  void nextBlock() {
+    block++;
+    if (block == blocks.length && tailCount == 0) {
+      block++;
+    }
+    upto = 0;
+    decoded = false;
+  }
+
+  /**
+   * The current block, or null for the tail.
+   */
+  PackedDocSegment segment() {
+    return block < blocks.length ? blocks[block] : null;
+  }
+
+  int min() {
+    return block < blocks.length ? blocks[block].minVal : tail[0];
+  }
+
+  int max() {
+    return block < blocks.length ? blocks[block].maxVal : tail[tailCount - 1];
+  }
+
+  /**
+   * Whether no doc of the current block was consumed yet.
+   */
+  boolean untouched() {
+    return upto == 0;
+  }
+
+  /**
+   * Lowest doc left in the current block, without decoding it.
+   */
+  int lower() {
+    return decoded ? docs[upto] : min();
+  }
+
+  int peek() {
+    if (!decoded) {
+      if (block < blocks.length) {
+        limit = blocks[block].decode(deltas, buffer);
+        docs = buffer;
+      } else {
+        limit = tailCount;
+        docs = tail;
+      }
+      decoded = true;
+    }
+    return docs[upto];
+  }
+
+  void nextDoc() {
+    if (++upto == limit) {
+      nextBlock();
+    }
+  }
+}
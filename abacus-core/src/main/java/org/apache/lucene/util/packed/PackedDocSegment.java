@@ -11,11 +11,31 @@ import org.apache.lucene.util.packed.PackedInts.Reader;
 
 class PackedDocSegment {
   int minVal;
+  // last doc of the block, to skip blocks without decoding them
+  int maxVal;
   Mutable valSet;
 
   public long ramBytesUsed() {
     return RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_OBJECT_REF) 
-        + RamUsageEstimator.NUM_BYTES_INT + valSet.ramBytesUsed();
+        + 2 * RamUsageEstimator.NUM_BYTES_INT + valSet.ramBytesUsed();
+  }
+
+  /**
+   * Bulk decodes the deltas of the block into deltas and sums them up into docs, both at
+   * least as long as the block. Returns the number of docs.
+   */
+  int decode(long[] deltas, int[] docs) {
+    int count = valSet.size();
+    for (int read = 0; read < count;) {
+      read += valSet.get(read, deltas, read, count - read);
+    }
+    // the first delta of a block is always 0
+    int val = minVal;
+    for (int i = 0; i < count; ++i) {
+      val += (int) deltas[i];
+      docs[i] = val;
+    }
+    return count;
   }
   
   static void serialize(PackedDocSegment segment, DataOutput out) throws IOException{
@@ -34,6 +54,12 @@ class PackedDocSegment {
     
     PackedDocSegment seg = new PackedDocSegment();
     seg.minVal = minVal;
+    seg.maxVal = minVal;
+    for (int i = 0; i < valCount; ++i) {
+      long delta = reader.get(i);
+      valSet.set(i, delta);
+      seg.maxVal += delta;
+    }
     seg.valSet = valSet;
     return seg;
   }
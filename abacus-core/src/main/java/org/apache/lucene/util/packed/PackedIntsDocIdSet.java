@@ -85,7 +85,7 @@ public class PackedIntsDocIdSet extends DocIdSet {
     if (currentCount == 0) {
       currentSeg[currentCount++] = val;
     } else {
-      int delta = val - currentSeg[currentCount];
+      int delta = val - currentSeg[currentCount - 1];
       if (maxDelta < delta) {
         maxDelta = delta;
       }
@@ -98,10 +98,12 @@ public class PackedIntsDocIdSet extends DocIdSet {
   }
 
   private void compressBlock() {
-    int nBits = PackedIntsUtil.getNumBits(maxDelta);
+    // a block of a single doc has no delta but still needs a bit per value
+    int nBits = Math.max(1, PackedIntsUtil.getNumBits(maxDelta));
 
     PackedDocSegment seg = new PackedDocSegment();
     seg.minVal = currentSeg[0];
+    seg.maxVal = currentSeg[currentSeg.length - 1];
     seg.valSet = PackedInts.getMutable(currentSeg.length, nBits, Format.PACKED);
     for (int i = 0; i < currentSeg.length; ++i) {
       if (i > 0) {
@@ -115,8 +117,138 @@ public class PackedIntsDocIdSet extends DocIdSet {
     init();
   }
 
+  /**
+   * Adds the docs of the current block of cursor, sharing the compressed block itself when
+   * it lines up with the blocks of this set, and moves the cursor to its next block.
+   */
+  private void addBlock(PackedBlockCursor cursor) {
+    PackedDocSegment seg = cursor.segment();
+    if (seg != null && currentCount == 0 && seg.valSet.size() == currentSeg.length) {
+      // blocks are never changed once compressed
+      segList.add(seg);
+      size += currentSeg.length;
+      cursor.nextBlock();
+      return;
+    }
+    do {
+      addID(cursor.peek());
+      cursor.nextDoc();
+    } while (!cursor.untouched());
+  }
+
+  private PackedBlockCursor cursor() {
+    return new PackedBlockCursor(currentSeg, currentCount, segList);
+  }
+
+  /**
+   * Returns the docs of both a and b, in a new set with the block size of a. Blocks that do
+   * not overlap with the current block of the other set are skipped without being decoded.
+   */
+  public static PackedIntsDocIdSet intersect(PackedIntsDocIdSet a, PackedIntsDocIdSet b) {
+    PackedIntsDocIdSet result = new PackedIntsDocIdSet(a.currentSeg.length);
+    PackedBlockCursor ca = a.cursor();
+    PackedBlockCursor cb = b.cursor();
+    while (!ca.exhausted() && !cb.exhausted()) {
+      if (ca.max() < cb.lower()) {
+        ca.nextBlock();
+      } else if (cb.max() < ca.lower()) {
+        cb.nextBlock();
+      } else {
+        int docA = ca.peek();
+        int docB = cb.peek();
+        if (docA < docB) {
+          ca.nextDoc();
+        } else if (docB < docA) {
+          cb.nextDoc();
+        } else {
+          result.addID(docA);
+          ca.nextDoc();
+          cb.nextDoc();
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the docs of a or b, in a new set with the block size of a. Blocks that do not
+   * overlap with the other set are added without being merged doc by doc, and shared as is
+   * when they line up with the blocks of the new set.
+   */
+  public static PackedIntsDocIdSet union(PackedIntsDocIdSet a, PackedIntsDocIdSet b) {
+    PackedIntsDocIdSet result = new PackedIntsDocIdSet(a.currentSeg.length);
+    PackedBlockCursor ca = a.cursor();
+    PackedBlockCursor cb = b.cursor();
+    while (!ca.exhausted() && !cb.exhausted()) {
+      if (ca.untouched() && ca.max() < cb.lower()) {
+        result.addBlock(ca);
+      } else if (cb.untouched() && cb.max() < ca.lower()) {
+        result.addBlock(cb);
+      } else {
+        int docA = ca.peek();
+        int docB = cb.peek();
+        if (docA <= docB) {
+          result.addID(docA);
+          ca.nextDoc();
+          if (docA == docB) {
+            cb.nextDoc();
+          }
+        } else {
+          result.addID(docB);
+          cb.nextDoc();
+        }
+      }
+    }
+    result.addRemaining(ca);
+    result.addRemaining(cb);
+    return result;
+  }
+
+  /**
+   * Returns the docs of a that are not in b, in a new set with the block size of a. Blocks of
+   * a that do not overlap with b are added without being decoded when they line up with the
+   * blocks of the new set, blocks of b are skipped until they overlap with a.
+   */
+  public static PackedIntsDocIdSet andNot(PackedIntsDocIdSet a, PackedIntsDocIdSet b) {
+    PackedIntsDocIdSet result = new PackedIntsDocIdSet(a.currentSeg.length);
+    PackedBlockCursor ca = a.cursor();
+    PackedBlockCursor cb = b.cursor();
+    while (!ca.exhausted() && !cb.exhausted()) {
+      if (ca.untouched() && ca.max() < cb.lower()) {
+        result.addBlock(ca);
+      } else if (cb.max() < ca.lower()) {
+        cb.nextBlock();
+      } else {
+        int docA = ca.peek();
+        int docB = cb.peek();
+        if (docA < docB) {
+          result.addID(docA);
+          ca.nextDoc();
+        } else if (docB < docA) {
+          cb.nextDoc();
+        } else {
+          ca.nextDoc();
+          cb.nextDoc();
+        }
+      }
+    }
+    result.addRemaining(ca);
+    return result;
+  }
+
+  private void addRemaining(PackedBlockCursor cursor) {
+    while (!cursor.exhausted()) {
+      if (cursor.untouched()) {
+        addBlock(cursor);
+      } else {
+        addID(cursor.peek());
+        cursor.nextDoc();
+      }
+    }
+  }
+
   @Override
-  public DocIdSetIterator iterator() {
+  public PackedIntsDocIdSetIterator iterator() {
     return new PackedIntsDocIdSetIterator(currentSeg, currentCount, segList, size);
   }
 }
@@ -2,43 +2,84 @@ package org.apache.lucene.util.packed;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 
-import org.apache.lucene.search.DocIdSetIterator;
-
+/**
+ * Iterates a {@link PackedIntsDocIdSet} block by block: every block is bulk decoded into a
+ * reused buffer, its deltas summed up into docs, and docs are then served from the buffer.
+ * The uncompressed tail of the set is served as is.
+ */
 public class
-    PackedIntsDocIdSetIterator extends DocIdSetIterator {
-  private int cs = -1;
-  private int readCursor;
-  private long lastVal;
-
+    PackedIntsDocIdSetIterator extends BatchDocIdSetIterator {
   private final int[] currentSeg;
   private final int currentCount;
   private final PackedDocSegment[] segList;
+  // minVal of every block, to binary search on advance
+  private final int[] minVals;
   private final int size;
-  
+
+  // decoded docs of the current block, or the tail
+  private final int[] buffer;
+  private final long[] deltas;
+  private int[] docs;
+  private int upto;
+  private int limit;
+  // next block to decode, segList.length for the tail
+  private int nextBlock;
+
   private int doc = -1;
-  
+
   PackedIntsDocIdSetIterator(int[] currentSeg, int currentCount,
       LinkedList<PackedDocSegment> segList, int size) {
     this.currentCount = currentCount;
     this.currentSeg = currentSeg;
     this.segList = new ArrayList<PackedDocSegment>(segList).toArray(new PackedDocSegment[segList.size()]);
+    minVals = new int[this.segList.length];
+    for (int i = 0; i < minVals.length; ++i) {
+      minVals[i] = this.segList[i].minVal;
+    }
     this.size = size;
+    if (this.segList.length > 0) {
+      buffer = new int[currentSeg.length];
+      deltas = new long[currentSeg.length];
+    } else {
+      buffer = null;
+      deltas = null;
+    }
     reset();
   }
-  
+
   void reset() {
-    readCursor = 0;
-    if (segList.length > 0) {
-      cs = 0;
-      lastVal = segList[cs].minVal;
-    } else {
-      cs = -1;
-      lastVal = 0;
+    docs = null;
+    upto = 0;
+    limit = 0;
+    nextBlock = 0;
+    doc = -1;
+  }
+
+  /**
+   * Makes the next block, or the tail after the last block, the current docs. Returns false
+   * once there is none left.
+   */
+  private boolean refill() {
+    while (nextBlock <= segList.length) {
+      if (nextBlock < segList.length) {
+        docs = buffer;
+        limit = segList[nextBlock].decode(deltas, buffer);
+      } else {
+        docs = currentSeg;
+        limit = currentCount;
+      }
+      upto = 0;
+      nextBlock++;
+      if (limit > 0) {
+        return true;
+      }
     }
+    return false;
   }
-  
+
   @Override
   public int docID() {
     return doc;
@@ -46,67 +87,70 @@ public class
 
   @Override
   public int nextDoc() throws IOException {
-    if (cs == -1 || cs >= segList.length) {
-      if (readCursor < currentCount) {
-        doc = currentSeg[readCursor];
-        readCursor++;
-        return doc;
-      } else {
-        return NO_MORE_DOCS;
-      }
+    if (upto == limit && !refill()) {
+      return doc = NO_MORE_DOCS;
     }
-    if (readCursor < segList[cs].valSet.size()) {
-      doc = (int) segList[cs].valSet.get(readCursor);
-      doc += lastVal;
-      lastVal = doc;
-      if (readCursor == segList[cs].valSet.size() - 1) {
-        readCursor = 0;
-        if (cs < segList.length - 1) {
-          cs++;
-          lastVal = segList[cs].minVal;
-        } else {
-          cs = -1;
-          lastVal = 0;
-        }
-      } else {
-        readCursor++;
+    return doc = docs[upto++];
+  }
+
+  @Override
+  public int nextDocs(int[] out) {
+    int count = 0;
+    while (count < out.length) {
+      if (upto == limit && !refill()) {
+        break;
       }
-      return doc;
+      int n = Math.min(out.length - count, limit - upto);
+      System.arraycopy(docs, upto, out, count, n);
+      upto += n;
+      count += n;
     }
-    return NO_MORE_DOCS;
+    doc = count > 0 ? out[count - 1] : NO_MORE_DOCS;
+    return count;
   }
 
+  /**
+   * Binary searches the block minVals for the last block that may hold target, or the
+   * uncompressed tail if target is past every block, and only decodes docs from there.
+   */
   @Override
   public int advance(int target) throws IOException {
-    int i;
-    boolean sameAsMinVal = false;
-    if (cs != -1) {
-      int newSegIdx = cs;
-      for (i = newSegIdx; i < segList.length; ++i) {
-        if (segList[i].minVal > target) {
-          break;
-        } else if (segList[i].minVal == target){
-          sameAsMinVal = true;
-          break;
-        }
-      }
-      // first block
-      if (i == 0 || sameAsMinVal) {
-        newSegIdx = i;           
-      } else {  // seek to last block
-        newSegIdx = i - 1;
+    if (doc >= target) {
+      return doc;
+    }
+    if (upto == limit || docs[limit - 1] < target) {
+      // target is past the current docs
+      if (currentCount > 0 && currentSeg[0] <= target) {
+        nextBlock = Math.max(nextBlock, segList.length);
+      } else {
+        nextBlock = Math.max(nextBlock, lastBlockAtOrBefore(target));
       }
-      if (cs != newSegIdx) {
-        lastVal = segList[cs].minVal;
-        // reset the read cursor
-        readCursor = 0;
+      upto = limit;
+    }
+    while (upto < limit || refill()) {
+      if (docs[limit - 1] >= target) {
+        int idx = Arrays.binarySearch(docs, upto, limit, target);
+        upto = idx >= 0 ? idx : -idx - 1;
+        return doc = docs[upto++];
       }
+      upto = limit;
     }
-    
-    while (doc < target) {
-      doc = nextDoc();
+    return doc = NO_MORE_DOCS;
+  }
+
+  // last block with a minVal not above target, -1 if there is none
+  private int lastBlockAtOrBefore(int target) {
+    int lo = 0;
+    int hi = segList.length - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (minVals[mid] <= target) {
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
     }
-    return doc;
+    return hi;
   }
 
   @Override
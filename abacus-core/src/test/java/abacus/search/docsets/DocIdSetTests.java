@@ -1,5 +1,7 @@
 package abacus.search.docsets;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntList;
@@ -8,13 +10,23 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Random;
 
 import org.apache.lucene.search.DocIdSet;
 import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
 import org.apache.lucene.store.InputStreamDataInput;
 import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.packed.DocIdSetBuilder;
+import org.apache.lucene.util.packed.HybridDocIdSet;
+import org.apache.lucene.util.packed.HybridDocIdSetIterator;
+import org.apache.lucene.util.packed.MappedPackedIntsDocIdSet;
 import org.apache.lucene.util.packed.PackedIntsDocIdSet;
+import org.apache.lucene.util.packed.PackedIntsDocIdSetIterator;
 import org.junit.Test;
 
 import abacus.search.util.DocIdSetIteratorUtil;
@@ -84,6 +96,135 @@ public class DocIdSetTests {
     verifySKips(iter, skips, expected);
   }
   
+  @Test
+  public void testPackedIntsDocIdSetRandomSkips() throws Exception {
+    Random random = new Random(0);
+    for (int blockSize : new int[] {1, 3, 64}) {
+      IntList docList = new IntArrayList();
+      for (int doc = 0; doc < 5000; ++doc) {
+        if (random.nextInt(7) == 0) {
+          docList.add(doc);
+        }
+      }
+      int[] docs = DocIdSetIteratorUtil.toIntArray(docList);
+      PackedIntsDocIdSet docidSet = DocIdSetBuilder.buildPackedInts(docs, blockSize);
+      for (int stride : new int[] {1, 5, 100, 3000}) {
+        DocIdSetIterator iter = docidSet.iterator();
+        int target = 0;
+        while (true) {
+          int idx = Arrays.binarySearch(docs, target);
+          idx = idx >= 0 ? idx : -idx - 1;
+          int expected = idx < docs.length ? docs[idx] : DocIdSetIterator.NO_MORE_DOCS;
+          int doc = iter.advance(target);
+          assertEquals("blockSize " + blockSize + ", target " + target, expected, doc);
+          if (doc == DocIdSetIterator.NO_MORE_DOCS) {
+            break;
+          }
+          // mixes advancing and iterating
+          if (random.nextBoolean()) {
+            doc = iter.nextDoc();
+            assertEquals(idx + 1 < docs.length ? docs[idx + 1] : DocIdSetIterator.NO_MORE_DOCS,
+                doc);
+            if (doc == DocIdSetIterator.NO_MORE_DOCS) {
+              break;
+            }
+          }
+          target = doc + 1 + random.nextInt(stride);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testPackedIntsNextDocs() throws Exception {
+    Random random = new Random(0);
+    IntList docList = new IntArrayList();
+    for (int doc = 0; doc < 5000; ++doc) {
+      if (random.nextInt(3) == 0) {
+        docList.add(doc);
+      }
+    }
+    int[] docs = DocIdSetIteratorUtil.toIntArray(docList);
+    PackedIntsDocIdSet docidSet = DocIdSetBuilder.buildPackedInts(docs, 64);
+    for (int chunk : new int[] {1, 10, 64, 1000, 5000}) {
+      PackedIntsDocIdSetIterator iter = (PackedIntsDocIdSetIterator) docidSet.iterator();
+      int[] out = new int[chunk];
+      IntList returned = new IntArrayList();
+      int count;
+      while ((count = iter.nextDocs(out)) > 0) {
+        assertEquals(out[count - 1], iter.docID());
+        returned.addElements(returned.size(), out, 0, count);
+      }
+      assertEquals(DocIdSetIterator.NO_MORE_DOCS, iter.docID());
+      assertTrue("chunk " + chunk, Arrays.equals(docs,
+          DocIdSetIteratorUtil.toIntArray(returned)));
+    }
+
+    // chunks continue from where advance left
+    PackedIntsDocIdSetIterator iter = (PackedIntsDocIdSetIterator) docidSet.iterator();
+    int doc = iter.advance(2500);
+    int idx = Arrays.binarySearch(docs, doc);
+    int[] out = new int[100];
+    assertEquals(100, iter.nextDocs(out));
+    assertTrue(Arrays.equals(Arrays.copyOfRange(docs, idx + 1, idx + 101), out));
+  }
+
+  @Test
+  public void testPackedIntsSetOperations() throws Exception {
+    Random random = new Random(0);
+    for (int[] blockSizes : new int[][] {{3, 3}, {64, 64}, {64, 3}}) {
+      // dense runs and gaps, so that some blocks overlap and others do not
+      for (int round = 0; round < 20; ++round) {
+        int[] docsA = randomDocs(random);
+        int[] docsB = randomDocs(random);
+        PackedIntsDocIdSet a = DocIdSetBuilder.buildPackedInts(docsA, blockSizes[0]);
+        PackedIntsDocIdSet b = DocIdSetBuilder.buildPackedInts(docsB, blockSizes[1]);
+
+        IntList and = new IntArrayList();
+        IntList or = new IntArrayList();
+        IntList andNot = new IntArrayList();
+        for (int doc = 0; doc < 10000; ++doc) {
+          boolean inA = Arrays.binarySearch(docsA, doc) >= 0;
+          boolean inB = Arrays.binarySearch(docsB, doc) >= 0;
+          if (inA && inB) {
+            and.add(doc);
+          }
+          if (inA || inB) {
+            or.add(doc);
+          }
+          if (inA && !inB) {
+            andNot.add(doc);
+          }
+        }
+        assertDocs(and, PackedIntsDocIdSet.intersect(a, b));
+        assertDocs(or, PackedIntsDocIdSet.union(a, b));
+        assertDocs(andNot, PackedIntsDocIdSet.andNot(a, b));
+      }
+    }
+  }
+
+  private static int[] randomDocs(Random random) {
+    IntList docs = new IntArrayList();
+    int doc = random.nextInt(100);
+    while (doc < 10000) {
+      if (random.nextInt(10) == 0) {
+        doc += random.nextInt(1000);
+      } else if (random.nextBoolean()) {
+        docs.add(doc);
+      }
+      doc++;
+    }
+    return DocIdSetIteratorUtil.toIntArray(docs);
+  }
+
+  private static void assertDocs(IntList expected, PackedIntsDocIdSet docIdSet)
+      throws IOException {
+    int[] returned = DocIdSetIteratorUtil.toIntArray(docIdSet.iterator());
+    assertTrue("expected: " + expected + ", got: " + Arrays.toString(returned),
+        Arrays.equals(DocIdSetIteratorUtil.toIntArray(expected), returned));
+    assertEquals(expected.size(), docIdSet.size());
+  }
+
   private void verifySKips(DocIdSetIterator iter, int[] skips, int[] expected) throws IOException {
     IntList arr = new IntArrayList();
     for (int skip : skips) {
@@ -147,4 +288,214 @@ public class DocIdSetTests {
         Arrays.equals(expected, returned));    
     
   }
+
+  @Test
+  public void testPackedIntsSerializationBlocks() throws Exception {
+    Random random = new Random(0);
+    for (int blockSize : new int[] {3, 64}) {
+      int[] expected = randomDocs(random);
+      PackedIntsDocIdSet docIdSet =
+          fromByteArray(toByteArray(DocIdSetBuilder.buildPackedInts(expected, blockSize)));
+      int[] returned = DocIdSetIteratorUtil.toIntArray(docIdSet.iterator());
+      assertTrue("expected: " + Arrays.toString(expected) + ", got: "
+          + Arrays.toString(returned), Arrays.equals(expected, returned));
+      verifySKips(docIdSet.iterator(), new int[] {expected[expected.length / 2]},
+          new int[] {expected[expected.length / 2]});
+    }
+  }
+
+  @Test
+  public void testMappedPackedIntsDocIdSet() throws Exception {
+    Random random = new Random(0);
+    byte[] segmentId = new byte[16];
+    random.nextBytes(segmentId);
+    Directory dir = new RAMDirectory();
+    for (int blockSize : new int[] {1, 3, 256}) {
+      int[] expected = randomDocs(random);
+      String file = "set" + blockSize;
+      try (IndexOutput out = dir.createOutput(file, IOContext.DEFAULT)) {
+        MappedPackedIntsDocIdSet.write(
+            DocIdSetBuilder.buildPackedInts(expected, blockSize).iterator(), blockSize,
+            segmentId, out);
+      }
+      try (MappedPackedIntsDocIdSet docIdSet =
+          MappedPackedIntsDocIdSet.open(dir.openInput(file, IOContext.READ), segmentId)) {
+        assertEquals(expected.length, docIdSet.size());
+        int[] returned = DocIdSetIteratorUtil.toIntArray(docIdSet.iterator());
+        assertTrue("expected: " + Arrays.toString(expected) + ", got: "
+            + Arrays.toString(returned), Arrays.equals(expected, returned));
+
+        IntList targets = new IntArrayList();
+        IntList docs = new IntArrayList();
+        int target = 0;
+        while (true) {
+          target += random.nextInt(500);
+          int idx = Arrays.binarySearch(expected, target);
+          idx = idx >= 0 ? idx : -idx - 1;
+          if (idx == expected.length) {
+            break;
+          }
+          targets.add(target);
+          docs.add(expected[idx]);
+          target = expected[idx] + 1;
+        }
+        verifySKips(docIdSet.iterator(), DocIdSetIteratorUtil.toIntArray(targets),
+            DocIdSetIteratorUtil.toIntArray(docs));
+      }
+    }
+
+    // another segment of the same name
+    byte[] otherId = segmentId.clone();
+    otherId[0]++;
+    try {
+      MappedPackedIntsDocIdSet.open(dir.openInput("set3", IOContext.READ), otherId);
+      assertTrue("set of another segment opened", false);
+    } catch (CorruptIndexException e) {
+      // expected
+    }
+
+    try (IndexOutput out = dir.createOutput("empty", IOContext.DEFAULT)) {
+      MappedPackedIntsDocIdSet.write(DocIdSetIterator.empty(), 256, segmentId, out);
+    }
+    try (MappedPackedIntsDocIdSet docIdSet =
+        MappedPackedIntsDocIdSet.open(dir.openInput("empty", IOContext.READ), segmentId)) {
+      assertEquals(0, docIdSet.size());
+      assertNull(docIdSet.iterator());
+    }
+    dir.close();
+  }
+
+  // chunks of 2^16 docs that are empty, sparse, dense or made of runs
+  private static boolean[] randomChunks(Random random, int numChunks) {
+    boolean[] bits = new boolean[numChunks << 16];
+    for (int chunk = 0; chunk < numChunks; ++chunk) {
+      int base = chunk << 16;
+      switch (random.nextInt(4)) {
+        case 0:
+          break;
+        case 1:
+          for (int i = random.nextInt(3000); i > 0; --i) {
+            bits[base + random.nextInt(1 << 16)] = true;
+          }
+          break;
+        case 2:
+          for (int i = 0; i < 1 << 16; ++i) {
+            bits[base + i] = random.nextInt(3) == 0;
+          }
+          break;
+        default:
+          int doc = random.nextInt(1000);
+          while (doc < 1 << 16) {
+            int end = Math.min(1 << 16, doc + random.nextInt(5000));
+            for (; doc < end; ++doc) {
+              bits[base + doc] = true;
+            }
+            doc += random.nextInt(5000) + 1;
+          }
+      }
+    }
+    return bits;
+  }
+
+  private static HybridDocIdSet toHybrid(boolean[] bits) {
+    HybridDocIdSet.Builder builder = new HybridDocIdSet.Builder();
+    for (int doc = 0; doc < bits.length; ++doc) {
+      if (bits[doc]) {
+        builder.add(doc);
+      }
+    }
+    return builder.build();
+  }
+
+  private static void assertHybrid(boolean[] expected, HybridDocIdSet docIdSet)
+      throws IOException {
+    IntList docs = new IntArrayList();
+    for (int doc = 0; doc < expected.length; ++doc) {
+      if (expected[doc]) {
+        docs.add(doc);
+      }
+      assertEquals(expected[doc], docIdSet.contains(doc));
+    }
+    assertEquals(docs.size(), docIdSet.cardinality());
+    int[] returned = docIdSet.iterator() == null ? new int[0]
+        : DocIdSetIteratorUtil.toIntArray(docIdSet.iterator());
+    assertTrue(Arrays.equals(DocIdSetIteratorUtil.toIntArray(docs), returned));
+  }
+
+  @Test
+  public void testHybridDocIdSet() throws Exception {
+    Random random = new Random(0);
+    for (int round = 0; round < 10; ++round) {
+      boolean[] bits = randomChunks(random, 8);
+      HybridDocIdSet docIdSet = toHybrid(bits);
+      assertHybrid(bits, docIdSet);
+      if (docIdSet.cardinality() == 0) {
+        assertNull(docIdSet.iterator());
+        continue;
+      }
+      int[] docs = DocIdSetIteratorUtil.toIntArray(docIdSet.iterator());
+
+      // in chunks of all sizes, mixed with single docs
+      for (int chunkSize : new int[] {1, 7, 1024}) {
+        HybridDocIdSetIterator it = docIdSet.iterator();
+        IntList returned = new IntArrayList();
+        int[] chunk = new int[chunkSize];
+        int n;
+        while ((n = it.nextDocs(chunk)) > 0) {
+          assertEquals(chunk[n - 1], it.docID());
+          returned.addElements(returned.size(), chunk, 0, n);
+          if (it.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+            returned.add(it.docID());
+          }
+        }
+        assertTrue(Arrays.equals(docs, DocIdSetIteratorUtil.toIntArray(returned)));
+      }
+
+      IntList targets = new IntArrayList();
+      IntList expected = new IntArrayList();
+      int target = 0;
+      while (true) {
+        target += random.nextInt(random.nextBoolean() ? 100 : 100000);
+        int idx = Arrays.binarySearch(docs, target);
+        idx = idx >= 0 ? idx : -idx - 1;
+        if (idx == docs.length) {
+          break;
+        }
+        targets.add(target);
+        expected.add(docs[idx]);
+        target = docs[idx] + 1;
+      }
+      verifySKips(docIdSet.iterator(), DocIdSetIteratorUtil.toIntArray(targets),
+          DocIdSetIteratorUtil.toIntArray(expected));
+    }
+  }
+
+  @Test
+  public void testHybridDocIdSetOperations() throws Exception {
+    Random random = new Random(0);
+    for (int round = 0; round < 10; ++round) {
+      boolean[] bitsA = randomChunks(random, 6);
+      boolean[] bitsB = randomChunks(random, 6);
+      HybridDocIdSet a = toHybrid(bitsA);
+      HybridDocIdSet b = toHybrid(bitsB);
+      boolean[] and = new boolean[bitsA.length];
+      boolean[] or = new boolean[bitsA.length];
+      boolean[] andNot = new boolean[bitsA.length];
+      for (int doc = 0; doc < bitsA.length; ++doc) {
+        and[doc] = bitsA[doc] && bitsB[doc];
+        or[doc] = bitsA[doc] || bitsB[doc];
+        andNot[doc] = bitsA[doc] && !bitsB[doc];
+      }
+      assertHybrid(and, HybridDocIdSet.intersect(a, b));
+      assertHybrid(or, HybridDocIdSet.union(a, b));
+      assertHybrid(andNot, HybridDocIdSet.andNot(a, b));
+    }
+
+    // runs take 4 bytes whatever their length
+    HybridDocIdSet.Builder builder = new HybridDocIdSet.Builder();
+    for (int doc = 0; doc < 1 << 20; ++doc) {
+      builder.add(doc);
+    }
+    assertTrue(builder.build().ramBytesUsed() < 2048);
+  }
 }
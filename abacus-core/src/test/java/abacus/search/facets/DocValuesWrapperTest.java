@@ -1,6 +1,13 @@
 package abacus.search.facets;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
 
 import junit.framework.TestCase;
 
@@ -23,15 +30,21 @@ import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import abacus.api.AbacusFieldType;
+import abacus.search.facets.FastDocValuesAtomicReader.MemType;
 import abacus.search.facets.docvalues.ArrayNumericDocValues;
 import abacus.search.facets.docvalues.ArraySortedDocValues;
 import abacus.search.facets.docvalues.ArraySortedSetDocValues;
 import abacus.search.facets.docvalues.DirectBufferNumericDocValues;
 import abacus.search.facets.docvalues.DirectBufferSortedDocValues;
 import abacus.search.facets.docvalues.DirectBufferSortedSetDocValues;
+import abacus.search.facets.docvalues.DocValuesChunks;
 import abacus.search.facets.docvalues.NativeNumericDocValues;
 import abacus.search.facets.docvalues.NativeSortedDocValues;
 import abacus.search.facets.docvalues.NativeSortedSetDocValues;
+import abacus.search.facets.docvalues.OrdinalNumericDocValues;
+import abacus.search.facets.unsafe.HS;
+import abacus.search.facets.unsafe.NativeArena;
 
 public class DocValuesWrapperTest {
 
@@ -152,6 +165,17 @@ public class DocValuesWrapperTest {
     NativeNumericDocValues nativeWrapperVals = new NativeNumericDocValues(docVals, atomicReader.maxDoc());
     testNumericDocValues(docVals, nativeWrapperVals);
     nativeWrapperVals.close();
+
+    OrdinalNumericDocValues ordinalWrapperVals = OrdinalNumericDocValues.build(docVals,
+        atomicReader.maxDoc(), OrdinalNumericDocValues.DEFAULT_MAX_VALUE_COUNT);
+    testNumericDocValues(docVals, ordinalWrapperVals);
+    TestCase.assertEquals(numericVals.length, ordinalWrapperVals.getValueCount());
+    for (int i = 1; i < ordinalWrapperVals.getValueCount(); ++i) {
+      TestCase.assertTrue(ordinalWrapperVals.lookupOrd(i - 1) < ordinalWrapperVals.lookupOrd(i));
+    }
+    // too many unique values for a dictionary
+    TestCase.assertNull(OrdinalNumericDocValues.build(docVals, atomicReader.maxDoc(),
+        numericVals.length - 1));
   }
   
   @Test
@@ -182,4 +206,260 @@ public class DocValuesWrapperTest {
     testSortedSetDocValues(docVals, nativeWrapperVals);
     nativeWrapperVals.close();
   }
+
+  @Test
+  public void testNativeArena() throws Exception {
+    // other arenas of the jvm may be allocated or released meanwhile, only this test's
+    // segments are checked
+    NativeArena arena = new NativeArena("testNativeArena", 1024);
+    // small arrays share slabs, large ones get their own block
+    long small1 = arena.allocArray("a", 10, 8, true);
+    long small2 = arena.allocArray("b", 3, 4, false);
+    long large = arena.allocArray("a", 100, 8, false);
+    TestCase.assertEquals(80, HS.arraySizeBytes(small1));
+    TestCase.assertEquals(12, HS.arraySizeBytes(small2));
+    TestCase.assertEquals(800, HS.arraySizeBytes(large));
+    for (int i = 0; i < 10; ++i) {
+      TestCase.assertEquals(0L, HS.getLong(small1, i));
+      HS.setLong(small1, i, i);
+    }
+    for (int i = 0; i < 3; ++i) {
+      HS.setInt(small2, i, -i);
+    }
+    for (int i = 0; i < 100; ++i) {
+      HS.setLong(large, i, 2L * i);
+    }
+    for (int i = 0; i < 10; ++i) {
+      TestCase.assertEquals((long) i, HS.getLong(small1, i));
+    }
+    for (int i = 0; i < 3; ++i) {
+      TestCase.assertEquals(-i, HS.getInt(small2, i));
+    }
+    for (int i = 0; i < 100; ++i) {
+      TestCase.assertEquals(2L * i, HS.getLong(large, i));
+    }
+    Map<String, Long> perField = arena.getBytesPerField();
+    TestCase.assertEquals(880L, perField.get("a").longValue());
+    TestCase.assertEquals(12L, perField.get("b").longValue());
+    TestCase.assertEquals(892L,
+        NativeArena.liveBytesPerSegment().get("testNativeArena").longValue());
+    TestCase.assertTrue(arena.getBytesReserved() >= 892);
+    arena.close();
+    arena.close();
+    TestCase.assertEquals(0, arena.getBytesReserved());
+    TestCase.assertTrue(arena.getBytesPerField().isEmpty());
+    TestCase.assertNull(NativeArena.liveBytesPerSegment().get("testNativeArena"));
+
+    // arenas never closed are released once collected, by the reaper thread or reclaimLeaked
+    leakArena();
+    for (int i = 0; i < 100
+        && NativeArena.liveBytesPerSegment().containsKey("testNativeArenaLeaked"); ++i) {
+      System.gc();
+      Thread.sleep(10);
+      NativeArena.reclaimLeaked();
+    }
+    TestCase.assertNull(NativeArena.liveBytesPerSegment().get("testNativeArenaLeaked"));
+  }
+
+  private static void leakArena() {
+    new NativeArena("testNativeArenaLeaked").allocArray("a", 16, 8, false);
+  }
+
+  @Test
+  public void testSamplingAllocator() throws Exception {
+    HS.Allocator allocator = new HS.SamplingAllocator(1);
+    long ptr = allocator.allocArray(4, 8, true);
+    TestCase.assertEquals(32, HS.arraySizeBytes(ptr));
+    allocator.freeArray(ptr);
+    try {
+      allocator.freeArray(ptr);
+      TestCase.fail("double free must be caught when every allocation is sampled");
+    } catch (RuntimeException e) {
+      // expected
+    }
+    // unsampled allocations are freed without a record
+    allocator = new HS.SamplingAllocator(1000);
+    for (int i = 0; i < 10; ++i) {
+      allocator.freeArray(allocator.allocArray(1, 8, false));
+    }
+  }
+
+  @Test
+  public void testChunkedLoading() throws Exception {
+    // enough docs for several chunks and a partial last one
+    int numDocs = 3 * DocValuesChunks.CHUNK_SIZE + 17;
+    RAMDirectory chunkDir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(chunkDir, new IndexWriterConfig(new StandardAnalyzer()));
+    Random random = new Random(42);
+    for (int i = 0; i < numDocs; ++i) {
+      Document doc = new Document();
+      doc.add(new NumericDocValuesField(NUMERIC_FIELD, random.nextLong()));
+      doc.add(new SortedDocValuesField(SORTED_FIELD,
+          new BytesRef(sortedVals[random.nextInt(sortedVals.length)])));
+      for (String value : sortedSetVals[random.nextInt(sortedSetVals.length)]) {
+        doc.add(new SortedSetDocValuesField(SORTEDSET_FIELD, new BytesRef(value)));
+      }
+      writer.addDocument(doc);
+    }
+    writer.forceMerge(1);
+    writer.close();
+    IndexReader reader = DirectoryReader.open(chunkDir);
+    LeafReader leaf = reader.leaves().get(0).reader();
+
+    NumericDocValues numeric = leaf.getNumericDocValues(NUMERIC_FIELD);
+    NativeNumericDocValues nativeNumeric = new NativeNumericDocValues(numeric, numDocs);
+    NumericDocValues directNumeric = new DirectBufferNumericDocValues(numeric, numDocs);
+    SortedDocValues sorted = leaf.getSortedDocValues(SORTED_FIELD);
+    NativeSortedDocValues nativeSorted = new NativeSortedDocValues(sorted, numDocs);
+    SortedDocValues directSorted = new DirectBufferSortedDocValues(sorted, numDocs);
+    SortedSetDocValues sortedSet = leaf.getSortedSetDocValues(SORTEDSET_FIELD);
+    NativeSortedSetDocValues nativeSortedSet = new NativeSortedSetDocValues(sortedSet, numDocs);
+    SortedSetDocValues directSortedSet = new DirectBufferSortedSetDocValues(sortedSet, numDocs);
+    for (int i = 0; i < numDocs; ++i) {
+      TestCase.assertEquals(numeric.get(i), nativeNumeric.get(i));
+      TestCase.assertEquals(numeric.get(i), directNumeric.get(i));
+      TestCase.assertEquals(sorted.getOrd(i), nativeSorted.getOrd(i));
+      TestCase.assertEquals(sorted.getOrd(i), directSorted.getOrd(i));
+      sortedSet.setDocument(i);
+      nativeSortedSet.setDocument(i);
+      directSortedSet.setDocument(i);
+      long ord;
+      do {
+        ord = sortedSet.nextOrd();
+        TestCase.assertEquals(ord, nativeSortedSet.nextOrd());
+        TestCase.assertEquals(ord, directSortedSet.nextOrd());
+      } while (ord != SortedSetDocValues.NO_MORE_ORDS);
+    }
+    for (int i = 0; i < sorted.getValueCount(); ++i) {
+      TestCase.assertEquals(sorted.lookupOrd(i), nativeSorted.lookupOrd(i));
+    }
+    nativeNumeric.close();
+    nativeSorted.close();
+    nativeSortedSet.close();
+    reader.close();
+  }
+
+  @Test
+  public void testLoadInBackground() throws Exception {
+    // columns run only when the test says so
+    final List<Runnable> queued = new ArrayList<Runnable>();
+    Executor executor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        queued.add(command);
+      }
+    };
+    ColumnLoadScheduler scheduler = new ColumnLoadScheduler(executor, null);
+    FastDocValuesAtomicReader reader = FastDocValuesAtomicReader.loadInBackground(atomicReader,
+        null, MemType.Heap, null, scheduler, null);
+    TestCase.assertEquals(3, queued.size());
+    TestCase.assertEquals(3, scheduler.getPendingCount());
+    TestCase.assertTrue(reader.isLoading());
+    TestCase.assertEquals(2, atomicReader.getRefCount());
+
+    // served by the codec meanwhile, asking for the last field moves it first
+    // the codec hands out one instance per thread, compare it to a copy
+    SortedSetDocValues expectedSortedSet = new ArraySortedSetDocValues(
+        atomicReader.getSortedSetDocValues(SORTEDSET_FIELD), atomicReader.maxDoc());
+    testSortedSetDocValues(expectedSortedSet, reader.getSortedSetDocValues(SORTEDSET_FIELD));
+    TestCase.assertEquals(MemType.Default, reader.getMemType(SORTEDSET_FIELD));
+    queued.remove(0).run();
+    TestCase.assertEquals(MemType.Heap, reader.getMemType(SORTEDSET_FIELD));
+    TestCase.assertTrue(reader.getSortedSetDocValues(SORTEDSET_FIELD)
+        instanceof ArraySortedSetDocValues);
+    TestCase.assertEquals(MemType.Default, reader.getMemType(NUMERIC_FIELD));
+    TestCase.assertEquals(MemType.Default, reader.getMemType(SORTED_FIELD));
+
+    // readers sharing the values see the switch
+    FastDocValuesAtomicReader shared = new FastDocValuesAtomicReader(atomicReader, reader);
+    testNumericDocValues(atomicReader.getNumericDocValues(NUMERIC_FIELD),
+        shared.getNumericDocValues(NUMERIC_FIELD));
+    queued.remove(0).run();
+    TestCase.assertTrue(shared.getNumericDocValues(NUMERIC_FIELD)
+        instanceof ArrayNumericDocValues);
+    queued.remove(0).run();
+    TestCase.assertFalse(reader.isLoading());
+    TestCase.assertEquals(0, scheduler.getPendingCount());
+    testSortedDocValues(atomicReader.getSortedDocValues(SORTED_FIELD),
+        shared.getSortedDocValues(SORTED_FIELD));
+    TestCase.assertEquals(1, atomicReader.getRefCount());
+    reader.close();
+    shared.close();
+
+    // columns not started when the values are released are skipped
+    MemoryBudget budget = new MemoryBudget(MemoryBudget.UNLIMITED, MemoryBudget.UNLIMITED,
+        1 << 20);
+    MemoryBudget.Reservation reservation = budget.newReservation();
+    TestCase.assertTrue(reservation.tryAdd(MemType.Native, 100));
+    reader = FastDocValuesAtomicReader.loadInBackground(atomicReader, null, MemType.Native,
+        reservation, scheduler, null);
+    queued.remove(0).run();
+    reader.close();
+    TestCase.assertEquals(0, budget.getUsed(MemType.Native));
+    TestCase.assertEquals(2, atomicReader.getRefCount());
+    while (!queued.isEmpty()) {
+      queued.remove(0).run();
+    }
+    TestCase.assertFalse(reader.isLoading());
+    TestCase.assertEquals(1, atomicReader.getRefCount());
+  }
+
+  @Test
+  public void testRangeBucketsInBackground() throws Exception {
+    final List<Runnable> queued = new ArrayList<Runnable>();
+    Executor executor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        queued.add(command);
+      }
+    };
+    Map<String, Integer> priorities = new HashMap<String, Integer>();
+    priorities.put(SORTED_FIELD, 1);
+    ColumnLoadScheduler scheduler = new ColumnLoadScheduler(executor, priorities);
+    FastDocValuesAtomicReader reader = FastDocValuesAtomicReader.loadInBackground(atomicReader,
+        null, MemType.Heap, null, scheduler, null);
+    RangeBucketIndex rangeIndex = RangeBucketIndex.compile(
+        new String[] { "[* TO 0)", "[0 TO *]" }, AbacusFieldType.LONG);
+    reader.loadRangeBuckets(Collections.singletonMap(NUMERIC_FIELD, rangeIndex));
+
+    // scheduled, not built, and reading the values for it is not a touch of the field
+    TestCase.assertEquals(4, queued.size());
+    TestCase.assertNull(reader.getRangeBucketColumn(NUMERIC_FIELD));
+    TestCase.assertEquals(3, atomicReader.getRefCount());
+    queued.remove(0).run();
+    TestCase.assertEquals(MemType.Heap, reader.getMemType(SORTED_FIELD));
+    TestCase.assertEquals(MemType.Default, reader.getMemType(NUMERIC_FIELD));
+    while (!queued.isEmpty()) {
+      queued.remove(0).run();
+    }
+    TestCase.assertFalse(reader.isLoading());
+    TestCase.assertEquals(1, atomicReader.getRefCount());
+
+    RangeBucketColumn column = reader.getRangeBucketColumn(NUMERIC_FIELD);
+    TestCase.assertNotNull(column);
+    NumericDocValues values = atomicReader.getNumericDocValues(NUMERIC_FIELD);
+    for (int doc = 0; doc < atomicReader.maxDoc(); ++doc) {
+      TestCase.assertEquals(rangeIndex.getOrd(values.get(doc)), column.getOrd(doc));
+    }
+
+    // same buckets keep the column, a column of buckets replaced meanwhile is dropped
+    reader.loadRangeBuckets(Collections.singletonMap(NUMERIC_FIELD, rangeIndex));
+    TestCase.assertTrue(queued.isEmpty());
+    TestCase.assertSame(column, reader.getRangeBucketColumn(NUMERIC_FIELD));
+    reader.loadRangeBuckets(Collections.singletonMap(NUMERIC_FIELD, RangeBucketIndex.compile(
+        new String[] { "[* TO 100)", "[100 TO *]" }, AbacusFieldType.LONG)));
+    TestCase.assertNull(reader.getRangeBucketColumn(NUMERIC_FIELD));
+    TestCase.assertTrue(reader.isLoading());
+    reader.loadRangeBuckets(Collections.singletonMap(NUMERIC_FIELD, rangeIndex));
+    TestCase.assertEquals(2, queued.size());
+    queued.remove(0).run();
+    TestCase.assertNull(reader.getRangeBucketColumn(NUMERIC_FIELD));
+    TestCase.assertTrue(reader.isLoading());
+    queued.remove(0).run();
+    TestCase.assertTrue(reader.getRangeBucketColumn(NUMERIC_FIELD).getRangeIndex()
+        .sameBuckets(rangeIndex));
+    TestCase.assertFalse(reader.isLoading());
+    TestCase.assertEquals(1, atomicReader.getRefCount());
+    reader.close();
+  }
 }
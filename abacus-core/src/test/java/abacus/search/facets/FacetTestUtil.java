@@ -2,7 +2,9 @@ package abacus.search.facets;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
@@ -17,6 +19,11 @@ import org.apache.lucene.index.MultiReader;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.RAMDirectory;
 
+import abacus.api.AbacusFieldType;
+import abacus.config.FacetIndexedType;
+import abacus.config.FieldConfig;
+import abacus.config.FieldConfigBuilder;
+import abacus.config.IndexDirectoryFacetsConfigReader;
 import abacus.indexing.AbacusIndexer;
 import abacus.service.AbacusQueryParser;
 import abacus.service.AbacusQueryParser.DefaultQueryParser;
@@ -96,6 +103,7 @@ public class FacetTestUtil {
     IndexWriterConfig conf = new IndexWriterConfig(null);
     try {
       IndexWriter writer = new IndexWriter(IDX_DIR, conf);
+      IndexDirectoryFacetsConfigReader.putFacetsConfig(writer, buildConfig());
       int count = 0;
       for (Document d : DOC_LIST) {
         writer.addDocument(d);
@@ -113,6 +121,29 @@ public class FacetTestUtil {
     }
   }
 
+  static Map<String, FieldConfig> buildConfig() {
+    Map<String, FieldConfig> configMap = new HashMap<>();
+    {
+      FieldConfigBuilder builder = new FieldConfigBuilder();
+      builder.withFacetIndexedType(FacetIndexedType.NUMERIC);
+      builder.withFiledType(AbacusFieldType.INT);
+      configMap.put("size", builder.build());
+    }
+    {
+      FieldConfigBuilder builder = new FieldConfigBuilder();
+      builder.withFacetIndexedType(FacetIndexedType.SINGLE);
+      builder.withFiledType(AbacusFieldType.STRING);
+      configMap.put("color", builder.build());
+    }
+    {
+      FieldConfigBuilder builder = new FieldConfigBuilder();
+      builder.withFacetIndexedType(FacetIndexedType.MULTI);
+      builder.withFiledType(AbacusFieldType.STRING);
+      configMap.put("tag", builder.build());
+    }
+    return configMap;
+  }
+
   public static IndexReader getIndexReader(Directory dir, FastDocValuesAtomicReader.MemType memType)
       throws Exception {
     IndexReader reader = DirectoryReader.open(dir);
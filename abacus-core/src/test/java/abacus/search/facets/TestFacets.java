@@ -3,22 +3,38 @@ package abacus.search.facets;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.lucene.facet.FacetResult;
 import org.apache.lucene.facet.Facets;
 import org.apache.lucene.facet.FacetsCollector;
+import org.apache.lucene.facet.LabelAndValue;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.MultiCollector;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.util.packed.BatchDocIdSetIterator;
+import org.apache.lucene.util.packed.HybridDocIdSet;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import abacus.api.AbacusFieldType;
 import abacus.search.facets.FastDocValuesAtomicReader.MemType;
+import abacus.search.util.DocIdSetIteratorUtil;
 
 public class TestFacets {
 
@@ -36,6 +52,7 @@ public class TestFacets {
     testFacets(MemType.Heap);
     testFacets(MemType.Direct);
     testFacets(MemType.Native);
+    testFacets(MemType.Ordinal);
   }
 
   public void testFacets(MemType memType) throws Exception {
@@ -128,4 +145,361 @@ public class TestFacets {
 
     reader.close();
   }
+
+  private static void assertSameFacets(FacetResult expected, FacetResult got) {
+    assertEquals(expected.value, got.value);
+    assertEquals(expected.childCount, got.childCount);
+    assertEquals(expected.labelValues.length, got.labelValues.length);
+    for (int i = 0; i < expected.labelValues.length; ++i) {
+      LabelAndValue expectedVal = expected.labelValues[i];
+      LabelAndValue gotVal = got.labelValues[i];
+      assertEquals(expectedVal.label, gotVal.label);
+      assertEquals(expectedVal.value.intValue(), gotVal.value.intValue());
+    }
+  }
+
+  private static FacetsCollector collectAll(IndexReader reader) throws IOException {
+    FacetsCollector facetsCollector = new FacetsCollector(false);
+    new IndexSearcher(reader).search(new MatchAllDocsQuery(), facetsCollector);
+    return facetsCollector;
+  }
+
+  @Test
+  public void testNumericFacetsOnDictionaries() throws Exception {
+    IndexReader ordReader = FacetTestUtil.getIndexReader(FacetTestUtil.IDX_DIR, MemType.Ordinal);
+    IndexReader heapReader = FacetTestUtil.getIndexReader(FacetTestUtil.IDX_DIR, MemType.Heap);
+    try {
+      FacetsCollector ordHits = collectAll(ordReader);
+      FacetsCollector heapHits = collectAll(heapReader);
+      assertTrue(ordHits.getMatchingDocs().size() > 1);
+
+      // several segments, merged on their dictionaries
+      NumericFacetCounts ordCounts = new NumericFacetCounts("size", ordHits);
+      NumericFacetCounts heapCounts = new NumericFacetCounts("size", heapHits);
+      for (int topN : new int[] {1, 2, 10}) {
+        assertSameFacets(heapCounts.getTopChildren(topN, "size"),
+            ordCounts.getTopChildren(topN, "size"));
+        assertSameFacets(heapCounts.getChildrenSortedByValue(topN),
+            ordCounts.getChildrenSortedByValue(topN));
+      }
+      FacetResult sorted = ordCounts.getChildrenSortedByValue(10);
+      assertEquals(7, sorted.value.intValue());
+      assertEquals(4, sorted.childCount);
+      String[] labels = {"1", "2", "4", "6"};
+      int[] counts = {1, 2, 3, 1};
+      for (int i = 0; i < labels.length; ++i) {
+        assertEquals(labels[i], sorted.labelValues[i].label);
+        assertEquals(counts[i], sorted.labelValues[i].value.intValue());
+      }
+      long[][] ranges = {{0, 10}, {2, 4}, {3, 5}, {5, 5}, {-5, 1}, {6, 6}, {7, 100}};
+      for (long[] range : ranges) {
+        assertEquals(heapCounts.getRangeCount(range[0], range[1]),
+            ordCounts.getRangeCount(range[0], range[1]));
+      }
+      assertEquals(5, ordCounts.getRangeCount(2, 4));
+      for (String value : new String[] {"1", "2", "3", "4", "6"}) {
+        assertEquals(heapCounts.getSpecificValue("size", value),
+            ordCounts.getSpecificValue("size", value));
+      }
+
+      // single segment, read by ord
+      LeafReaderContext leaf = ordReader.leaves().get(0);
+      NumericFacetCounts segmentCounts = new NumericFacetCounts("size");
+      FacetAccumulator.LeafAccumulator leafAccumulator = segmentCounts.getLeafAccumulator(leaf);
+      for (int doc = 0; doc < leaf.reader().maxDoc(); ++doc) {
+        leafAccumulator.accumulate(doc);
+      }
+      FacetResult segmentResult = segmentCounts.getChildrenSortedByValue(10);
+      assertEquals(leaf.reader().maxDoc(), segmentResult.value.intValue());
+      assertEquals(segmentResult.childCount, segmentCounts.getTopChildren(10, "size").childCount);
+      for (int i = 1; i < segmentResult.labelValues.length; ++i) {
+        assertTrue(Long.parseLong(segmentResult.labelValues[i - 1].label)
+            < Long.parseLong(segmentResult.labelValues[i].label));
+      }
+
+      // dictionary counts merged with hash counts fall back to the hash map
+      NumericFacetCounts mixedCounts = new NumericFacetCounts("size", ordHits);
+      mixedCounts.merge(new NumericFacetCounts("size", heapHits));
+      FacetResult mixed = mixedCounts.getTopChildren(10, "size");
+      assertEquals(14, mixed.value.intValue());
+      assertEquals("4", mixed.labelValues[0].label);
+      assertEquals(6, mixed.labelValues[0].value.intValue());
+      assertEquals(10, mixedCounts.getRangeCount(2, 4));
+    } finally {
+      ordReader.close();
+      heapReader.close();
+    }
+  }
+
+  @Test
+  public void testFacetsWithExecutor() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    IndexReader reader = FacetTestUtil.getIndexReader(FacetTestUtil.IDX_DIR, MemType.Heap);
+    try {
+      IndexSearcher searcher = new IndexSearcher(reader, executor);
+      FacetsCollector facetsCollector = searcher.search(new MatchAllDocsQuery(),
+          new FacetsCollectorManager());
+      assertTrue(facetsCollector.getMatchingDocs().size() > 1);
+
+      FacetBucket[] ranges = new FacetBucket[] {
+          FacetRangeBuilder.buildFacetRangeBucket("[* TO 3]", AbacusFieldType.INT),
+          FacetRangeBuilder.buildFacetRangeBucket("(3 TO *]", AbacusFieldType.INT)
+      };
+      FacetBucket[] parallelRanges = new FacetBucket[] {
+          FacetRangeBuilder.buildFacetRangeBucket("[* TO 3]", AbacusFieldType.INT),
+          FacetRangeBuilder.buildFacetRangeBucket("(3 TO *]", AbacusFieldType.INT)
+      };
+
+      assertSameFacets(
+          new NumericFacetCounts("size", facetsCollector).getTopChildren(10, "size"),
+          new NumericFacetCounts("size", facetsCollector, executor).getTopChildren(10, "size"));
+      assertSameFacets(
+          new NumericBucketFacetCounts("size", ranges, facetsCollector)
+              .getTopChildren(10, "size"),
+          new NumericBucketFacetCounts("size", parallelRanges, facetsCollector, executor)
+              .getTopChildren(10, "size"));
+      assertSameFacets(
+          new LabelAndOrdFacetCounts("color", new SortedDocValuesOrdReader("color"),
+              facetsCollector).getTopChildren(10, "color"),
+          new LabelAndOrdFacetCounts("color", new SortedDocValuesOrdReader("color"),
+              facetsCollector, executor).getTopChildren(10, "color"));
+      assertSameFacets(
+          new LabelAndOrdFacetCounts("tag", new SortedSetDocValuesOrdReader("tag"),
+              facetsCollector).getTopChildren(100, "tag"),
+          new LabelAndOrdFacetCounts("tag", new SortedSetDocValuesOrdReader("tag"),
+              facetsCollector, executor).getTopChildren(100, "tag"));
+    } finally {
+      reader.close();
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testFacetAccumulatorCollector() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    IndexReader reader = FacetTestUtil.getIndexReader(FacetTestUtil.IDX_DIR, MemType.Heap);
+    try {
+      IndexSearcher searcher = new IndexSearcher(reader, executor);
+      FacetsCollector facetsCollector = searcher.search(new MatchAllDocsQuery(),
+          new FacetsCollectorManager());
+
+      Map<String, FacetAccumulatorFactory> factories = new LinkedHashMap<>();
+      factories.put("size", new FacetAccumulatorFactory() {
+        @Override
+        public FacetAccumulator createAccumulator() {
+          return new NumericFacetCounts("size");
+        }
+      });
+      factories.put("sizeRange", new FacetAccumulatorFactory() {
+        @Override
+        public FacetAccumulator createAccumulator() throws IOException {
+          try {
+            return new NumericBucketFacetCounts("size", new FacetBucket[] {
+                FacetRangeBuilder.buildFacetRangeBucket("[* TO 3]", AbacusFieldType.INT),
+                FacetRangeBuilder.buildFacetRangeBucket("(3 TO *]", AbacusFieldType.INT)
+            });
+          } catch (Exception e) {
+            throw new IOException(e);
+          }
+        }
+      });
+      factories.put("color", new FacetAccumulatorFactory() {
+        @Override
+        public FacetAccumulator createAccumulator() {
+          return new LabelAndOrdFacetCounts("color", new SortedDocValuesOrdReader("color"));
+        }
+      });
+      factories.put("tag", new FacetAccumulatorFactory() {
+        @Override
+        public FacetAccumulator createAccumulator() {
+          return new LabelAndOrdFacetCounts("tag", new SortedSetDocValuesOrdReader("tag"));
+        }
+      });
+      Map<String, FacetAccumulator> accumulators = searcher.search(new MatchAllDocsQuery(),
+          new FacetAccumulatorCollectorManager(factories));
+
+      assertSameFacets(
+          new NumericFacetCounts("size", facetsCollector).getTopChildren(10, "size"),
+          accumulators.get("size").getTopChildren(10, "size"));
+      assertSameFacets(
+          new NumericBucketFacetCounts("size", new FacetBucket[] {
+              FacetRangeBuilder.buildFacetRangeBucket("[* TO 3]", AbacusFieldType.INT),
+              FacetRangeBuilder.buildFacetRangeBucket("(3 TO *]", AbacusFieldType.INT)
+          }, facetsCollector).getTopChildren(10, "size"),
+          accumulators.get("sizeRange").getTopChildren(10, "size"));
+      assertSameFacets(
+          new LabelAndOrdFacetCounts("color", new SortedDocValuesOrdReader("color"),
+              facetsCollector).getTopChildren(10, "color"),
+          accumulators.get("color").getTopChildren(10, "color"));
+      assertSameFacets(
+          new LabelAndOrdFacetCounts("tag", new SortedSetDocValuesOrdReader("tag"),
+              facetsCollector).getTopChildren(100, "tag"),
+          accumulators.get("tag").getTopChildren(100, "tag"));
+    } finally {
+      reader.close();
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testGlobalOrdinalMap() throws Exception {
+    IndexReader reader = FacetTestUtil.getIndexReader(FacetTestUtil.IDX_DIR, MemType.Heap);
+    try {
+      assertTrue(reader.leaves().size() > 1);
+      IndexSearcher searcher = new IndexSearcher(reader);
+      FacetsCollector facetsCollector = new FacetsCollector();
+      LabelAndOrdFacetCounts colorFacet = new LabelAndOrdFacetCounts("color",
+          new SortedDocValuesOrdReader("color"),
+          GlobalOrdinalMap.buildSorted(reader, "color"));
+      LabelAndOrdFacetCounts tagFacet = new LabelAndOrdFacetCounts("tag",
+          new SortedSetDocValuesOrdReader("tag"),
+          GlobalOrdinalMap.buildSortedSet(reader, "tag"));
+      Map<String, FacetAccumulator> accumulators = new LinkedHashMap<>();
+      accumulators.put("color", colorFacet);
+      accumulators.put("tag", tagFacet);
+      searcher.search(new MatchAllDocsQuery(), MultiCollector.wrap(facetsCollector,
+          new FacetAccumulatorCollector(accumulators)));
+
+      for (int topN : new int[] { 2, 3, 100 }) {
+        assertSameFacets(
+            new LabelAndOrdFacetCounts("color", new SortedDocValuesOrdReader("color"),
+                facetsCollector).getTopChildren(topN, "color"),
+            colorFacet.getTopChildren(topN, "color"));
+        assertSameFacets(
+            new LabelAndOrdFacetCounts("tag", new SortedSetDocValuesOrdReader("tag"),
+                facetsCollector).getTopChildren(topN, "tag"),
+            tagFacet.getTopChildren(topN, "tag"));
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static void checkRangeBucketIndex(String[] rangeStrings, AbacusFieldType fieldType,
+      long[] vals) throws Exception {
+    RangeBucketIndex index = RangeBucketIndex.compile(rangeStrings, fieldType);
+    assertEquals(rangeStrings.length, index.getRangeCount());
+    for (long val : vals) {
+      int[] ordCounts = new int[index.getOrdCount()];
+      ordCounts[index.getOrd(val)]++;
+      int[] rangeCounts = index.getRangeCounts(ordCounts);
+      for (int r = 0; r < rangeStrings.length; ++r) {
+        FacetRangeBuilder.FacetRange range =
+            FacetRangeBuilder.buildFacetRangeBucket(rangeStrings[r], fieldType);
+        assertEquals(rangeStrings[r] + " " + val, range.contains(val) ? 1 : 0, rangeCounts[r]);
+      }
+    }
+  }
+
+  @Test
+  public void testRangeBucketIndex() throws Exception {
+    checkRangeBucketIndex(new String[] { "[* TO 3]", "(3 TO *]", "[2 TO 5)", "(4 TO 4]",
+        "[-10 TO -1]" }, AbacusFieldType.INT,
+        new long[] { Integer.MIN_VALUE, -11, -10, -1, 0, 2, 3, 4, 5, Integer.MAX_VALUE });
+    checkRangeBucketIndex(new String[] { "[* TO 0)", "[0 TO *]", "(100 TO 200]", "[150 TO *)" },
+        AbacusFieldType.LONG,
+        new long[] { Long.MIN_VALUE, -1, 0, 100, 101, 150, 200, 201, Long.MAX_VALUE });
+    double[] doubles = { Double.NEGATIVE_INFINITY, -2.5, -0.0, 0.0, 0.5, 1.0, 2.5, 3.0,
+        Double.MAX_VALUE, Double.POSITIVE_INFINITY };
+    long[] doubleVals = new long[doubles.length];
+    long[] floatVals = new long[doubles.length];
+    for (int i = 0; i < doubles.length; ++i) {
+      doubleVals[i] = Double.doubleToRawLongBits(doubles[i]);
+      floatVals[i] = Float.floatToRawIntBits((float) doubles[i]);
+    }
+    String[] realRanges = { "[* TO 0]", "(0 TO 2.5)", "[0.5 TO 3.0]", "(-2.5 TO *]",
+        "[1.0 TO 1.0]" };
+    checkRangeBucketIndex(realRanges, AbacusFieldType.DOUBLE, doubleVals);
+    checkRangeBucketIndex(realRanges, AbacusFieldType.FLOAT, floatVals);
+  }
+
+  @Test
+  public void testCompiledRangeFacets() throws Exception {
+    IndexReader reader = FacetTestUtil.getIndexReader(FacetTestUtil.IDX_DIR, MemType.Heap);
+    try {
+      IndexSearcher searcher = new IndexSearcher(reader);
+      FacetsCollector facetsCollector = searcher.search(new MatchAllDocsQuery(),
+          new FacetsCollectorManager());
+      String[] rangeStrings = { "[* TO 3]", "(3 TO *]", "[2 TO 4]" };
+      FacetBucket[] ranges = new FacetBucket[rangeStrings.length];
+      for (int i = 0; i < rangeStrings.length; ++i) {
+        ranges[i] = FacetRangeBuilder.buildFacetRangeBucket(rangeStrings[i], AbacusFieldType.INT);
+      }
+      NumericBucketFacetCounts compiled = new NumericBucketFacetCounts("size",
+          RangeBucketIndex.compile(rangeStrings, AbacusFieldType.INT), facetsCollector);
+      assertSameFacets(
+          new NumericBucketFacetCounts("size", ranges, facetsCollector).getTopChildren(10, "size"),
+          compiled.getTopChildren(10, "size"));
+      for (String rangeString : rangeStrings) {
+        assertTrue(compiled.getSpecificValue("size", rangeString).intValue() > 0);
+      }
+
+      // same counts from the bucket ords materialized in every segment
+      RangeBucketIndex index = RangeBucketIndex.compile(rangeStrings, AbacusFieldType.INT);
+      for (LeafReaderContext leaf : reader.leaves()) {
+        FastDocValuesAtomicReader leafReader = (FastDocValuesAtomicReader) leaf.reader();
+        leafReader.loadRangeBuckets(Collections.singletonMap("size", index));
+        assertTrue(leafReader.getRangeBucketColumn("size").getRangeIndex().sameBuckets(
+            RangeBucketIndex.compile(rangeStrings, AbacusFieldType.INT)));
+      }
+      assertSameFacets(compiled.getTopChildren(10, "size"),
+          new NumericBucketFacetCounts("size",
+              RangeBucketIndex.compile(rangeStrings, AbacusFieldType.INT), facetsCollector)
+              .getTopChildren(10, "size"));
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testCompactFacetsCollector() throws Exception {
+    Random random = new Random(0);
+    Object[][] cases = new Object[][] {
+        // maxDoc, hit probability, expected hits structure
+        {1 << 20, 0.001, CompactFacetsCollector.IntArrayDocIdSet.class},
+        {1 << 20, 0.05, HybridDocIdSet.class},
+        {1 << 20, 0.5, HybridDocIdSet.class},
+        {1000, 0.005, CompactFacetsCollector.IntArrayDocIdSet.class},
+        {1000, 0.5, CompactFacetsCollector.BitSetDocIdSet.class}
+    };
+    for (Object[] c : cases) {
+      int maxDoc = (Integer) c[0];
+      double probability = (Double) c[1];
+      CompactFacetsCollector.AdaptiveDocs docs = new CompactFacetsCollector.AdaptiveDocs(maxDoc);
+      int[] expected = new int[maxDoc];
+      int count = 0;
+      for (int doc = 0; doc < maxDoc; ++doc) {
+        if (random.nextDouble() < probability) {
+          docs.addDoc(doc);
+          expected[count++] = doc;
+        }
+      }
+      expected = Arrays.copyOf(expected, count);
+      DocIdSet docIdSet = docs.getDocIdSet();
+      assertEquals(c[2], docIdSet.getClass());
+      // never more than a bitset, but for the bitmaps of the chunks of a hybrid set
+      assertTrue(docIdSet.ramBytesUsed() <= (maxDoc >>> 3) + 1024);
+      assertTrue(Arrays.equals(expected, DocIdSetIteratorUtil.toIntArray(docIdSet.iterator())));
+
+      // in batches
+      BatchDocIdSetIterator it = (BatchDocIdSetIterator) docIdSet.iterator();
+      int[] batch = new int[100];
+      int[] returned = new int[count];
+      int upto = 0;
+      int n;
+      while ((n = it.nextDocs(batch)) > 0) {
+        assertEquals(batch[n - 1], it.docID());
+        System.arraycopy(batch, 0, returned, upto, n);
+        upto += n;
+      }
+      assertEquals(DocIdSetIterator.NO_MORE_DOCS, it.docID());
+      assertTrue(Arrays.equals(expected, returned));
+
+      it = (BatchDocIdSetIterator) docIdSet.iterator();
+      for (int i = 0; i < count; i += 1 + random.nextInt(50)) {
+        int target = i == 0 ? 0 : expected[i - 1] + 1;
+        assertEquals(expected[i], it.advance(target));
+      }
+    }
+  }
 }
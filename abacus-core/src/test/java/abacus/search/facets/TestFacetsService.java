@@ -1,9 +1,88 @@
 package abacus.search.facets;
 
+import abacus.api.AbacusBooleanClauseOccur;
+import abacus.api.AbacusBooleanFilter;
+import abacus.api.AbacusBooleanSubFilter;
+import abacus.api.AbacusFieldType;
+import abacus.api.AbacusFilter;
+import abacus.api.AbacusQuery;
+import abacus.api.AbacusQueryFilter;
 import abacus.api.AbacusRequest;
 import abacus.api.AbacusResult;
+import abacus.api.Facet;
+import abacus.api.AbacusStringQuery;
+import abacus.api.AbacusTermFilter;
+import abacus.api.FacetParam;
+import abacus.api.PagingParam;
+import abacus.config.FacetIndexedType;
+import abacus.config.FieldConfig;
+import abacus.config.FieldConfigBuilder;
+import abacus.config.IndexDirectoryFacetsConfigReader;
+import abacus.search.docsets.DocIdSetStore;
+import abacus.search.facets.FastDocValuesAtomicReader.MemType;
+import abacus.search.filter.DocValuesOrdSetFilter;
+import abacus.search.filter.FilterCache;
+import abacus.search.filter.FilterConstructor;
+import abacus.service.AbacusQueryParser;
 import abacus.service.AbacusQueryService;
+import abacus.service.QueryServiceConfigBuilder;
+import abacus.service.ResultCache;
+import abacus.service.metrics.MetricsHttpEndpoint;
+import abacus.service.metrics.QueryMetrics;
+import abacus.service.metrics.QueryMetrics.Phase;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import junit.framework.TestCase;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.IOUtils;
 import org.junit.Test;
 
 public class TestFacetsService {
@@ -16,4 +95,952 @@ public class TestFacetsService {
     TestCase.assertEquals(7, results.getNumHits());
     svc.close();
   }
+
+  @Test
+  public void testWithExecutor() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    AbacusQueryService svc = new AbacusQueryService(FacetTestUtil.IDX_DIR,
+        FacetTestUtil.QUERY_PARSER, null, MemType.Heap, executor);
+    AbacusRequest req = new AbacusRequest();
+    AbacusResult results = svc.query(req);
+    TestCase.assertEquals(7, results.getNumHits());
+    TestCase.assertEquals(7, results.getHitsSize());
+    svc.close();
+    executor.shutdown();
+  }
+
+  @Test
+  public void testWithPartitions() throws Exception {
+    AbacusRequest req = new AbacusRequest();
+    req.putToFacetParams("color", new FacetParam());
+    req.putToFacetParams("tag", new FacetParam());
+
+    AbacusQueryService serialSvc = new AbacusQueryService(FacetTestUtil.IDX_DIR,
+        FacetTestUtil.QUERY_PARSER, null, MemType.Heap);
+    AbacusResult expected = serialSvc.query(req);
+    serialSvc.close();
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    // one doc per partition, every segment gets split
+    AbacusQueryService svc = new AbacusQueryService(FacetTestUtil.IDX_DIR,
+        FacetTestUtil.QUERY_PARSER, new QueryServiceConfigBuilder()
+            .withDefaultMemType(MemType.Heap)
+            .withExecutor(executor)
+            .withDocsPerPartition(1)
+            .build());
+    AbacusResult results = svc.query(req);
+    TestCase.assertEquals(7, results.getNumHits());
+    TestCase.assertEquals(7, results.getHitsSize());
+    TestCase.assertEquals(3, expected.getFacetList().get("color").size());
+    TestCase.assertEquals(expected.getFacetList(), results.getFacetList());
+    svc.close();
+    executor.shutdown();
+  }
+
+  private static Document newDoc(String id, long size) {
+    Document doc = new Document();
+    doc.add(new StringField("id", id, Store.NO));
+    doc.add(new NumericDocValuesField("size", size));
+    return doc;
+  }
+
+  @Test
+  public void testRefresh() throws Exception {
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(null));
+    writer.addDocument(newDoc("1", 1));
+    writer.addDocument(newDoc("2", 2));
+    writer.commit();
+
+    AbacusQueryService svc = new AbacusQueryService(dir, FacetTestUtil.QUERY_PARSER, null,
+        MemType.Native);
+    AbacusRequest req = new AbacusRequest();
+    TestCase.assertEquals(2, svc.query(req).getNumHits());
+
+    writer.addDocument(newDoc("3", 3));
+    writer.addDocument(newDoc("4", 4));
+    writer.addDocument(newDoc("5", 5));
+    writer.deleteDocuments(new Term("id", "1"));
+    writer.commit();
+
+    // not visible until refreshed
+    TestCase.assertEquals(2, svc.query(req).getNumHits());
+    svc.refresh();
+    TestCase.assertEquals(4, svc.query(req).getNumHits());
+
+    writer.forceMerge(1);
+    writer.commit();
+    svc.refresh();
+    TestCase.assertEquals(4, svc.query(req).getNumHits());
+    // refreshing an unchanged index is a no-op
+    svc.refresh();
+    TestCase.assertEquals(4, svc.query(req).getNumHits());
+
+    svc.close();
+    writer.close();
+    dir.close();
+  }
+
+  private static Map<String, FieldConfig> sizeRangeConfig(String... rangeStrings) {
+    Map<String, FieldConfig> configMap = new HashMap<>();
+    configMap.put("size", new FieldConfigBuilder()
+        .withFacetIndexedType(FacetIndexedType.NUMERIC)
+        .withFiledType(AbacusFieldType.LONG)
+        .withFacetIndexedRangeStrings(rangeStrings)
+        .build());
+    return configMap;
+  }
+
+  private static Map<String, Long> sizeFacets(AbacusQueryService svc, FacetParam facetParam)
+      throws Exception {
+    AbacusRequest req = new AbacusRequest();
+    req.putToFacetParams("size", facetParam);
+    Map<String, Long> counts = new HashMap<>();
+    for (Facet facet : svc.query(req).getFacetList().get("size")) {
+      counts.put(facet.getValue(), facet.getCount());
+    }
+    return counts;
+  }
+
+  @Test
+  public void testDefaultRangesRefresh() throws Exception {
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(null));
+    IndexDirectoryFacetsConfigReader.putFacetsConfig(writer,
+        sizeRangeConfig("[* TO 2]", "(2 TO *]"));
+    for (int i = 1; i <= 5; ++i) {
+      writer.addDocument(newDoc(String.valueOf(i), i));
+    }
+    writer.commit();
+
+    AbacusQueryService svc = new AbacusQueryService(dir, FacetTestUtil.QUERY_PARSER, null,
+        MemType.Heap);
+    Map<String, Long> counts = sizeFacets(svc, new FacetParam());
+    TestCase.assertEquals(2, counts.size());
+    TestCase.assertEquals(Long.valueOf(2), counts.get("[* TO 2]"));
+    TestCase.assertEquals(Long.valueOf(3), counts.get("(2 TO *]"));
+
+    // ranges in the request are counted without the materialized default buckets
+    FacetParam facetParam = new FacetParam();
+    facetParam.addToRanges("[2 TO 4]");
+    counts = sizeFacets(svc, facetParam);
+    TestCase.assertEquals(1, counts.size());
+    TestCase.assertEquals(Long.valueOf(3), counts.get("[2 TO 4]"));
+
+    // a config change alone is a new commit, the buckets are rebuilt on refresh
+    IndexDirectoryFacetsConfigReader.putFacetsConfig(writer,
+        sizeRangeConfig("[1 TO 3]", "[3 TO 5]"));
+    writer.commit();
+    svc.refresh();
+    counts = sizeFacets(svc, new FacetParam());
+    TestCase.assertEquals(2, counts.size());
+    TestCase.assertEquals(Long.valueOf(3), counts.get("[1 TO 3]"));
+    TestCase.assertEquals(Long.valueOf(3), counts.get("[3 TO 5]"));
+
+    svc.close();
+    writer.close();
+    dir.close();
+  }
+
+  private static AbacusFilter termFilter(String field, AbacusBooleanClauseOccur occur,
+      List<String> values, List<String> excludes) {
+    AbacusTermFilter termFilter = new AbacusTermFilter();
+    termFilter.setField(field);
+    termFilter.setOccur(occur);
+    if (values != null) {
+      termFilter.setValues(values);
+    }
+    if (excludes != null) {
+      termFilter.setExcludes(excludes);
+    }
+    AbacusFilter filter = new AbacusFilter();
+    filter.setTermFilter(termFilter);
+    return filter;
+  }
+
+  private static Set<Integer> filteredDocs(IndexSearcher searcher, Filter filter)
+      throws Exception {
+    Set<Integer> docs = new HashSet<>();
+    for (ScoreDoc scoreDoc : searcher.search(new FilteredQuery(new MatchAllDocsQuery(), filter),
+        100).scoreDocs) {
+      docs.add(scoreDoc.doc);
+    }
+    return docs;
+  }
+
+  @Test
+  public void testOrdSetTermFilters() throws Exception {
+    AbacusBooleanClauseOccur should = AbacusBooleanClauseOccur.SHOULD;
+    AbacusBooleanClauseOccur must = AbacusBooleanClauseOccur.MUST;
+    AbacusFilter[] filters = new AbacusFilter[] {
+        termFilter("color", should, Arrays.asList("red", "blue"), null),
+        termFilter("color", must, Arrays.asList("red", "blue"), null),
+        termFilter("color", should, null, Arrays.asList("red")),
+        termFilter("color", should, Arrays.asList("red", "green", "purple"),
+            Arrays.asList("green")),
+        termFilter("tag", should, Arrays.asList("pet", "funny", "purple"), null),
+        termFilter("tag", must, Arrays.asList("pet", "animal"), null),
+        termFilter("tag", must, Arrays.asList("pet", "purple"), null),
+        termFilter("tag", should, null, Arrays.asList("pet", "funny")),
+        termFilter("tag", should, Arrays.asList("rabbit", "dog"), Arrays.asList("pet"))
+    };
+    // no values and no excludes match nothing, as the boolean filter with no clauses does
+    AbacusFilter[] emptyFilters = new AbacusFilter[] {
+        termFilter("color", should, Collections.<String>emptyList(), null),
+        termFilter("tag", must, Collections.<String>emptyList(), null),
+        termFilter("tag", should, Collections.<String>emptyList(),
+            Collections.<String>emptyList())
+    };
+    Map<String, FieldConfig> configMap = FacetTestUtil.buildConfig();
+    for (MemType memType : new MemType[] { MemType.Default, MemType.Heap }) {
+      IndexReader reader = FacetTestUtil.getIndexReader(FacetTestUtil.IDX_DIR, memType);
+      IndexSearcher searcher = new IndexSearcher(reader);
+      for (AbacusFilter abacusFilter : filters) {
+        Filter postingsFilter = FilterConstructor.constructFilter(abacusFilter,
+            FacetTestUtil.QUERY_PARSER, null);
+        Filter ordSetFilter = FilterConstructor.constructFilter(abacusFilter,
+            FacetTestUtil.QUERY_PARSER, configMap);
+        TestCase.assertTrue(ordSetFilter instanceof DocValuesOrdSetFilter);
+        TestCase.assertEquals(String.valueOf(abacusFilter),
+            filteredDocs(searcher, postingsFilter), filteredDocs(searcher, ordSetFilter));
+      }
+      for (AbacusFilter abacusFilter : emptyFilters) {
+        Filter postingsFilter = FilterConstructor.constructFilter(abacusFilter,
+            FacetTestUtil.QUERY_PARSER, null);
+        Filter ordSetFilter = FilterConstructor.constructFilter(abacusFilter,
+            FacetTestUtil.QUERY_PARSER, configMap);
+        TestCase.assertEquals(String.valueOf(abacusFilter),
+            filteredDocs(searcher, postingsFilter), filteredDocs(searcher, ordSetFilter));
+        TestCase.assertTrue(String.valueOf(abacusFilter),
+            filteredDocs(searcher, ordSetFilter).isEmpty());
+      }
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testFilterCache() throws Exception {
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(null));
+    for (int i = 1; i <= 5; ++i) {
+      writer.addDocument(newDoc(String.valueOf(i), i));
+    }
+    writer.commit();
+
+    AbacusQueryService svc = new AbacusQueryService(dir, FacetTestUtil.QUERY_PARSER,
+        new QueryServiceConfigBuilder().withFilterCacheBytes(1 << 20).build());
+    FilterCache filterCache = svc.getFilterCache();
+    AbacusRequest req = new AbacusRequest();
+    req.setFilter(termFilter("id", AbacusBooleanClauseOccur.SHOULD,
+        Arrays.asList("1", "2", "3"), null));
+    // the same filter with the values in another order
+    AbacusRequest sameReq = new AbacusRequest();
+    sameReq.setFilter(termFilter("id", AbacusBooleanClauseOccur.SHOULD,
+        Arrays.asList("3", "1", "2"), null));
+
+    // seen once, not cached yet
+    TestCase.assertEquals(3, svc.query(req).getNumHits());
+    TestCase.assertEquals(0, filterCache.getCacheSize());
+    TestCase.assertEquals(3, svc.query(sameReq).getNumHits());
+    TestCase.assertEquals(1, filterCache.getCacheSize());
+    TestCase.assertEquals(1, filterCache.getMissCount());
+    TestCase.assertEquals(3, svc.query(req).getNumHits());
+    TestCase.assertEquals(1, filterCache.getHitCount());
+
+    // deletes are applied to the cached set of the unchanged segment core
+    writer.deleteDocuments(new Term("id", "2"));
+    writer.commit();
+    svc.refresh();
+    TestCase.assertEquals(2, svc.query(req).getNumHits());
+    TestCase.assertEquals(2, filterCache.getHitCount());
+
+    // sets of merged away segments are dropped
+    writer.forceMerge(1);
+    writer.commit();
+    svc.refresh();
+    TestCase.assertEquals(2, svc.query(req).getNumHits());
+    TestCase.assertEquals(1, filterCache.getCacheSize());
+    TestCase.assertTrue(filterCache.ramBytesUsed() > 0);
+
+    svc.close();
+    writer.close();
+    dir.close();
+  }
+
+  @Test
+  public void testFilterCacheEviction() throws Exception {
+    IndexReader reader = FacetTestUtil.getIndexReader(FacetTestUtil.IDX_DIR, MemType.Default);
+    IndexSearcher searcher = new IndexSearcher(reader);
+    // room for about one set
+    FilterCache filterCache = new FilterCache(100, 1);
+    for (String color : new String[] { "red", "green", "blue" }) {
+      AbacusFilter abacusFilter = termFilter("color", AbacusBooleanClauseOccur.SHOULD,
+          Arrays.asList(color), null);
+      Filter filter = FilterConstructor.constructFilter(abacusFilter,
+          FacetTestUtil.QUERY_PARSER, null);
+      TestCase.assertEquals(filteredDocs(searcher, filter),
+          filteredDocs(searcher, filterCache.wrap(abacusFilter, filter)));
+    }
+    TestCase.assertTrue(filterCache.getEvictionCount() > 0);
+    TestCase.assertTrue(filterCache.ramBytesUsed() <= 100);
+    reader.close();
+  }
+
+  @Test
+  public void testResultCacheLatency() throws Exception {
+    // only a computed result takes the time of parsing
+    AbacusQueryParser slowParser = new AbacusQueryParser() {
+      @Override
+      public Query parse(String rawQuery) throws ParseException {
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        return FacetTestUtil.QUERY_PARSER.parse(rawQuery);
+      }
+    };
+    AbacusQueryService svc = new AbacusQueryService(FacetTestUtil.IDX_DIR, slowParser,
+        new QueryServiceConfigBuilder().withResultCacheSize(2).build());
+    AbacusRequest req = new AbacusRequest();
+    req.setQuery(new AbacusQuery().setStringQuery(new AbacusStringQuery().setQuery("*:*")));
+    AbacusResult computed = svc.query(req);
+    TestCase.assertTrue(computed.getLatencyInMs() >= 200);
+    long start = System.currentTimeMillis();
+    AbacusResult cached = svc.query(req);
+    long elapsed = System.currentTimeMillis() - start;
+    TestCase.assertEquals(1, svc.getResultCache().getHitCount());
+    TestCase.assertEquals(computed.getNumHits(), cached.getNumHits());
+    TestCase.assertTrue(cached.getLatencyInMs() <= elapsed);
+    TestCase.assertTrue(cached.getLatencyInMs() < 200);
+    svc.close();
+  }
+
+  @Test
+  public void testResultCache() throws Exception {
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(null));
+    for (int i = 1; i <= 5; ++i) {
+      writer.addDocument(newDoc(String.valueOf(i), i));
+    }
+    writer.commit();
+
+    AbacusQueryService svc = new AbacusQueryService(dir, FacetTestUtil.QUERY_PARSER,
+        new QueryServiceConfigBuilder().withResultCacheSize(2).build());
+    ResultCache resultCache = svc.getResultCache();
+    AbacusRequest req = new AbacusRequest();
+    req.setFilter(termFilter("id", AbacusBooleanClauseOccur.SHOULD,
+        Arrays.asList("1", "2", "3"), null));
+    AbacusRequest sameReq = new AbacusRequest();
+    sameReq.setFilter(termFilter("id", AbacusBooleanClauseOccur.SHOULD,
+        Arrays.asList("3", "2", "1"), null));
+
+    AbacusResult result = svc.query(req);
+    TestCase.assertEquals(3, result.getNumHits());
+    result.setNumHits(-1);
+    TestCase.assertEquals(3, svc.query(sameReq).getNumHits());
+    TestCase.assertEquals(1, resultCache.getMissCount());
+    TestCase.assertEquals(1, resultCache.getHitCount());
+
+    // concurrent identical requests are served by one execution or from the cache
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<AbacusResult>> futures = new ArrayList<>();
+    final AbacusQueryService concurrentSvc = svc;
+    final AbacusRequest concurrentReq = new AbacusRequest();
+    for (int i = 0; i < 8; ++i) {
+      futures.add(executor.submit(new Callable<AbacusResult>() {
+        @Override
+        public AbacusResult call() throws Exception {
+          return concurrentSvc.query(concurrentReq);
+        }
+      }));
+    }
+    for (Future<AbacusResult> future : futures) {
+      TestCase.assertEquals(5, future.get().getNumHits());
+    }
+    executor.shutdown();
+    TestCase.assertEquals(2, resultCache.getMissCount());
+    TestCase.assertEquals(8, resultCache.getHitCount());
+
+    // a third request evicts the least recently used one
+    AbacusRequest pagedReq = new AbacusRequest();
+    pagedReq.setPagingParam(new PagingParam().setOffset(0).setCount(2));
+    TestCase.assertEquals(2, svc.query(pagedReq).getHitsSize());
+    TestCase.assertEquals(1, resultCache.getEvictionCount());
+    TestCase.assertEquals(2, resultCache.getCacheSize());
+
+    // a refresh invalidates every entry
+    writer.deleteDocuments(new Term("id", "2"));
+    writer.commit();
+    svc.refresh();
+    TestCase.assertEquals(2, svc.query(req).getNumHits());
+    TestCase.assertEquals(1, resultCache.getCacheSize());
+
+    svc.close();
+    writer.close();
+    dir.close();
+  }
+
+  @Test
+  public void testFacetCountCache() throws Exception {
+    AbacusRequest req = new AbacusRequest();
+    req.putToFacetParams("color", new FacetParam());
+    req.putToFacetParams("tag", new FacetParam());
+    req.putToFacetParams("size", new FacetParam());
+    AbacusRequest filteredReq = req.deepCopy();
+    filteredReq.setFilter(termFilter("color", AbacusBooleanClauseOccur.SHOULD,
+        Arrays.asList("red", "blue"), null));
+
+    for (MemType memType : new MemType[] { MemType.Default, MemType.Heap }) {
+      AbacusQueryService plainSvc = new AbacusQueryService(FacetTestUtil.IDX_DIR,
+          FacetTestUtil.QUERY_PARSER, null, memType);
+      AbacusResult expected = plainSvc.query(req);
+      AbacusResult expectedFiltered = plainSvc.query(filteredReq);
+      plainSvc.close();
+
+      AbacusQueryService svc = new AbacusQueryService(FacetTestUtil.IDX_DIR,
+          FacetTestUtil.QUERY_PARSER, new QueryServiceConfigBuilder()
+              .withDefaultMemType(memType)
+              .withFacetCountCacheBytes(1 << 20)
+              .build());
+      FacetCountCache facetCountCache = svc.getFacetCountCache();
+      TestCase.assertEquals(expected.getFacetList(), svc.query(req).getFacetList());
+      long misses = facetCountCache.getMissCount();
+      TestCase.assertTrue(misses > 0);
+      TestCase.assertEquals(0, facetCountCache.getHitCount());
+      TestCase.assertEquals(misses, facetCountCache.getCacheSize());
+
+      // every segment is served from the cache the second time
+      AbacusResult cached = svc.query(req);
+      TestCase.assertEquals(expected.getNumHits(), cached.getNumHits());
+      TestCase.assertEquals(expected.getFacetList(), cached.getFacetList());
+      TestCase.assertEquals(misses, facetCountCache.getHitCount());
+      TestCase.assertEquals(misses, facetCountCache.getMissCount());
+
+      // a filter gets its own entries
+      TestCase.assertEquals(expectedFiltered.getFacetList(),
+          svc.query(filteredReq).getFacetList());
+      TestCase.assertEquals(expectedFiltered.getFacetList(),
+          svc.query(filteredReq).getFacetList());
+      TestCase.assertEquals(2 * misses, facetCountCache.getHitCount());
+      TestCase.assertEquals(2 * misses, facetCountCache.getMissCount());
+      TestCase.assertTrue(facetCountCache.ramBytesUsed() > 0);
+      svc.close();
+    }
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    AbacusQueryService disabledSvc = new AbacusQueryService(FacetTestUtil.IDX_DIR,
+        FacetTestUtil.QUERY_PARSER);
+    disabledSvc.query(new AbacusRequest());
+    TestCase.assertFalse(disabledSvc.getMetrics().isEnabled());
+    TestCase.assertEquals(0, disabledSvc.getMetrics().getRequestCount());
+    TestCase.assertEquals(0, disabledSvc.getMetrics().getHistogram(Phase.TOTAL).getCount());
+    disabledSvc.close();
+
+    AbacusQueryService svc = new AbacusQueryService(FacetTestUtil.IDX_DIR,
+        FacetTestUtil.QUERY_PARSER, new QueryServiceConfigBuilder()
+            .withMetricsEnabled(true)
+            .build());
+    QueryMetrics metrics = svc.getMetrics();
+    metrics.registerMBeans("abacus.test");
+    AbacusRequest req = new AbacusRequest();
+    req.putToFacetParams("color", new FacetParam());
+    req.setFetchSrcData(true);
+    svc.query(req);
+    svc.query(req);
+
+    TestCase.assertEquals(2, metrics.getRequestCount());
+    TestCase.assertEquals(0, metrics.getErrorCount());
+    for (Phase phase : Phase.values()) {
+      TestCase.assertEquals(phase.toString(), 2, metrics.getHistogram(phase).getCount());
+    }
+    TestCase.assertEquals(2, metrics.getFacetCountingHistogram("color").getCount());
+    TestCase.assertNull(metrics.getFacetCountingHistogram("tag"));
+
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    ObjectName colorName = new ObjectName(
+        "abacus.test:type=QueryMetrics,phase=facet_counting,field=\"color\"");
+    TestCase.assertEquals(2L, mbeanServer.getAttribute(colorName, "Count"));
+    TestCase.assertEquals(2L, mbeanServer.getAttribute(
+        new ObjectName("abacus.test:type=QueryMetrics,phase=collection"), "Count"));
+
+    MetricsHttpEndpoint endpoint = new MetricsHttpEndpoint(metrics,
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    URL url = new URL("http", endpoint.getAddress().getHostString(),
+        endpoint.getAddress().getPort(), MetricsHttpEndpoint.PATH);
+    StringBuilder page = new StringBuilder();
+    BufferedReader in = new BufferedReader(
+        new InputStreamReader(url.openStream(), StandardCharsets.UTF_8));
+    String line;
+    while ((line = in.readLine()) != null) {
+      page.append(line).append('\n');
+    }
+    in.close();
+    endpoint.close();
+    TestCase.assertEquals(metrics.toText(), page.toString());
+    TestCase.assertTrue(page.indexOf("abacus_requests_total 2\n") >= 0);
+    TestCase.assertTrue(
+        page.indexOf("abacus_phase_count{phase=\"facet_counting\",field=\"color\"} 2\n") >= 0);
+
+    svc.close();
+    TestCase.assertFalse(mbeanServer.isRegistered(colorName));
+  }
+
+  @Test
+  public void testMetricsRegisteredWhileCounting() throws Exception {
+    final QueryMetrics metrics = new QueryMetrics();
+    final int fieldCount = 500;
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<Void>> futures = new ArrayList<>();
+    for (int t = 0; t < 4; ++t) {
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          // new fields keep appearing while the mbeans are registered
+          for (int i = 0; i < fieldCount; ++i) {
+            metrics.recordFacetCounting("field" + i, System.nanoTime());
+          }
+          return null;
+        }
+      }));
+    }
+    metrics.registerMBeans("abacus.race");
+    for (Future<Void> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    for (int i = 0; i < fieldCount; ++i) {
+      TestCase.assertEquals(4, metrics.getFacetCountingHistogram("field" + i).getCount());
+      TestCase.assertTrue(mbeanServer.isRegistered(new ObjectName(
+          "abacus.race:type=QueryMetrics,phase=facet_counting,field=\"field" + i + "\"")));
+    }
+    metrics.unregisterMBeans();
+  }
+
+  private static int setFileCount(Path path) throws Exception {
+    int count = 0;
+    try (Directory dir = FSDirectory.open(path)) {
+      for (String file : dir.listAll()) {
+        if (file.endsWith(".pds")) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  private static int docIdSetHits(AbacusQueryService svc, List<String> values,
+      List<String> excludes) throws Exception {
+    AbacusRequest req = new AbacusRequest();
+    req.setFilter(termFilter(DocIdSetStore.FIELD, AbacusBooleanClauseOccur.MUST, values,
+        excludes));
+    return (int) svc.query(req).getNumHits();
+  }
+
+  @Test
+  public void testDocIdSetStore() throws Exception {
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(null));
+    for (int i = 1; i <= 6; ++i) {
+      writer.addDocument(newDoc(String.valueOf(i), i));
+    }
+    writer.commit();
+    Path storePath = Files.createTempDirectory("docsets");
+    QueryServiceConfigBuilder configBuilder = new QueryServiceConfigBuilder()
+        .withDocIdSetStorePath(storePath).withFilterCacheBytes(1 << 20)
+        .withFilterCacheMinFrequency(1);
+
+    AbacusQueryService svc = new AbacusQueryService(dir, FacetTestUtil.QUERY_PARSER,
+        configBuilder.build());
+    AbacusBooleanClauseOccur should = AbacusBooleanClauseOccur.SHOULD;
+    svc.saveDocIdSet("odd", termFilter("id", should, Arrays.asList("1", "3", "5"), null));
+    svc.saveDocIdSet("small", termFilter("id", should, Arrays.asList("1", "2"), null));
+    TestCase.assertEquals(3, docIdSetHits(svc, Arrays.asList("odd"), null));
+    TestCase.assertEquals(1, docIdSetHits(svc, Arrays.asList("odd", "small"), null));
+    TestCase.assertEquals(2, docIdSetHits(svc, Arrays.asList("odd"), Arrays.asList("small")));
+    TestCase.assertEquals(2, setFileCount(storePath));
+
+    // redefining a set drops its cached filters
+    svc.saveDocIdSet("odd", termFilter("id", should, Arrays.asList("1", "3"), null));
+    TestCase.assertEquals(2, docIdSetHits(svc, Arrays.asList("odd"), null));
+    svc.close();
+
+    // definitions and files are reused on open
+    svc = new AbacusQueryService(dir, FacetTestUtil.QUERY_PARSER, configBuilder.build());
+    TestCase.assertEquals(new HashSet<>(Arrays.asList("odd", "small")),
+        svc.getDocIdSetStore().getNames());
+    TestCase.assertEquals(2, docIdSetHits(svc, Arrays.asList("odd"), null));
+
+    // new segments are computed on refresh, merged ones replace the files of their sources
+    writer.deleteDocuments(new Term("id", "3"));
+    writer.addDocument(newDoc("3", 7));
+    writer.commit();
+    svc.refresh();
+    TestCase.assertEquals(2, docIdSetHits(svc, Arrays.asList("odd"), null));
+    TestCase.assertEquals(4, setFileCount(storePath));
+    writer.forceMerge(1);
+    writer.commit();
+    svc.refresh();
+    TestCase.assertEquals(2, docIdSetHits(svc, Arrays.asList("odd"), null));
+    TestCase.assertEquals(1, docIdSetHits(svc, Arrays.asList("odd"), Arrays.asList("small")));
+    TestCase.assertEquals(2, setFileCount(storePath));
+
+    TestCase.assertTrue(svc.deleteDocIdSet("small"));
+    TestCase.assertFalse(svc.deleteDocIdSet("small"));
+    TestCase.assertEquals(1, setFileCount(storePath));
+    try {
+      docIdSetHits(svc, Arrays.asList("small"), null);
+      TestCase.fail("deleted doc id set should not be found");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    svc.close();
+    writer.close();
+    dir.close();
+    IOUtils.rm(storePath);
+  }
+
+  @Test
+  public void testDocIdSetStoreOlderReaderSynced() throws Exception {
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(null));
+    for (int i = 1; i <= 4; ++i) {
+      writer.addDocument(newDoc(String.valueOf(i), i));
+      if (i % 2 == 0) {
+        writer.commit();
+      }
+    }
+    DirectoryReader oldReader = DirectoryReader.open(dir);
+    Path storePath = Files.createTempDirectory("docsets");
+    DocIdSetStore store = new DocIdSetStore(FSDirectory.open(storePath),
+        FacetTestUtil.QUERY_PARSER);
+    store.define("set", termFilter("id", AbacusBooleanClauseOccur.SHOULD,
+        Arrays.asList("1", "3"), null));
+    store.sync(oldReader, null);
+    TestCase.assertEquals(2, setFileCount(storePath));
+
+    writer.forceMerge(1);
+    writer.commit();
+    DirectoryReader newReader = DirectoryReader.openIfChanged(oldReader);
+    store.sync(newReader, null);
+    TestCase.assertEquals(3, setFileCount(storePath));
+
+    // a sync of the older reader, racing a refresh, keeps the file of the merged segment
+    store.sync(oldReader, null);
+    TestCase.assertEquals(3, setFileCount(storePath));
+    TestCase.assertNotNull(store.get("set", newReader.leaves().get(0).reader()));
+
+    // files go once the cores of the merged away segments are closed
+    oldReader.close();
+    store.deleteClosedSegmentFiles();
+    TestCase.assertEquals(1, setFileCount(storePath));
+
+    // closing the readers of the store does not delete the files of live segments
+    newReader.close();
+    store.close();
+    TestCase.assertEquals(1, setFileCount(storePath));
+    writer.close();
+    dir.close();
+    IOUtils.rm(storePath);
+  }
+
+  @Test
+  public void testDocIdSetRedefinedWhileQueried() throws Exception {
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(null));
+    for (int i = 1; i <= 6; ++i) {
+      writer.addDocument(newDoc(String.valueOf(i), i));
+      // a few segments, each swapped on its own
+      if (i % 2 == 0) {
+        writer.commit();
+      }
+    }
+    writer.close();
+    Path storePath = Files.createTempDirectory("docsets");
+    final AbacusQueryService svc = new AbacusQueryService(dir, FacetTestUtil.QUERY_PARSER,
+        new QueryServiceConfigBuilder().withDocIdSetStorePath(storePath).build());
+    AbacusBooleanClauseOccur should = AbacusBooleanClauseOccur.SHOULD;
+    List<AbacusFilter> definitions = Arrays.asList(
+        termFilter("id", should, Arrays.asList("1", "3", "5"), null),
+        termFilter("id", should, Arrays.asList("2", "4", "6"), null));
+    svc.saveDocIdSet("set", definitions.get(0));
+
+    final AtomicBoolean done = new AtomicBoolean();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int i = 0; i < 4; ++i) {
+      futures.add(executor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws Exception {
+          int queries = 0;
+          while (!done.get()) {
+            // either definition, or a mix of both across segments, never a failure
+            TestCase.assertEquals(3, docIdSetHits(svc, Arrays.asList("set"), null));
+            queries++;
+          }
+          return queries;
+        }
+      }));
+    }
+    for (int i = 1; i <= 50; ++i) {
+      svc.saveDocIdSet("set", definitions.get(i % 2));
+    }
+    done.set(true);
+    for (Future<Integer> future : futures) {
+      TestCase.assertTrue(future.get() > 0);
+    }
+    executor.shutdown();
+    TestCase.assertEquals(3, docIdSetHits(svc, Arrays.asList("set"), null));
+    TestCase.assertEquals(0, docIdSetHits(svc, Arrays.asList("set"), Arrays.asList("set")));
+    TestCase.assertEquals(3, setFileCount(storePath));
+    svc.close();
+    dir.close();
+    IOUtils.rm(storePath);
+  }
+
+  /**
+   * Matches every doc, waits for release before matching any so that a filter built on it is
+   * in flight with the sets of its other clauses already resolved.
+   */
+  private static class BlockingQuery extends Query {
+    private final CountDownLatch entered;
+    private final CountDownLatch release;
+
+    BlockingQuery(CountDownLatch entered, CountDownLatch release) {
+      this.entered = entered;
+      this.release = release;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+      final Weight in = new MatchAllDocsQuery().createWeight(searcher, needsScores);
+      return new Weight(this) {
+        @Override
+        public void extractTerms(Set<Term> terms) {
+          in.extractTerms(terms);
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+          return in.explain(context, doc);
+        }
+
+        @Override
+        public float getValueForNormalization() throws IOException {
+          return in.getValueForNormalization();
+        }
+
+        @Override
+        public void normalize(float norm, float boost) {
+          in.normalize(norm, boost);
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+          entered.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+          return in.scorer(context);
+        }
+      };
+    }
+
+    @Override
+    public String toString(String field) {
+      return "blocking";
+    }
+  }
+
+  @Test
+  public void testDocIdSetRedefinedWhileCached() throws Exception {
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(null));
+    IndexDirectoryFacetsConfigReader.putFacetsConfig(writer, FacetTestUtil.buildConfig());
+    for (int i = 1; i <= 6; ++i) {
+      writer.addDocument(newDoc(String.valueOf(i), i));
+    }
+    writer.close();
+    Path storePath = Files.createTempDirectory("docsets");
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    AbacusQueryParser blockingParser = new AbacusQueryParser() {
+      @Override
+      public Query parse(String rawQuery) throws ParseException {
+        return rawQuery.equals("blocking") ? new BlockingQuery(entered, release)
+            : FacetTestUtil.QUERY_PARSER.parse(rawQuery);
+      }
+    };
+    final AbacusQueryService svc = new AbacusQueryService(dir, blockingParser,
+        new QueryServiceConfigBuilder().withDocIdSetStorePath(storePath)
+            .withResultCacheSize(16).withFilterCacheBytes(1 << 20)
+            .withFilterCacheMinFrequency(1).withFacetCountCacheBytes(1 << 20).build());
+    AbacusBooleanClauseOccur should = AbacusBooleanClauseOccur.SHOULD;
+    AbacusBooleanClauseOccur must = AbacusBooleanClauseOccur.MUST;
+    svc.saveDocIdSet("set", termFilter("id", should, Arrays.asList("1", "3", "5"), null));
+
+    // the set is resolved before the blocking clause, its set and counts are cached after it
+    AbacusFilter blockingFilter = new AbacusFilter();
+    blockingFilter.setQueryFilter(new AbacusQueryFilter().setQuery(
+        new AbacusQuery().setStringQuery(new AbacusStringQuery().setQuery("blocking"))));
+    List<AbacusBooleanSubFilter> subFilters = new ArrayList<>();
+    subFilters.add(new AbacusBooleanSubFilter().setOccur(must)
+        .setFilter(termFilter(DocIdSetStore.FIELD, must, Arrays.asList("set"), null)));
+    subFilters.add(new AbacusBooleanSubFilter().setOccur(must).setFilter(blockingFilter));
+    final AbacusRequest req = new AbacusRequest();
+    req.setFilter(new AbacusFilter().setBooleanFilter(
+        new AbacusBooleanFilter().setFilters(subFilters)));
+    req.putToFacetParams("size", new FacetParam().setMaxNumValues(10));
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<AbacusResult> inFlight = executor.submit(new Callable<AbacusResult>() {
+      @Override
+      public AbacusResult call() throws Exception {
+        return svc.query(req);
+      }
+    });
+    entered.await();
+    svc.saveDocIdSet("set", termFilter("id", should, Arrays.asList("2", "4"), null));
+    release.countDown();
+    TestCase.assertEquals(3, inFlight.get().getNumHits());
+    executor.shutdown();
+
+    // nothing it cached for the old definition is served
+    for (int i = 0; i < 2; ++i) {
+      AbacusResult result = svc.query(req);
+      TestCase.assertEquals(2, result.getNumHits());
+      List<Facet> sizes = result.getFacetList().get("size");
+      TestCase.assertEquals(2, sizes.size());
+      for (Facet facet : sizes) {
+        TestCase.assertTrue(facet.getValue().equals("2") || facet.getValue().equals("4"));
+      }
+    }
+    TestCase.assertEquals(1, svc.getResultCache().getHitCount());
+    svc.close();
+    dir.close();
+    IOUtils.rm(storePath);
+  }
+
+  @Test
+  public void testMemoryBudget() throws Exception {
+    Directory dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(null));
+    for (int i = 0; i < 4; ++i) {
+      Document doc = new Document();
+      doc.add(new NumericDocValuesField("a", i));
+      doc.add(new NumericDocValuesField("b", i));
+      writer.addDocument(doc);
+    }
+    writer.commit();
+
+    // room for one column of 4 longs, b goes first
+    MemoryBudget budget = new MemoryBudget(MemoryBudget.UNLIMITED, MemoryBudget.UNLIMITED, 40);
+    Map<String, Integer> priorities = new HashMap<>();
+    priorities.put("b", 1);
+    QueryServiceConfigBuilder configBuilder = new QueryServiceConfigBuilder()
+        .withDefaultMemType(MemType.Native)
+        .withMemoryBudget(budget)
+        .withLoadPriorities(priorities);
+    AbacusQueryService svc = new AbacusQueryService(dir, FacetTestUtil.QUERY_PARSER,
+        configBuilder.build());
+    Map<String, Map<MemType, Integer>> placement = svc.getDocValuesPlacement();
+    TestCase.assertEquals(Integer.valueOf(1), placement.get("b").get(MemType.Native));
+    TestCase.assertEquals(Integer.valueOf(1), placement.get("a").get(MemType.Default));
+    TestCase.assertEquals(32, budget.getUsed(MemType.Native));
+    TestCase.assertEquals(4, svc.query(new AbacusRequest()).getNumHits());
+
+    // the budget is shared, a second service gets what is left
+    AbacusQueryService svc2 = new AbacusQueryService(dir, FacetTestUtil.QUERY_PARSER,
+        configBuilder.build());
+    placement = svc2.getDocValuesPlacement();
+    TestCase.assertEquals(Integer.valueOf(1), placement.get("a").get(MemType.Default));
+    TestCase.assertEquals(Integer.valueOf(1), placement.get("b").get(MemType.Default));
+    TestCase.assertEquals(4, svc2.query(new AbacusRequest()).getNumHits());
+    svc2.close();
+
+    // released with the loaded doc values
+    svc.close();
+    TestCase.assertEquals(0, budget.getUsed(MemType.Native));
+    writer.close();
+    dir.close();
+  }
+
+  @Test
+  public void testParallelLoading() throws Exception {
+    AbacusRequest req = new AbacusRequest();
+    req.putToFacetParams("color", new FacetParam());
+    req.putToFacetParams("tag", new FacetParam());
+    req.putToFacetParams("size", new FacetParam());
+    AbacusQueryService serialSvc = new AbacusQueryService(FacetTestUtil.IDX_DIR,
+        FacetTestUtil.QUERY_PARSER, new QueryServiceConfigBuilder()
+            .withDefaultMemType(MemType.Native)
+            .withLoadThreads(1)
+            .build());
+    AbacusResult expected = serialSvc.query(req);
+    serialSvc.close();
+
+    for (MemType memType : new MemType[] { MemType.Heap, MemType.Direct, MemType.Native }) {
+      AbacusQueryService svc = new AbacusQueryService(FacetTestUtil.IDX_DIR,
+          FacetTestUtil.QUERY_PARSER, new QueryServiceConfigBuilder()
+              .withDefaultMemType(memType)
+              .withLoadThreads(4)
+              .build());
+      AbacusResult results = svc.query(req);
+      TestCase.assertEquals(expected.getNumHits(), results.getNumHits());
+      TestCase.assertEquals(expected.getFacetList(), results.getFacetList());
+      Map<String, Map<MemType, Integer>> placement = svc.getDocValuesPlacement();
+      for (String field : Arrays.asList("color", "tag", "size")) {
+        TestCase.assertEquals(Collections.singleton(memType), placement.get(field).keySet());
+        TestCase.assertTrue(svc.getDocValuesLoadNanos().containsKey(field));
+      }
+      svc.close();
+    }
+  }
+
+  @Test
+  public void testBackgroundLoading() throws Exception {
+    AbacusRequest req = new AbacusRequest();
+    req.putToFacetParams("color", new FacetParam());
+    req.putToFacetParams("tag", new FacetParam());
+    req.putToFacetParams("size", new FacetParam());
+    AbacusQueryService svc = new AbacusQueryService(FacetTestUtil.IDX_DIR,
+        FacetTestUtil.QUERY_PARSER);
+    AbacusResult expected = svc.query(req);
+    svc.close();
+
+    AbacusQueryService bgSvc = new AbacusQueryService(FacetTestUtil.IDX_DIR,
+        FacetTestUtil.QUERY_PARSER, new QueryServiceConfigBuilder()
+            .withDefaultMemType(MemType.Native)
+            .withLoadThreads(2)
+            .withBackgroundLoading(true)
+            .build());
+    try {
+      // answered whether or not the columns are loaded yet
+      AbacusResult results = bgSvc.query(req);
+      TestCase.assertEquals(expected.getNumHits(), results.getNumHits());
+      TestCase.assertEquals(expected.getFacetList(), results.getFacetList());
+      long deadline = System.currentTimeMillis() + 30000;
+      while (bgSvc.isDocValuesLoading() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      TestCase.assertFalse(bgSvc.isDocValuesLoading());
+      Map<String, Map<MemType, Integer>> placement = bgSvc.getDocValuesPlacement();
+      for (String field : Arrays.asList("color", "tag", "size")) {
+        TestCase.assertEquals(Collections.singleton(MemType.Native),
+            placement.get(field).keySet());
+      }
+      results = bgSvc.query(req);
+      TestCase.assertEquals(expected.getNumHits(), results.getNumHits());
+      TestCase.assertEquals(expected.getFacetList(), results.getFacetList());
+    } finally {
+      bgSvc.close();
+    }
+  }
 }